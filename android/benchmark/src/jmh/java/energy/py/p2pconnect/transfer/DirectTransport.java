@@ -0,0 +1,94 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * A {@link Transport} delivering control messages synchronously to the peer.
+ *
+ * File and stream payloads are dropped, only the protocol overhead is measured.
+ * The bandwidth is always high, {@link Listener#onBandwidthChanged} isn't called.
+ */
+class DirectTransport implements Transport {
+
+    private final String _endpointId;
+    private DirectTransport _peer;
+    private Listener _listener;
+    private long _nextPayloadId = 1;
+
+    /** Bytes of all control messages sent by this side. */
+    long bytesSent;
+    /** Number of control messages sent by this side. */
+    int messagesSent;
+
+    static DirectTransport[] createPair() {
+
+        DirectTransport first = new DirectTransport("direct-1");
+        DirectTransport second = new DirectTransport("direct-2");
+        first._peer = second;
+        second._peer = first;
+
+        return new DirectTransport[] { first, second };
+    }
+
+    private DirectTransport(String endpointId) {
+        _endpointId = endpointId;
+    }
+
+    String getPeerEndpointId() {
+        return _peer._endpointId;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        _listener = listener;
+    }
+
+    @Override
+    public Bandwidth getBandwidth(String endpointId) {
+        // never changes, the sender doesn't hold resources back
+        return Bandwidth.HIGH;
+    }
+
+    @Override
+    public long getSize(String uri) {
+        // a typical photo
+        return 4_000_000;
+    }
+
+    @Override
+    public InputStream openInputStream(String uri) {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public void runOnListenerThread(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public void sendBytes(String endpointId, byte[] bytes) {
+
+        bytesSent += bytes.length;
+        messagesSent++;
+        _peer._listener.onBytesReceived(_endpointId, bytes);
+    }
+
+    @Override
+    public long sendFile(String endpointId, String uri) {
+        return _nextPayloadId++;
+    }
+
+    @Override
+    public long sendStream(String endpointId, InputStream stream) {
+        return _nextPayloadId++;
+    }
+
+    @Override
+    public void cancel(long payloadId) {
+    }
+
+    @Override
+    public void disconnect(String endpointId) {
+    }
+}
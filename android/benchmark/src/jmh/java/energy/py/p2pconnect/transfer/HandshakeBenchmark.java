@@ -0,0 +1,111 @@
+package energy.py.p2pconnect.transfer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import energy.py.p2pconnect.ResourceDescriptor;
+
+/**
+ * Measures the control protocol: encoding, sending and parsing of every
+ * handshake message including the per-resource id messages, until the
+ * sender starts with the first resource.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class HandshakeBenchmark {
+
+    @Param({ "1", "10", "100", "1000" })
+    public int resourceCount;
+
+    /** 1 = string messages, 2 = binary frames */
+    @Param({ "1", "2" })
+    public int protocolVersion;
+
+    private List<ResourceDescriptor> _resources;
+
+    /** Reports the wire overhead of one handshake next to the timing results. */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Overhead {
+
+        public long controlBytes;
+        public long controlMessages;
+    }
+
+    @Setup
+    public void setUp() {
+
+        TransferLog.setSink((priority, tag, message, throwable) -> {});
+
+        _resources = new ArrayList<>(resourceCount);
+        for (int i = 0; i < resourceCount; i++) {
+            // typical names of photos taken in the field
+            String id = "IMG_20240612_" + (100000 + i) + ".jpg";
+            _resources.add(new ResourceDescriptor(id, "file:///storage/emulated/0/DCIM/" + id));
+        }
+    }
+
+    @Benchmark
+    public SenderSession handshake(Overhead overhead) {
+
+        DirectTransport[] transports = DirectTransport.createPair();
+
+        ReceiverSession[] receiver = new ReceiverSession[1];
+        receiver[0] = new ReceiverSession(transports[1], transports[1].getPeerEndpointId(),
+                new File("."), (title, progress, info) -> {},
+                new ReceiverSession.Listener() {
+                    @Override
+                    public void onTransferRequested(String transferId) {
+                        receiver[0].acceptTransfer(transferId, true);
+                    }
+
+                    @Override
+                    public void onResourceReceived(String transferId, ResourceDescriptor resource,
+                                                   long size, long durationMillis) {
+                    }
+
+                    @Override
+                    public void onTransferComplete(String transferId, List<ResourceDescriptor> resources) {
+                    }
+
+                    @Override
+                    public void onTransferFailed(String transferId, String error) {
+                    }
+                });
+        receiver[0].setProtocolVersion(protocolVersion);
+        transports[1].setListener(receiver[0]);
+        receiver[0].start();
+
+        SenderSession sender = new SenderSession(transports[0], transports[0].getPeerEndpointId(),
+                "share.benchmark", _resources, (title, progress, info) -> {}, (success, error) -> {});
+        sender.setProtocolVersion(protocolVersion);
+        // hashing would read the resources on another thread
+        SendOptions options = new SendOptions();
+        options.setVerify(false);
+        sender.setOptions(options);
+        // the sizes are looked up right away instead of on another thread
+        sender.setExecutor(Runnable::run);
+        transports[0].setListener(sender);
+
+        // runs synchronously until the first file payload is sent
+        sender.start();
+
+        overhead.controlBytes = transports[0].bytesSent + transports[1].bytesSent;
+        overhead.controlMessages = transports[0].messagesSent + transports[1].messagesSent;
+
+        return sender;
+    }
+}
@@ -0,0 +1,151 @@
+package energy.py.p2pconnect.transfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import energy.py.p2pconnect.ResourceDescriptor;
+
+/**
+ * Measures complete transfers of a batch of photos over a loopback link
+ * with the bandwidth and latency of a Bluetooth connection.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class LoopbackTransferBenchmark {
+
+    private static final long BYTES_PER_SECOND = 2_000_000;
+    private static final long LATENCY_MILLIS = 30;
+
+    @Param({ "50" })
+    public int fileCount;
+
+    @Param({ "20000" })
+    public int fileSize;
+
+    @Param({ "1", "4" })
+    public int maxConcurrentFiles;
+
+    private File _dir;
+    private List<ResourceDescriptor> _resources;
+    private LoopbackTransport[] _transports;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        TransferLog.setSink((priority, tag, message, throwable) -> {});
+
+        _dir = Files.createTempDirectory("loopback-benchmark").toFile();
+
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+
+        _resources = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            File file = new File(_dir, "IMG_" + i + ".jpg");
+            Files.write(file.toPath(), content);
+            _resources.add(new ResourceDescriptor(file.getName(), file.toURI().toString()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        deleteRecursively(_dir);
+    }
+
+    @Setup(Level.Invocation)
+    public void connect() throws IOException {
+
+        File spool = new File(_dir, "spool");
+        File cache = new File(_dir, "cache");
+        deleteRecursively(spool);
+        deleteRecursively(cache);
+        Files.createDirectories(spool.toPath());
+        Files.createDirectories(cache.toPath());
+
+        _transports = LoopbackTransport.createPair(BYTES_PER_SECOND, LATENCY_MILLIS, spool);
+    }
+
+    @TearDown(Level.Invocation)
+    public void disconnect() {
+
+        _transports[0].shutdown();
+        _transports[1].shutdown();
+    }
+
+    private static void deleteRecursively(File file) {
+
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public List<ResourceDescriptor> transfer() throws Exception {
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+
+        ReceiverSession[] receiver = new ReceiverSession[1];
+        receiver[0] = new ReceiverSession(_transports[1], _transports[1].getPeerEndpointId(),
+                new File(_dir, "cache"), (title, progress, info) -> {},
+                new ReceiverSession.Listener() {
+                    @Override
+                    public void onTransferRequested(String transferId) {
+                        receiver[0].acceptTransfer(transferId, true);
+                    }
+
+                    @Override
+                    public void onResourceReceived(String transferId, ResourceDescriptor resource,
+                                                   long size, long durationMillis) {
+                    }
+
+                    @Override
+                    public void onTransferComplete(String transferId, List<ResourceDescriptor> resources) {
+                        received.complete(resources);
+                    }
+
+                    @Override
+                    public void onTransferFailed(String transferId, String error) {
+                        received.completeExceptionally(new IllegalStateException("Transfer failed: " + error));
+                    }
+                });
+        _transports[1].setListener(receiver[0]);
+        receiver[0].start();
+
+        SendOptions options = new SendOptions();
+        options.setMaxConcurrentFiles(maxConcurrentFiles);
+
+        SenderSession sender = new SenderSession(_transports[0], _transports[0].getPeerEndpointId(),
+                "share.benchmark", _resources, (title, progress, info) -> {}, (success, error) -> {});
+        sender.setOptions(options);
+        _transports[0].setListener(sender);
+        sender.start();
+
+        return received.get(1, TimeUnit.MINUTES);
+    }
+}
@@ -0,0 +1,151 @@
+package energy.py.p2pconnect.transfer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast a received file is moved into the cache directory
+ * ({@link ReceivedFileMover#move(ReceivedFile, File)}) with each of the
+ * {@link ReceivedFileMover.Method}s: rename, transferTo() and the direct buffer copy.
+ *
+ * The 2 GB case needs about 4 GB of free space in the temp directory.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ReceiveCopyBenchmark {
+
+    @Param({ "1048576", "104857600", "2147483648" })
+    public long size;
+
+    /** A {@link ReceivedFileMover.Method}, the enum is not visible to the generated code. */
+    @Param({ "RENAME", "TRANSFER", "COPY" })
+    public String method;
+
+    private ReceivedFileMover.Method _method;
+
+    private File _dir;
+    private File _source;
+    private File _target;
+    private ReceivedFileMover _mover;
+
+    /** Reports the copied bytes per second next to the operations. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    /**
+     * A received file which survives the benchmark invocations.
+     * It offers only what's needed for the measured method.
+     */
+    private class SourceFile implements ReceivedFile {
+
+        @Override
+        public String getUri() {
+            return _source.toURI().toString();
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return new FileInputStream(_source);
+        }
+
+        @Override
+        public File getFile() {
+            return _method == ReceivedFileMover.Method.RENAME ? _source : null;
+        }
+
+        @Override
+        public FileChannel openChannel() throws IOException {
+            return _method == ReceivedFileMover.Method.TRANSFER ? new FileInputStream(_source).getChannel() : null;
+        }
+
+        @Override
+        public void delete() {
+            // the source is reused by the next invocation
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+
+        TransferLog.setSink((priority, tag, message, throwable) -> {});
+        _method = ReceivedFileMover.Method.valueOf(method);
+
+        _dir = Files.createTempDirectory("p2pconnect-bench").toFile();
+        _source = new File(_dir, "source");
+
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+
+        try (OutputStream out = new FileOutputStream(_source)) {
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+
+        File cacheDir = new File(_dir, "cache");
+        cacheDir.mkdir();
+
+        _target = new File(cacheDir, "target");
+        _mover = new ReceivedFileMover();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTarget() {
+
+        if (_method == ReceivedFileMover.Method.RENAME) {
+            _target.renameTo(_source);
+        } else {
+            _target.delete();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+
+        _source.delete();
+        new File(_dir, "cache").delete();
+        _dir.delete();
+    }
+
+    @Benchmark
+    public File move(Bytes bytes) throws IOException {
+
+        ReceivedFileMover.Method used = _mover.move(new SourceFile(), _target);
+        if (used != _method) {
+            throw new IllegalStateException("File was moved with " + used + " instead of " + _method);
+        }
+        bytes.bytes += size;
+
+        return _target;
+    }
+}
@@ -0,0 +1,185 @@
+package energy.py.p2pconnect;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+import androidx.annotation.RequiresApi;
+import energy.py.p2pconnect.transfer.Destination;
+import energy.py.p2pconnect.transfer.DirectoryDestination;
+
+/**
+ * Puts the received resources into a MediaStore collection, named after their ids,
+ * so they show up in the gallery or the downloads without another copy by the app.
+ * A resource is copied from the cache directory into its entry, so unlike a
+ * {@link DirectoryDestination} on the same file system it's written twice.
+ *
+ * Entries are pending while they are written. Only entries of this app are found
+ * on a collision, MediaStore renames the resource if it takes the name of another one.
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+class MediaStoreDestination implements Destination {
+
+    private static final String TAG = "P2PConnect/MediaStoreDestination";
+
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    private final ContentResolver _resolver;
+    private final Uri _collection;
+    /** The directory of the entries, like <code>Pictures/Survey/</code>. */
+    private final String _relativePath;
+    private final Collision _collision;
+
+    /**
+     * @param collection <code>images</code>, <code>video</code>, <code>audio</code> or <code>downloads</code>
+     * @param relativePath the directory of the entries, null for the standard directory of the collection
+     * @throws IllegalArgumentException if the collection is unknown
+     */
+    MediaStoreDestination(Context context, String collection, String relativePath, Collision collision) {
+
+        _resolver = context.getContentResolver();
+        _collision = collision;
+
+        String standardDirectory;
+        switch (collection) {
+            case "images":
+                _collection = MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+                standardDirectory = Environment.DIRECTORY_PICTURES;
+                break;
+            case "video":
+                _collection = MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+                standardDirectory = Environment.DIRECTORY_MOVIES;
+                break;
+            case "audio":
+                _collection = MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+                standardDirectory = Environment.DIRECTORY_MUSIC;
+                break;
+            case "downloads":
+                _collection = MediaStore.Downloads.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+                standardDirectory = Environment.DIRECTORY_DOWNLOADS;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown collection " + collection);
+        }
+
+        String path = relativePath != null ? relativePath : standardDirectory;
+        _relativePath = path.endsWith("/") ? path : path + "/";
+    }
+
+    @Override
+    public String place(String id, File file) throws IOException {
+
+        String name = DirectoryDestination.fileName(id);
+
+        Uri existing = find(name);
+        if (existing != null) {
+
+            switch (_collision) {
+                case KEEP:
+                    Log.i(TAG, "Keeping existing " + existing);
+                    file.delete();
+                    return existing.toString();
+                case REPLACE:
+                    _resolver.delete(existing, null, null);
+                    break;
+                case RENAME:
+                    break; // MediaStore appends a number
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, name);
+        values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType(name));
+        values.put(MediaStore.MediaColumns.RELATIVE_PATH, _relativePath);
+        values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+
+        Uri uri;
+        try {
+            uri = _resolver.insert(_collection, values);
+        } catch (IllegalArgumentException ex) {
+            // e.g. a MIME type the collection doesn't take
+            throw new IOException("Can't insert " + name + " into " + _collection + ": " + ex.getMessage());
+        }
+        if (uri == null) {
+            throw new IOException("Can't insert " + name + " into " + _collection);
+        }
+
+        try {
+            copy(file, uri);
+        } catch (IOException ex) {
+            _resolver.delete(uri, null, null);
+            throw ex;
+        }
+
+        values = new ContentValues();
+        values.put(MediaStore.MediaColumns.IS_PENDING, 0);
+        _resolver.update(uri, values, null, null);
+
+        file.delete();
+        return uri.toString();
+    }
+
+    /** @return the entry of this app with the name, null if there is none */
+    private Uri find(String name) {
+
+        String selection = MediaStore.MediaColumns.DISPLAY_NAME + "=? AND "
+                + MediaStore.MediaColumns.RELATIVE_PATH + "=?";
+        try (Cursor cursor = _resolver.query(_collection, new String[] { MediaStore.MediaColumns._ID },
+                selection, new String[] { name, _relativePath }, null)) {
+
+            if (cursor != null && cursor.moveToFirst()) {
+                return ContentUris.withAppendedId(_collection, cursor.getLong(0));
+            }
+        }
+        return null;
+    }
+
+    /** Copies the file into the entry and syncs it to the storage. */
+    private void copy(File file, Uri uri) throws IOException {
+
+        ParcelFileDescriptor descriptor = _resolver.openFileDescriptor(uri, "w");
+        if (descriptor == null) {
+            throw new FileNotFoundException("Can't open " + uri);
+        }
+
+        try (FileChannel in = new FileInputStream(file).getChannel();
+             FileChannel out = new ParcelFileDescriptor.AutoCloseOutputStream(descriptor).getChannel()) {
+
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    throw new IOException("transferTo() stopped at " + position + " of " + size);
+                }
+                position += transferred;
+            }
+            out.force(true);
+        }
+    }
+
+    private static String mimeType(String name) {
+
+        int dot = name.lastIndexOf('.');
+        String mimeType = dot >= 0 ? MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+                name.substring(dot + 1).toLowerCase(Locale.ROOT)) : null;
+        return mimeType != null ? mimeType : DEFAULT_MIME_TYPE;
+    }
+}
@@ -0,0 +1,421 @@
+package energy.py.p2pconnect;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.content.res.AssetFileDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.connection.BandwidthInfo;
+import com.google.android.gms.nearby.connection.ConnectionsClient;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadCallback;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import androidx.annotation.NonNull;
+import energy.py.p2pconnect.transfer.ReceivedFile;
+import energy.py.p2pconnect.transfer.TransferUpdate;
+import energy.py.p2pconnect.transfer.Transport;
+
+/**
+ * {@link Transport} implementation based on Google Nearby Connections.
+ *
+ * The {@link PayloadCallback} to register when accepting a connection is returned by
+ * {@link #getPayloadCallback()}, disconnects and bandwidth changes must be forwarded by the
+ * <code>ConnectionLifecycleCallback</code> using {@link #onDisconnected(String)} and
+ * {@link #onBandwidthChanged(String, int)}.
+ */
+public class NearbyTransport implements Transport {
+
+    private static final String TAG = "P2PConnect/Nearby";
+
+    /** Size of the chunks read from a resource into the pipe of a stream payload. */
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+    /** Reads the resources of stream payloads, one thread per stream. */
+    private static final ExecutorService _streamExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "P2PConnect-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Context _context;
+    private final PayloadCallback _payloadCallback = new PayloadHandler();
+    // Nearby calls the callbacks on the main thread
+    private final Handler _handler = new Handler(Looper.getMainLooper());
+
+    private Listener _listener;
+    private Bandwidth _bandwidth = Bandwidth.UNKNOWN;
+    /**
+     * The file descriptors read by Nearby for the payloads being sent, by payload id.
+     * Nearby doesn't close them when a payload is cancelled or the connection is lost.
+     */
+    private final Map<Long, ParcelFileDescriptor> _outgoing = new HashMap<>();
+
+    public NearbyTransport(Context context) {
+        _context = context;
+    }
+
+    private ConnectionsClient client() {
+        return Nearby.getConnectionsClient(_context);
+    }
+
+    public PayloadCallback getPayloadCallback() {
+        return _payloadCallback;
+    }
+
+    public void onDisconnected(String endpointId) {
+
+        closeOutgoing();
+        if (_listener != null) {
+            _listener.onDisconnected(endpointId);
+        }
+    }
+
+    /** @param quality the quality reported by Nearby, see <code>BandwidthInfo.Quality</code> */
+    public void onBandwidthChanged(String endpointId, int quality) {
+
+        switch (quality) {
+            case BandwidthInfo.Quality.LOW:
+                _bandwidth = Bandwidth.LOW;
+                break;
+            case BandwidthInfo.Quality.MEDIUM:
+                _bandwidth = Bandwidth.MEDIUM;
+                break;
+            case BandwidthInfo.Quality.HIGH:
+                _bandwidth = Bandwidth.HIGH;
+                break;
+            default:
+                _bandwidth = Bandwidth.UNKNOWN;
+                break;
+        }
+        Log.i(TAG, "Bandwidth of the connection to '" + endpointId + "' is " + _bandwidth);
+
+        if (_listener != null) {
+            _listener.onBandwidthChanged(endpointId, _bandwidth);
+        }
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        _listener = listener;
+    }
+
+    @Override
+    public Bandwidth getBandwidth(String endpointId) {
+        return _bandwidth;
+    }
+
+    @Override
+    public long getSize(String uri) {
+
+        Uri u = Uri.parse(uri);
+
+        if (ContentResolver.SCHEME_FILE.equals(u.getScheme())) {
+            File file = new File(u.getPath());
+            return file.isFile() ? file.length() : -1;
+        }
+
+        try (Cursor cursor = _context.getContentResolver().query(u,
+                new String[] { OpenableColumns.SIZE }, null, null, null)) {
+
+            if (cursor != null && cursor.moveToFirst()) {
+                int column = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (column >= 0 && !cursor.isNull(column)) {
+                    return cursor.getLong(column);
+                }
+            }
+        } catch (RuntimeException ex) {
+            Log.w(TAG, "Failed to query size of " + uri, ex);
+        }
+
+        // not every provider reports the size, the file descriptor might know it
+        try (AssetFileDescriptor fileDescriptor = _context.getContentResolver().openAssetFileDescriptor(u, "r")) {
+
+            if (fileDescriptor != null && fileDescriptor.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH) {
+                return fileDescriptor.getLength();
+            }
+        } catch (IOException | RuntimeException ex) {
+            Log.w(TAG, "Failed to open " + uri + " for its size: " + ex.getMessage());
+        }
+
+        return -1;
+    }
+
+    @Override
+    public InputStream openInputStream(String uri) throws IOException {
+
+        Uri u = Uri.parse(uri);
+        ContentResolver contentResolver = _context.getContentResolver();
+
+        try {
+            return contentResolver.openInputStream(u);
+        } catch (FileNotFoundException ex) {
+
+            // virtual documents (e.g. of cloud providers) can only be opened converted to another type
+            String[] types = contentResolver.getStreamTypes(u, "*/*");
+            if (types == null || types.length == 0) {
+                throw ex;
+            }
+
+            Log.i(TAG, "Opening " + uri + " as " + types[0]);
+            AssetFileDescriptor fileDescriptor = contentResolver.openTypedAssetFileDescriptor(u, types[0], null);
+            if (fileDescriptor == null) {
+                throw ex;
+            }
+            return fileDescriptor.createInputStream();
+        }
+    }
+
+    @Override
+    public void runOnListenerThread(Runnable task) {
+        _handler.post(task);
+    }
+
+    @Override
+    public void sendBytes(String endpointId, byte[] bytes) {
+        client().sendPayload(endpointId, Payload.fromBytes(bytes));
+    }
+
+    @Override
+    public long sendFile(String endpointId, String uri) throws IOException {
+
+        Uri u = Uri.parse(uri);
+        Log.i(TAG, "path = " + u.getPath());
+
+        ContentResolver contentResolver = _context.getContentResolver();
+        ParcelFileDescriptor fileDescriptor = contentResolver.openFileDescriptor(u, "r");
+
+        if (fileDescriptor == null) {
+            throw new FileNotFoundException(uri);
+        }
+        if (fileDescriptor.getStatSize() < 0) {
+            // a pipe or socket, e.g. generated content. Nearby needs a regular file.
+            fileDescriptor.close();
+            throw new FileNotFoundException(uri + " is not a regular file");
+        }
+
+        Payload filePayload = Payload.fromFile(fileDescriptor);
+        _outgoing.put(filePayload.getId(), fileDescriptor);
+        client().sendPayload(endpointId, filePayload);
+
+        return filePayload.getId();
+    }
+
+    /**
+     * The stream is copied chunk by chunk into a pipe, Nearby reads the other end.
+     * The pipe is bounded, so the memory used doesn't depend on the size of the resource
+     * and a slow source (e.g. a cloud document) doesn't block Nearby's threads.
+     */
+    @Override
+    public long sendStream(String endpointId, InputStream stream) {
+
+        ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to create pipe, sending stream directly", ex);
+            Payload streamPayload = Payload.fromStream(stream);
+            client().sendPayload(endpointId, streamPayload);
+            return streamPayload.getId();
+        }
+
+        _streamExecutor.execute(() -> pump(stream, pipe[1]));
+
+        Payload streamPayload = Payload.fromStream(pipe[0]);
+        // closing the read end stops the pump as well
+        _outgoing.put(streamPayload.getId(), pipe[0]);
+        client().sendPayload(endpointId, streamPayload);
+
+        return streamPayload.getId();
+    }
+
+    private static void pump(InputStream in, ParcelFileDescriptor sink) {
+
+        byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+        long total = 0;
+
+        OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(sink);
+
+        try (InputStream source = in) {
+
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                total += read;
+            }
+            out.close();
+
+            Log.d(TAG, "Streamed " + total + " bytes");
+
+        } catch (IOException ex) {
+
+            Log.e(TAG, "Streaming failed after " + total + " bytes", ex);
+            try {
+                // the reliable pipe reports the error to Nearby instead of a regular end of stream
+                sink.closeWithError(ex.getMessage());
+            } catch (IOException ignored) {
+                // already closed
+            }
+        }
+    }
+
+    @Override
+    public void cancel(long payloadId) {
+
+        client().cancelPayload(payloadId);
+        close(_outgoing.remove(payloadId));
+    }
+
+    @Override
+    public void disconnect(String endpointId) {
+
+        client().disconnectFromEndpoint(endpointId);
+        closeOutgoing();
+    }
+
+    private void closeOutgoing() {
+
+        for (ParcelFileDescriptor fileDescriptor : _outgoing.values()) {
+            close(fileDescriptor);
+        }
+        _outgoing.clear();
+    }
+
+    private static void close(ParcelFileDescriptor fileDescriptor) {
+
+        if (fileDescriptor == null) return;
+
+        try {
+            fileDescriptor.close();
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to close file descriptor", ex);
+        }
+    }
+
+    private static TransferUpdate.Status toStatus(int status) {
+
+        switch (status) {
+            case PayloadTransferUpdate.Status.IN_PROGRESS:
+                return TransferUpdate.Status.IN_PROGRESS;
+            case PayloadTransferUpdate.Status.SUCCESS:
+                return TransferUpdate.Status.SUCCESS;
+            case PayloadTransferUpdate.Status.CANCELED:
+                return TransferUpdate.Status.CANCELED;
+            default:
+                return TransferUpdate.Status.FAILURE;
+        }
+    }
+
+    /** A received FILE payload, stored by Nearby and accessible with a content uri. */
+    private class NearbyFile implements ReceivedFile {
+
+        private final Payload _payload;
+
+        NearbyFile(Payload payload) {
+            _payload = payload;
+        }
+
+        private Uri uri() {
+            return _payload.asFile().asUri();
+        }
+
+        @Override
+        public String getUri() {
+
+            Uri uri = uri();
+            return uri != null ? uri.toString() : null;
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return _context.getContentResolver().openInputStream(uri());
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public File getFile() {
+            // only available before Android 10, afterwards the file is owned by the media provider
+            return _payload.asFile().asJavaFile();
+        }
+
+        @Override
+        public FileChannel openChannel() throws IOException {
+
+            Uri uri = uri();
+            ParcelFileDescriptor fileDescriptor = uri != null ?
+                    _context.getContentResolver().openFileDescriptor(uri, "r") :
+                    _payload.asFile().asParcelFileDescriptor();
+
+            if (fileDescriptor == null) {
+                return null;
+            }
+            return new ParcelFileDescriptor.AutoCloseInputStream(fileDescriptor).getChannel();
+        }
+
+        @Override
+        public void delete() {
+            _context.getContentResolver().delete(uri(), null, null);
+        }
+    }
+
+    private class PayloadHandler extends PayloadCallback {
+
+        @Override
+        public void onPayloadReceived(@NonNull String endpointId, @NonNull Payload payload) {
+
+            if (_listener == null) {
+                Log.w(TAG, "No listener for payload " + payload.getId());
+                return;
+            }
+
+            switch (payload.getType()) {
+
+                case Payload.Type.BYTES:
+                    // This always gets the full data of the payload.
+                    Log.d(TAG, "Payload received: BYTES");
+                    _listener.onBytesReceived(endpointId, payload.asBytes());
+                    break;
+
+                case Payload.Type.FILE:
+                    _listener.onFileReceived(endpointId, payload.getId(), new NearbyFile(payload));
+                    break;
+
+                case Payload.Type.STREAM:
+                    _listener.onStreamReceived(endpointId, payload.getId(), payload.asStream().asInputStream());
+                    break;
+            }
+        }
+
+        @Override
+        public void onPayloadTransferUpdate(@NonNull String endpointId, @NonNull PayloadTransferUpdate update) {
+
+            if (update.getStatus() != PayloadTransferUpdate.Status.IN_PROGRESS) {
+                // Nearby is done with the file descriptor
+                _outgoing.remove(update.getPayloadId());
+            }
+
+            if (_listener == null) return;
+
+            _listener.onTransferUpdate(endpointId, new TransferUpdate(update.getPayloadId(),
+                    toStatus(update.getStatus()), update.getBytesTransferred(), update.getTotalBytes()));
+        }
+    }
+}
@@ -2,6 +2,8 @@ package energy.py.p2pconnect;
 
 import android.Manifest;
 import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
 import android.provider.Settings;
 import android.util.Log;
 
@@ -17,13 +19,26 @@ import com.getcapacitor.annotation.PermissionCallback;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 
+import energy.py.p2pconnect.transfer.Destination;
+import energy.py.p2pconnect.transfer.DirectoryDestination;
+import energy.py.p2pconnect.transfer.Protocol;
+import energy.py.p2pconnect.transfer.ReceiveOptions;
+import energy.py.p2pconnect.transfer.ResourceOrder;
+import energy.py.p2pconnect.transfer.SendOptions;
+import energy.py.p2pconnect.transfer.TransferLog;
+import energy.py.p2pconnect.transfer.TransferStats;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 @CapacitorPlugin(
@@ -60,16 +75,29 @@ public class P2pConnect extends Plugin {
 
     public static String TAG = "P2PConnect/Plugin";
 
-    public static final int PROTOCOL_VERSION = 1;
+    public static final int PROTOCOL_VERSION = Protocol.VERSION;
 
     public static final String ACCEPT_TRANSFER = "acceptTransfer";
+    public static final String RESOURCE_RECEIVED = "resourceReceived";
     public static final String TRANSFER_COMPLETE = "transferComplete";
+    public static final String TRANSFER_FAILED = "transferFailed";
+    public static final String TRANSFER_PROGRESS = "transferProgress";
 
     private String _lastDisplayName = null; //Settings.Global.getString(getContext().getContentResolver(), "device_name");
 
     @Override
     public void load() {
         Log.i(TAG, "load()");
+
+        TransferLog.setSink((priority, tag, message, throwable) -> {
+            if (throwable != null) {
+                message += '\n' + Log.getStackTraceString(throwable);
+            }
+            Log.println(priority, tag, message);
+        });
+
+        Sender.getInstance().setProgressListener(stats -> notifyListeners(TRANSFER_PROGRESS, toProgress(stats)));
+        Receiver.getInstance().setProgressListener(stats -> notifyListeners(TRANSFER_PROGRESS, toProgress(stats)));
     }
 
     @PluginMethod
@@ -139,15 +167,215 @@ public class P2pConnect extends Plugin {
         }
 
         boolean accept = call.getBoolean("accept", false);
-        boolean result = Receiver.getInstance().acceptTransfer(getContext(), transferId, accept);
 
-        if (result) {
-            call.resolve();
-        } else {
-            call.reject("invalid transferId");
+        // the sessions are confined to the main thread
+        getBridge().executeOnMainThread(() -> {
+
+            boolean result = Receiver.getInstance().acceptTransfer(getContext(), transferId, accept);
+
+            if (result) {
+                call.resolve();
+            } else {
+                call.reject("invalid transferId");
+            }
+        });
+    }
+
+    @PluginMethod
+    public void getTransferStats(PluginCall call) {
+
+        // the stats are recorded on the main thread
+        getBridge().executeOnMainThread(() -> {
+
+            JSArray transfers = new JSArray();
+            for (TransferStats stats : Sender.getInstance().getTransferStats()) {
+                transfers.put(toJSObject(stats));
+            }
+            for (TransferStats stats : Receiver.getInstance().getTransferStats()) {
+                transfers.put(toJSObject(stats));
+            }
+
+            JSObject result = new JSObject();
+            result.put("transfers", transfers);
+            call.resolve(result);
+        });
+    }
+
+    private static JSObject toProgress(TransferStats stats) {
+
+        JSObject result = new JSObject();
+        result.put("role", stats.getRole());
+        result.put("endpointId", stats.getEndpointId());
+        if (stats.getTransferId() != null) {
+            result.put("transferId", stats.getTransferId());
+        }
+        result.put("bytesTransferred", stats.getBytesTransferred());
+        if (stats.getTotalBytes() >= 0) {
+            result.put("totalBytes", stats.getTotalBytes());
+        }
+        result.put("bytesPerSecond", Math.round(stats.getThroughput()));
+        if (stats.getEtaMillis() >= 0) {
+            result.put("etaMs", stats.getEtaMillis());
+        }
+        result.put("finished", stats.isFinished());
+        return result;
+    }
+
+    /** @return the order for the <code>order</code> send option or null if unknown */
+    private static ResourceOrder toResourceOrder(String order) {
+
+        switch (order) {
+            case "inOrder":
+                return ResourceOrder.IN_ORDER;
+            case "smallestFirst":
+                return ResourceOrder.SMALLEST_FIRST;
+            case "largestFirst":
+                return ResourceOrder.LARGEST_FIRST;
+            case "priority":
+                return ResourceOrder.PRIORITY;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param timeouts the timeouts in milliseconds by the name of the state, e.g. <code>RECEIVING</code>
+     * @return the timeouts or null if they are invalid
+     */
+    private static <S extends Enum<S>> Map<S, Long> toTimeouts(JSObject timeouts, Class<S> type) {
+
+        Map<S, Long> result = new EnumMap<>(type);
+        Iterator<String> names = timeouts.keys();
+        while (names.hasNext()) {
+
+            String name = names.next();
+            S state;
+            try {
+                state = Enum.valueOf(type, name);
+            } catch (IllegalArgumentException ex) {
+                Log.e(TAG, "Invalid state " + name + " in timeoutsMs");
+                return null;
+            }
+
+            Object value = timeouts.opt(name);
+            if (!(value instanceof Number) || ((Number) value).longValue() < 0) {
+                Log.e(TAG, "Invalid timeout " + value + " for " + name);
+                return null;
+            }
+            result.put(state, ((Number) value).longValue());
+        }
+        return result;
+    }
+
+    /** @return the destination of received resources or null if it's invalid */
+    private Destination toDestination(JSObject destination) {
+
+        Destination.Collision collision;
+        String collisionName = destination.getString("collision");
+        switch (collisionName != null ? collisionName : "rename") {
+            case "rename":
+                collision = Destination.Collision.RENAME;
+                break;
+            case "replace":
+                collision = Destination.Collision.REPLACE;
+                break;
+            case "keep":
+                collision = Destination.Collision.KEEP;
+                break;
+            default:
+                Log.e(TAG, "Invalid collision " + collisionName);
+                return null;
+        }
+
+        String directory = destination.getString("directory");
+        String mediaStore = destination.getString("mediaStore");
+        if ((directory == null) == (mediaStore == null)) {
+            Log.e(TAG, "Destination needs either directory or mediaStore");
+            return null;
+        }
+
+        if (directory != null) {
+            File file = directory.startsWith("file:") ? new File(Uri.parse(directory).getPath()) : new File(directory);
+            return new DirectoryDestination(file, collision);
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            Log.e(TAG, "MediaStore destination needs Android 10");
+            return null;
+        }
+        try {
+            return new MediaStoreDestination(getContext(), mediaStore, destination.getString("relativePath"), collision);
+        } catch (IllegalArgumentException ex) {
+            Log.e(TAG, ex.getMessage());
+            return null;
         }
     }
 
+    static JSObject toJSObject(TransferStats stats) {
+
+        JSObject result = new JSObject();
+        result.put("role", stats.getRole());
+        result.put("endpointId", stats.getEndpointId());
+        if (stats.getTransferId() != null) {
+            result.put("transferId", stats.getTransferId());
+        }
+        result.put("finished", stats.isFinished());
+        result.put("durationMs", stats.getDurationMillis());
+        result.put("bytesTransferred", stats.getBytesTransferred());
+        if (stats.getTotalBytes() >= 0) {
+            result.put("totalBytes", stats.getTotalBytes());
+        }
+        result.put("throughput", Math.round(stats.getThroughput()));
+        result.put("averageThroughput", Math.round(stats.getAverageThroughput()));
+        result.put("filePayloads", stats.getFilePayloads());
+        result.put("streamPayloads", stats.getStreamPayloads());
+        result.put("compressedPayloads", stats.getCompressedPayloads());
+        result.put("bundledResources", stats.getBundledResources());
+        result.put("controlMessages", stats.getControlMessages());
+        result.put("resends", stats.getResends());
+        result.put("skippedResources", stats.getSkippedResources());
+        result.put("resumedBytes", stats.getResumedBytes());
+        result.put("deduplicatedBytes", stats.getDeduplicatedBytes());
+        result.put("bandwidth", stats.getBandwidth().name());
+        result.put("deferredResources", stats.getDeferredResources());
+        result.put("bandwidthWaitMs", stats.getBandwidthWaitMillis());
+        if (stats.getBandwidthWaitResult() != null) {
+            result.put("bandwidthWaitResult", stats.getBandwidthWaitResult());
+        }
+
+        JSObject moves = new JSObject();
+        for (Map.Entry<String, Integer> entry : stats.getMoveCounts().entrySet()) {
+            moves.put(entry.getKey(), entry.getValue());
+        }
+        result.put("moves", moves);
+
+        JSArray phases = new JSArray();
+        for (TransferStats.Phase phase : stats.getPhases()) {
+
+            JSObject item = new JSObject();
+            item.put("name", phase.getName());
+            item.put("startMs", stats.getStartMillis(phase));
+            item.put("durationMs", stats.getDurationMillis(phase));
+            phases.put(item);
+        }
+        result.put("phases", phases);
+
+        JSArray resources = new JSArray();
+        for (TransferStats.Resource resource : stats.getResources()) {
+
+            JSObject item = new JSObject();
+            item.put("index", resource.getIndex());
+            item.put("startMs", stats.getStartMillis(resource));
+            item.put("durationMs", stats.getDurationMillis(resource));
+            item.put("bytes", resource.getBytes());
+            item.put("complete", resource.isComplete());
+            resources.put(item);
+        }
+        result.put("resources", resources);
+
+        return result;
+    }
+
     @PermissionCallback
     private void completeSend(PluginCall call) {
 
@@ -188,7 +416,9 @@ public class P2pConnect extends Plugin {
 
                     Log.d(TAG, "ResourceDescriptor[" + i +"] " + id + " = " + uri);
 
-                    resourceDescriptors.add(new ResourceDescriptor(id, uri));
+                    ResourceDescriptor resourceDescriptor = new ResourceDescriptor(id, uri);
+                    resourceDescriptor.setPriority(resource.optInt("priority", 0));
+                    resourceDescriptors.add(resourceDescriptor);
                 }
             } catch(JSONException ex) {
 
@@ -198,9 +428,111 @@ public class P2pConnect extends Plugin {
                 return;
             }
 
+            SendOptions options = new SendOptions();
+
+            Integer maxConcurrentFiles = call.getInt("maxConcurrentFiles");
+            if (maxConcurrentFiles != null) {
+
+                if (maxConcurrentFiles < 1) {
+                    Log.e(TAG, "Invalid maxConcurrentFiles " + maxConcurrentFiles);
+                    call.reject("invalid maxConcurrentFiles");
+                    return;
+                }
+                options.setMaxConcurrentFiles(maxConcurrentFiles);
+            }
+
+            Boolean verify = call.getBoolean("verify");
+            if (verify != null) {
+                options.setVerify(verify);
+            }
+
+            Boolean deduplicate = call.getBoolean("deduplicate");
+            if (deduplicate != null) {
+                options.setDeduplicate(deduplicate);
+            }
+
+            Boolean compress = call.getBoolean("compress");
+            if (compress != null) {
+                options.setCompress(compress);
+            }
+
+            Long keepAliveMs = call.getLong("keepAliveMs");
+            if (keepAliveMs != null) {
+
+                if (keepAliveMs < 0) {
+                    Log.e(TAG, "Invalid keepAliveMs " + keepAliveMs);
+                    call.reject("invalid keepAliveMs");
+                    return;
+                }
+                options.setKeepAliveMillis(keepAliveMs);
+            }
+
+            Long bandwidthWaitMs = call.getLong("bandwidthWaitMs");
+            if (bandwidthWaitMs != null) {
+
+                if (bandwidthWaitMs < 0) {
+                    Log.e(TAG, "Invalid bandwidthWaitMs " + bandwidthWaitMs);
+                    call.reject("invalid bandwidthWaitMs");
+                    return;
+                }
+                options.setBandwidthWaitMillis(bandwidthWaitMs);
+            }
+
+            String order = call.getString("order");
+            if (order != null) {
+
+                ResourceOrder resourceOrder = toResourceOrder(order);
+                if (resourceOrder == null) {
+                    Log.e(TAG, "Invalid order " + order);
+                    call.reject("invalid order");
+                    return;
+                }
+                options.setOrder(resourceOrder);
+            }
+
+            Long bundleSize = call.getLong("bundleSize");
+            if (bundleSize != null) {
+
+                if (bundleSize < 0) {
+                    Log.e(TAG, "Invalid bundleSize " + bundleSize);
+                    call.reject("invalid bundleSize");
+                    return;
+                }
+                options.setBundleSize(bundleSize);
+            }
+
+            Long heartbeatMs = call.getLong("heartbeatMs");
+            if (heartbeatMs != null) {
+
+                if (heartbeatMs < 0) {
+                    Log.e(TAG, "Invalid heartbeatMs " + heartbeatMs);
+                    call.reject("invalid heartbeatMs");
+                    return;
+                }
+                options.setHeartbeatMillis(heartbeatMs);
+            }
+
+            JSObject timeoutsMs = call.getObject("timeoutsMs");
+            if (timeoutsMs != null) {
+
+                Map<SenderState, Long> timeouts = toTimeouts(timeoutsMs, SenderState.class);
+                if (timeouts == null) {
+                    call.reject("invalid timeoutsMs");
+                    return;
+                }
+                for (Map.Entry<SenderState, Long> timeout : timeouts.entrySet()) {
+                    options.setTimeout(timeout.getKey(), timeout.getValue());
+                }
+            }
+
+            boolean broadcast = call.getBoolean("broadcast", false);
+            String endpointId = call.getString("endpointId");
+
             Log.d(TAG, "Calling startBrowse with serviceId " + serviceId);
             getBridge().saveCall(call);
-            Sender.getInstance().startBrowse(getContext(), serviceId, transferId, resourceDescriptors, () -> getBridge().getSavedCall(call.getCallbackId()));
+            getBridge().executeOnMainThread(() -> Sender.getInstance().startBrowse(getContext(), serviceId,
+                    transferId, resourceDescriptors, options, broadcast, endpointId,
+                    () -> getBridge().getSavedCall(call.getCallbackId())));
 
         } else {
 
@@ -224,10 +556,37 @@ public class P2pConnect extends Plugin {
                 return;
             }
 
+            boolean broadcast = call.getBoolean("broadcast", false);
+
+            ReceiveOptions options = new ReceiveOptions();
+            JSObject destination = call.getObject("destination");
+            if (destination != null) {
+
+                Destination target = toDestination(destination);
+                if (target == null) {
+                    call.reject("invalid destination");
+                    return;
+                }
+                options.setDestination(target);
+            }
+
+            JSObject timeoutsMs = call.getObject("timeoutsMs");
+            if (timeoutsMs != null) {
+
+                Map<ReceiverState, Long> timeouts = toTimeouts(timeoutsMs, ReceiverState.class);
+                if (timeouts == null) {
+                    call.reject("invalid timeoutsMs");
+                    return;
+                }
+                for (Map.Entry<ReceiverState, Long> timeout : timeouts.entrySet()) {
+                    options.setTimeout(timeout.getKey(), timeout.getValue());
+                }
+            }
+
             Log.d(TAG, "Calling startAdvertise with serviceId " + serviceId);
             // FIXME create another callback and resolve/reject
             //  call in .addOnSuccessListener/.addOnFailureListener
-            Receiver.getInstance().startAdvertise(getContext(), serviceId, transferId -> {
+            getBridge().executeOnMainThread(() -> Receiver.getInstance().startAdvertise(getContext(), serviceId, broadcast, options, transferId -> {
 
                 // accept transfer
 
@@ -238,7 +597,20 @@ public class P2pConnect extends Plugin {
 
                 notifyListeners(ACCEPT_TRANSFER, message);
 
-            }, (transferId, resources) -> {
+            }, (transferId, resource, size, durationMillis) -> {
+
+                // resource received, before the transfer is complete
+
+                JSObject message = new JSObject();
+                message.put("transferId", transferId);
+                message.put("id", resource.getId());
+                message.put("uri", resource.getUri());
+                message.put("size", size);
+                message.put("durationMs", durationMillis);
+
+                notifyListeners(RESOURCE_RECEIVED, message);
+
+            }, (transferId, resources, stats) -> {
 
                 // transfer complete
 
@@ -258,9 +630,25 @@ public class P2pConnect extends Plugin {
                     list.put(resource);
                 }
                 message.put("resources", list);
+                if (stats != null) {
+                    message.put("stats", toJSObject(stats));
+                }
 
                 notifyListeners(TRANSFER_COMPLETE, message);
-            });
+
+            }, (transferId, error, stats) -> {
+
+                // transfer failed, e.g. the sender went silent
+
+                JSObject message = new JSObject();
+                message.put("transferId", transferId);
+                message.put("error", error);
+                if (stats != null) {
+                    message.put("stats", toJSObject(stats));
+                }
+
+                notifyListeners(TRANSFER_FAILED, message);
+            }));
 
             JSObject result = new JSObject();
             result.put("success", true);
@@ -280,7 +668,7 @@ public class P2pConnect extends Plugin {
         if(allPermissionsGranted()) {
 
             Log.d(TAG, "Calling endAdvertise()");
-            Receiver.getInstance().endAdvertise(getContext());
+            getBridge().executeOnMainThread(() -> Receiver.getInstance().endAdvertise(getContext()));
             JSObject result = new JSObject();
             result.put("success", true);
             call.resolve(result);
@@ -7,16 +7,24 @@ public class Peer {
 
     private String _id;
     private String _name;
+    /** Found by an earlier discovery, not confirmed by the current one yet. */
+    private boolean _stale;
 
     public Peer(String id, String name) {
+        this(id, name, false);
+    }
+
+    public Peer(String id, String name, boolean stale) {
         _id = id;
         _name = name;
+        _stale = stale;
     }
 
     public String getName() {
         return _name;
     }
     public String getId() { return _id; }
+    public boolean isStale() { return _stale; }
 
     @Override
     public boolean equals(Object o) {
@@ -6,9 +6,13 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
@@ -19,21 +23,32 @@ public class PeerAdapter extends RecyclerView.Adapter<PeerAdapter.ViewHolder> {
 
         public TextView nameTextView;
         public Button connectButton;
+        public CheckBox selectCheckBox;
 
         public ViewHolder(@NonNull View itemView) {
             super(itemView);
 
             nameTextView = (TextView) itemView.findViewById(R.id.contact_name);
             connectButton = (Button) itemView.findViewById(R.id.message_button);
+            selectCheckBox = (CheckBox) itemView.findViewById(R.id.peer_select);
         }
     }
 
     private List<Peer> _peers;
     private OnPeerClickedListener _listener;
+    /** Peers are selected with a check box instead of being sent to right away. */
+    private final boolean _multiSelect;
+    private final Set<Peer> _selected = new LinkedHashSet<>();
 
     public PeerAdapter(List<Peer> peers, OnPeerClickedListener listener) {
+        this(peers, false, listener);
+    }
+
+    /** @param multiSelect the listener is called when the selection changed */
+    public PeerAdapter(List<Peer> peers, boolean multiSelect, OnPeerClickedListener listener) {
 
         _peers = peers;
+        _multiSelect = multiSelect;
         _listener = listener;
     }
 
@@ -41,6 +56,16 @@ public class PeerAdapter extends RecyclerView.Adapter<PeerAdapter.ViewHolder> {
         void onClick(Peer peer);
     }
 
+    /** @return the selected peers in the order they were selected */
+    public List<Peer> getSelectedPeers() {
+        return new ArrayList<>(_selected);
+    }
+
+    /** Must be called for a peer removed from the list. */
+    public void deselect(Peer peer) {
+        _selected.remove(peer);
+    }
+
 
     // Usually involves inflating a layout from XML and returning the holder
     @Override
@@ -69,6 +94,37 @@ public class PeerAdapter extends RecyclerView.Adapter<PeerAdapter.ViewHolder> {
         textView.setText(peer.getName());
 
         Button button = holder.connectButton;
+
+        // a cached peer can't be connected to before the discovery found it again
+        boolean stale = peer.isStale();
+        textView.setAlpha(stale ? 0.5f : 1f);
+        if (stale) {
+            textView.setText(textView.getContext().getResources().getString(R.string.peer_stale, peer.getName()));
+        }
+        button.setEnabled(!stale);
+        holder.selectCheckBox.setEnabled(!stale);
+
+        if (_multiSelect) {
+
+            button.setVisibility(View.GONE);
+
+            CheckBox checkBox = holder.selectCheckBox;
+            checkBox.setVisibility(View.VISIBLE);
+            // the holder is reused for other peers
+            checkBox.setOnCheckedChangeListener(null);
+            checkBox.setChecked(_selected.contains(peer));
+            checkBox.setOnCheckedChangeListener((view, checked) -> {
+
+                if (checked) {
+                    _selected.add(peer);
+                } else {
+                    _selected.remove(peer);
+                }
+                _listener.onClick(peer);
+            });
+            return;
+        }
+
         button.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
@@ -9,6 +9,7 @@ import energy.py.p2pconnect.R;
 import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Menu;
 import android.view.MenuItem;
 
 import com.getcapacitor.Plugin;
@@ -19,11 +20,16 @@ import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
 import com.google.android.gms.nearby.connection.Strategy;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 public class PeerBrowserActivity extends AppCompatActivity {
 
     private static String TAG = "P2pConnect/PeerBrowserActivity";
     private ArrayList<Peer> _peers;
+    /** The shown peers by endpoint id. */
+    private Map<String, Peer> _peersById;
     private PeerAdapter _peerAdapter;
 
     @Override
@@ -33,9 +39,42 @@ public class PeerBrowserActivity extends AppCompatActivity {
 
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
 
+        RecyclerView rvPeers = (RecyclerView) findViewById(R.id.rvPeers);
+        _peers = new ArrayList<Peer>();
+        _peersById = new HashMap<>();
+
+        boolean broadcast = Sender.getInstance().isBroadcast();
+        _peerAdapter = new PeerAdapter(_peers, broadcast, peer -> {
+
+            Log.i(TAG, "clicked " + peer.getId());
+
+            if (broadcast) {
+                invalidateOptionsMenu(); // the send action depends on the selection
+                return;
+            }
+
+            Log.d(TAG, "Start transfer");
+            Sender.getInstance().connect(PeerBrowserActivity.this, Collections.singletonList(peer));
+            Log.d(TAG, "Removing activity");
+            finish(); // remove this activity
+        });
+
+        rvPeers.setAdapter(_peerAdapter);
+        rvPeers.setLayoutManager(new LinearLayoutManager(this));
+
+        // calls back right away with the cached peers, after the adapter is set
         Sender.getInstance().startDiscover(this, new Sender.DiscoverCallback() {
             @Override
             public void onPeerFound(Peer peer) {
+
+                Peer known = _peersById.put(peer.getId(), peer);
+                if (known != null) {
+                    // a cached peer confirmed by the discovery
+                    int index = _peers.indexOf(known);
+                    _peers.set(index, peer);
+                    _peerAdapter.notifyItemChanged(index);
+                    return;
+                }
                 _peers.add(peer);
                 _peerAdapter.notifyItemInserted(_peers.size() - 1);
             }
@@ -43,30 +82,30 @@ public class PeerBrowserActivity extends AppCompatActivity {
             @Override
             public void onPeerLost(Peer peer) {
 
-                int index = _peers.indexOf(peer);
-                if(index >= 0) {
+                if (_peersById.remove(peer.getId()) != null) {
+                    int index = _peers.indexOf(peer);
                     _peers.remove(index);
+                    _peerAdapter.deselect(peer);
                     _peerAdapter.notifyItemRemoved(index);
+                    invalidateOptionsMenu();
                 }
 
             }
         });
+    }
 
-        RecyclerView rvPeers = (RecyclerView) findViewById(R.id.rvPeers);
-        _peers = new ArrayList<Peer>();
-
-        _peerAdapter = new PeerAdapter(_peers, peer -> {
-
-            Log.i(TAG, "clicked " + peer.getId());
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
 
-            Log.d(TAG, "Start transfer");
-            Sender.getInstance().connect(PeerBrowserActivity.this, peer.getId());
-            Log.d(TAG, "Removing activity");
-            finish(); // remove this activity
-        });
+        if (!Sender.getInstance().isBroadcast()) {
+            return super.onCreateOptionsMenu(menu);
+        }
 
-        rvPeers.setAdapter(_peerAdapter);
-        rvPeers.setLayoutManager(new LinearLayoutManager(this));
+        // sends to all selected peers
+        MenuItem send = menu.add(Menu.NONE, R.id.action_send, Menu.NONE, R.string.button_send);
+        send.setShowAsAction(MenuItem.SHOW_AS_ACTION_ALWAYS);
+        send.setEnabled(!_peerAdapter.getSelectedPeers().isEmpty());
+        return true;
     }
 
     @Override
@@ -74,6 +113,16 @@ public class PeerBrowserActivity extends AppCompatActivity {
 
         int id = item.getItemId();
 
+        if (id == R.id.action_send) {
+
+            Log.d(TAG, "Start transfer");
+            Sender.getInstance().connect(this, _peerAdapter.getSelectedPeers());
+            Log.d(TAG, "Removing activity");
+            finish(); // remove this activity
+
+            return true;
+        }
+
         if (id == android.R.id.home) {
 
             Sender.getInstance().cancelBrowse(this);
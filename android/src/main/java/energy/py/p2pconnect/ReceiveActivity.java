@@ -13,6 +13,9 @@ public class ReceiveActivity extends AppCompatActivity {
 
     private static final String TAG = "P2pConnect/ReceiveAcvty";
 
+    /** Set if the transfer runs on a kept connection, which is accepted already. */
+    static final String EXTRA_KEPT_CONNECTION = "keptConnection";
+
     private TextView _progressTitle;
     private TextView _infoTitle;
     private ProgressBar _progressBar;
@@ -38,7 +41,7 @@ public class ReceiveActivity extends AppCompatActivity {
             }
         });
 
-        Receiver.getInstance().acceptEndpoint(this, endpointId, (title, progress, info) -> {
+        ProgressCallback progressCallback = (title, progress, info) -> {
 
             runOnUiThread(() -> {
                 if (progress < 0) {
@@ -61,7 +64,13 @@ public class ReceiveActivity extends AppCompatActivity {
                 }
                 _progressBar.setProgress(progress);
             });
-        });
+        };
+
+        if (getIntent().getBooleanExtra(EXTRA_KEPT_CONNECTION, false)) {
+            Receiver.getInstance().setProgressCallback(progressCallback);
+        } else {
+            Receiver.getInstance().acceptEndpoint(this, endpointId, progressCallback);
+        }
     }
 
 }
\ No newline at end of file
@@ -2,411 +2,285 @@ package energy.py.p2pconnect;
 
 import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings;
 import android.util.Log;
 
 import com.google.android.gms.nearby.Nearby;
 import com.google.android.gms.nearby.connection.AdvertisingOptions;
+import com.google.android.gms.nearby.connection.BandwidthInfo;
 import com.google.android.gms.nearby.connection.ConnectionInfo;
 import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
 import com.google.android.gms.nearby.connection.ConnectionResolution;
 import com.google.android.gms.nearby.connection.ConnectionsStatusCodes;
-import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.PayloadCallback;
-import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
 import com.google.android.gms.nearby.connection.Strategy;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.ref.WeakReference;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Set;
 
 import androidx.annotation.NonNull;
-
+import energy.py.p2pconnect.transfer.KeptConnections;
+import energy.py.p2pconnect.transfer.ProgressReporter;
+import energy.py.p2pconnect.transfer.ProgressThrottle;
+import energy.py.p2pconnect.transfer.Protocol;
+import energy.py.p2pconnect.transfer.ReceiveOptions;
+import energy.py.p2pconnect.transfer.ReceiverSession;
+import energy.py.p2pconnect.transfer.SessionRegistry;
+import energy.py.p2pconnect.transfer.TransferStats;
+
+/**
+ * Advertises the device and receives transfers, with one {@link ReceiverSession}
+ * per connected endpoint.
+ *
+ * All methods must be called on the main thread, where Nearby calls back as well.
+ */
 public class Receiver implements ProgressCallback {
 
     private static final String TAG = "P2PConnect/Receiver";
     private static final Strategy STRATEGY = Strategy.P2P_POINT_TO_POINT;
+    /** The metrics of this many sessions are kept for <code>getTransferStats</code>. */
+    static final int MAX_RECENT_STATS = 8;
 
     private static Receiver _instance = new Receiver();
 
-    private String _currentTransferId;
-    /** A connected endpoint to receive the acceptTransfer answer. Only valid during Transfer-Id check */
-    private String _currentTransferEndpoint;
-
     private NotifyAcceptTransferCallback _notifyCallback;
+    private ResourceReceivedCallback _resourceReceivedCallback;
     private TransferCompleteCallback _transferCompleteCallback;
+    private TransferFailedCallback _transferFailedCallback;
 
     private ReceiverState _state = ReceiverState.NONE;
-    private int _numberOfResourcesToReceive = 0;
-    private Payload _currentPayload;
-    private int _currentReceivingResource;
-    private String[] _currentIds;
-    private List<ResourceDescriptor> _receivedResources;
+    /** The sessions and their transports by endpoint id. */
+    private final SessionRegistry<ReceiverSession> _sessions = new SessionRegistry<>();
+    private final Map<String, NearbyTransport> _transports = new HashMap<>();
+    /** When the connections were initiated by endpoint id, see <code>System.nanoTime()</code>. */
+    private final Map<String, Long> _connectStarts = new HashMap<>();
+    /** The metrics of the current and the last sessions, oldest first. */
+    private final Deque<TransferStats> _recentStats = new ArrayDeque<>();
+    /** Connections the sender may start the next transfer on. Their transports stay in <code>_transports</code>. */
+    private final KeptConnections _keptConnections;
+    /** Endpoints whose transfer started on a kept connection, before it was accepted. */
+    private final Set<String> _nextTransfers = new HashSet<>();
+    /** The application context, for sessions started on a kept connection. */
+    private Context _context;
+    private ReceiveOptions _options = new ReceiveOptions();
 
     public interface NotifyAcceptTransferCallback {
 
         void notify(String transferId);
     }
 
+    public interface ResourceReceivedCallback {
+
+        void notify(String transferId, ResourceDescriptor resource, long size, long durationMillis);
+    }
+
     public interface TransferCompleteCallback {
 
-        void notify(String transferId, List<ResourceDescriptor> resources);
+        void notify(String transferId, List<ResourceDescriptor> resources, TransferStats stats);
     }
 
-    private WeakReference<ProgressCallback> _progressCallback;
+    public interface TransferFailedCallback {
 
-    @Override
-    public void updateProgress(String title, int progress, String info) {
+        void notify(String transferId, String error, TransferStats stats);
+    }
+
+    private WeakReference<ProgressCallback> _progressCallback;
+    private final Handler _handler = new Handler(Looper.getMainLooper());
+    /** Passes on the progress shown to the progress callback. */
+    private final ProgressThrottle _progressThrottle = new ProgressThrottle((title, progress, info) -> {
 
         ProgressCallback callback = _progressCallback.get();
         if(callback != null) {
             callback.updateProgress(title, progress, info);
         }
+    }, ProgressThrottle.FRAME_MILLIS, _handler::postDelayed);
+    private final ProgressReporter _progressReporter =
+            new ProgressReporter(_handler::postDelayed, ProgressReporter.DEFAULT_INTERVAL_MILLIS);
+
+    @Override
+    public void updateProgress(String title, int progress, String info) {
+        _progressThrottle.updateProgress(title, progress, info);
+    }
 
+    /** Reports the progress of the running transfers at a bounded rate. */
+    public void setProgressListener(ProgressReporter.Listener listener) {
+        _progressReporter.setListener(listener);
     }
 
 
     private Receiver() {
+
+        _keptConnections = new KeptConnections(_handler::postDelayed);
+        _keptConnections.setListener(new KeptConnections.Listener() {
+            @Override
+            public void onNextTransfer(KeptConnections.Connection connection, byte[] bytes) {
+
+                String endpointId = connection.getEndpointId();
+                Log.i(TAG, "Next transfer from '" + endpointId + "'");
+
+                ReceiverSession session = createSession(_context, endpointId,
+                        _transports.get(endpointId));
+                session.startNext(connection.getProtocolVersion());
+                _nextTransfers.add(endpointId);
+                session.onBytesReceived(endpointId, bytes);
+            }
+
+            @Override
+            public void onClosed(KeptConnections.Connection connection) {
+                _transports.remove(connection.getEndpointId());
+            }
+        });
+    }
+
+    private ReceiverState currentState() {
+        return _sessions.isEmpty() ? _state : _sessions.getAll().get(0).getState();
     }
 
     public static Receiver getInstance() {
         return _instance;
     }
 
+    /** @return the metrics of the current and the last sessions, oldest first */
+    public List<TransferStats> getTransferStats() {
+        return new ArrayList<>(_recentStats);
+    }
 
 
-    private void sendMessage(Context context, String peerId, String message) {
-
-        Log.i(TAG, "Sending message to endpoint '" + peerId + "'");
-        Log.d(TAG, "Message content = '" + message + "'");
-
-        Payload payload = Payload.fromBytes(message.getBytes(StandardCharsets.UTF_8));
-        Nearby.getConnectionsClient(context).sendPayload(peerId, payload);
-    }
 
     public boolean acceptTransfer(Context context, String transferId, boolean accept) {
 
-        if (_state != ReceiverState.WAITING_FOR_TRANSFER_ACCEPT) {
-            Log.e(TAG, "Invalid state (expected: 'WAITING_FOR_TRANSFER_ACCEPT' found '" + _state + "')");
+        ReceiverSession session = _sessions.findByTransferId(transferId);
+        if (session == null) {
+            Log.e(TAG, "No session for transfer '" + transferId + "' (state '" + currentState() + "')");
             return false;
         }
 
-        if (!transferId.equals(_currentTransferId)) {
-            Log.e(TAG, "Invalid transferId to accept (expected: '" + _currentTransferId + "' found '" + transferId + "')");
+        if (!session.acceptTransfer(transferId, accept)) {
             return false;
         }
 
-        String message = "tid." + (accept ? "accept" : "deny");
+        // the progress of the first transfer was shown since the connection was initiated
+        if (_nextTransfers.remove(session.getEndpointId()) && accept) {
 
-        if(accept) {
-            updateProgress(null, 66, null);
-            _state = ReceiverState.WAITING_FOR_COUNT;
-        } else {
-            updateProgress(null, -1, null);
-            _state = ReceiverState.NONE;
+            Intent intent = new Intent(context, ReceiveActivity.class);
+            intent.putExtra("endpointId", session.getEndpointId());
+            intent.putExtra(ReceiveActivity.EXTRA_KEPT_CONNECTION, true);
+            context.startActivity(intent);
         }
-
-        sendMessage(context, _currentTransferEndpoint, message);
-
         return true;
     }
 
-    class ReceiveBytesPayloadListener extends PayloadCallback {
-
-        private Context _context;
-
-
-        public ReceiveBytesPayloadListener(Context context) {
-            super();
-
-            _context = context;
-
-            Log.d(TAG, "ReceiveBytesPayloadListener() initialized");
-        }
+    void acceptEndpoint(Context context, String endpointId, ProgressCallback progressCallback) {
 
-        @Override protected void finalize() throws Throwable {
-            super.finalize();
+        _progressCallback = new WeakReference<>(progressCallback);
 
-            Log.d(TAG, "ReceiveBytesPayloadListener() finalized");
-        }
+        // the transport may outlive the activity if the connection is kept
+        NearbyTransport transport = new NearbyTransport(context.getApplicationContext());
 
-        void invalidState(String message) {
-            Log.w(TAG, "Invalid state '" + _state + "' for message '" + message + "'");
+        ReceiverSession session = createSession(context, endpointId, transport);
+        Long connectStart = _connectStarts.remove(endpointId);
+        if (connectStart != null) {
+            session.getStats().recordPhase(ReceiverState.CONNECTING.name(), connectStart);
         }
 
-        @Override
-        public void onPayloadReceived(String endpointId, Payload payload) {
-            // This always gets the full data of the payload. Is null if it's not a BYTES payload.
-            if (payload.getType() == Payload.Type.BYTES) {
-
-                Log.d(TAG, "Payload received: BYTES");
-                byte[] receivedBytes = payload.asBytes();
-
-                String message = new String(receivedBytes, StandardCharsets.UTF_8);
-
-                Log.d(TAG, "Payload message = " + message);
-
-                switch(_state) {
-
-                    case WAITING_FOR_VERSION:
-
-                        if (message.startsWith("ver.")) {
-
-                            int version = Integer.parseInt(message.substring("ver.".length()));
-                            String versionAnswer = (version == P2pConnect.PROTOCOL_VERSION) ?
-                                    "ver.accept" : "ver.deny";
-                            Log.i(TAG, "Answering version message (" + message + ") with '"
-                                    + versionAnswer + "'");
-
-                            updateProgress(null, 25, null);
-                            _state = ReceiverState.WAITING_FOR_TRANSFER_ID;
-                            sendMessage(_context, endpointId, versionAnswer);
-                        } else {
-                            invalidState(message);
-                        }
-
-                        break;
-
-                    case WAITING_FOR_TRANSFER_ID:
-
-                        if(message.startsWith("tid.")) {
-
-                            _currentTransferId = message.substring("tid.".length());
-                            _currentTransferEndpoint = endpointId;
-                            Log.i(TAG, "Notifying client about transferId '"
-                                    + _currentTransferId + "'");
-
-                            updateProgress(null, 50, null);
-                            _state = ReceiverState.WAITING_FOR_TRANSFER_ACCEPT;
-                            _notifyCallback.notify(_currentTransferId);
-
-                        } else {
-                            invalidState(message);
-                        }
-
-                        break;
-
-                    case WAITING_FOR_COUNT:
-
-                        if (message.startsWith("cnt.")) {
-
-                            _currentReceivingResource = -1; // nothing received yet
-                            _numberOfResourcesToReceive = Integer.parseInt(message.substring("cnt.".length()));
-
-                            _currentIds = new String[_numberOfResourcesToReceive];
-                            _receivedResources = new ArrayList<>();
-
-                            Log.i(TAG, "Expecting " + _numberOfResourcesToReceive + " resource(s)");
-
-                            updateProgress(null, 90, null);
-                            _state = ReceiverState.WAITING_FOR_ID;
-                            sendMessage(_context, endpointId, "cnt.accept");
-
-                        } else {
-                            invalidState(message);
-                        }
-
-                        break;
-
-                    case WAITING_FOR_ID:
-
-                        if(message.equals("id.done")) {
-
-                            updateProgress(null, 100, null);
-                            _state = ReceiverState.RECEIVING;
-                            sendMessage(_context, endpointId, "id.accept");
+        Log.i(TAG, "Stop advertising");
+        Nearby.getConnectionsClient(context).stopAdvertising();
+        Log.i(TAG, "Accept connection to " + endpointId);
+        Nearby.getConnectionsClient(context).acceptConnection(endpointId, transport.getPayloadCallback());
+    }
 
-                        } else if (message.startsWith("id.")) {
+    /** Shows the progress of the next transfer on a kept connection, see {@link #acceptTransfer}. */
+    void setProgressCallback(ProgressCallback progressCallback) {
+        _progressCallback = new WeakReference<>(progressCallback);
+    }
 
-                            String indexString = message.substring("id.".length());
-                            int i = indexString.indexOf('.');
+    private ReceiverSession createSession(Context context, String endpointId, NearbyTransport transport) {
 
-                            String id = indexString.substring(i + 1);
-                            indexString = indexString.substring(0, i);
-                            int index = Integer.parseInt(indexString);
+        ReceiverSession session = new ReceiverSession(transport, endpointId, context.getCacheDir(), this,
+                new ReceiverSession.Listener() {
+                    @Override
+                    public void onTransferRequested(String transferId) {
+                        _notifyCallback.notify(transferId);
+                    }
 
-                            Log.i(TAG, "Received id " + index + " '" + id +"'");
-                            _currentIds[index] = id;
+                    @Override
+                    public void onResourceReceived(String transferId, ResourceDescriptor resource,
+                                                   long size, long durationMillis) {
+                        _resourceReceivedCallback.notify(transferId, resource, size, durationMillis);
+                    }
 
+                    @Override
+                    public void onTransferComplete(String transferId, List<ResourceDescriptor> resources) {
+                        _state = ReceiverState.NONE;
+                        ReceiverSession session = _sessions.remove(endpointId);
+                        if (session != null && session.getProtocolVersion() >= Protocol.KEEP_ALIVE_VERSION) {
+                            // the sender decides if the connection is used again
+                            _keptConnections.keep(transport, endpointId, null, session.getProtocolVersion(), 0);
                         } else {
-                            invalidState(message);
+                            _transports.remove(endpointId);
                         }
-
-                        break;
-
-                    default:
-
-                        invalidState(message);
-                        break;
-
-                }
-
-            } else if (payload.getType() == Payload.Type.FILE) {
-
-                Log.i(TAG, "Payload received: FILE " + payload.getId());
-
-                if (_currentPayload != null) {
-                    Log.w(TAG, "Invalid state: _currentPayload is not null");
-                }
-
-                _currentReceivingResource++;
-                if(_currentReceivingResource >= _numberOfResourcesToReceive) {
-                    Log.w(TAG, "Invalid number of resources (expected: "
-                            + _numberOfResourcesToReceive
-                            + " found: " + _currentReceivingResource + ")");
-                }
-
-                String info = _context.getResources().getString(R.string.info_title_send);
-                updateProgress("\uD83D\uDCC2 " + (_currentReceivingResource + 1) +  "/"
-                        + _numberOfResourcesToReceive, 0, info);
-
-                _currentPayload = payload;
-            }
-        }
-
-        private String moveReceivedFileToCacheDir(Uri uri) {
-
-            try {
-
-                String filename = UUID.randomUUID().toString();
-
-                InputStream in = _context.getContentResolver().openInputStream(uri);
-                File file = new File(_context.getCacheDir(), filename);
-
-                OutputStream out = new FileOutputStream(file);
-
-                try {
-                    byte[] buffer = new byte[1024];
-                    int read;
-                    while((read = in.read(buffer)) != -1) {
-                        out.write(buffer, 0, read);
+                        _transferCompleteCallback.notify(transferId, resources,
+                                session != null ? session.getStats() : null);
                     }
-                    out.flush();
-                }
-                finally {
-                    in.close();
-                    out.close();
-                }
-
-                Log.i(TAG, "Moved file from " + uri.getPath() + " to " + file.getAbsolutePath());
-
-                return "file://" + file.getAbsolutePath();
-
-            } catch (IOException ex) {
-
-                Log.e(TAG, "moveReceivedFileToCacheDir(): failed", ex);
-                return null;
-
-            } finally {
-
-                _context.getContentResolver().delete(uri, null, null);
-            }
-
-        }
-
-        @Override
-        public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
-
-            // Bytes payloads are sent as a single chunk, so you'll receive a SUCCESS update immediately
-            // after the call to onPayloadReceived().
-
-            if (_currentPayload != null && _currentPayload.getId() == update.getPayloadId()) {
-
-                switch(update.getStatus()) {
-                    case PayloadTransferUpdate.Status.IN_PROGRESS:
-
-                        int progress = (int)(100.0 * update.getBytesTransferred()
-                                / (double)update.getTotalBytes());
-
-                        Log.d(TAG, "OnPayloadTransferUpdate: progress = " + progress);
-                        updateProgress(null, progress, null);
-
-                        break;
 
-                    case PayloadTransferUpdate.Status.SUCCESS:
-
-                        Uri uri = _currentPayload.asFile().asUri();
-                        Log.d(TAG, "OnPayloadTransferUpdate: Success for URI '" + uri + "'");
-
-                        if(uri != null) {
-                            String targetUri = moveReceivedFileToCacheDir(uri);
-                            Log.d(TAG, "OnPayloadTransferUpdate: moved file to = '" + targetUri + "'");
-
-                            _receivedResources.add(new ResourceDescriptor(
-                                    _currentIds[_currentReceivingResource],
-                                    targetUri
-                                ));
-
-                        }
-                        updateProgress("", 100, null);
-
-                        if (_currentReceivingResource >= _numberOfResourcesToReceive - 1) {
-
-                            Log.i(TAG, "Sending success message to sender");
-                            // Inform the sender about success of the transfer
-                            sendMessage(_context, endpointId, "all.done");
-
-                            finishCall(_context, endpointId);
+                    @Override
+                    public void onTransferFailed(String transferId, String error) {
+                        _state = ReceiverState.NONE;
+                        ReceiverSession session = _sessions.remove(endpointId);
+                        // the session disconnected or the connection is lost, it isn't kept
+                        _transports.remove(endpointId);
+                        _nextTransfers.remove(endpointId);
+                        if (transferId != null) {
+                            _transferFailedCallback.notify(transferId, error,
+                                    session != null ? session.getStats() : null);
                         }
-
-                        // Current payload is (d/g)one
-                        _currentPayload = null;
-
-                        break;
-
-                    case PayloadTransferUpdate.Status.FAILURE:
-                    case PayloadTransferUpdate.Status.CANCELED:
-                        // TODO disconnect
-                        break;
-                }
-            }
+                    }
+                });
+        session.setScheduler(_handler::postDelayed);
+        session.setTransferInfo(context.getResources().getString(R.string.info_title_send));
+        session.setOptions(_options);
+        transport.setListener(session);
+
+        _recentStats.addLast(session.getStats());
+        _progressReporter.add(session.getStats());
+        while (_recentStats.size() > MAX_RECENT_STATS) {
+            _recentStats.removeFirst();
         }
-    }
-
-    void finishCall(Context context, String endpoint) {
-
-        Log.i(TAG, "Transfer finished");
-
-        _state = ReceiverState.NONE;
-        updateProgress(null, -1, null);
-
-        // Nearby.getConnectionsClient(context).disconnectFromEndpoint(endpoint);
 
-        _transferCompleteCallback.notify(_currentTransferId, _receivedResources);
-
-    }
-
-    void acceptEndpoint(Context context, String endpointId, ProgressCallback progressCallback) {
-
-        _progressCallback = new WeakReference<>(progressCallback);
-
-        Log.i(TAG, "Stop advertising");
-        Nearby.getConnectionsClient(context).stopAdvertising();
-        Log.i(TAG, "Accept connection to " + endpointId);
-        Nearby.getConnectionsClient(context).acceptConnection(endpointId, new Receiver.ReceiveBytesPayloadListener(context));
+        _sessions.put(session);
+        _transports.put(endpointId, transport);
+        return session;
     }
 
-    public void startAdvertise(Context context, String serviceId,
+    /** @param broadcast advertises for senders sending to several receivers at once */
+    public void startAdvertise(Context context, String serviceId, boolean broadcast, ReceiveOptions options,
                                NotifyAcceptTransferCallback notifyCallback,
-                               TransferCompleteCallback transferCompleteCallback) {
+                               ResourceReceivedCallback resourceReceivedCallback,
+                               TransferCompleteCallback transferCompleteCallback,
+                               TransferFailedCallback transferFailedCallback) {
 
         Log.i(TAG, "Starting advertising");
 
         String displayName = Settings.Global.getString(context.getContentResolver(), Settings.Global.DEVICE_NAME);
 
+        _context = context.getApplicationContext();
+        _options = options;
         _notifyCallback = notifyCallback;
+        _resourceReceivedCallback = resourceReceivedCallback;
         _transferCompleteCallback = transferCompleteCallback;
+        _transferFailedCallback = transferFailedCallback;
 
         AdvertisingOptions advertisingOptions =
-                new AdvertisingOptions.Builder().setStrategy(STRATEGY).build();
+                new AdvertisingOptions.Builder()
+                        .setStrategy(broadcast ? Sender.BROADCAST_STRATEGY : STRATEGY).build();
         _state = ReceiverState.WAITING_FOR_CONNECT;
 
         Nearby.getConnectionsClient(context)
@@ -419,6 +293,7 @@ public class Receiver implements ProgressCallback {
                                     Log.i(TAG, "Connection initiated from '" + endpointId + "' " + connectionInfo.getEndpointName());
 
                                     _state = ReceiverState.CONNECTING;
+                                    _connectStarts.put(endpointId, System.nanoTime());
 
                                     Intent intent = new Intent(context, ReceiveActivity.class);
                                     intent.putExtra("endpointId", endpointId);
@@ -438,7 +313,10 @@ public class Receiver implements ProgressCallback {
                                             // 🤝 🔗 📂
                                             String info = context.getResources().getString(R.string.info_title_sync);
                                             updateProgress("\uD83E\uDD1D", 0, info );
-                                            _state = ReceiverState.WAITING_FOR_VERSION;
+                                            ReceiverSession session = _sessions.get(endpointId);
+                                            if (session != null) {
+                                                session.start();
+                                            }
 
                                             break;
                                         case ConnectionsStatusCodes.STATUS_CONNECTION_REJECTED:
@@ -468,10 +346,26 @@ public class Receiver implements ProgressCallback {
                                     // We also must call disconnect otherwise the PayloadCallback will not be removed
                                     Nearby.getConnectionsClient(context).disconnectFromEndpoint(endpointId);
 
+                                    NearbyTransport transport = _transports.remove(endpointId);
+                                    if (transport != null) {
+                                        transport.onDisconnected(endpointId);
+                                    }
+                                    _sessions.remove(endpointId);
+                                    _nextTransfers.remove(endpointId);
+
                                     // TODO _plugin.notifySessionStateChanged(SessionState.NotConnected, endpointId);
 
                                 }
 
+                                @Override
+                                public void onBandwidthChanged (String endpointId, BandwidthInfo bandwidthInfo){
+
+                                    NearbyTransport transport = _transports.get(endpointId);
+                                    if (transport != null) {
+                                        transport.onBandwidthChanged(endpointId, bandwidthInfo.getQuality());
+                                    }
+                                }
+
                         }, advertisingOptions)
                 .addOnSuccessListener(
                         (Void unused) -> {
@@ -486,10 +380,18 @@ public class Receiver implements ProgressCallback {
 
     public void endAdvertise(Context context) {
 
-        Log.i(TAG, "Stop advertising while in state '" + _state + "'");
+        Log.i(TAG, "Stop advertising while in state '" + currentState() + "'");
 
         Nearby.getConnectionsClient(context).stopAdvertising();
         _state = ReceiverState.NONE;
+        for (ReceiverSession session : _sessions.getAll()) {
+            _sessions.remove(session.getEndpointId());
+        }
+        _keptConnections.closeAll();
+        _nextTransfers.clear();
+        _transports.clear();
+        _connectStarts.clear();
+        _progressReporter.clear();
     }
 
 }
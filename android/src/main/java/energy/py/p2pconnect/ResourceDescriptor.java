@@ -4,6 +4,7 @@ public class ResourceDescriptor {
 
     private String _id;
     private String _uri;
+    private int _priority;
 
     public ResourceDescriptor(String id, String uri) {
         _id = id;
@@ -17,4 +18,13 @@ public class ResourceDescriptor {
     public String getId() {
         return _id;
     }
+
+    /** @return the priority for <code>ResourceOrder.PRIORITY</code>, higher ones are sent first */
+    public int getPriority() {
+        return _priority;
+    }
+
+    public void setPriority(int priority) {
+        _priority = priority;
+    }
 }
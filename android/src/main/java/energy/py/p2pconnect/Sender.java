@@ -1,16 +1,17 @@
 package energy.py.p2pconnect;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
-import android.os.ParcelFileDescriptor;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings;
 import android.util.Log;
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.PluginCall;
 import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.connection.BandwidthInfo;
 import com.google.android.gms.nearby.connection.ConnectionInfo;
 import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
 import com.google.android.gms.nearby.connection.ConnectionResolution;
@@ -18,23 +19,46 @@ import com.google.android.gms.nearby.connection.ConnectionsStatusCodes;
 import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
 import com.google.android.gms.nearby.connection.DiscoveryOptions;
 import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
-import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.PayloadCallback;
-import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
 import com.google.android.gms.nearby.connection.Strategy;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import androidx.annotation.NonNull;
-
-public class Sender {
+import energy.py.p2pconnect.transfer.DiscoveryCache;
+import energy.py.p2pconnect.transfer.KeptConnections;
+import energy.py.p2pconnect.transfer.ProgressReporter;
+import energy.py.p2pconnect.transfer.ProgressThrottle;
+import energy.py.p2pconnect.transfer.ResourceHashes;
+import energy.py.p2pconnect.transfer.SendOptions;
+import energy.py.p2pconnect.transfer.SenderSession;
+import energy.py.p2pconnect.transfer.SessionRegistry;
+import energy.py.p2pconnect.transfer.TransferStats;
+
+/**
+ * Browses for receivers and sends the resources of a <code>send</code> call to the
+ * selected ones, with one {@link SenderSession} per endpoint.
+ *
+ * All methods must be called on the main thread, where Nearby calls back as well.
+ */
+public class Sender implements ProgressCallback {
 
     private static final String TAG = "P2PConnect/Sender";
     private static final Strategy STRATEGY = Strategy.P2P_POINT_TO_POINT;
+    /**
+     * Sending to several receivers at once. With P2P_STAR only the advertiser (the receiver)
+     * may connect to several endpoints, P2P_CLUSTER lets the discovering sender do it.
+     * Receivers must advertise with the same strategy.
+     */
+    static final Strategy BROADCAST_STRATEGY = Strategy.P2P_CLUSTER;
+    /** The metrics of this many sessions are kept for <code>getTransferStats</code>. */
+    static final int MAX_RECENT_STATS = 8;
 
     private final static Sender _instance = new Sender();
 
@@ -52,290 +76,231 @@ public class Sender {
     private String _currentServiceId;
     private String _currentTransferId;
     private List<ResourceDescriptor> _currentResources;
-    private int _currentResourceIndex;
-    private long _currentFilePayloadId;
+    private SendOptions _currentOptions;
+    private boolean _broadcast;
 
-    private String _currentPeerId;
+    private List<Peer> _currentPeers;
     private CallResolver _callResolver;
 
+    private WeakReference<ProgressCallback> _progressCallback;
+    private final Handler _handler = new Handler(Looper.getMainLooper());
+    /** Passes on the progress shown to the progress callback. */
+    private final ProgressThrottle _progressThrottle = new ProgressThrottle((title, progress, info) -> {
+
+        ProgressCallback callback = _progressCallback.get();
+        if (callback != null) {
+            callback.updateProgress(title, progress, info);
+        }
+    }, ProgressThrottle.FRAME_MILLIS, _handler::postDelayed);
+    private final ProgressReporter _progressReporter =
+            new ProgressReporter(_handler::postDelayed, ProgressReporter.DEFAULT_INTERVAL_MILLIS);
+    /** The sessions and their transports by endpoint id. */
+    private final SessionRegistry<SenderSession> _sessions = new SessionRegistry<>();
+    private final Map<String, NearbyTransport> _transports = new HashMap<>();
+    /** The result of each peer by endpoint id, the call is resolved once all peers are done. */
+    private final Map<String, JSObject> _results = new HashMap<>();
+    /** The last progress of each session, the slowest one is shown. */
+    private final Map<String, Integer> _progress = new HashMap<>();
+    /** The metrics of the current and the last sessions, oldest first. */
+    private final Deque<TransferStats> _recentStats = new ArrayDeque<>();
+    /** The endpoints of the last discoveries, shown at once when browsing again. */
+    private final DiscoveryCache _discoveryCache = new DiscoveryCache(DiscoveryCache.DEFAULT_TTL_MILLIS);
+    /**
+     * Connections left open after a transfer (see <code>keepAliveMs</code>), the next transfer to
+     * the same receiver starts with the manifest. Their transports stay in <code>_transports</code>.
+     */
+    private final KeptConnections _keptConnections = new KeptConnections(_handler::postDelayed);
+
+    /**
+     * When the discovery and the connection requests started, see <code>System.nanoTime()</code>.
+     * The discovery start is 0 if the call didn't browse.
+     */
+    private long _discoveryStart;
+    private long _connectStart;
+    /** Counts the calls of {@link #startTransfer}, connect timeouts of earlier calls are ignored. */
+    private int _transferCount;
+
     private Sender() {
+
+        _keptConnections.setListener(new KeptConnections.Listener() {
+            @Override
+            public void onNextTransfer(KeptConnections.Connection connection, byte[] bytes) {
+
+                // only the sender starts a transfer
+                Log.w(TAG, "Unexpected message on the kept connection to '" + connection.getEndpointId() + "'");
+                connection.getTransport().disconnect(connection.getEndpointId());
+                _transports.remove(connection.getEndpointId());
+            }
+
+            @Override
+            public void onClosed(KeptConnections.Connection connection) {
+                _transports.remove(connection.getEndpointId());
+            }
+        });
     }
 
     public static Sender getInstance() {
         return _instance;
     }
 
+    /** @return the metrics of the current and the last sessions, oldest first */
+    public List<TransferStats> getTransferStats() {
+        return new ArrayList<>(_recentStats);
+    }
 
-    class PayloadHandler extends PayloadCallback implements ProgressCallback {
 
-        private final Context _context;
-        private final WeakReference<ProgressCallback> _progressCallback;
+    @Override public void updateProgress(String title, int progress, String info) {
+        _progressThrottle.updateProgress(title, progress, info);
+    }
+
+    /** Reports the progress of the running transfers at a bounded rate. */
+    public void setProgressListener(ProgressReporter.Listener listener) {
+        _progressReporter.setListener(listener);
+    }
 
-        PayloadHandler(Context context, ProgressCallback progressCallback) {
+    private void updateSessionProgress(String endpointId, String title, int progress, String info) {
 
-            _context = context;
-            _progressCallback = new WeakReference<>(progressCallback);
+        if (progress < 0) {
+            return; // the progress is closed once all peers are done
         }
 
-        @Override public void updateProgress(String title, int progress, String info) {
+        _progress.put(endpointId, progress);
 
-            ProgressCallback callback = _progressCallback.get();
-            if (callback != null) {
-                callback.updateProgress(title, progress, info);
-            }
+        int slowest = progress;
+        for (int p : _progress.values()) {
+            slowest = Math.min(slowest, p);
         }
+        updateProgress(title, slowest, info);
+    }
 
-        private void failCall(String endpoint, String error) {
+    private void onSessionResult(String endpointId, boolean success, String error) {
 
-            Log.w(TAG, "Call failed: " + error);
-            _state = SenderState.NONE;
+        if (_results.containsKey(endpointId)) {
+            Log.w(TAG, "Ignoring second result for endpoint '" + endpointId + "'");
+            return;
+        }
 
-            updateProgress(null, -1, null);
+        SenderSession session = _sessions.remove(endpointId);
+        _progress.remove(endpointId);
 
-            Nearby.getConnectionsClient(_context).disconnectFromEndpoint(endpoint);
+        if (session != null && session.isConnectionKept()) {
+            _keptConnections.keep(_transports.get(endpointId), endpointId, getPeerName(endpointId),
+                    session.getProtocolVersion(), _currentOptions.getKeepAliveMillis());
+        } else {
+            _transports.remove(endpointId);
+        }
 
-            JSObject result = new JSObject();
-            result.put("success", false);
+        JSObject result = new JSObject();
+        result.put("success", success);
+        if (!success) {
             result.put("error", error);
-            _callResolver.getCall().resolve(result);
         }
-
-        @Override
-        public void onPayloadReceived(String endpointId, @NonNull Payload payload) {
-            // This always gets the full data of the payload. Is null if it's not a BYTES payload.
-            if (payload.getType() == Payload.Type.BYTES) {
-
-                Log.i(TAG, "Payload received: BYTES");
-                byte[] receivedBytes = payload.asBytes();
-
-                String message = new String(receivedBytes, StandardCharsets.UTF_8);
-                Log.d(TAG, "Received message '" + message + "'");
-
-                switch(_state) {
-
-                    case WAITING_FOR_VERSION:
-
-                        if(message.equals("ver.accept")) {
-
-                            _state = SenderState.WAITING_FOR_TRANSFER_ID;
-                            updateProgress(null, 50, null);
-                            sendMessage(_context, endpointId, "tid." + _currentTransferId);
-
-                        } else { // ver.deny
-
-                            failCall(endpointId, "versionMismatch");
-                        }
-
-                        break;
-
-                    case WAITING_FOR_TRANSFER_ID:
-
-                        if(message.equals("tid.accept")) {
-
-                            _state = SenderState.WAITING_FOR_COUNT;
-                            updateProgress(null, 75, null);
-                            sendMessage(_context, endpointId, "cnt." + _currentResources.size());
-
-                        } else { // tid.deny
-
-                            failCall(endpointId, "transferDenied");
-                        }
-
-                        break;
-
-                    case WAITING_FOR_COUNT:
-
-                        if(message.equals("cnt.accept")) {
-
-                            updateProgress(null, 90, null);
-
-                            for (int i = 0; i < _currentResources.size(); i++) {
-                                String m = "id." + i + "." + _currentResources.get(i).getId();
-                                sendMessage(_context, endpointId, m);
-                            }
-
-                            _state = SenderState.WAITING_FOR_ID;
-                            sendMessage(_context, endpointId, "id.done");
-
-                        } else { // cnt.deny (?) not really possible atm
-
-                                failCall(endpointId, "internalError");
-                        }
-
-                        break;
-
-                    case WAITING_FOR_ID:
-
-                        if (message.equals("id.accept")) {
-
-                            _state = SenderState.TRANSFERRING_RESOURCES;
-
-                            updateProgress(null, 100, null);
-                            try {
-                                sendResources(_context, endpointId, this);
-                            } catch(IOException ex) {
-                                Log.e(TAG, "Failed sending next resource", ex);
-                                failCall(endpointId, "internalError");
-                                return;
-                            }
-
-                        } else { // cnt.deny (?) not really possible atm
-
-                            failCall(endpointId, "internalError");
-                        }
-
-                        break;
-
-                    case WAITING_FOR_RECEIVER:
-
-                        if (message.equals("all.done")) {
-
-                            Log.i(TAG, "Received commit from receiver");
-                            finish(_context, this, endpointId);
-
-                        } else {
-
-                            failCall(endpointId, "internalError");
-                        }
-
-                        break;
-
-                    default:
-
-                        // Invalid internal state
-                        failCall(endpointId, "internalError");
-
-                        break;
-                }
-
-            } else if (payload.getType() == Payload.Type.FILE) {
-
-                Log.e(TAG, "Received file payload");
-                failCall(endpointId, "internalError");
-            }
+        if (session != null) {
+            result.put("stats", P2pConnect.toJSObject(session.getStats()));
         }
+        _results.put(endpointId, result);
 
-        @Override
-        public void onPayloadTransferUpdate(String endpointId, @NonNull PayloadTransferUpdate update) {
-
-            if (update.getPayloadId() != _currentFilePayloadId) {
-                // we are not interested in other payload updates here
-                return;
-            }
-
-            switch(update.getStatus()) {
-
-                case PayloadTransferUpdate.Status.SUCCESS:
-
-                    Log.i(TAG, "Transfer complete for payload " + _currentFilePayloadId);
-
-                    _currentFilePayloadId = 0;
-                    updateProgress(null, 100, null);
-                    try {
-                        sendNextResource(_context, endpointId, this);
-                    } catch(IOException ex) {
-                        Log.e(TAG, "Failed sending next resource", ex);
-                        failCall(endpointId, "internalError");
-                        return;
-                    }
-
-                    break;
-
-                case PayloadTransferUpdate.Status.IN_PROGRESS:
-
-                    int progress = (int)(100.0 * update.getBytesTransferred() / (double)update.getTotalBytes());
-                    Log.d(TAG, "PayloadTransferUpdate: progress = " + progress);
-
-                    updateProgress(null, progress, null);
-
-                    break;
-
-                default:
-
-                    Log.e(TAG, "Invalid PayloadUpdateStatus (" + update.getStatus() + ")");
-                    failCall(endpointId, "internalError");
-                    break;
-            }
+        if (_results.size() < _currentPeers.size()) {
+            Log.i(TAG, "Transfer to '" + endpointId + "' done, waiting for "
+                    + (_currentPeers.size() - _results.size()) + " other peer(s)");
+            return;
         }
-    }
 
-    private void finish(Context context, ProgressCallback callback, String endpoint) {
-
-        // Finish
         _state = SenderState.NONE;
-
-        Log.i(TAG, "Process completed");
-        callback.updateProgress(null, -1, null);
-
-        Nearby.getConnectionsClient(context).disconnectFromEndpoint(endpoint);
-
-        JSObject result = new JSObject();
-        result.put("success", true);
-        _callResolver.getCall().resolve(result);
+        updateProgress(null, -1, null);
+        _callResolver.getCall().resolve(createResult());
     }
 
-    private void sendNextResource(Context context, String endpoint, ProgressCallback callback) throws FileNotFoundException {
-
-        _currentResourceIndex++;
-        Log.i(TAG, "Preparing for next resource (" + _currentResourceIndex + ")");
+    /**
+     * The call succeeds if all peers received the resources,
+     * otherwise the error is the first one in the order of the peers.
+     */
+    private JSObject createResult() {
 
-        if(_currentResourceIndex >= _currentResources.size()) {
+        JSArray peers = new JSArray();
+        String error = null;
 
-            Log.i(TAG, "Nothing left to do for index " + _currentResourceIndex);
-            Log.d(TAG, "Waiting for the receiver to commit");
+        for (Peer peer : _currentPeers) {
 
-            callback.updateProgress("⏳", 0, null);
-            _state = SenderState.WAITING_FOR_RECEIVER;
+            JSObject result = _results.get(peer.getId());
+            if (error == null && !result.getBool("success")) {
+                error = result.getString("error");
+            }
 
-            return;
+            result.put("endpointId", peer.getId());
+            result.put("name", peer.getName());
+            peers.put(result);
         }
+        _results.clear();
 
-        // 📂 x/y
-        String info = context.getResources().getString(R.string.info_title_send);
-        callback.updateProgress("\uD83D\uDCC2 " + (_currentResourceIndex + 1) + "/" + _currentResources.size(), 0, info);
-
-        ResourceDescriptor resource = _currentResources.get(_currentResourceIndex);
-
-        Uri u = Uri.parse(resource.getUri());
-        Log.i(TAG, "path = " + u.getPath());
-
-        ContentResolver contentResolver = context.getContentResolver();
-        ParcelFileDescriptor fileDescriptor = contentResolver.openFileDescriptor(u, "r");
-
-        Payload filePayload = Payload.fromFile(fileDescriptor);
+        JSObject result = new JSObject();
+        result.put("success", error == null);
+        if (error != null) {
+            result.put("error", error);
+        }
+        result.put("peers", peers);
+        return result;
+    }
 
-        _currentFilePayloadId = filePayload.getId();
-        Log.i(TAG, "Starting resource transfer with payload " + _currentFilePayloadId);
+    /** @return the name of the peer as shown in the list of peers, null if unknown */
+    private String getPeerName(String endpointId) {
 
-        Nearby.getConnectionsClient(context).sendPayload(endpoint, filePayload);
+        for (Peer peer : _currentPeers) {
+            if (peer.getId().equals(endpointId)) {
+                return peer.getName();
+            }
+        }
+        return null;
     }
 
-    private void sendResources(Context context, String endpoint, ProgressCallback callback) throws FileNotFoundException {
-
-        _state = SenderState.TRANSFERRING_RESOURCES;
-        _currentResourceIndex = -1;
-        sendNextResource(context, endpoint, callback);
+    private SenderState currentState() {
+        return _sessions.isEmpty() ? _state : _sessions.getAll().get(0).getState();
     }
 
     private boolean checkState(String method, SenderState expectedState) {
 
-        if (_state == expectedState) return true;
+        if (currentState() == expectedState) return true;
 
         Log.w(TAG, "Invalid state when calling '" + method + "' (expected '"
-                + expectedState + "' found '" + _state + "')");
+                + expectedState + "' found '" + currentState() + "')");
 
         return false;
     }
 
-    public void startBrowse(Context context, String serviceId, String transferId, List<ResourceDescriptor> resources, CallResolver callResolver) {
+    /**
+     * @param broadcast lets the user select several receivers, which must advertise
+     *                  with the broadcast option as well
+     * @param endpointId sends to this receiver without browsing if its connection was kept,
+     *                   null to let the user select the receivers
+     */
+    public void startBrowse(Context context, String serviceId, String transferId, List<ResourceDescriptor> resources,
+                            SendOptions options, boolean broadcast, String endpointId, CallResolver callResolver) {
 
         checkState("startBrowse", SenderState.NONE);
 
         _currentServiceId = serviceId;
         _currentTransferId = transferId;
         _currentResources = resources;
+        _currentOptions = options;
+        _broadcast = broadcast;
 
         _callResolver = callResolver;
+        _discoveryStart = 0;
+
+        KeptConnections.Connection kept = endpointId != null ? _keptConnections.get(endpointId) : null;
+        if (kept != null) {
+
+            Log.i(TAG, "Sending to '" + endpointId + "' over the kept connection");
+            _currentPeers = Collections.singletonList(new Peer(endpointId, kept.getName()));
+            _state = SenderState.START_CONNECTING;
+
+            Intent intent = new Intent(context, SendActivity.class);
+            context.startActivity(intent);
+            return;
+        }
+        if (endpointId != null) {
+            Log.i(TAG, "No kept connection to '" + endpointId + "', browsing");
+        }
 
         _state = SenderState.START_BROWSING;
 
@@ -343,6 +308,10 @@ public class Sender {
         context.startActivity(intent);
     }
 
+    boolean isBroadcast() {
+        return _broadcast;
+    }
+
     void cancelBrowse(Context context) {
 
         Log.i(TAG, "Cancel browsing");
@@ -366,6 +335,16 @@ public class Sender {
 
         checkState("startDiscover", SenderState.START_BROWSING);
         _state = SenderState.BROWSING;
+        _discoveryStart = System.nanoTime();
+
+        // shown until the discovery finds them again or they are lost
+        for (DiscoveryCache.Entry entry : _discoveryCache.startDiscovery()) {
+            uiCallback.onPeerFound(new Peer(entry.getEndpointId(), entry.getName(), true));
+        }
+        // connected receivers don't advertise, they can't be found
+        for (KeptConnections.Connection connection : _keptConnections.getAll()) {
+            uiCallback.onPeerFound(new Peer(connection.getEndpointId(), connection.getName()));
+        }
 
         EndpointDiscoveryCallback endpointDiscoveryCallback =
                 new EndpointDiscoveryCallback() {
@@ -374,6 +353,12 @@ public class Sender {
                     public void onEndpointFound(String endpointId, @NonNull DiscoveredEndpointInfo info) {
 
                         Log.i(TAG, "found endpoint '" + endpointId + "' " + info.getServiceId() + "@" + info.getEndpointName());
+
+                        DiscoveryCache.Entry replaced = _discoveryCache.found(endpointId, info.getEndpointName());
+                        if (replaced != null) {
+                            // the receiver advertises under a new id
+                            uiCallback.onPeerLost(new Peer(replaced.getEndpointId(), replaced.getName(), true));
+                        }
                         uiCallback.onPeerFound(new Peer(endpointId, info.getEndpointName()));
                     }
 
@@ -381,6 +366,7 @@ public class Sender {
                     public void onEndpointLost(String endpointId) {
                         // A previously discovered endpoint has gone away.
                         Log.i(TAG, "endpoint '" + endpointId + "' lost");
+                        _discoveryCache.lost(endpointId);
 
                         Peer lostPeer = new Peer(endpointId, "");
                         uiCallback.onPeerLost(lostPeer);
@@ -388,7 +374,7 @@ public class Sender {
                 };
 
         DiscoveryOptions discoveryOptions =
-                new DiscoveryOptions.Builder().setStrategy(STRATEGY).build();
+                new DiscoveryOptions.Builder().setStrategy(_broadcast ? BROADCAST_STRATEGY : STRATEGY).build();
 
         Nearby.getConnectionsClient(context)
                 .startDiscovery(_currentServiceId,  endpointDiscoveryCallback, discoveryOptions)
@@ -404,15 +390,16 @@ public class Sender {
                         });
     }
 
-    void connect(Context context, String peerId) {
+    /** Connects to the selected peers, more than one only when broadcasting. */
+    void connect(Context context, List<Peer> peers) {
 
-        Log.i(TAG, "Connect to peer " + peerId);
+        Log.i(TAG, "Connect to " + peers.size() + " peer(s)");
 
         if (checkState("connect", SenderState.BROWSING)) {
             Nearby.getConnectionsClient(context).stopDiscovery();
         }
 
-        _currentPeerId = peerId;
+        _currentPeers = peers;
 
         _state = SenderState.START_CONNECTING;
 
@@ -420,20 +407,42 @@ public class Sender {
         context.startActivity(intent);
     }
 
-    private void sendMessage(Context context, String peerId, String message) {
+    private SenderSession createSession(Context context, String endpointId, NearbyTransport transport,
+                                        ResourceHashes hashes) {
+
+        SenderSession session = new SenderSession(transport, endpointId, _currentTransferId,
+                _currentResources,
+                (title, progress, info) -> updateSessionProgress(endpointId, title, progress, info),
+                (success, error) -> onSessionResult(endpointId, success, error));
+        session.setTransferInfo(context.getResources().getString(R.string.info_title_send));
+        session.setOptions(_currentOptions);
+        session.setHashes(hashes);
+        session.setScheduler(_handler::postDelayed);
+        if (_discoveryStart != 0) {
+            session.getStats().recordPhase(SenderState.BROWSING.name(), _discoveryStart);
+        }
+        transport.setListener(session);
 
-        Log.i(TAG, "Sending message to endpoint '" + peerId + "'");
-        Log.d(TAG, "Message content = '" + message + "'");
+        _recentStats.addLast(session.getStats());
+        _progressReporter.add(session.getStats());
+        while (_recentStats.size() > MAX_RECENT_STATS) {
+            _recentStats.removeFirst();
+        }
 
-        Payload payload = Payload.fromBytes(message.getBytes(StandardCharsets.UTF_8));
-        Nearby.getConnectionsClient(context).sendPayload(peerId, payload);
+        _sessions.put(session);
+        _transports.put(endpointId, transport);
+        return session;
     }
 
-
     public void startTransfer(Context context, ProgressCallback progressCallback) {
 
         checkState("startTransfer", SenderState.START_CONNECTING);
 
+        _progressCallback = new WeakReference<>(progressCallback);
+        // the resources are hashed once for all peers, the hashes may outlive the activity
+        ResourceHashes hashes = new ResourceHashes(new NearbyTransport(context.getApplicationContext()),
+                _currentResources);
+
         final ConnectionLifecycleCallback callback =
                 new ConnectionLifecycleCallback() {
                     @Override
@@ -441,8 +450,13 @@ public class Sender {
 
                         Log.i(TAG, "accepting connection initiated from '" + endpointId + "' " + connectionInfo.getEndpointName());
 
+                        // the transport may outlive the activity if the connection is kept
+                        NearbyTransport transport = new NearbyTransport(context.getApplicationContext());
+                        SenderSession session = createSession(context, endpointId, transport, hashes);
+                        session.getStats().recordPhase(SenderState.CONNECTING.name(), _connectStart);
+
                         // Automatically accept the connection on both sides.
-                        Nearby.getConnectionsClient(context).acceptConnection(endpointId, new PayloadHandler(context, progressCallback));
+                        Nearby.getConnectionsClient(context).acceptConnection(endpointId, transport.getPayloadCallback());
                     }
 
                     @Override
@@ -450,26 +464,32 @@ public class Sender {
 
                         Log.d(TAG, "Connection result changed");
 
+                        SenderSession session = _sessions.get(endpointId);
+                        if (session == null) {
+                            Log.w(TAG, "Connection result for unknown endpoint '" + endpointId + "'");
+                            return;
+                        }
+
                         switch (result.getStatus().getStatusCode()) {
                             case ConnectionsStatusCodes.STATUS_OK:
                                 Log.i(TAG, "Connection result = ConnectionsStatusCodes.STATUS_OK, endoint '" + endpointId + "'");
 
                                 String info = context.getResources().getString(R.string.info_title_sync);
 
-                                _state = SenderState.WAITING_FOR_VERSION; // 🤝 🔗 📂
-                                progressCallback.updateProgress("\uD83E\uDD1D", 25, info);
-                                sendMessage(context, endpointId, "ver." + P2pConnect.PROTOCOL_VERSION);
+                                // 🤝 🔗 📂
+                                updateProgress("\uD83E\uDD1D", 25, info);
+                                session.start();
 
                                 break;
                             case ConnectionsStatusCodes.STATUS_CONNECTION_REJECTED:
                                 Log.i(TAG, "connection result = ConnectionsStatusCodes.STATUS_CONNECTION_REJECTED");
                                 // The connection was rejected by one or both sides.
-                                // TODO _plugin.notifySessionStateChanged(SessionState.NotConnected, endpointId);
+                                onSessionResult(endpointId, false, "connectionFailed");
                                 break;
                             case ConnectionsStatusCodes.STATUS_ERROR:
                                 // The connection broke before it was able to be accepted.
                                 Log.i(TAG, "connection result = ConnectionsStatusCodes.STATUS_ERROR");
-                                // TODO _plugin.notifySessionStateChanged(SessionState.NotConnected, endpointId);
+                                onSessionResult(endpointId, false, "connectionFailed");
                                 break;
                             default:
                                 Log.w(TAG, "Connection result = unknown");
@@ -486,35 +506,87 @@ public class Sender {
                         // We've been disconnected from this endpoint. No more data can be
                         // sent or received.
                         // TODO _plugin.notifySessionStateChanged(SessionState.NotConnected, endpointId);
-                        // FIXME check for state and resolve call
+                        NearbyTransport transport = _transports.get(endpointId);
+                        if (transport != null) {
+                            transport.onDisconnected(endpointId);
+                        }
+                    }
+
+                    @Override
+                    public void onBandwidthChanged(String endpointId, @NonNull BandwidthInfo bandwidthInfo) {
+
+                        // large resources wait for the upgrade to Wi-Fi
+                        NearbyTransport transport = _transports.get(endpointId);
+                        if (transport != null) {
+                            transport.onBandwidthChanged(endpointId, bandwidthInfo.getQuality());
+                        }
                     }
                 };
 
         String deviceName = Settings.Global.DEVICE_NAME;
-        Log.i(TAG, "connecting to peer '" + _currentPeerId + "' as " + deviceName);
         _state = SenderState.CONNECTING;
+        _connectStart = System.nanoTime();
+        int transfer = ++_transferCount;
+        long connectTimeout = _currentOptions.getTimeout(SenderState.CONNECTING);
+
+        // connections to receivers not selected this time are closed, they might block new ones
+        for (KeptConnections.Connection connection : _keptConnections.getAll()) {
+            if (!_currentPeers.contains(new Peer(connection.getEndpointId(), null))) {
+                _keptConnections.close(connection.getEndpointId());
+            }
+        }
 
-        // An endpoint was found. We request a connection to it.
-        Nearby.getConnectionsClient(context)
-                .requestConnection(deviceName, _currentPeerId, callback)
-                .addOnSuccessListener(
-                        (Void unused) -> {
-                            // We successfully requested a connection. Now both sides
-                            // must accept before the connection is established.
-                            Log.i(TAG, "connection request successful - waiting for connection handshake...");
-                        })
-                .addOnFailureListener(
-                        (Exception e) -> {
-                            // Nearby Connections failed to request the connection.
-                            Log.e(TAG, "Nearby.getConnectionsClient().requestConnection() failed", e);
+        for (Peer peer : _currentPeers) {
 
-                            progressCallback.updateProgress(null, -1, null);
+            String peerId = peer.getId();
 
-                            JSObject result = new JSObject();
-                            result.put("success", false);
-                            result.put("error", "connectionFailed");
-                            _callResolver.getCall().resolve(result);
-                        });
+            KeptConnections.Connection kept = _keptConnections.take(peerId);
+            if (kept != null) {
+
+                Log.i(TAG, "sending to peer '" + peerId + "' over the kept connection");
+
+                SenderSession session = createSession(context, peerId, _transports.get(peerId), hashes);
+                session.setProtocolVersion(kept.getProtocolVersion());
+                updateProgress("\uD83E\uDD1D", 25, context.getResources().getString(R.string.info_title_sync));
+                session.startNext();
+                continue;
+            }
+
+            Log.i(TAG, "connecting to peer '" + peerId + "' as " + deviceName);
+
+            // An endpoint was found. We request a connection to it.
+            Nearby.getConnectionsClient(context)
+                    .requestConnection(deviceName, peerId, callback)
+                    .addOnSuccessListener(
+                            (Void unused) -> {
+                                // We successfully requested a connection. Now both sides
+                                // must accept before the connection is established.
+                                Log.i(TAG, "connection request successful - waiting for connection handshake...");
+                            })
+                    .addOnFailureListener(
+                            (Exception e) -> {
+                                // Nearby Connections failed to request the connection.
+                                Log.e(TAG, "Nearby.getConnectionsClient().requestConnection() failed", e);
+                                onSessionResult(peerId, false, "connectionFailed");
+                            });
+
+            if (connectTimeout > 0) {
+                // Nearby may take minutes until it gives up on a receiver out of range
+                _handler.postDelayed(() -> onConnectTimeout(context, transfer, peerId), connectTimeout);
+            }
+        }
+    }
+
+    private void onConnectTimeout(Context context, int transfer, String peerId) {
+
+        if (transfer != _transferCount || _results.containsKey(peerId)) return;
+
+        SenderSession session = _sessions.get(peerId);
+        if (session != null && session.getState() != SenderState.CONNECTING) return;
+
+        Log.w(TAG, "Connecting to '" + peerId + "' timed out");
+        Nearby.getConnectionsClient(context).disconnectFromEndpoint(peerId);
+        onSessionResult(peerId, false, "timeout");
     }
 
 }
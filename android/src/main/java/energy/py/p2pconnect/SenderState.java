@@ -12,7 +12,7 @@ public enum SenderState {
     START_CONNECTING,
     /** Connecting to peer */
     CONNECTING,
-    /** Connected: Sent version and waiting for answer */
+    /** Connected: Sent version (and since version 2 the manifest) and waiting for answer */
     WAITING_FOR_VERSION,
     /** Connected: Sent transfer id and waiting for answer */
     WAITING_FOR_TRANSFER_ID,
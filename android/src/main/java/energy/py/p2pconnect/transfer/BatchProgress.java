@@ -0,0 +1,116 @@
+package energy.py.p2pconnect.transfer;
+
+/**
+ * The progress of all resources of a transfer, weighted by their sizes.
+ *
+ * The progress doesn't start over for every resource and is correct for
+ * resources transferred at the same time. If the size of a resource is unknown,
+ * the progress is the share of complete resources and the title shows the bytes.
+ * Bytes are counted uncompressed, as bytes of the resources.
+ */
+final class BatchProgress {
+
+    /** Sizes of the resources, -1 if unknown. */
+    private final long[] _sizes;
+    /** Bytes the receiver kept from an interrupted transfer. */
+    private final long[] _offsets;
+    /** Bytes there of each resource, including the offset. */
+    private final long[] _bytes;
+    private final boolean[] _complete;
+
+    /** -1 if the size of a resource is unknown. */
+    private final long _totalBytes;
+    private long _doneBytes;
+    private int _completed;
+
+    BatchProgress(long[] sizes) {
+
+        _sizes = sizes;
+        _offsets = new long[sizes.length];
+        _bytes = new long[sizes.length];
+        _complete = new boolean[sizes.length];
+
+        long totalBytes = 0;
+        for (long size : sizes) {
+            if (size < 0) {
+                totalBytes = -1;
+                break;
+            }
+            totalBytes += size;
+        }
+        _totalBytes = totalBytes;
+    }
+
+    /** The first bytes of the resource are there already. */
+    void setOffset(int index, long offset) {
+
+        _offsets[index] = offset;
+        setBytes(index, offset);
+    }
+
+    /** @param bytes the bytes of the resource transferred, without the offset */
+    void update(int index, long bytes) {
+
+        if (_complete[index]) return;
+
+        long total = _offsets[index] + bytes;
+        setBytes(index, _sizes[index] >= 0 ? Math.min(total, _sizes[index]) : total);
+    }
+
+    void complete(int index) {
+
+        if (_complete[index]) return;
+
+        _complete[index] = true;
+        _completed++;
+        if (_sizes[index] >= 0) {
+            setBytes(index, _sizes[index]);
+        }
+    }
+
+    /** The resource is transferred again from the start. */
+    void reset(int index) {
+
+        if (_complete[index]) {
+            _complete[index] = false;
+            _completed--;
+        }
+        _offsets[index] = 0;
+        setBytes(index, 0);
+    }
+
+    private void setBytes(int index, long bytes) {
+
+        _doneBytes += bytes - _bytes[index];
+        _bytes[index] = bytes;
+    }
+
+    int getCompleted() {
+        return _completed;
+    }
+
+    long getDoneBytes() {
+        return _doneBytes;
+    }
+
+    /** @return the size of all resources, -1 if unknown */
+    long getTotalBytes() {
+        return _totalBytes;
+    }
+
+    /** @return the progress in the range from 0 to 100 */
+    int getPercent() {
+
+        if (_totalBytes > 0) {
+            return (int) (100 * _doneBytes / _totalBytes);
+        }
+        return _sizes.length > 0 ? 100 * _completed / _sizes.length : 100;
+    }
+
+    /** @return the number of complete resources (📂 x/y), with the bytes if the total is unknown */
+    String getTitle() {
+
+        String title = "\uD83D\uDCC2 " + _completed + "/" + _sizes.length;
+        return _totalBytes < 0 ? title + " " + ByteCount.format(_doneBytes) : title;
+    }
+}
@@ -0,0 +1,183 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Small resources packed into one stream payload, announced with a
+ * {@link ControlMessage#BUNDLE} frame listing their indexes.
+ *
+ * Every resource costs a payload, a frame and a round trip until the window of
+ * concurrent payloads has a free slot, a batch of many small files is dominated
+ * by this overhead. A bundle is a sequence of entries like a tar archive:
+ * <pre>
+ * index | length | bytes of the resource
+ * </pre>
+ * Index and length are unsigned varints. The receiver unpacks the entries while
+ * the stream arrives, each into its own file.
+ */
+final class Bundle {
+
+    /** Upper limit for the entries of one bundle, its frame stays far below {@link Protocol#MAX_FRAME_SIZE}. */
+    static final int MAX_ENTRIES = 1024;
+    /** Upper limit for the bytes of one bundle, so its progress is reported now and then. */
+    static final long MAX_BYTES = 4 * 1024 * 1024;
+
+    private Bundle() {
+    }
+
+    /**
+     * Reads the resources one after the other while the payload is sent.
+     * Each resource is read completely to learn its length, so only small
+     * resources may be bundled.
+     */
+    static final class Packer extends InputStream {
+
+        private final Transport _transport;
+        private final String[] _uris;
+        private final int[] _indexes;
+
+        private int _next;
+        private final ByteArrayOutputStream _entry = new ByteArrayOutputStream();
+        private byte[] _buffer = new byte[0];
+        private int _position;
+
+        Packer(Transport transport, String[] uris, int[] indexes) {
+
+            _transport = transport;
+            _uris = uris;
+            _indexes = indexes;
+        }
+
+        /** @return false once all entries were read */
+        private boolean fill() throws IOException {
+
+            while (_position >= _buffer.length) {
+
+                if (_next >= _indexes.length) return false;
+
+                _entry.reset();
+                byte[] content = readFully(_transport.openInputStream(_uris[_next]));
+                writeVarint(_entry, _indexes[_next]);
+                writeVarint(_entry, content.length);
+                _entry.write(content, 0, content.length);
+
+                _buffer = _entry.toByteArray();
+                _position = 0;
+                _next++;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? _buffer[_position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+
+            int count = Math.min(len, _buffer.length - _position);
+            System.arraycopy(_buffer, _position, b, off, count);
+            _position += count;
+            return count;
+        }
+
+        private static byte[] readFully(InputStream stream) throws IOException {
+
+            try (InputStream in = stream) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return out.toByteArray();
+            }
+        }
+
+        private static void writeVarint(ByteArrayOutputStream out, long value) {
+
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    /** Reads the entries of a bundle from the stream. */
+    static final class Unpacker {
+
+        private final InputStream _in;
+        private long _remaining;
+
+        Unpacker(InputStream in) {
+            _in = in;
+        }
+
+        /**
+         * Moves to the next entry, the rest of the current one must have been read.
+         *
+         * @return the index of the resource or -1 at the end of the bundle
+         */
+        int next() throws IOException {
+
+            if (_remaining > 0) {
+                throw new IllegalStateException(_remaining + " byte(s) of the entry not read");
+            }
+
+            int first = _in.read();
+            if (first == -1) return -1;
+
+            long index = readVarint(first);
+            if (index >= Protocol.MAX_RESOURCES) {
+                throw new ProtocolException("Invalid bundle entry " + index);
+            }
+            _remaining = readVarint(readByte());
+            return (int) index;
+        }
+
+        /** Reads bytes of the current entry. @return -1 at its end */
+        int read(byte[] buffer) throws IOException {
+
+            if (_remaining == 0) return -1;
+
+            int read = _in.read(buffer, 0, (int) Math.min(buffer.length, _remaining));
+            if (read == -1) {
+                throw new EOFException("Bundle ends within an entry");
+            }
+            _remaining -= read;
+            return read;
+        }
+
+        private int readByte() throws IOException {
+
+            int b = _in.read();
+            if (b == -1) {
+                throw new EOFException("Bundle ends within an entry header");
+            }
+            return b;
+        }
+
+        private long readVarint(int first) throws IOException {
+
+            long value = first & 0x7F;
+            int b = first;
+            for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+                if (shift >= 63) {
+                    throw new ProtocolException("Varint too long");
+                }
+                b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package energy.py.p2pconnect.transfer;
+
+import java.util.Locale;
+
+/** Formats byte counts for progress titles. */
+final class ByteCount {
+
+    private static final String[] UNITS = { "kB", "MB", "GB", "TB" };
+
+    private ByteCount() {
+    }
+
+    /** @return e.g. "999 B", "1.5 kB", "12.3 MB" (decimal units) */
+    static String format(long bytes) {
+
+        if (bytes < 1000) {
+            return bytes + " B";
+        }
+
+        double value = bytes;
+        int unit = -1;
+        while (value >= 999.95 && unit < UNITS.length - 1) {
+            value /= 1000;
+            unit++;
+        }
+        return String.format(Locale.ROOT, "%.1f %s", value, UNITS[unit]);
+    }
+}
@@ -0,0 +1,144 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate compression of stream payloads.
+ *
+ * The sender compresses a resource only if its first {@link #SAMPLE_SIZE} bytes
+ * shrink to {@link #MAX_RATIO} or less, text formats like JSON or CSV usually do.
+ * Media files are compressed already and are sent unchanged.
+ */
+final class Compression {
+
+    private static final String TAG = "P2PConnect/Compression";
+
+    static final int SAMPLE_SIZE = 64 * 1024;
+    /** Smaller resources aren't worth a stream payload. */
+    static final int MIN_SIZE = 4 * 1024;
+    static final double MAX_RATIO = 0.8;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Compression() {
+    }
+
+    /**
+     * Samples the beginning of the stream.
+     *
+     * @return the compressing stream, or null if compression doesn't pay off. The
+     *         stream is closed then.
+     */
+    static DeflatingStream deflateIfWorthwhile(InputStream stream) throws IOException {
+
+        BufferedInputStream in = new BufferedInputStream(stream, SAMPLE_SIZE);
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        try {
+            in.mark(SAMPLE_SIZE);
+            int read;
+            while (length < SAMPLE_SIZE && (read = in.read(sample, length, SAMPLE_SIZE - length)) != -1) {
+                length += read;
+            }
+            in.reset();
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+
+        if (length < MIN_SIZE) {
+            in.close();
+            return null;
+        }
+
+        long compressed = compressedSize(sample, length);
+        double ratio = (double) compressed / length;
+        if (ratio > MAX_RATIO) {
+            in.close();
+            return null;
+        }
+
+        TransferLog.d(TAG, "Compressing resource, sample ratio " + ratio);
+        return new DeflatingStream(in);
+    }
+
+    private static long compressedSize(byte[] sample, int length) {
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+
+            byte[] output = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                deflater.deflate(output);
+            }
+            return deflater.getBytesWritten();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Decompresses the stream while it's read. */
+    static InputStream inflate(InputStream stream) {
+
+        return new InflaterInputStream(stream, new Inflater(), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+
+                try {
+                    super.close();
+                } finally {
+                    // an inflater passed to InflaterInputStream isn't released by it
+                    inf.end();
+                }
+            }
+        };
+    }
+
+    /** Compresses the stream while it's read, counting the uncompressed bytes for progress updates. */
+    static final class DeflatingStream extends FilterInputStream {
+
+        private final Deflater _deflater;
+        private volatile long _bytesRead;
+
+        private DeflatingStream(InputStream source) {
+
+            super(null);
+            _deflater = new Deflater(Deflater.BEST_SPEED);
+            in = new DeflaterInputStream(new FilterInputStream(source) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read > 0) {
+                        _bytesRead += read;
+                    }
+                    return read;
+                }
+            }, _deflater, BUFFER_SIZE);
+        }
+
+        /** @return the number of uncompressed bytes consumed so far, from any thread */
+        long getBytesRead() {
+            return _bytesRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            try {
+                super.close();
+            } finally {
+                // a deflater passed to DeflaterInputStream isn't released by it
+                _deflater.end();
+            }
+        }
+    }
+}
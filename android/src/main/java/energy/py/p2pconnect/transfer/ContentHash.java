@@ -0,0 +1,81 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The content hash of resources in the {@link Manifest}: SHA-256.
+ */
+final class ContentHash {
+
+    static final int LENGTH = 32;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ContentHash() {
+    }
+
+    static MessageDigest newDigest() {
+
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // every Java platform has SHA-256
+        }
+    }
+
+    static byte[] of(String text) {
+        return newDigest().digest(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Reads the stream to its end and closes it. */
+    static byte[] of(InputStream stream) throws IOException {
+
+        MessageDigest digest = newDigest();
+        try (InputStream in = stream) {
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    static byte[] of(File file) throws IOException {
+        return of(new FileInputStream(file));
+    }
+
+    /** Adds the first <code>length</code> bytes of the file to the digest. */
+    static void update(MessageDigest digest, File file, long length) throws IOException {
+
+        try (InputStream in = new FileInputStream(file)) {
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException("File ends before " + length + " bytes");
+                }
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    static String hex(byte[] bytes) {
+
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
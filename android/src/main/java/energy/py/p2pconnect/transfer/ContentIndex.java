@@ -0,0 +1,164 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps content hashes to files received earlier, so resources the receiver
+ * already has don't cross the link again.
+ *
+ * Only files in the cache directory are indexed, and only after their content
+ * was verified against the hash. An entry is dropped when its file was deleted
+ * or changed since then. The least recently used entries are evicted beyond
+ * {@link #MAX_ENTRIES}; their files belong to the app and are kept.
+ *
+ * The index is saved as text file in the cache directory, one entry per line:
+ * <pre>
+ * &lt;hash (hex)&gt; &lt;length&gt; &lt;last modified&gt; &lt;file name&gt;
+ * </pre>
+ */
+final class ContentIndex {
+
+    private static final String TAG = "P2PConnect/ContentIndex";
+
+    static final String FILE_NAME = "p2pconnect-index";
+    static final int MAX_ENTRIES = 1000;
+
+    private static final class Entry {
+
+        final String name;
+        final long length;
+        final long lastModified;
+
+        Entry(String name, long length, long lastModified) {
+            this.name = name;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final File _cacheDir;
+    private final File _file;
+
+    private final Map<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean _modified;
+
+    private ContentIndex(File cacheDir) {
+
+        _cacheDir = cacheDir;
+        _file = new File(cacheDir, FILE_NAME);
+    }
+
+    /** Loads the index of the cache directory, an unreadable index is started anew. */
+    static ContentIndex open(File cacheDir) {
+
+        ContentIndex index = new ContentIndex(cacheDir);
+        if (!index._file.isFile()) {
+            return index;
+        }
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(index._file), StandardCharsets.UTF_8))) {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+
+                String[] parts = line.split(" ", 4);
+                if (parts.length != 4) continue;
+
+                try {
+                    index._entries.put(parts[0],
+                            new Entry(parts[3], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                } catch (NumberFormatException ex) {
+                    // skip the entry
+                }
+            }
+        } catch (IOException ex) {
+            TransferLog.w(TAG, "Failed reading index, starting anew", ex);
+            index._entries.clear();
+        }
+
+        return index;
+    }
+
+    /**
+     * @param size the expected size, -1 if unknown
+     * @return the file with the given content or null
+     */
+    File find(byte[] hash, long size) {
+
+        String key = ContentHash.hex(hash);
+        Entry entry = _entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        File file = new File(_cacheDir, entry.name);
+        if (file.length() != entry.length || file.lastModified() != entry.lastModified
+                || (size >= 0 && size != entry.length)) {
+
+            // deleted or changed by the app
+            _entries.remove(key);
+            _modified = true;
+            return null;
+        }
+
+        _modified = true; // the order changed
+        return file;
+    }
+
+    /** Adds a file of the cache directory, its content must match the hash. */
+    void put(byte[] hash, File file) {
+
+        _entries.put(ContentHash.hex(hash), new Entry(file.getName(), file.length(), file.lastModified()));
+        _modified = true;
+    }
+
+    /** Forgets a file that can't be used, e.g. it can't be read. */
+    void remove(byte[] hash) {
+
+        if (_entries.remove(ContentHash.hex(hash)) != null) {
+            _modified = true;
+        }
+    }
+
+    /** Writes the index if it was modified, least recently used entries first. */
+    void save() {
+
+        if (!_modified) return;
+
+        File temp = new File(_cacheDir, FILE_NAME + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+
+            for (Map.Entry<String, Entry> entry : _entries.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(entry.getKey() + " " + value.length + " " + value.lastModified + " " + value.name + "\n");
+            }
+        } catch (IOException ex) {
+            TransferLog.w(TAG, "Failed writing index", ex);
+            temp.delete();
+            return;
+        }
+
+        if (!temp.renameTo(_file)) {
+            TransferLog.w(TAG, "Failed replacing index");
+            temp.delete();
+            return;
+        }
+        _modified = false;
+    }
+}
@@ -0,0 +1,678 @@
+package energy.py.p2pconnect.transfer;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A control message exchanged between sender and receiver, and its wire format.
+ *
+ * Since protocol version 2 messages are sent as binary frames:
+ * <pre>
+ * MAGIC (0xFE) | version | type | body
+ * </pre>
+ * Numbers in the body are unsigned varints, strings are prefixed with their
+ * UTF-8 length as varint. 0xFE never starts a UTF-8 string, so frames can't be
+ * confused with messages of protocol version 1, which {@link #decode(byte[], boolean)}
+ * understands as well.
+ *
+ * Every peer of version 2 or later knows the frames {@link #MANIFEST}, {@link #ACCEPT},
+ * {@link #DENY}, {@link #FILE}, {@link #RESEND} and {@link #ALL_DONE}. {@link #VERSION}, {@link #TRANSFER_ID},
+ * {@link #COUNT}, {@link #RESOURCE_ID} and {@link #IDS_DONE} are string messages of version 1 only,
+ * the version check is always such a string.
+ *
+ * Frames added since are optional, they are sent only to receivers listing them in the
+ * capabilities of their {@link #ACCEPT} answer to the manifest (see {@link Protocol}):
+ * <ul>
+ *     <li>{@link #BUNDLE} with {@link Protocol#ENCODING_BUNDLE}</li>
+ *     <li>{@link #HEARTBEAT} with {@link Protocol#ENCODING_HEARTBEAT}</li>
+ * </ul>
+ * A new frame is either negotiated this way or bumps {@link Protocol#VERSION}.
+ *
+ * Instances are mutable and reused for every message of a session.
+ */
+final class ControlMessage {
+
+    static final byte MAGIC = (byte) 0xFE;
+    private static final int HEADER_SIZE = 3;
+
+    private static final int[] NO_INDEXES = new int[0];
+    private static final long[] NO_OFFSETS = new long[0];
+
+    /** Sender → receiver: "ver.&lt;version&gt;" */
+    static final int VERSION = 1;
+    /** Sender → receiver: "tid.&lt;transfer id&gt;" */
+    static final int TRANSFER_ID = 2;
+    /**
+     * Receiver → sender: positive answer to the current step.
+     * Body (answer to the manifest only): n, n * completed index, m, m * (index, received bytes),
+     * capabilities (bit mask of 1 &lt;&lt; encoding, see {@link Protocol})
+     */
+    static final int ACCEPT = 3;
+    /** Receiver → sender: negative answer to the current step. */
+    static final int DENY = 4;
+    /** Sender → receiver: "cnt.&lt;number of resources&gt;" */
+    static final int COUNT = 5;
+    /** Sender → receiver: "id.&lt;index&gt;.&lt;resource id&gt;" */
+    static final int RESOURCE_ID = 6;
+    /** Sender → receiver: all resource ids were sent. */
+    static final int IDS_DONE = 7;
+    /** Receiver → sender: all resources were received. */
+    static final int ALL_DONE = 8;
+    /**
+     * Sender → receiver: (a part of) the {@link Manifest}.
+     * Body: transfer id, count, offset, n, n * (id, size + 1, hash length, hash)
+     */
+    static final int MANIFEST = 9;
+    /**
+     * Sender → receiver: the resource sent with a file payload.
+     * Body: payload id (8 bytes, payload ids are random), index, offset of the payload in the resource,
+     * encoding
+     */
+    static final int FILE = 10;
+    /**
+     * Receiver → sender: the resource didn't match its content hash, send it again from the start.
+     * Body: index
+     */
+    static final int RESEND = 11;
+    /**
+     * Sender → receiver: the resources sent with a stream payload, see {@link Bundle}.
+     * Body: payload id (8 bytes), encoding of the payload, n, n * index
+     */
+    static final int BUNDLE = 12;
+    /**
+     * Sender → receiver: the sender is alive, the receiver answers with the same frame.
+     * Sent periodically while the resources are transferred.
+     */
+    static final int HEARTBEAT = 13;
+
+    int type;
+    /** The frame version, {@link Protocol#LEGACY_VERSION} for string messages. */
+    int version;
+    /** Version, count or index, depending on the type. */
+    long value;
+    /** Transfer or resource id, depending on the type. */
+    String text;
+
+    /** Payload id of a {@link #FILE} or {@link #BUNDLE} frame. */
+    long payloadId;
+    /** Offset of a {@link #FILE} frame, the payload contains the resource from there. */
+    long fileOffset;
+    /** Encoding of the payload of a {@link #FILE} or {@link #BUNDLE} frame. */
+    int encoding;
+    /** Resources of a {@link #BUNDLE} frame, in the order of their entries. */
+    int[] bundle;
+
+    /** Resources of an {@link #ACCEPT} frame the receiver already has. */
+    int[] completed;
+    /** Resources of an {@link #ACCEPT} frame the receiver has the first <code>partialOffsets</code> bytes of. */
+    int[] partial;
+    long[] partialOffsets;
+    /** Encodings the receiver accepts, bit mask of an {@link #ACCEPT} frame. */
+    int encodings;
+
+    /** Index of the first manifest entry in this frame. */
+    int offset;
+    /** Manifest entries of this frame. */
+    String[] ids;
+    long[] sizes;
+    byte[][] hashes;
+
+    boolean isLegacy() {
+        return version == Protocol.LEGACY_VERSION;
+    }
+
+    static boolean isFrame(byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && bytes[0] == MAGIC;
+    }
+
+    static boolean isHeartbeat(byte[] bytes) {
+        return isFrame(bytes) && bytes[2] == HEARTBEAT;
+    }
+
+    /**
+     * Decodes a binary frame or a message of protocol version 1.
+     *
+     * @param fromSender the direction of the message. Strings of version 1 are ambiguous
+     *                   ("tid.accept" might be a transfer id or an answer).
+     * @throws ProtocolException if the message is malformed or unknown
+     */
+    void decode(byte[] bytes, boolean fromSender) throws ProtocolException {
+
+        value = 0;
+        text = null;
+        fileOffset = 0;
+        encoding = Protocol.ENCODING_IDENTITY;
+        encodings = 0;
+        completed = NO_INDEXES;
+        partial = NO_INDEXES;
+        bundle = NO_INDEXES;
+        partialOffsets = NO_OFFSETS;
+        ids = null;
+        sizes = null;
+        hashes = null;
+
+        if (isFrame(bytes)) {
+            decodeFrame(bytes);
+        } else {
+            decodeLegacy(new String(bytes, StandardCharsets.UTF_8), fromSender);
+        }
+    }
+
+    private void decodeFrame(byte[] bytes) throws ProtocolException {
+
+        version = bytes[1] & 0xFF;
+        type = bytes[2] & 0xFF;
+
+        if (version < 2) {
+            throw new ProtocolException("Invalid frame version " + version);
+        }
+
+        Reader reader = new Reader(bytes);
+
+        switch (type) {
+            case MANIFEST:
+                decodeManifest(reader);
+                break;
+            case FILE:
+                payloadId = reader.readLong();
+                value = reader.readVarint();
+                fileOffset = reader.readVarint();
+                encoding = readEncoding(reader);
+                break;
+            case RESEND:
+                value = readIndex(reader);
+                break;
+            case BUNDLE:
+                payloadId = reader.readLong();
+                encoding = readEncoding(reader);
+                bundle = new int[readCount(reader)];
+                for (int i = 0; i < bundle.length; i++) {
+                    bundle[i] = readIndex(reader);
+                }
+                break;
+            case ACCEPT:
+                if (reader.hasRemaining()) {
+                    decodeResume(reader);
+                }
+                break;
+            case DENY:
+            case ALL_DONE:
+            case HEARTBEAT:
+                break;
+            default:
+                throw new ProtocolException("Unknown frame type " + type);
+        }
+
+        reader.expectEnd();
+    }
+
+    private void decodeManifest(Reader reader) throws ProtocolException {
+
+        text = reader.readString();
+        value = reader.readVarint();
+        long offset = reader.readVarint();
+        long count = reader.readVarint();
+
+        if (value > Protocol.MAX_RESOURCES || offset > value || count > value - offset) {
+            throw new ProtocolException("Invalid manifest part " + offset + "+" + count + " of " + value);
+        }
+
+        this.offset = (int) offset;
+        ids = new String[(int) count];
+        sizes = new long[(int) count];
+        hashes = new byte[(int) count][];
+
+        for (int i = 0; i < count; i++) {
+
+            ids[i] = reader.readString();
+            sizes[i] = reader.readVarint() - 1;
+
+            long hashLength = reader.readVarint();
+            if (hashLength > Manifest.MAX_HASH_LENGTH) {
+                throw new ProtocolException("Invalid hash length " + hashLength);
+            }
+            if (hashLength > 0) {
+                hashes[i] = reader.readBytes((int) hashLength);
+            }
+        }
+    }
+
+    private void decodeResume(Reader reader) throws ProtocolException {
+
+        completed = new int[readCount(reader)];
+        for (int i = 0; i < completed.length; i++) {
+            completed[i] = readIndex(reader);
+        }
+
+        partial = new int[readCount(reader)];
+        partialOffsets = new long[partial.length];
+        for (int i = 0; i < partial.length; i++) {
+            partial[i] = readIndex(reader);
+            partialOffsets[i] = reader.readVarint();
+        }
+
+        // unknown encodings are ignored
+        encodings = (int) reader.readVarint();
+    }
+
+    private static int readEncoding(Reader reader) throws ProtocolException {
+
+        long encoding = reader.readVarint();
+        if (encoding != Protocol.ENCODING_IDENTITY && encoding != Protocol.ENCODING_DEFLATE) {
+            throw new ProtocolException("Unknown encoding " + encoding);
+        }
+        return (int) encoding;
+    }
+
+    private static int readCount(Reader reader) throws ProtocolException {
+
+        long count = reader.readVarint();
+        if (count > Protocol.MAX_RESOURCES) {
+            throw new ProtocolException("Invalid count " + count);
+        }
+        return (int) count;
+    }
+
+    private static int readIndex(Reader reader) throws ProtocolException {
+
+        long index = reader.readVarint();
+        if (index >= Protocol.MAX_RESOURCES) {
+            throw new ProtocolException("Invalid index " + index);
+        }
+        return (int) index;
+    }
+
+    private void decodeLegacy(String message, boolean fromSender) throws ProtocolException {
+
+        version = Protocol.LEGACY_VERSION;
+
+        try {
+            if (!fromSender) {
+
+                if (message.equals("all.done")) {
+                    type = ALL_DONE;
+                } else if (message.endsWith(".accept")) {
+                    type = ACCEPT;
+                } else if (message.endsWith(".deny")) {
+                    type = DENY;
+                } else {
+                    throw new ProtocolException("Unknown message '" + message + "'");
+                }
+
+            } else if (message.startsWith("ver.")) {
+
+                type = VERSION;
+                value = Integer.parseInt(message.substring("ver.".length()));
+
+            } else if (message.startsWith("tid.")) {
+
+                type = TRANSFER_ID;
+                text = message.substring("tid.".length());
+
+            } else if (message.startsWith("cnt.")) {
+
+                type = COUNT;
+                value = Integer.parseInt(message.substring("cnt.".length()));
+
+            } else if (message.equals("id.done")) {
+
+                type = IDS_DONE;
+
+            } else if (message.startsWith("id.")) {
+
+                // id.<index>.<id>
+                int i = message.indexOf('.', "id.".length());
+                if (i < 0) {
+                    throw new ProtocolException("Missing index in '" + message + "'");
+                }
+
+                type = RESOURCE_ID;
+                value = Integer.parseInt(message.substring("id.".length(), i));
+                text = message.substring(i + 1);
+
+            } else {
+                throw new ProtocolException("Unknown message '" + message + "'");
+            }
+
+        } catch (NumberFormatException ex) {
+            throw new ProtocolException("Invalid number in '" + message + "'");
+        }
+
+        if (value < 0) {
+            throw new ProtocolException("Negative number in '" + message + "'");
+        }
+    }
+
+    /** Encodes a frame without body. */
+    static byte[] encode(int version, int type) {
+        return new Writer(version, type, 0).toByteArray();
+    }
+
+    /** Encodes a {@link #FILE} frame. */
+    static byte[] encodeFile(int version, long payloadId, int index, long offset, int encoding) {
+
+        Writer writer = new Writer(version, FILE, Long.BYTES + varintSize(index) + varintSize(offset)
+                + varintSize(encoding));
+        writer.writeLong(payloadId);
+        writer.writeVarint(index);
+        writer.writeVarint(offset);
+        writer.writeVarint(encoding);
+        return writer.toByteArray();
+    }
+
+    /** Encodes a {@link #BUNDLE} frame. */
+    static byte[] encodeBundle(int version, long payloadId, int encoding, int[] indexes) {
+
+        int bodySize = Long.BYTES + varintSize(encoding) + varintSize(indexes.length);
+        for (int index : indexes) {
+            bodySize += varintSize(index);
+        }
+
+        Writer writer = new Writer(version, BUNDLE, bodySize);
+        writer.writeLong(payloadId);
+        writer.writeVarint(encoding);
+        writer.writeVarint(indexes.length);
+        for (int index : indexes) {
+            writer.writeVarint(index);
+        }
+        return writer.toByteArray();
+    }
+
+    /** Encodes a {@link #RESEND} frame. */
+    static byte[] encodeResend(int version, int index) {
+
+        Writer writer = new Writer(version, RESEND, varintSize(index));
+        writer.writeVarint(index);
+        return writer.toByteArray();
+    }
+
+    /** Encodes the {@link #ACCEPT} answer to the manifest with the resources the receiver already has. */
+    static byte[] encodeAccept(int version, int[] completed, int[] partial, long[] partialOffsets,
+                               int encodings) {
+
+        int bodySize = varintSize(completed.length) + varintSize(partial.length) + varintSize(encodings);
+        for (int index : completed) {
+            bodySize += varintSize(index);
+        }
+        for (int i = 0; i < partial.length; i++) {
+            bodySize += varintSize(partial[i]) + varintSize(partialOffsets[i]);
+        }
+
+        Writer writer = new Writer(version, ACCEPT, bodySize);
+        writer.writeVarint(completed.length);
+        for (int index : completed) {
+            writer.writeVarint(index);
+        }
+        writer.writeVarint(partial.length);
+        for (int i = 0; i < partial.length; i++) {
+            writer.writeVarint(partial[i]);
+            writer.writeVarint(partialOffsets[i]);
+        }
+        writer.writeVarint(encodings);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Encodes the manifest into as many frames as needed to keep
+     * every frame within <code>maxFrameSize</code>.
+     *
+     * @throws ProtocolException if a single entry exceeds the frame size
+     */
+    static List<byte[]> encodeManifest(int version, Manifest manifest, int maxFrameSize)
+            throws ProtocolException {
+
+        int count = manifest.size();
+        int idLength = utf8Length(manifest.transferId);
+        // offset and number of entries are written with their maximum size
+        int headerSize = HEADER_SIZE + varintSize(idLength) + idLength + varintSize(count)
+                + 2 * varintSize(Protocol.MAX_RESOURCES);
+
+        int[] entrySizes = new int[count];
+        for (int i = 0; i < count; i++) {
+
+            int length = utf8Length(manifest.ids[i]);
+            int hashLength = manifest.hashes[i] != null ? manifest.hashes[i].length : 0;
+            entrySizes[i] = varintSize(length) + length + varintSize(manifest.sizes[i] + 1)
+                    + varintSize(hashLength) + hashLength;
+
+            if (headerSize + entrySizes[i] > maxFrameSize) {
+                throw new ProtocolException("Manifest entry " + i + " exceeds the frame size");
+            }
+        }
+
+        List<byte[]> frames = new ArrayList<>();
+        int offset = 0;
+        do {
+            int end = offset;
+            int bodySize = headerSize - HEADER_SIZE;
+            while (end < count && HEADER_SIZE + bodySize + entrySizes[end] <= maxFrameSize) {
+                bodySize += entrySizes[end++];
+            }
+
+            Writer writer = new Writer(version, MANIFEST, bodySize);
+            writer.writeString(manifest.transferId, idLength);
+            writer.writeVarint(count);
+            writer.writePaddedVarint(offset, varintSize(Protocol.MAX_RESOURCES));
+            writer.writePaddedVarint(end - offset, varintSize(Protocol.MAX_RESOURCES));
+
+            for (int i = offset; i < end; i++) {
+
+                byte[] hash = manifest.hashes[i];
+                writer.writeString(manifest.ids[i], utf8Length(manifest.ids[i]));
+                writer.writeVarint(manifest.sizes[i] + 1);
+                writer.writeVarint(hash != null ? hash.length : 0);
+                if (hash != null) {
+                    writer.writeBytes(hash);
+                }
+            }
+
+            frames.add(writer.toByteArray());
+            offset = end;
+
+        } while (offset < count);
+
+        return frames;
+    }
+
+    static int varintSize(long value) {
+
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int utf8Length(String text) {
+
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (!Character.isSurrogate(c)) {
+                length += 3;
+            } else if (isSurrogatePair(text, i)) {
+                length += 4;
+                i++;
+            } else {
+                // unpaired surrogates are replaced by '?' like String.getBytes() does
+                length += 1;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isSurrogatePair(String text, int i) {
+        return Character.isHighSurrogate(text.charAt(i)) && i + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(i + 1));
+    }
+
+    @Override
+    public String toString() {
+        return "ControlMessage{type=" + type + ", version=" + version
+                + ", value=" + value + ", text='" + text + "'}";
+    }
+
+    /** Writes a frame into an array of the exact size. */
+    static final class Writer {
+
+        private final byte[] _bytes;
+        private int _position;
+
+        Writer(int version, int type, int bodySize) {
+
+            _bytes = new byte[HEADER_SIZE + bodySize];
+            _bytes[0] = MAGIC;
+            _bytes[1] = (byte) version;
+            _bytes[2] = (byte) type;
+            _position = HEADER_SIZE;
+        }
+
+        void writeVarint(long value) {
+
+            while ((value & ~0x7FL) != 0) {
+                _bytes[_position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _bytes[_position++] = (byte) value;
+        }
+
+        /** Writes the varint with exactly <code>size</code> bytes, using continuation bits as padding. */
+        void writePaddedVarint(long value, int size) {
+
+            for (int i = 1; i < size; i++) {
+                _bytes[_position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _bytes[_position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                _bytes[_position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+
+            System.arraycopy(bytes, 0, _bytes, _position, bytes.length);
+            _position += bytes.length;
+        }
+
+        /** Writes the string with its UTF-8 length, without an intermediate byte array. */
+        void writeString(String text, int utf8Length) {
+
+            writeVarint(utf8Length);
+
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    _bytes[_position++] = (byte) c;
+                } else if (c < 0x800) {
+                    _bytes[_position++] = (byte) (0xC0 | (c >> 6));
+                    _bytes[_position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (!Character.isSurrogate(c)) {
+                    _bytes[_position++] = (byte) (0xE0 | (c >> 12));
+                    _bytes[_position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    _bytes[_position++] = (byte) (0x80 | (c & 0x3F));
+                } else if (isSurrogatePair(text, i)) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    _bytes[_position++] = (byte) (0xF0 | (codePoint >> 18));
+                    _bytes[_position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    _bytes[_position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    _bytes[_position++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    _bytes[_position++] = '?';
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            return _bytes;
+        }
+    }
+
+    /** Reads the body of a frame, every read is checked against the frame size. */
+    static final class Reader {
+
+        private final byte[] _bytes;
+        private int _position = HEADER_SIZE;
+
+        Reader(byte[] bytes) {
+            _bytes = bytes;
+        }
+
+        long readVarint() throws ProtocolException {
+
+            long value = 0;
+            for (int shift = 0; shift < 63; shift += 7) {
+
+                if (_position >= _bytes.length) {
+                    throw new ProtocolException("Truncated varint");
+                }
+
+                byte b = _bytes[_position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new ProtocolException("Varint too long");
+        }
+
+        String readString() throws ProtocolException {
+
+            long length = readVarint();
+            if (length > _bytes.length - _position) {
+                throw new ProtocolException("Truncated string");
+            }
+
+            String text = new String(_bytes, _position, (int) length, StandardCharsets.UTF_8);
+            _position += (int) length;
+            return text;
+        }
+
+        long readLong() throws ProtocolException {
+
+            if (Long.BYTES > _bytes.length - _position) {
+                throw new ProtocolException("Truncated long");
+            }
+
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                value = (value << 8) | (_bytes[_position++] & 0xFF);
+            }
+            return value;
+        }
+
+        byte[] readBytes(int length) throws ProtocolException {
+
+            if (length > _bytes.length - _position) {
+                throw new ProtocolException("Truncated bytes");
+            }
+
+            byte[] bytes = new byte[length];
+            System.arraycopy(_bytes, _position, bytes, 0, length);
+            _position += length;
+            return bytes;
+        }
+
+        boolean hasRemaining() {
+            return _position < _bytes.length;
+        }
+
+        void expectEnd() throws ProtocolException {
+
+            if (_position != _bytes.length) {
+                throw new ProtocolException("Unexpected " + (_bytes.length - _position) + " trailing byte(s)");
+            }
+        }
+    }
+}
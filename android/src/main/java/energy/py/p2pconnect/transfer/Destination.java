@@ -0,0 +1,37 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where a {@link ReceiverSession} puts the received resources, each one as soon
+ * as it's verified, before the sender is told they all arrived. By default they
+ * stay in the cache directory under a random name, a resource that can't be
+ * placed stays there as well.
+ *
+ * Resources placed elsewhere belong to the app, they are neither resumed nor
+ * found by their content hash by later transfers.
+ */
+public interface Destination {
+
+    /** What happens if the destination has a file with the name of a resource already. */
+    enum Collision {
+        /** The resource gets a name not taken yet, like <code>photo (1).jpg</code>. */
+        RENAME,
+        /** The existing file is replaced. */
+        REPLACE,
+        /** The existing file is kept and reported as the resource, the received one is dropped. */
+        KEEP
+    }
+
+    /**
+     * Moves a received resource to the destination, named after its id.
+     * Called on an I/O thread, one resource after the other.
+     *
+     * @param id the id of the resource
+     * @param file the verified resource in the cache directory, moved or deleted afterwards,
+     *             left there if placing it fails
+     * @return the URI of the resource at the destination
+     */
+    String place(String id, File file) throws IOException;
+}
@@ -0,0 +1,87 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Puts the received resources into a directory, named after their ids.
+ *
+ * A resource is renamed into the directory if it's on the same file system as
+ * the cache directory, so its content is written only once. Otherwise it's
+ * copied and synced to the storage.
+ */
+public class DirectoryDestination implements Destination {
+
+    private static final String TAG = "P2PConnect/DirectoryDestination";
+
+    /** The characters not allowed in file names on Android's file systems. */
+    private static final String RESERVED = "/\\:*?\"<>|";
+
+    private final File _directory;
+    private final Collision _collision;
+
+    public DirectoryDestination(File directory, Collision collision) {
+
+        _directory = directory;
+        _collision = collision;
+    }
+
+    @Override
+    public String place(String id, File file) throws IOException {
+
+        if (!_directory.isDirectory() && !_directory.mkdirs()) {
+            throw new IOException("Can't create " + _directory.getAbsolutePath());
+        }
+
+        File target = new File(_directory, fileName(id));
+        if (target.exists()) {
+
+            switch (_collision) {
+                case KEEP:
+                    TransferLog.i(TAG, "Keeping existing " + target.getAbsolutePath());
+                    file.delete();
+                    return "file://" + target.getAbsolutePath();
+                case RENAME:
+                    target = unusedFile(target);
+                    break;
+                case REPLACE:
+                    break;
+            }
+        }
+
+        if (!file.renameTo(target)) {
+            ReceivedFileMover.copyFile(file, target);
+            ReceivedFileMover.sync(target);
+            file.delete();
+        }
+        return "file://" + target.getAbsolutePath();
+    }
+
+    /** @return <code>name (n).ext</code> with the lowest n not taken */
+    private static File unusedFile(File file) {
+
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+
+        File unused = file;
+        for (int i = 1; unused.exists(); i++) {
+            unused = new File(file.getParentFile(), base + " (" + i + ")" + extension);
+        }
+        return unused;
+    }
+
+    /** @return a file name for the resource id, with reserved characters replaced by <code>_</code> */
+    public static String fileName(String id) {
+
+        StringBuilder name = new StringBuilder(id.length());
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            name.append(c < ' ' || RESERVED.indexOf(c) >= 0 ? '_' : c);
+        }
+
+        String result = name.toString().trim();
+        return result.isEmpty() || result.equals(".") || result.equals("..") ? "resource" : result;
+    }
+}
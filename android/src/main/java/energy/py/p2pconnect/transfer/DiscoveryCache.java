@@ -0,0 +1,134 @@
+package energy.py.p2pconnect.transfer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The endpoints discovered recently, so they can be shown as soon as browsing
+ * starts instead of after the first seconds of a cold discovery.
+ *
+ * Entries are kept in the order they were found and evicted once they weren't
+ * seen for the time to live. Every discovery marks all entries stale until it
+ * finds them again, a stale endpoint may be gone or advertise under a new id.
+ * Must be used on the listener thread of the transport.
+ */
+public final class DiscoveryCache {
+
+    /** Colleagues come and go within minutes. */
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+    public static final class Entry {
+
+        private final String _endpointId;
+        private final String _name;
+        private long _lastSeen;
+        private boolean _stale;
+
+        private Entry(String endpointId, String name) {
+
+            _endpointId = endpointId;
+            _name = name;
+        }
+
+        public String getEndpointId() {
+            return _endpointId;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        /** @return <code>true</code> if the current discovery didn't find the endpoint yet */
+        public boolean isStale() {
+            return _stale;
+        }
+    }
+
+    private final long _ttlNanos;
+    private final TransferStats.Clock _clock;
+    /** The entries by endpoint id, in the order they were found. */
+    private final Map<String, Entry> _entries = new LinkedHashMap<>();
+
+    public DiscoveryCache(long ttlMillis) {
+        this(ttlMillis, System::nanoTime);
+    }
+
+    DiscoveryCache(long ttlMillis, TransferStats.Clock clock) {
+
+        _ttlNanos = ttlMillis * 1_000_000;
+        _clock = clock;
+    }
+
+    /**
+     * A discovery starts, all entries are stale until it finds them.
+     *
+     * @return the entries not expired, oldest first
+     */
+    public List<Entry> startDiscovery() {
+
+        evictExpired();
+        for (Entry entry : _entries.values()) {
+            entry._stale = true;
+        }
+        return new ArrayList<>(_entries.values());
+    }
+
+    /**
+     * The discovery found an endpoint. A stale entry with the same name is
+     * replaced, the receiver advertises under a new id after a restart.
+     *
+     * @return the stale entry replaced, <code>null</code> if none
+     */
+    public Entry found(String endpointId, String name) {
+
+        Entry replaced = null;
+        if (!_entries.containsKey(endpointId) && name != null) {
+            for (Iterator<Entry> it = _entries.values().iterator(); it.hasNext(); ) {
+
+                Entry entry = it.next();
+                if (entry._stale && name.equals(entry._name)) {
+                    it.remove();
+                    replaced = entry;
+                    break;
+                }
+            }
+        }
+
+        Entry entry = _entries.get(endpointId);
+        if (entry == null || (name != null && !name.equals(entry._name))) {
+            entry = new Entry(endpointId, name);
+            _entries.put(endpointId, entry);
+        }
+        entry._lastSeen = _clock.nanoTime();
+        entry._stale = false;
+        return replaced;
+    }
+
+    /** @return the entry of the endpoint, <code>null</code> if unknown */
+    public Entry lost(String endpointId) {
+        return _entries.remove(endpointId);
+    }
+
+    /** @return the entry of the endpoint, <code>null</code> if unknown */
+    public Entry get(String endpointId) {
+        return _entries.get(endpointId);
+    }
+
+    public int size() {
+        return _entries.size();
+    }
+
+    private void evictExpired() {
+
+        long now = _clock.nanoTime();
+        // found() doesn't reorder, the oldest entries aren't necessarily first
+        for (Iterator<Entry> it = _entries.values().iterator(); it.hasNext(); ) {
+            if (now - it.next()._lastSeen >= _ttlNanos) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Remembers the progress of a transfer on the receiver's disk, so an interrupted
+ * transfer with the same id can be resumed.
+ *
+ * There's one journal file per transfer id. It only grows by lines:
+ * <pre>
+ * manifest &lt;fingerprint of ids, sizes and hashes&gt;
+ * done &lt;index&gt; &lt;file name&gt;
+ * part &lt;index&gt; &lt;file name&gt;
+ * </pre>
+ * File names are relative to the cache directory, the last line of a resource wins.
+ * A lost last line only means that a resource is transferred again.
+ */
+final class Journal {
+
+    private static final String TAG = "P2PConnect/Journal";
+
+    /** Journals of transfers which were never resumed are deleted after a week. */
+    static final long MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private final File _file;
+    private final File _cacheDir;
+    private final String _fingerprint;
+
+    private final String[] _done;
+    private final String[] _partial;
+
+    private Journal(File file, File cacheDir, String fingerprint, int count) {
+
+        _file = file;
+        _cacheDir = cacheDir;
+        _fingerprint = fingerprint;
+        _done = new String[count];
+        _partial = new String[count];
+    }
+
+    /**
+     * Opens the journal of the manifest's transfer. The entries of an existing journal
+     * are only used if it was written for the same resources, otherwise the journal and
+     * its files are deleted.
+     */
+    static Journal open(File journalDir, File cacheDir, Manifest manifest) {
+
+        deleteExpired(journalDir, cacheDir, System.currentTimeMillis() - MAX_AGE_MILLIS);
+
+        File file = new File(journalDir, ContentHash.hex(ContentHash.of(manifest.transferId)) + ".journal");
+        Journal journal = new Journal(file, cacheDir, fingerprint(manifest), manifest.size());
+
+        if (file.isFile()) {
+            try {
+                if (!journal.read()) {
+                    TransferLog.i(TAG, "Discarding journal of transfer with other resources");
+                    journal.delete();
+                }
+            } catch (IOException ex) {
+                TransferLog.w(TAG, "Failed reading journal, discarding it", ex);
+                journal.delete();
+            }
+        }
+
+        return journal;
+    }
+
+    /** @return false if the journal belongs to another manifest */
+    private boolean read() throws IOException {
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(_file), StandardCharsets.UTF_8))) {
+
+            String line = reader.readLine();
+            if (line == null || !line.equals("manifest " + _fingerprint)) {
+                return false;
+            }
+
+            while ((line = reader.readLine()) != null) {
+
+                String[] parts = line.split(" ", 3);
+                if (parts.length != 3) continue; // truncated line
+
+                int index;
+                try {
+                    index = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+                if (index < 0 || index >= _done.length) continue;
+
+                if (parts[0].equals("done")) {
+                    _done[index] = parts[2];
+                    _partial[index] = null;
+                } else if (parts[0].equals("part")) {
+                    _partial[index] = parts[2];
+                }
+            }
+        }
+        return true;
+    }
+
+    /** @return the file of the completed resource or null */
+    File getCompletedFile(int index) {
+        return existing(_done[index]);
+    }
+
+    /** @return the file with the first bytes of the resource or null */
+    File getPartialFile(int index) {
+        return existing(_partial[index]);
+    }
+
+    private File existing(String name) {
+
+        if (name == null) return null;
+
+        File file = new File(_cacheDir, name);
+        return file.isFile() ? file : null;
+    }
+
+    void recordDone(int index, File file) {
+
+        _done[index] = file.getName();
+        _partial[index] = null;
+        append("done " + index + " " + file.getName());
+    }
+
+    void recordPartial(int index, File file) {
+
+        _partial[index] = file.getName();
+        append("part " + index + " " + file.getName());
+    }
+
+    private void append(String line) {
+
+        try {
+            boolean create = !_file.exists();
+            if (create) {
+                _file.getParentFile().mkdirs();
+            }
+
+            try (OutputStream out = new FileOutputStream(_file, true)) {
+                if (create) {
+                    out.write(("manifest " + _fingerprint + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException ex) {
+            // the transfer works without journal, it just can't be resumed
+            TransferLog.w(TAG, "Failed writing journal", ex);
+        }
+    }
+
+    /** Deletes the journal, the completed files are kept. Called when the transfer finished. */
+    void finish() {
+        _file.delete();
+    }
+
+    /** Deletes the journal and all files it refers to. */
+    void delete() {
+
+        for (int i = 0; i < _done.length; i++) {
+            deleteFile(_done[i]);
+            deleteFile(_partial[i]);
+            _done[i] = null;
+            _partial[i] = null;
+        }
+        _file.delete();
+    }
+
+    private void deleteFile(String name) {
+        if (name != null) {
+            new File(_cacheDir, name).delete();
+        }
+    }
+
+    private static void deleteExpired(File journalDir, File cacheDir, long olderThan) {
+
+        File[] files = journalDir.listFiles((dir, name) -> name.endsWith(".journal"));
+        if (files == null) return;
+
+        for (File file : files) {
+
+            if (file.lastModified() >= olderThan) continue;
+
+            TransferLog.i(TAG, "Deleting expired journal " + file.getName());
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ", 3);
+                    if (parts.length == 3 && !parts[0].equals("manifest")) {
+                        new File(cacheDir, parts[2]).delete();
+                    }
+                }
+            } catch (IOException ex) {
+                TransferLog.w(TAG, "Failed reading expired journal", ex);
+            }
+            file.delete();
+        }
+    }
+
+    private static String fingerprint(Manifest manifest) {
+
+        StringBuilder content = new StringBuilder();
+        content.append(manifest.size());
+        for (int i = 0; i < manifest.size(); i++) {
+            byte[] hash = manifest.hashes[i];
+            content.append('\n').append(manifest.sizes[i]).append(' ').append(hash != null ? ContentHash.hex(hash) : "-")
+                    .append(' ').append(manifest.ids[i]);
+        }
+        return ContentHash.hex(ContentHash.of(content.toString()));
+    }
+}
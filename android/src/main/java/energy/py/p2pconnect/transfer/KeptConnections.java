@@ -0,0 +1,215 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Connections kept open after a transfer, so the next transfer with the same
+ * endpoint starts with its manifest instead of discovery, connection and version
+ * check. Needs protocol version {@link Protocol#KEEP_ALIVE_VERSION} on both sides.
+ *
+ * While a connection is idle, it listens to its transport: it's dropped when the
+ * peer disconnects and handed over when the peer starts the next transfer. The
+ * side keeping it with an idle time disconnects once the time is over.
+ * Must be used on the listener thread of the transports.
+ */
+public final class KeptConnections {
+
+    private static final String TAG = "P2PConnect/KeptConnections";
+
+    public interface Listener {
+
+        /**
+         * The peer started the next transfer on an idle connection, the connection isn't
+         * kept anymore. The bytes are the first control message, for the new session.
+         */
+        void onNextTransfer(Connection connection, byte[] bytes);
+
+        /** The connection was closed by the peer, after its idle time or by {@link #close(String)}. */
+        void onClosed(Connection connection);
+    }
+
+    public static final class Connection implements Transport.Listener {
+
+        private final KeptConnections _owner;
+        private final Transport _transport;
+        private final String _endpointId;
+        private final String _name;
+        private final int _version;
+
+        private Connection(KeptConnections owner, Transport transport, String endpointId, String name,
+                           int version) {
+
+            _owner = owner;
+            _transport = transport;
+            _endpointId = endpointId;
+            _name = name;
+            _version = version;
+        }
+
+        public Transport getTransport() {
+            return _transport;
+        }
+
+        public String getEndpointId() {
+            return _endpointId;
+        }
+
+        /** @return the name of the peer, null if unknown */
+        public String getName() {
+            return _name;
+        }
+
+        /** @return the protocol version negotiated by the first session */
+        public int getProtocolVersion() {
+            return _version;
+        }
+
+        private boolean isKept() {
+            return _owner._connections.get(_endpointId) == this;
+        }
+
+        @Override
+        public void onBytesReceived(String endpointId, byte[] bytes) {
+
+            if (!isKept()) return;
+
+            if (ControlMessage.isHeartbeat(bytes)) {
+                // late heartbeat of the last transfer, not the start of the next one
+                TransferLog.d(TAG, "Ignoring heartbeat on idle connection to '" + _endpointId + "'");
+                return;
+            }
+
+            _owner._connections.remove(_endpointId);
+            TransferLog.i(TAG, "Next transfer on the connection to '" + _endpointId + "'");
+            if (_owner._listener != null) {
+                _owner._listener.onNextTransfer(this, bytes);
+            }
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long payloadId, ReceivedFile file) {
+
+            TransferLog.w(TAG, "Ignoring file payload " + payloadId + " on idle connection");
+            file.delete();
+        }
+
+        @Override
+        public void onStreamReceived(String endpointId, long payloadId, InputStream stream) {
+
+            TransferLog.w(TAG, "Ignoring stream payload " + payloadId + " on idle connection");
+            _transport.cancel(payloadId);
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                // nothing to do
+            }
+        }
+
+        @Override
+        public void onTransferUpdate(String endpointId, TransferUpdate update) {
+            // updates of the control messages
+        }
+
+        @Override
+        public void onBandwidthChanged(String endpointId, Transport.Bandwidth bandwidth) {
+            // the transport reports it to the next session
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+
+            if (!isKept()) return;
+
+            TransferLog.i(TAG, "Kept connection to '" + _endpointId + "' closed by the peer");
+            _owner._connections.remove(_endpointId);
+            if (_owner._listener != null) {
+                _owner._listener.onClosed(this);
+            }
+        }
+    }
+
+    private final Scheduler _scheduler;
+    private Listener _listener;
+    /** The idle connections by endpoint id. */
+    private final Map<String, Connection> _connections = new LinkedHashMap<>();
+
+    public KeptConnections(Scheduler scheduler) {
+        _scheduler = scheduler;
+    }
+
+    public void setListener(Listener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Keeps the connection of a finished session open, it becomes the listener of the transport.
+     *
+     * @param name the name of the peer, null if unknown
+     * @param version the protocol version negotiated by the session
+     * @param idleMillis the time until the connection is closed, 0 to wait for the peer
+     */
+    public void keep(Transport transport, String endpointId, String name, int version, long idleMillis) {
+
+        if (version < Protocol.KEEP_ALIVE_VERSION) {
+            throw new IllegalArgumentException("Protocol version " + version + " can't keep connections");
+        }
+
+        Connection connection = new Connection(this, transport, endpointId, name, version);
+        _connections.put(endpointId, connection);
+        transport.setListener(connection);
+
+        if (idleMillis > 0) {
+            TransferLog.i(TAG, "Keeping the connection to '" + endpointId + "' for " + idleMillis + " ms");
+            _scheduler.schedule(() -> {
+                if (connection.isKept()) {
+                    TransferLog.i(TAG, "Connection to '" + endpointId + "' idle for " + idleMillis + " ms");
+                    close(endpointId);
+                }
+            }, idleMillis);
+        }
+    }
+
+    /** @return the idle connection or null */
+    public Connection get(String endpointId) {
+        return _connections.get(endpointId);
+    }
+
+    /** @return the idle connections in the order they were kept */
+    public List<Connection> getAll() {
+        return new ArrayList<>(_connections.values());
+    }
+
+    /**
+     * Takes the idle connection for the next session, which must become the listener of its transport.
+     *
+     * @return the connection or null if it isn't kept
+     */
+    public Connection take(String endpointId) {
+        return _connections.remove(endpointId);
+    }
+
+    /** Disconnects the idle connection, if kept. */
+    public void close(String endpointId) {
+
+        Connection connection = _connections.remove(endpointId);
+        if (connection == null) return;
+
+        connection._transport.disconnect(endpointId);
+        if (_listener != null) {
+            _listener.onClosed(connection);
+        }
+    }
+
+    /** Disconnects all idle connections. */
+    public void closeAll() {
+
+        for (Connection connection : getAll()) {
+            close(connection.getEndpointId());
+        }
+    }
+}
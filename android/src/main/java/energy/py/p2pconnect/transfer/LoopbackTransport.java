@@ -0,0 +1,509 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Transport} connecting two peers inside the same process.
+ *
+ * Bandwidth and latency of the link can be configured, so complete transfers
+ * can be measured and tested on a plain JVM. Both directions are simulated
+ * independently: control messages are sent before file data, concurrent file
+ * and stream payloads share the bandwidth chunk by chunk.
+ *
+ * Like with Nearby, all listener callbacks of one side are called on the same thread.
+ */
+public class LoopbackTransport implements Transport {
+
+    private static final String TAG = "P2PConnect/Loopback";
+
+    /** Unit of bandwidth sharing and progress reporting. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int PIPE_SIZE = 4 * CHUNK_SIZE;
+
+    private static final AtomicLong _nextPayloadId = new AtomicLong(1);
+
+    private final String _endpointId;
+    private volatile long _bytesPerSecond;
+    private final long _latencyMillis;
+    private final File _spoolDir;
+
+    private final ScheduledExecutorService _callbackExecutor;
+    private final Link _link;
+
+    private LoopbackTransport _peer;
+    private volatile Listener _listener;
+    private volatile boolean _connected = true;
+    /** The link doesn't change its medium unless {@link #setBandwidth} is called. */
+    private volatile Bandwidth _bandwidth = Bandwidth.HIGH;
+
+    /**
+     * Creates two connected transports.
+     *
+     * @param bytesPerSecond bandwidth of each direction, 0 for unlimited
+     * @param latencyMillis one way delay of every message and chunk
+     * @param spoolDir the directory to store received files in
+     * @return the transports of both peers. The endpoint id of the other side is
+     *         returned by {@link #getPeerEndpointId()}.
+     */
+    public static LoopbackTransport[] createPair(long bytesPerSecond, long latencyMillis, File spoolDir) {
+
+        LoopbackTransport first = new LoopbackTransport("loopback-1", bytesPerSecond, latencyMillis, spoolDir);
+        LoopbackTransport second = new LoopbackTransport("loopback-2", bytesPerSecond, latencyMillis, spoolDir);
+
+        first._peer = second;
+        second._peer = first;
+
+        first._link.start();
+        second._link.start();
+
+        return new LoopbackTransport[] { first, second };
+    }
+
+    private LoopbackTransport(String endpointId, long bytesPerSecond, long latencyMillis, File spoolDir) {
+
+        _endpointId = endpointId;
+        _bytesPerSecond = bytesPerSecond;
+        _latencyMillis = latencyMillis;
+        _spoolDir = spoolDir;
+
+        _callbackExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, endpointId + "-callbacks");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _link = new Link();
+    }
+
+    /** @return the id under which the peer knows this side. */
+    public String getEndpointId() {
+        return _endpointId;
+    }
+
+    /** @return the id to address the peer with. */
+    public String getPeerEndpointId() {
+        return _peer._endpointId;
+    }
+
+    /** Stops the threads of this side. */
+    public void shutdown() {
+
+        _connected = false;
+        _link.interrupt();
+        _callbackExecutor.shutdownNow();
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        _listener = listener;
+    }
+
+    @Override
+    public Bandwidth getBandwidth(String endpointId) {
+        return _bandwidth;
+    }
+
+    /**
+     * Moves the link of both sides to another medium and reports it to both listeners,
+     * like Nearby does when it upgrades from Bluetooth to Wi-Fi.
+     *
+     * @param bytesPerSecond the new bandwidth of each direction, 0 for unlimited
+     */
+    public void setBandwidth(Bandwidth bandwidth, long bytesPerSecond) {
+
+        _bandwidth = bandwidth;
+        _peer._bandwidth = bandwidth;
+        _bytesPerSecond = bytesPerSecond;
+        _peer._bytesPerSecond = bytesPerSecond;
+
+        dispatch(0, l -> l.onBandwidthChanged(_peer._endpointId, bandwidth));
+        _peer.dispatch(0, l -> l.onBandwidthChanged(_endpointId, bandwidth));
+    }
+
+    /** Runs the callback on this side's callback thread. */
+    private void dispatch(long delayMillis, ListenerCall call) {
+
+        if (_callbackExecutor.isShutdown()) return;
+
+        _callbackExecutor.schedule(() -> {
+            Listener listener = _listener;
+            if (listener != null) {
+                call.run(listener);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private interface ListenerCall {
+        void run(Listener listener);
+    }
+
+    private boolean checkEndpoint(String endpointId) {
+
+        if (!_connected || !_peer._endpointId.equals(endpointId)) {
+            TransferLog.w(TAG, "Endpoint '" + endpointId + "' is not connected");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void sendBytes(String endpointId, byte[] bytes) {
+
+        if (!checkEndpoint(endpointId)) return;
+
+        _link.enqueue(new Outgoing(_nextPayloadId.getAndIncrement(), bytes));
+    }
+
+    private static File toFile(String uri) {
+        return uri.startsWith("file:") ? new File(URI.create(uri)) : new File(uri);
+    }
+
+    @Override
+    public long getSize(String uri) {
+
+        File file = toFile(uri);
+        return file.isFile() ? file.length() : -1;
+    }
+
+    @Override
+    public InputStream openInputStream(String uri) throws IOException {
+        return new FileInputStream(toFile(uri));
+    }
+
+    @Override
+    public void runOnListenerThread(Runnable task) {
+
+        if (_callbackExecutor.isShutdown()) return;
+        _callbackExecutor.execute(task);
+    }
+
+    @Override
+    public long sendFile(String endpointId, String uri) throws IOException {
+
+        File file = toFile(uri);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(uri);
+        }
+
+        long payloadId = _nextPayloadId.getAndIncrement();
+        if (checkEndpoint(endpointId)) {
+            _link.enqueue(new Outgoing(payloadId, new FileInputStream(file), file.length(), true));
+        }
+        return payloadId;
+    }
+
+    @Override
+    public long sendStream(String endpointId, InputStream stream) {
+
+        long payloadId = _nextPayloadId.getAndIncrement();
+        if (checkEndpoint(endpointId)) {
+            _link.enqueue(new Outgoing(payloadId, stream, -1, false));
+        }
+        return payloadId;
+    }
+
+    @Override
+    public void cancel(long payloadId) {
+        _link.cancel(payloadId);
+    }
+
+    @Override
+    public void disconnect(String endpointId) {
+
+        if (!checkEndpoint(endpointId)) return;
+
+        TransferLog.i(TAG, "Disconnecting " + _endpointId + " from " + endpointId);
+
+        _connected = false;
+        _peer._connected = false;
+        _link.cancelAll();
+        _peer._link.cancelAll();
+
+        // like Nearby only the remote side is notified
+        _peer.dispatch(_latencyMillis, l -> l.onDisconnected(_endpointId));
+    }
+
+    private static class LoopbackFile implements ReceivedFile {
+
+        private final File _file;
+
+        LoopbackFile(File file) {
+            _file = file;
+        }
+
+        @Override
+        public String getUri() {
+            return _file.toURI().toString();
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return new FileInputStream(_file);
+        }
+
+        @Override
+        public File getFile() {
+            return _file;
+        }
+
+        @Override
+        public FileChannel openChannel() throws IOException {
+            return FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+        }
+
+        @Override
+        public void delete() {
+            _file.delete();
+        }
+    }
+
+    /** A payload on its way to the peer. */
+    private class Outgoing {
+
+        final long payloadId;
+        final byte[] bytes;
+        final InputStream source;
+        final long totalBytes;
+        final boolean isFile;
+
+        long transferred;
+        OutputStream sink;
+        /** Set while the link thread works on the payload, see {@link Link#cancel(long)}. */
+        volatile TransferUpdate.Status canceled;
+
+        Outgoing(long payloadId, byte[] bytes) {
+
+            this.payloadId = payloadId;
+            this.bytes = bytes;
+            this.source = null;
+            this.totalBytes = bytes.length;
+            this.isFile = false;
+        }
+
+        Outgoing(long payloadId, InputStream source, long totalBytes, boolean isFile) {
+
+            this.payloadId = payloadId;
+            this.bytes = null;
+            this.source = source;
+            this.totalBytes = totalBytes;
+            this.isFile = isFile;
+        }
+
+        /** Delivers the next chunk to the peer. @return the number of bytes sent, -1 when done */
+        int transferChunk(byte[] buffer) throws IOException {
+
+            if (sink == null) {
+                open();
+            }
+
+            int read = source.read(buffer);
+            if (read < 0) {
+                source.close();
+                sink.close();
+                return -1;
+            }
+
+            sink.write(buffer, 0, read);
+            if (!isFile) {
+                sink.flush();
+            }
+            transferred += read;
+            return read;
+        }
+
+        private void open() throws IOException {
+
+            if (isFile) {
+                File file = new File(_spoolDir, "loopback-" + payloadId);
+                sink = new FileOutputStream(file);
+                ReceivedFile receivedFile = new LoopbackFile(file);
+                _peer.dispatch(_latencyMillis, l -> l.onFileReceived(_endpointId, payloadId, receivedFile));
+            } else {
+                PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+                sink = new PipedOutputStream(in);
+                _peer.dispatch(_latencyMillis, l -> l.onStreamReceived(_endpointId, payloadId, in));
+            }
+        }
+
+        void close() {
+
+            try {
+                if (source != null) source.close();
+                if (sink != null) sink.close();
+            } catch (IOException ex) {
+                TransferLog.w(TAG, "Failed closing payload " + payloadId, ex);
+            }
+        }
+    }
+
+    /** The sending direction of this side, simulating bandwidth and latency. */
+    private class Link extends Thread {
+
+        private final Deque<Outgoing> _messages = new ArrayDeque<>();
+        private final Deque<Outgoing> _transfers = new ArrayDeque<>();
+        private final byte[] _buffer = new byte[CHUNK_SIZE];
+
+        private Outgoing _current;
+        private long _nextSendNanos;
+
+        Link() {
+            super(_endpointId + "-link");
+            setDaemon(true);
+        }
+
+        synchronized void enqueue(Outgoing outgoing) {
+
+            if (outgoing.bytes != null) {
+                _messages.add(outgoing);
+            } else {
+                _transfers.add(outgoing);
+            }
+            notifyAll();
+        }
+
+        synchronized void cancel(long payloadId) {
+
+            if (_current != null && _current.payloadId == payloadId) {
+                _current.canceled = TransferUpdate.Status.CANCELED;
+                return;
+            }
+
+            for (Outgoing outgoing : _transfers) {
+                if (outgoing.payloadId == payloadId) {
+                    _transfers.remove(outgoing);
+                    outgoing.close();
+                    update(outgoing, TransferUpdate.Status.CANCELED);
+                    return;
+                }
+            }
+        }
+
+        synchronized void cancelAll() {
+
+            _messages.clear();
+            if (_current != null) {
+                // closed by the link thread, nobody is interested in an update
+                _current.canceled = TransferUpdate.Status.FAILURE;
+            }
+            for (Outgoing outgoing : _transfers) {
+                outgoing.close();
+            }
+            _transfers.clear();
+        }
+
+        private synchronized Outgoing next() throws InterruptedException {
+
+            while (_messages.isEmpty() && _transfers.isEmpty()) {
+                wait();
+            }
+
+            if (!_messages.isEmpty()) {
+                _current = _messages.poll();
+            } else {
+                // round robin between concurrent payloads
+                _current = _transfers.poll();
+            }
+            return _current;
+        }
+
+        /** @return false if the payload was cancelled while it was transferred */
+        private synchronized boolean requeue(Outgoing outgoing) {
+
+            _current = null;
+            if (outgoing.canceled != null) {
+                return false;
+            }
+            _transfers.add(outgoing);
+            return true;
+        }
+
+        private void throttle(int bytes) throws InterruptedException {
+
+            long bytesPerSecond = _bytesPerSecond;
+            if (bytesPerSecond <= 0) return;
+
+            long now = System.nanoTime();
+            if (_nextSendNanos < now) {
+                _nextSendNanos = now;
+            }
+            _nextSendNanos += bytes * 1_000_000_000L / bytesPerSecond;
+
+            long waitNanos = _nextSendNanos - now;
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+
+        private void update(Outgoing outgoing, TransferUpdate.Status status) {
+
+            TransferUpdate update = new TransferUpdate(outgoing.payloadId, status,
+                    outgoing.transferred, outgoing.totalBytes);
+
+            // the sender learns about success only when the receiver acknowledged the last chunk
+            long delayMillis = status == TransferUpdate.Status.SUCCESS ? 2 * _latencyMillis : 0;
+            dispatch(delayMillis, l -> l.onTransferUpdate(_peer._endpointId, update));
+            _peer.dispatch(_latencyMillis, l -> l.onTransferUpdate(_endpointId, update));
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                while (!isInterrupted()) {
+
+                    Outgoing outgoing = next();
+
+                    if (outgoing.bytes != null) {
+
+                        throttle(outgoing.bytes.length);
+                        byte[] bytes = outgoing.bytes;
+                        _peer.dispatch(_latencyMillis, l -> l.onBytesReceived(_endpointId, bytes));
+                        continue;
+                    }
+
+                    int sent;
+                    try {
+                        sent = outgoing.transferChunk(_buffer);
+                    } catch (IOException ex) {
+                        TransferLog.w(TAG, "Payload " + outgoing.payloadId + " failed", ex);
+                        outgoing.close();
+                        update(outgoing, TransferUpdate.Status.FAILURE);
+                        continue;
+                    }
+
+                    if (sent < 0) {
+                        update(outgoing, TransferUpdate.Status.SUCCESS);
+                    } else {
+                        throttle(sent);
+                        if (requeue(outgoing)) {
+                            update(outgoing, TransferUpdate.Status.IN_PROGRESS);
+                        } else {
+                            outgoing.close();
+                            if (outgoing.canceled == TransferUpdate.Status.CANCELED) {
+                                update(outgoing, TransferUpdate.Status.CANCELED);
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // shutdown
+            }
+        }
+    }
+}
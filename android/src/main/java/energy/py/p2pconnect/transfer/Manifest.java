@@ -0,0 +1,65 @@
+package energy.py.p2pconnect.transfer;
+
+import java.net.ProtocolException;
+
+/**
+ * Everything the receiver needs to know about a transfer before accepting it:
+ * the transfer id and id, size and (optional) content hash of every resource.
+ *
+ * The sender sends it right after the version check without waiting for an answer.
+ * Large manifests are split into several frames, see
+ * {@link ControlMessage#encodeManifest(int, Manifest, int)}.
+ */
+final class Manifest {
+
+    /** Longest supported content hash (SHA-512). */
+    static final int MAX_HASH_LENGTH = 64;
+
+    final String transferId;
+    final String[] ids;
+    /** Sizes in bytes, -1 if unknown. */
+    final long[] sizes;
+    /** Content hashes, entries are null if unknown. */
+    final byte[][] hashes;
+
+    /** Number of entries received so far. */
+    private int _received;
+
+    Manifest(String transferId, int count) {
+
+        this.transferId = transferId;
+        ids = new String[count];
+        sizes = new long[count];
+        hashes = new byte[count][];
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    boolean isComplete() {
+        return _received == ids.length;
+    }
+
+    /**
+     * Adds the entries of a received manifest frame.
+     *
+     * @throws ProtocolException if the frame doesn't continue this manifest
+     */
+    void addPart(ControlMessage message) throws ProtocolException {
+
+        if (!transferId.equals(message.text) || message.value != ids.length) {
+            throw new ProtocolException("Manifest part of another transfer");
+        }
+        if (message.offset != _received || message.ids.length > ids.length - _received) {
+            throw new ProtocolException("Unexpected manifest part at " + message.offset
+                    + " (expected " + _received + ")");
+        }
+
+        int count = message.ids.length;
+        System.arraycopy(message.ids, 0, ids, _received, count);
+        System.arraycopy(message.sizes, 0, sizes, _received, count);
+        System.arraycopy(message.hashes, 0, hashes, _received, count);
+        _received += count;
+    }
+}
@@ -0,0 +1,86 @@
+package energy.py.p2pconnect.transfer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Reports the progress of running transfers at a bounded rate, for the
+ * <code>transferProgress</code> event.
+ *
+ * The stats of each transfer are reported once per interval if the bytes
+ * transferred or the throughput changed, and once more when the transfer finished.
+ * Must be used on the listener thread of the transport.
+ */
+public final class ProgressReporter {
+
+    /** Four events per second at most. */
+    public static final long DEFAULT_INTERVAL_MILLIS = 250;
+
+    public interface Listener {
+
+        void onProgress(TransferStats stats);
+    }
+
+    private final Scheduler _scheduler;
+    private final long _intervalMillis;
+    private Listener _listener;
+
+    /** The reported transfers with the bytes transferred and the throughput reported last. */
+    private final Map<TransferStats, long[]> _reported = new IdentityHashMap<>();
+    private boolean _scheduled;
+
+    public ProgressReporter(Scheduler scheduler, long intervalMillis) {
+
+        _scheduler = scheduler;
+        _intervalMillis = intervalMillis;
+    }
+
+    public void setListener(Listener listener) {
+        _listener = listener;
+    }
+
+    /** Reports the transfer until it finished. */
+    public void add(TransferStats stats) {
+
+        _reported.put(stats, new long[] { -1, -1 });
+        if (!_scheduled) {
+            _scheduled = true;
+            _scheduler.schedule(this::report, _intervalMillis);
+        }
+    }
+
+    /** Stops reporting all transfers. */
+    public void clear() {
+        _reported.clear();
+    }
+
+    private void report() {
+
+        _scheduled = false;
+
+        for (TransferStats stats : new ArrayList<>(_reported.keySet())) {
+
+            long[] last = _reported.get(stats);
+            long bytes = stats.getBytesTransferred();
+            long throughput = Math.round(stats.getThroughput());
+
+            if (stats.isFinished()) {
+                _reported.remove(stats);
+            } else if (bytes == last[0] && throughput == last[1]) {
+                continue;
+            }
+
+            last[0] = bytes;
+            last[1] = throughput;
+            if (_listener != null) {
+                _listener.onProgress(stats);
+            }
+        }
+
+        if (!_reported.isEmpty()) {
+            _scheduled = true;
+            _scheduler.schedule(this::report, _intervalMillis);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package energy.py.p2pconnect.transfer;
+
+import energy.py.p2pconnect.ProgressCallback;
+
+/**
+ * Coalesces progress updates, the transport reports progress far more often
+ * than the screen can show it.
+ *
+ * An update is passed on only if it changes what's shown, and at most once per
+ * interval. Updates within the interval are merged and passed on at its end.
+ * The final update (a negative progress) is passed on at once.
+ * Must be used on the listener thread of the transport.
+ */
+public final class ProgressThrottle implements ProgressCallback {
+
+    /** One frame at 60 Hz. */
+    public static final long FRAME_MILLIS = 16;
+
+    private final ProgressCallback _delegate;
+    private final long _intervalNanos;
+    private final Scheduler _scheduler;
+    private final TransferStats.Clock _clock;
+
+    /** What was passed on last. */
+    private String _title;
+    private int _progress = -1;
+    private String _info;
+    private long _lastUpdate;
+    private boolean _updated;
+
+    private boolean _pending;
+    private String _pendingTitle;
+    private int _pendingProgress;
+    private String _pendingInfo;
+    private boolean _flushScheduled;
+
+    public ProgressThrottle(ProgressCallback delegate, long intervalMillis, Scheduler scheduler) {
+        this(delegate, intervalMillis, scheduler, System::nanoTime);
+    }
+
+    ProgressThrottle(ProgressCallback delegate, long intervalMillis, Scheduler scheduler, TransferStats.Clock clock) {
+
+        _delegate = delegate;
+        _intervalNanos = intervalMillis * 1_000_000;
+        _scheduler = scheduler;
+        _clock = clock;
+    }
+
+    @Override
+    public void updateProgress(String title, int progress, String info) {
+
+        if (progress < 0) {
+
+            _pending = false;
+            _updated = false;
+            _title = null;
+            _info = null;
+            _progress = -1;
+            _delegate.updateProgress(title, progress, info);
+            return;
+        }
+
+        // merge with the updates not passed on yet
+        if (_pending) {
+            if (title == null) title = _pendingTitle;
+            if (info == null) info = _pendingInfo;
+        }
+
+        if (_updated && progress == _progress && (title == null || title.equals(_title))
+                && (info == null || info.equals(_info))) {
+
+            _pending = false; // nothing changed
+            return;
+        }
+
+        long now = _clock.nanoTime();
+        if (!_updated || now - _lastUpdate >= _intervalNanos) {
+            pass(title, progress, info, now);
+            return;
+        }
+
+        _pending = true;
+        _pendingTitle = title;
+        _pendingProgress = progress;
+        _pendingInfo = info;
+
+        if (!_flushScheduled) {
+            _flushScheduled = true;
+            long delayNanos = _intervalNanos - (now - _lastUpdate);
+            _scheduler.schedule(this::flush, (delayNanos + 999_999) / 1_000_000);
+        }
+    }
+
+    private void pass(String title, int progress, String info, long now) {
+
+        _pending = false;
+        _updated = true;
+        _lastUpdate = now;
+        _progress = progress;
+        if (title != null) _title = title;
+        if (info != null) _info = info;
+
+        _delegate.updateProgress(title, progress, info);
+    }
+
+    private void flush() {
+
+        _flushScheduled = false;
+        if (_pending) {
+            pass(_pendingTitle, _pendingProgress, _pendingInfo, _clock.nanoTime());
+        }
+    }
+}
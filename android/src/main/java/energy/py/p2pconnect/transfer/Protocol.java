@@ -0,0 +1,60 @@
+package energy.py.p2pconnect.transfer;
+
+/**
+ * Constants of the transfer protocol shared by sender and receiver.
+ *
+ * Version 1 exchanges UTF-8 strings ("ver.1", "tid.&lt;id&gt;", ...) and waits
+ * for an answer after every step and every resource id.
+ * Since version 2 control messages are binary frames, see {@link ControlMessage}.
+ * The sender sends the version check and the complete {@link Manifest} at once,
+ * the receiver answers only once.
+ *
+ * The version check itself is always sent as a version 1 string, so receivers
+ * only knowing version 1 deny it (and ignore the manifest frames) and the sender
+ * falls back to strings.
+ *
+ * Since version 3 the receiver waits for the next manifest after {@link ControlMessage#ALL_DONE}.
+ * The sender may keep the connection open and start the next transfer with its
+ * manifest right away, without checking the version again (see {@link KeptConnections}).
+ * The frames are the same as in version 2.
+ *
+ * Features added without a new version are negotiated: the receiver answers the manifest
+ * with its capabilities, a bit mask of <code>1 &lt;&lt; ENCODING_*</code>, and the sender uses
+ * only the encodings and optional frames listed there. Unknown bits are ignored, so either
+ * side may be older. A change every peer must understand needs a new version.
+ */
+public final class Protocol {
+
+    /** The highest version of the protocol supported by this implementation. */
+    public static final int VERSION = 3;
+
+    /** The string based protocol. */
+    public static final int LEGACY_VERSION = 1;
+
+    /** The first version that can transfer several times over one connection. */
+    public static final int KEEP_ALIVE_VERSION = 3;
+
+    /** Upper limit for the number of resources of one transfer. */
+    public static final int MAX_RESOURCES = 1 << 16;
+
+    /** Upper limit for the size of a control message, as imposed by Nearby for BYTES payloads. */
+    public static final int MAX_FRAME_SIZE = 32 * 1024;
+
+    /** A payload contains the resource unchanged. */
+    static final int ENCODING_IDENTITY = 0;
+    /** A stream payload is compressed with Deflate (zlib format), see {@link Compression}. */
+    static final int ENCODING_DEFLATE = 1;
+    /**
+     * Not an encoding of a payload: the receiver accepts {@link ControlMessage#BUNDLE} frames
+     * and unpacks their stream payloads, see {@link Bundle}.
+     */
+    static final int ENCODING_BUNDLE = 2;
+    /**
+     * Not an encoding of a payload: the receiver answers {@link ControlMessage#HEARTBEAT} frames,
+     * so both sides notice a silent peer long before Nearby does.
+     */
+    static final int ENCODING_HEARTBEAT = 3;
+
+    private Protocol() {
+    }
+}
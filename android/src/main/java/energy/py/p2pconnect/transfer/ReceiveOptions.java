@@ -0,0 +1,60 @@
+package energy.py.p2pconnect.transfer;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import energy.py.p2pconnect.ReceiverState;
+
+/**
+ * Options of a {@link ReceiverSession}, set by the <code>startReceive</code> call.
+ */
+public class ReceiveOptions {
+
+    private Destination _destination;
+    private final Map<ReceiverState, Long> _timeouts = new EnumMap<>(ReceiverState.class);
+
+    public ReceiveOptions() {
+
+        _timeouts.put(ReceiverState.WAITING_FOR_VERSION, 30_000L);
+        // the sender computes the content hashes before it sends the manifest
+        _timeouts.put(ReceiverState.WAITING_FOR_TRANSFER_ID, 120_000L);
+        _timeouts.put(ReceiverState.WAITING_FOR_COUNT, 30_000L);
+        _timeouts.put(ReceiverState.WAITING_FOR_ID, 30_000L);
+        _timeouts.put(ReceiverState.RECEIVING, 15_000L);
+    }
+
+    /** @return the destination of the received resources, null for the cache directory */
+    public Destination getDestination() {
+        return _destination;
+    }
+
+    /**
+     * Puts the received resources straight into their final location, instead
+     * of the cache directory the app copies them from. Null keeps them in the
+     * cache directory under a random name.
+     */
+    public void setDestination(Destination destination) {
+        _destination = destination;
+    }
+
+    /** @return the time the session waits for the sender in the state, 0 if it waits forever */
+    public long getTimeout(ReceiverState state) {
+
+        Long timeout = _timeouts.get(state);
+        return timeout != null ? timeout : 0;
+    }
+
+    /**
+     * Sets how long the session waits for the sender in the state. Every message and
+     * payload update from the sender starts the time again, finishing the resources
+     * doesn't count. Once it's over the connection is closed and the transfer fails
+     * with <code>timeout</code>. 0 waits forever, like while the user decides.
+     */
+    public void setTimeout(ReceiverState state, long timeoutMillis) {
+
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        }
+        _timeouts.put(state, timeoutMillis);
+    }
+}
@@ -0,0 +1,37 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file that was received by a {@link Transport}.
+ *
+ * The content is only complete after the transport reported
+ * {@link TransferUpdate.Status#SUCCESS} for the payload.
+ */
+public interface ReceivedFile {
+
+    /** @return a printable location of the file or null if it's not available (yet). */
+    String getUri();
+
+    InputStream openInputStream() throws IOException;
+
+    /**
+     * @return the file in the transport's storage if it can be accessed (and renamed)
+     *         directly, null otherwise
+     */
+    File getFile();
+
+    /**
+     * Opens a channel on the content, e.g. based on a file descriptor, so it can
+     * be copied by the kernel ({@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}).
+     *
+     * @return the channel or null if the content is not available as file
+     */
+    FileChannel openChannel() throws IOException;
+
+    /** Removes the file from the transport's storage. */
+    void delete();
+}
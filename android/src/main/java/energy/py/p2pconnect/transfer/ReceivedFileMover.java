@@ -0,0 +1,144 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Moves a received file out of the transport's storage with the cheapest
+ * method available:
+ * <ol>
+ * <li>{@link Method#RENAME}: the file is renamed, nothing is copied.
+ *     Only possible if the transport exposes the file on the same file system.</li>
+ * <li>{@link Method#TRANSFER}: the kernel copies the content from a file
+ *     descriptor ({@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}).</li>
+ * <li>{@link Method#COPY}: the content is copied with a large direct buffer.</li>
+ * </ol>
+ *
+ * Not thread safe, the copy buffer is reused for all files.
+ */
+final class ReceivedFileMover {
+
+    private static final String TAG = "P2PConnect/ReceivedFileMover";
+
+    static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    enum Method { RENAME, TRANSFER, COPY }
+
+    private ByteBuffer _buffer;
+
+    /**
+     * Moves the content of <code>source</code> to <code>target</code>.
+     * The source is not deleted from the transport's storage.
+     *
+     * @return the method that was used
+     */
+    Method move(ReceivedFile source, File target) throws IOException {
+
+        File file = source.getFile();
+        if (file != null && file.renameTo(target)) {
+            return Method.RENAME;
+        }
+
+        try {
+            if (transfer(source, target)) {
+                return Method.TRANSFER;
+            }
+        } catch (IOException ex) {
+            TransferLog.w(TAG, "transferTo() failed, falling back to copy: " + ex.getMessage());
+        }
+
+        copy(source, target);
+        return Method.COPY;
+    }
+
+    /**
+     * Appends <code>source</code> to the first <code>offset</code> bytes of <code>target</code>,
+     * used to complete a resource of a resumed transfer.
+     */
+    static void append(File source, File target, long offset) throws IOException {
+
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(target, true).getChannel()) {
+
+            // the bytes after the offset weren't confirmed to the sender
+            out.truncate(offset);
+            transfer(in, out);
+        }
+    }
+
+    /** Copies a file of the cache directory, used for resources the receiver already has. */
+    static void copyFile(File source, File target) throws IOException {
+
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+            transfer(in, out);
+        }
+    }
+
+    /** Flushes the content of the file to the storage, it survives a crash of the app or device. */
+    static void sync(File file) throws IOException {
+
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.getFD().sync();
+        }
+    }
+
+    private static void transfer(FileChannel in, FileChannel out) throws IOException {
+
+        long size = in.size();
+        long position = 0;
+        while (position < size) {
+
+            long transferred = in.transferTo(position, size - position, out);
+            if (transferred <= 0) {
+                throw new IOException("transferTo() stopped at " + position + " of " + size);
+            }
+            position += transferred;
+        }
+    }
+
+    private static boolean transfer(ReceivedFile source, File target) throws IOException {
+
+        try (FileChannel in = source.openChannel()) {
+
+            if (in == null) {
+                return false;
+            }
+
+            try (FileChannel out = new FileOutputStream(target).getChannel()) {
+                transfer(in, out);
+            }
+        }
+        return true;
+    }
+
+    private void copy(ReceivedFile source, File target) throws IOException {
+
+        if (_buffer == null) {
+            _buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        }
+
+        try (InputStream stream = source.openInputStream();
+             ReadableByteChannel in = stream instanceof FileInputStream ?
+                     ((FileInputStream) stream).getChannel() : Channels.newChannel(stream);
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+
+            _buffer.clear();
+            while (in.read(_buffer) >= 0) {
+
+                _buffer.flip();
+                while (_buffer.hasRemaining()) {
+                    out.write(_buffer);
+                }
+                _buffer.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,1696 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import energy.py.p2pconnect.ProgressCallback;
+import energy.py.p2pconnect.ReceiverState;
+import energy.py.p2pconnect.ResourceDescriptor;
+
+/**
+ * The receiving side of the transfer protocol for one connected endpoint.
+ *
+ * Received files are moved to the cache directory and synced to the storage
+ * on a finish thread, the sender and the listener are notified once all
+ * resources are finished. With a {@link Destination} each resource is moved
+ * there as soon as it's finished. Since protocol version 2 the progress is kept in a
+ * {@link Journal}, an interrupted transfer continues where it stopped when the
+ * sender connects again with the same transfer id. Resources found in the
+ * {@link ContentIndex} by their hash are copied locally instead.
+ *
+ * Resources with a content hash in the manifest are verified before they count
+ * as received, a corrupt resource is requested again.
+ *
+ * Since protocol version 3 the sender may keep the connection for the next
+ * transfer, which is received by a new session started with {@link #startNext(int)}.
+ * Small resources may arrive packed into one stream payload, see {@link Bundle}.
+ *
+ * A {@link Watchdog} closes the connection once the sender is silent for longer than the
+ * timeout of the current state, see {@link ReceiveOptions#setTimeout(ReceiverState, long)}.
+ * The heartbeats of the sender are answered.
+ */
+public class ReceiverSession implements TransferSession {
+
+    private static final String TAG = "P2PConnect/ReceiverSession";
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /** A stream payload is dropped if its resource isn't announced in time. */
+    private static final long ASSIGNMENT_TIMEOUT_SECONDS = 30;
+    /** The bytes of a stream payload buffered in memory until its resource is announced. */
+    private static final int MAX_UNASSIGNED_BYTES = 1024 * 1024;
+    /** A resource still corrupt after this many attempts is left out of the result. */
+    static final int MAX_RESENDS = 2;
+
+    /** The journals are kept in this subdirectory of the cache directory. */
+    static final String JOURNAL_DIR = "p2pconnect-journal";
+
+    /** Reads stream payloads, they must be read while they arrive. */
+    private static final ExecutorService _sharedStreamExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "P2PConnect-receive-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Finishes received resources: moves, appends, copies, hashes and syncs them.
+     * The listener thread hands them over and stays responsive for progress and
+     * control messages. A single thread, the storage is the bottleneck anyway and
+     * the {@link ReceivedFileMover} of a session isn't thread safe.
+     */
+    private static final ExecutorService _sharedFinishExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "P2PConnect-finish-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface Listener {
+
+        /** The sender asks for permission, answer with {@link #acceptTransfer(String, boolean)}. */
+        void onTransferRequested(String transferId);
+
+        /**
+         * A resource is at its final location, before the transfer is complete.
+         * Resources kept from an interrupted transfer are reported as well.
+         *
+         * @param size the bytes of the resource
+         * @param durationMillis how long the resource took, 0 if it wasn't transferred
+         */
+        void onResourceReceived(String transferId, ResourceDescriptor resource, long size, long durationMillis);
+
+        void onTransferComplete(String transferId, List<ResourceDescriptor> resources);
+
+        /**
+         * The transfer ended before all resources arrived. What arrived is kept,
+         * the transfer continues if the sender tries again with the same id.
+         *
+         * @param transferId null if the sender didn't send it yet
+         * @param error <code>transferInterrupted</code> if the sender disconnected or a resource
+         *              still failed after it was requested again,
+         *              <code>timeout</code> if the sender was silent for too long
+         */
+        void onTransferFailed(String transferId, String error);
+    }
+
+    private final Transport _transport;
+    private final String _endpointId;
+    private final File _cacheDir;
+    private final ProgressCallback _progressCallback;
+    private final Listener _listener;
+    private ReceiveOptions _options = new ReceiveOptions();
+    private Scheduler _scheduler;
+    /** Null without a scheduler, then the session never times out. */
+    private Watchdog _watchdog;
+    /** Tasks on the finish thread, the session doesn't wait for the sender meanwhile. */
+    private int _finishing;
+    private Executor _streamExecutor = _sharedStreamExecutor;
+    private Executor _finishExecutor = _sharedFinishExecutor;
+    /** Resources being moved to the destination. */
+    private int _placements;
+    /** Disconnected while the last resources were placed, the transfer completes once they are. */
+    private boolean _completeAfterPlacing;
+
+    private String _transferInfo;
+
+    private final ControlMessage _message = new ControlMessage();
+    private int _version = Protocol.VERSION;
+    private boolean _legacy = true;
+
+    private ReceiverState _state = ReceiverState.CONNECTING;
+    private String _currentTransferId;
+    private int _numberOfResourcesToReceive = 0;
+    private String[] _currentIds;
+    /** The manifest (protocol version 2), null until its first part arrived. */
+    private Manifest _manifest;
+
+    private final ReceivedFileMover _mover = new ReceivedFileMover();
+
+    /** The file payloads in flight by payload id. */
+    private final Map<Long, IncomingFile> _incoming = new HashMap<>();
+    /** Resources with an assigned file payload. */
+    private boolean[] _assigned;
+    /** Protocol version 1 sends one file after the other in the order of the ids. */
+    private int _nextLegacyIndex;
+    private int _completedFiles;
+    /** The received resources by index, null if not received. */
+    private ResourceDescriptor[] _receivedResources;
+
+    /** Progress of the transfer, null for protocol version 1. */
+    private Journal _journal;
+    /** The first bytes of resources, kept from an interrupted transfer. */
+    private File[] _partialFiles;
+    /** Files received earlier by content hash, null for protocol version 1. */
+    private ContentIndex _index;
+    /** Number of times a resource was requested again by index. */
+    private int[] _resends;
+    /** The progress of all resources, once they are received. */
+    private BatchProgress _batchProgress;
+
+    private final TransferStats _stats;
+
+    /**
+     * A file or stream payload of the current transfer. It's complete once
+     * the payload arrived (and a stream was read), the sender announced its
+     * resource and the transport reported success, in any order. Then it's
+     * finished on the finish thread, which sets the last fields.
+     */
+    private static class IncomingFile {
+
+        int index = -1;
+        /** The payload contains the resource from this offset. */
+        long offset;
+        ReceivedFile file;
+        /** The file a stream payload is written to. */
+        File streamTarget;
+        boolean streamFinished;
+        /** The payload failed, its resources are requested again once they are known. */
+        boolean failed;
+        boolean transferred;
+        /**
+         * The encoding announced by the sender, -1 until the payload was assigned.
+         * Read by the stream thread after {@link #assigned}, like the fields below.
+         */
+        volatile int encoding = -1;
+        final CountDownLatch assigned = new CountDownLatch(1);
+        /** The expected content hash, null if the resource isn't verified. */
+        byte[] hash;
+        /** The bytes received before of a resumed resource. */
+        File partialFile;
+        /** The content hash computed while the stream was written, null if not computed. */
+        volatile byte[] digest;
+        /** The bytes of the resource written by the stream thread so far. */
+        volatile long written;
+        /** The resources of a bundle, null for a payload of a single resource. */
+        int[] bundle;
+        /** The expected content hashes of the bundled resources, like {@link #hash}. */
+        byte[][] bundleHashes;
+        /** The entries unpacked from a bundle, read once the stream finished. */
+        final List<BundleEntry> entries = new ArrayList<>();
+        /** The method the file payload was moved with, null for streams. */
+        ReceivedFileMover.Method moveMethod;
+        /** The resource synced to the storage, null on failure. */
+        File finished;
+        /** The finished resource matches its hash or has none. */
+        boolean valid;
+
+        boolean isComplete() {
+            return index >= 0 && transferred && !failed && (file != null || streamFinished);
+        }
+    }
+
+    /** A resource unpacked from a bundle by the stream thread. */
+    private static class BundleEntry {
+
+        final int index;
+        final File file;
+        /** The expected content hash, null if the resource isn't verified. */
+        final byte[] hash;
+        /** The content hash computed while the entry was written, null if not computed. */
+        byte[] digest;
+        /** The entry was written completely. */
+        boolean written;
+
+        BundleEntry(int index, File file, byte[] hash) {
+
+            this.index = index;
+            this.file = file;
+            this.hash = hash;
+        }
+    }
+
+    public ReceiverSession(Transport transport, String endpointId, File cacheDir,
+                           ProgressCallback progressCallback, Listener listener) {
+
+        _transport = transport;
+        _endpointId = endpointId;
+        _cacheDir = cacheDir;
+        _progressCallback = progressCallback;
+        _listener = listener;
+
+        _stats = new TransferStats("receive", endpointId, null);
+        _stats.enterPhase(_state.name());
+    }
+
+    /** Must be called before {@link #start()}. */
+    public void setOptions(ReceiveOptions options) {
+        _options = options;
+    }
+
+    /** Sets the (localized) info text shown while resources are transferred. */
+    public void setTransferInfo(String transferInfo) {
+        _transferInfo = transferInfo;
+    }
+
+    public ReceiverState getState() {
+        return _state;
+    }
+
+    private void setState(ReceiverState state) {
+
+        _state = state;
+        if (state == ReceiverState.NONE) {
+            _stats.finish();
+        } else {
+            _stats.enterPhase(state.name());
+        }
+
+        if (_watchdog == null) return;
+        if (state == ReceiverState.NONE) {
+            _watchdog.stop();
+        } else {
+            _watchdog.expect(_options.getTimeout(state));
+        }
+    }
+
+    /** @return the metrics of this session, kept after it ended */
+    public TransferStats getStats() {
+        return _stats;
+    }
+
+    @Override
+    public String getEndpointId() {
+        return _endpointId;
+    }
+
+    @Override
+    public String getTransferId() {
+        return _currentTransferId;
+    }
+
+    /**
+     * Limits the protocol version accepted from the sender.
+     * Must be called before {@link #start()}.
+     */
+    public void setProtocolVersion(int version) {
+        _version = version;
+    }
+
+    /**
+     * Runs the stream readers and the finish tasks on the given executors, by default on
+     * threads shared by all sessions. The finish executor must run one task after the other.
+     * Must be called before {@link #start()}.
+     */
+    public void setExecutors(Executor streamExecutor, Executor finishExecutor) {
+
+        _streamExecutor = streamExecutor;
+        _finishExecutor = finishExecutor;
+    }
+
+    /**
+     * Schedules the timeouts. Must be called before {@link #start()},
+     * without a scheduler the session never times out.
+     */
+    public void setScheduler(Scheduler scheduler) {
+        _scheduler = scheduler;
+    }
+
+    /** Waits for the handshake. Must be called once the connection is established. */
+    public void start() {
+
+        startWatchdog();
+        setState(ReceiverState.WAITING_FOR_VERSION);
+    }
+
+    /**
+     * Waits for the manifest on a connection kept open after an earlier session
+     * (see {@link KeptConnections}), the version isn't checked again.
+     *
+     * @param version the protocol version negotiated by the earlier session
+     */
+    public void startNext(int version) {
+
+        if (version < Protocol.KEEP_ALIVE_VERSION) {
+            throw new IllegalArgumentException("Protocol version " + version + " can't reuse a connection");
+        }
+
+        _legacy = false;
+        _version = version;
+        startWatchdog();
+        setState(ReceiverState.WAITING_FOR_TRANSFER_ID);
+    }
+
+    private void startWatchdog() {
+
+        if (_scheduler == null) return;
+
+        _watchdog = new Watchdog(_scheduler, Watchdog.DEFAULT_PERIOD_MILLIS, new Watchdog.Listener() {
+            @Override
+            public void onTick() {
+                if (_finishing > 0) {
+                    _watchdog.heard(); // busy, the sender waits for this side
+                }
+            }
+
+            @Override
+            public void onTimeout(long silentMillis) {
+                TransferLog.w(TAG, "No message from '" + _endpointId + "' for " + silentMillis
+                        + " ms in state '" + _state + "'");
+                fail("timeout");
+            }
+        });
+        _watchdog.start();
+    }
+
+    /** The sender sent something. */
+    private void heard() {
+
+        if (_watchdog != null) {
+            _watchdog.heard();
+        }
+    }
+
+    /** @return the protocol version negotiated with the sender */
+    public int getProtocolVersion() {
+        return _legacy ? Protocol.LEGACY_VERSION : _version;
+    }
+
+    private void updateProgress(String title, int progress, String info) {
+        _progressCallback.updateProgress(title, progress, info);
+    }
+
+    private void sendMessage(String message) {
+
+        TransferLog.i(TAG, "Sending message to endpoint '" + _endpointId + "'");
+        TransferLog.d(TAG, "Message content = '" + message + "'");
+
+        _transport.sendBytes(_endpointId, message.getBytes(StandardCharsets.UTF_8));
+        _stats.controlMessage();
+    }
+
+    private void sendFrame(byte[] frame) {
+
+        _transport.sendBytes(_endpointId, frame);
+        _stats.controlMessage();
+    }
+
+    /** Answers the current step, <code>prefix</code> is used by protocol version 1 only. */
+    private void sendAnswer(String prefix, boolean accept) {
+
+        if (_legacy) {
+            sendMessage(prefix + (accept ? "accept" : "deny"));
+        } else {
+            sendFrame(ControlMessage.encode(_version, accept ? ControlMessage.ACCEPT : ControlMessage.DENY));
+        }
+    }
+
+    public boolean acceptTransfer(String transferId, boolean accept) {
+
+        if (_state != ReceiverState.WAITING_FOR_TRANSFER_ACCEPT) {
+            TransferLog.e(TAG, "Invalid state (expected: 'WAITING_FOR_TRANSFER_ACCEPT' found '" + _state + "')");
+            return false;
+        }
+
+        if (!transferId.equals(_currentTransferId)) {
+            TransferLog.e(TAG, "Invalid transferId to accept (expected: '" + _currentTransferId + "' found '" + transferId + "')");
+            return false;
+        }
+
+        if (accept && !_legacy) {
+
+            // the manifest already contained all ids
+            startReceiving();
+            sendFrame(answerManifest());
+            finishIfComplete(); // nothing (more) to receive
+            return true;
+
+        } else if (accept) {
+            updateProgress(null, 66, null);
+            setState(ReceiverState.WAITING_FOR_COUNT);
+        } else {
+            updateProgress(null, -1, null);
+            setState(ReceiverState.NONE);
+        }
+
+        sendAnswer("tid.", accept);
+
+        return true;
+    }
+
+    /**
+     * Takes over what was received of an interrupted transfer with the same id,
+     * and the resources received with earlier transfers.
+     *
+     * @return the answer to the manifest, telling the sender what to skip
+     */
+    private byte[] answerManifest() {
+
+        _journal = Journal.open(new File(_cacheDir, JOURNAL_DIR), _cacheDir, _manifest);
+        _index = ContentIndex.open(_cacheDir);
+        _partialFiles = new File[_numberOfResourcesToReceive];
+        long resumedBytes = 0;
+        long deduplicatedBytes = 0;
+
+        int[] completed = new int[_numberOfResourcesToReceive];
+        int completedCount = 0;
+        int[] partial = new int[_numberOfResourcesToReceive];
+        long[] partialOffsets = new long[_numberOfResourcesToReceive];
+        int partialCount = 0;
+
+        for (int i = 0; i < _numberOfResourcesToReceive; i++) {
+
+            long size = _manifest.sizes[i];
+
+            File file = _journal.getCompletedFile(i);
+            if (file != null && (size < 0 || file.length() == size)) {
+
+                _assigned[i] = true;
+                receivedResource(i, file);
+                resumedBytes += file.length();
+                _stats.skippedResource();
+                _stats.resumedBytes(file.length());
+                _batchProgress.complete(i);
+                completed[completedCount++] = i;
+                continue;
+            }
+
+            byte[] hash = _manifest.hashes[i];
+            file = hash != null && hash.length == ContentHash.LENGTH ? _index.find(hash, size) : null;
+            if (file != null) {
+
+                copyFromIndex(i, file);
+                deduplicatedBytes += file.length();
+                _stats.skippedResource();
+                _stats.deduplicatedBytes(file.length());
+                _batchProgress.complete(i);
+                completed[completedCount++] = i;
+                continue;
+            }
+
+            file = _journal.getPartialFile(i);
+            if (file != null && file.length() > 0 && (size < 0 || file.length() < size)) {
+
+                _partialFiles[i] = file;
+                resumedBytes += file.length();
+                _stats.resumedBytes(file.length());
+                _batchProgress.setOffset(i, file.length());
+                partial[partialCount] = i;
+                partialOffsets[partialCount++] = file.length();
+            }
+        }
+
+        _stats.setTotalBytes(_batchProgress.getTotalBytes() >= 0
+                ? _batchProgress.getTotalBytes() - _batchProgress.getDoneBytes() : -1);
+
+        if (completedCount > 0 || partialCount > 0) {
+            TransferLog.i(TAG, "Transfer '" + _currentTransferId + "' has " + completedCount
+                    + " complete and " + partialCount + " partial resource(s), " + resumedBytes
+                    + " bytes resumed and " + deduplicatedBytes + " bytes found in the index");
+        }
+
+        return ControlMessage.encodeAccept(_version, Arrays.copyOf(completed, completedCount),
+                Arrays.copyOf(partial, partialCount), Arrays.copyOf(partialOffsets, partialCount),
+                (1 << Protocol.ENCODING_DEFLATE) | (1 << Protocol.ENCODING_BUNDLE)
+                        | (1 << Protocol.ENCODING_HEARTBEAT));
+    }
+
+    /** Copies a file received earlier, the resource is sent only if that fails. */
+    private void copyFromIndex(int index, File source) {
+
+        _assigned[index] = true;
+        File target = new File(_cacheDir, UUID.randomUUID().toString());
+
+        finishInBackground(() -> {
+
+            boolean copied;
+            try {
+                ReceivedFileMover.copyFile(source, target);
+                ReceivedFileMover.sync(target);
+                copied = true;
+            } catch (IOException ex) {
+                TransferLog.e(TAG, "Failed copying " + source.getAbsolutePath() + " for resource " + index, ex);
+                target.delete();
+                copied = false;
+            }
+
+            boolean success = copied;
+            _transport.runOnListenerThread(() -> {
+
+                if (!success) {
+                    // the sender skipped the resource, it's sent after all
+                    _index.remove(_manifest.hashes[index]);
+                    if (_state == ReceiverState.RECEIVING) {
+                        requestAgain(index);
+                    }
+                    return;
+                }
+
+                _journal.recordDone(index, target);
+                receivedResource(index, target);
+                if (_state == ReceiverState.RECEIVING) {
+                    finishIfComplete();
+                }
+            });
+        });
+    }
+
+    /** @return the content hash of the resource or null if it isn't verified */
+    private byte[] expectedHash(int index) {
+
+        byte[] hash = _manifest != null ? _manifest.hashes[index] : null;
+        return hash != null && hash.length == ContentHash.LENGTH ? hash : null;
+    }
+
+    /** Completes a verified resource or asks the sender for it again. */
+    private void completeVerifiedFile(int index, File file, boolean valid) {
+
+        if (valid) {
+            _index.put(_manifest.hashes[index], file);
+            completeResource(index, file);
+            return;
+        }
+
+        file.delete();
+        TransferLog.w(TAG, "Resource " + index + " doesn't match its hash");
+        requestAgain(index);
+    }
+
+    /** Asks the sender for a corrupt or missing resource again, the transfer fails after {@link #MAX_RESENDS} attempts. */
+    private void requestAgain(int index) {
+
+        if (_resends[index] >= MAX_RESENDS) {
+            TransferLog.e(TAG, "Resource " + index + " still failed after " + MAX_RESENDS + " attempts");
+            fail("transferInterrupted");
+            return;
+        }
+
+        TransferLog.w(TAG, "Requesting resource " + index + " again");
+        _stats.resend();
+        _resends[index]++;
+        _assigned[index] = false;
+        _batchProgress.reset(index);
+        sendFrame(ControlMessage.encodeResend(_version, index));
+    }
+
+    private void startReceiving() {
+
+        _incoming.clear();
+        _assigned = new boolean[_numberOfResourcesToReceive];
+        _resends = new int[_numberOfResourcesToReceive];
+        _nextLegacyIndex = 0;
+        _completedFiles = 0;
+        _receivedResources = new ResourceDescriptor[_numberOfResourcesToReceive];
+
+        long[] sizes = _manifest != null ? _manifest.sizes : new long[_numberOfResourcesToReceive];
+        if (_manifest == null) {
+            Arrays.fill(sizes, -1); // protocol version 1 doesn't tell the sizes
+        }
+        _batchProgress = new BatchProgress(sizes);
+
+        updateProgress(null, 100, null);
+        setState(ReceiverState.RECEIVING);
+    }
+
+    private IncomingFile incomingFile(long payloadId) {
+
+        IncomingFile incoming = _incoming.get(payloadId);
+        if (incoming == null) {
+            incoming = new IncomingFile();
+            _incoming.put(payloadId, incoming);
+        }
+        return incoming;
+    }
+
+    /** Maps the file payload to the resource. */
+    private void assignFile(long payloadId, long index, long offset, int encoding) {
+
+        if (index >= _numberOfResourcesToReceive || _assigned[(int) index]) {
+            TransferLog.w(TAG, "Ignoring file payload " + payloadId + " for invalid index " + index);
+            return;
+        }
+
+        File partialFile = _partialFiles != null ? _partialFiles[(int) index] : null;
+        if (offset > 0 && (partialFile == null || offset > partialFile.length())) {
+            TransferLog.w(TAG, "Ignoring file payload " + payloadId + " for invalid offset " + offset);
+            return;
+        }
+        if (offset == 0 && partialFile != null) {
+            // the sender starts from scratch
+            partialFile.delete();
+            _partialFiles[(int) index] = null;
+            _batchProgress.reset((int) index);
+        }
+
+        _assigned[(int) index] = true;
+        _stats.resourceStarted((int) index);
+        if (encoding == Protocol.ENCODING_DEFLATE) {
+            _stats.compressedPayload();
+        }
+
+        IncomingFile incoming = incomingFile(payloadId);
+        incoming.index = (int) index;
+        incoming.offset = offset;
+        incoming.hash = expectedHash((int) index);
+        incoming.partialFile = offset > 0 ? partialFile : null;
+        incoming.encoding = encoding;
+        incoming.assigned.countDown();
+        if (incoming.failed) {
+            requestPayloadAgain(payloadId, incoming);
+        } else {
+            completeFileIfDone(payloadId, incoming);
+        }
+    }
+
+    /** Maps the stream payload to the small resources bundled in it. */
+    private void assignBundle(long payloadId, int[] indexes, int encoding) {
+
+        Set<Integer> unique = new HashSet<>();
+        for (int index : indexes) {
+            if (index >= _numberOfResourcesToReceive || _assigned[index] || !unique.add(index)) {
+                TransferLog.w(TAG, "Ignoring bundle payload " + payloadId + " for invalid index " + index);
+                return;
+            }
+        }
+
+        byte[][] hashes = new byte[indexes.length][];
+        for (int i = 0; i < indexes.length; i++) {
+
+            int index = indexes[i];
+            if (_partialFiles != null && _partialFiles[index] != null) {
+                // bundled resources are sent from scratch
+                _partialFiles[index].delete();
+                _partialFiles[index] = null;
+                _batchProgress.reset(index);
+            }
+            _assigned[index] = true;
+            _stats.resourceStarted(index);
+            hashes[i] = expectedHash(index);
+        }
+        _stats.bundledResources(indexes.length);
+        if (encoding == Protocol.ENCODING_DEFLATE) {
+            _stats.compressedPayload();
+        }
+
+        IncomingFile incoming = incomingFile(payloadId);
+        incoming.index = indexes[0];
+        incoming.bundle = indexes;
+        incoming.bundleHashes = hashes;
+        incoming.encoding = encoding;
+        incoming.assigned.countDown();
+        if (incoming.failed) {
+            requestPayloadAgain(payloadId, incoming);
+        } else {
+            completeFileIfDone(payloadId, incoming);
+        }
+    }
+
+    private void invalidState() {
+        TransferLog.w(TAG, "Invalid state '" + _state + "' for message " + _message);
+    }
+
+    private void requestTransfer() {
+
+        TransferLog.i(TAG, "Notifying client about transferId '" + _currentTransferId + "'");
+
+        updateProgress(null, 50, null);
+        setState(ReceiverState.WAITING_FOR_TRANSFER_ACCEPT);
+        _listener.onTransferRequested(_currentTransferId);
+    }
+
+    @Override
+    public void onBytesReceived(String endpointId, byte[] bytes) {
+
+        _stats.controlMessage();
+        heard();
+        try {
+            _message.decode(bytes, true);
+        } catch (ProtocolException ex) {
+            TransferLog.w(TAG, "Ignoring malformed message: " + ex.getMessage());
+            return;
+        }
+
+        if (_message.type == ControlMessage.HEARTBEAT) {
+            if (_state == ReceiverState.RECEIVING) {
+                sendFrame(ControlMessage.encode(_version, ControlMessage.HEARTBEAT));
+            }
+            return;
+        }
+
+        switch(_state) {
+
+            case WAITING_FOR_VERSION:
+
+                if (_message.type == ControlMessage.VERSION) {
+
+                    long offered = _message.value;
+
+                    updateProgress(null, 25, null);
+                    setState(ReceiverState.WAITING_FOR_TRANSFER_ID);
+
+                    if (offered >= 2 && _version >= 2) {
+
+                        // the manifest follows, it's answered at once
+                        _legacy = false;
+                        _version = (int) Math.min(offered, _version);
+                        TransferLog.i(TAG, "Using protocol version " + _version);
+
+                    } else {
+
+                        _legacy = true;
+                        String versionAnswer = (offered == Protocol.LEGACY_VERSION) ?
+                                "ver.accept" : "ver.deny";
+                        TransferLog.i(TAG, "Answering version " + offered + " with '" + versionAnswer + "'");
+                        sendMessage(versionAnswer);
+                    }
+
+                } else {
+                    invalidState();
+                }
+
+                break;
+
+            case WAITING_FOR_TRANSFER_ID:
+
+                if (_message.type == ControlMessage.TRANSFER_ID && _legacy) {
+
+                    _currentTransferId = _message.text;
+                    _stats.setTransferId(_currentTransferId);
+                    requestTransfer();
+
+                } else if (_message.type == ControlMessage.MANIFEST && !_legacy) {
+
+                    try {
+                        if (_manifest == null) {
+                            _manifest = new Manifest(_message.text, (int) _message.value);
+                        }
+                        _manifest.addPart(_message);
+                    } catch (ProtocolException ex) {
+                        TransferLog.w(TAG, "Denying transfer with invalid manifest: " + ex.getMessage());
+                        setState(ReceiverState.NONE);
+                        updateProgress(null, -1, null);
+                        sendAnswer("tid.", false);
+                        break;
+                    }
+
+                    if (_manifest.isComplete()) {
+
+                        _currentTransferId = _manifest.transferId;
+                        _stats.setTransferId(_currentTransferId);
+                        _numberOfResourcesToReceive = _manifest.size();
+                        _currentIds = _manifest.ids;
+                        TransferLog.i(TAG, "Received manifest with " + _numberOfResourcesToReceive + " resource(s)");
+
+                        requestTransfer();
+                    }
+
+                } else {
+                    invalidState();
+                }
+
+                break;
+
+            case WAITING_FOR_COUNT:
+
+                if (_message.type == ControlMessage.COUNT) {
+
+                    if (_message.value > Protocol.MAX_RESOURCES) {
+                        TransferLog.w(TAG, "Denying " + _message.value + " resource(s)");
+                        setState(ReceiverState.NONE);
+                        updateProgress(null, -1, null);
+                        sendAnswer("cnt.", false);
+                        break;
+                    }
+
+                    _numberOfResourcesToReceive = (int) _message.value;
+                    _currentIds = new String[_numberOfResourcesToReceive];
+
+                    TransferLog.i(TAG, "Expecting " + _numberOfResourcesToReceive + " resource(s)");
+
+                    updateProgress(null, 90, null);
+                    setState(ReceiverState.WAITING_FOR_ID);
+                    sendAnswer("cnt.", true);
+
+                } else {
+                    invalidState();
+                }
+
+                break;
+
+            case WAITING_FOR_ID:
+
+                if (_message.type == ControlMessage.IDS_DONE) {
+
+                    startReceiving();
+                    sendAnswer("id.", true);
+                    finishIfComplete(); // nothing to receive
+
+                } else if (_message.type == ControlMessage.RESOURCE_ID) {
+
+                    if (_message.value >= _numberOfResourcesToReceive) {
+                        TransferLog.w(TAG, "Ignoring id with invalid index " + _message.value);
+                        break;
+                    }
+
+                    TransferLog.d(TAG, "Received id " + _message.value);
+                    _currentIds[(int) _message.value] = _message.text;
+
+                } else {
+                    invalidState();
+                }
+
+                break;
+
+            case RECEIVING:
+
+                if (_message.type == ControlMessage.FILE && !_legacy) {
+                    assignFile(_message.payloadId, _message.value, _message.fileOffset, _message.encoding);
+                } else if (_message.type == ControlMessage.BUNDLE && !_legacy) {
+                    assignBundle(_message.payloadId, _message.bundle, _message.encoding);
+                } else {
+                    invalidState();
+                }
+
+                break;
+
+            default:
+
+                invalidState();
+                break;
+
+        }
+    }
+
+    @Override
+    public void onFileReceived(String endpointId, long payloadId, ReceivedFile file) {
+
+        TransferLog.i(TAG, "Payload received: FILE " + payloadId);
+        heard();
+
+        if (_state != ReceiverState.RECEIVING) {
+            TransferLog.w(TAG, "Ignoring file payload " + payloadId + " in state '" + _state + "'");
+            file.delete();
+            return;
+        }
+
+        _stats.filePayload();
+        // 📂 x/y
+        updateProgress(_batchProgress.getTitle(), _batchProgress.getPercent(), _transferInfo);
+
+        IncomingFile incoming = incomingFile(payloadId);
+        incoming.file = file;
+
+        if (_legacy) {
+            assignFile(payloadId, _nextLegacyIndex++, 0, Protocol.ENCODING_IDENTITY);
+        }
+    }
+
+    @Override
+    public void onStreamReceived(String endpointId, long payloadId, InputStream stream) {
+
+        TransferLog.i(TAG, "Payload received: STREAM " + payloadId);
+        heard();
+
+        if (_state != ReceiverState.RECEIVING || _legacy) {
+            TransferLog.w(TAG, "Ignoring stream payload " + payloadId + " in state '" + _state + "'");
+            closeQuietly(stream);
+            return;
+        }
+
+        _stats.streamPayload();
+        // 📂 x/y
+        updateProgress(_batchProgress.getTitle(), _batchProgress.getPercent(), _transferInfo);
+
+        IncomingFile incoming = incomingFile(payloadId);
+        incoming.streamTarget = new File(_cacheDir, UUID.randomUUID().toString());
+
+        _streamExecutor.execute(() -> {
+
+            boolean finished = readStream(stream, incoming);
+
+            _transport.runOnListenerThread(() -> {
+
+                incoming.streamFinished = true;
+                if (incoming.failed) {
+                    // the transport reported the failure while the stream was read
+                    discard(incoming);
+                    return;
+                }
+
+                if (_state != ReceiverState.RECEIVING) {
+                    // disconnected while the stream was read
+                    _incoming.remove(payloadId);
+                    keepPartial(incoming);
+                    return;
+                }
+
+                if (!finished) {
+                    payloadFailed(payloadId, incoming);
+                    return;
+                }
+
+                completeFileIfDone(payloadId, incoming);
+            });
+        });
+    }
+
+    /**
+     * Writes the stream to the file while it arrives, decompressing it if the
+     * sender compressed it. Called on a stream thread.
+     * The bytes read are kept on failure, they might be used to resume the transfer.
+     */
+    private static boolean readStream(InputStream stream, IncomingFile incoming) {
+
+        InputStream decoded;
+        try {
+            decoded = decode(stream, incoming);
+        } catch (IOException | InterruptedException ex) {
+            TransferLog.e(TAG, "Reading stream failed before its resource was announced", ex);
+            closeQuietly(stream);
+            return false;
+        }
+        if (decoded == null) {
+            TransferLog.w(TAG, "Dropping stream payload without resource");
+            closeQuietly(stream);
+            return false;
+        }
+        if (incoming.bundle != null) {
+            return readBundle(decoded, incoming);
+        }
+
+        File target = incoming.streamTarget;
+        long start = System.nanoTime();
+        long total = 0;
+
+        // the content hash is computed in the same pass, the file isn't read again to verify it
+        MessageDigest digest = incoming.hash != null ? ContentHash.newDigest() : null;
+
+        try (InputStream in = decoded; OutputStream out = new FileOutputStream(target)) {
+
+            if (digest != null && incoming.partialFile != null) {
+                ContentHash.update(digest, incoming.partialFile, incoming.offset);
+            }
+
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                total += read;
+                incoming.written = total;
+            }
+
+        } catch (IOException ex) {
+
+            TransferLog.e(TAG, "Reading stream failed after " + total + " bytes", ex);
+            return false;
+        }
+
+        if (digest != null) {
+            incoming.digest = digest.digest();
+        }
+
+        TransferLog.i(TAG, "Received stream of " + total + " bytes to " + target.getAbsolutePath()
+                + " (" + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        return true;
+    }
+
+    /**
+     * Unpacks the entries of a bundle next to the stream target, each into its own file.
+     * Called on a stream thread, the entries written are kept on failure.
+     */
+    private static boolean readBundle(InputStream decoded, IncomingFile incoming) {
+
+        Map<Integer, byte[]> hashes = new HashMap<>();
+        for (int i = 0; i < incoming.bundle.length; i++) {
+            hashes.put(incoming.bundle[i], incoming.bundleHashes[i]);
+        }
+
+        File dir = incoming.streamTarget.getParentFile();
+        long start = System.nanoTime();
+        long total = 0;
+
+        try (InputStream in = decoded) {
+
+            Bundle.Unpacker unpacker = new Bundle.Unpacker(in);
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int index;
+            while ((index = unpacker.next()) != -1) {
+
+                if (!hashes.containsKey(index)) {
+                    throw new ProtocolException("Unexpected bundle entry " + index);
+                }
+
+                BundleEntry entry = new BundleEntry(index, new File(dir, UUID.randomUUID().toString()), hashes.remove(index));
+                incoming.entries.add(entry);
+                MessageDigest digest = entry.hash != null ? ContentHash.newDigest() : null;
+
+                try (OutputStream out = new FileOutputStream(entry.file)) {
+                    int read;
+                    while ((read = unpacker.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                        if (digest != null) {
+                            digest.update(buffer, 0, read);
+                        }
+                        total += read;
+                        incoming.written = total;
+                    }
+                }
+
+                if (digest != null) {
+                    entry.digest = digest.digest();
+                }
+                entry.written = true;
+            }
+
+        } catch (IOException ex) {
+
+            TransferLog.e(TAG, "Reading bundle failed after " + total + " bytes", ex);
+            return false;
+        }
+
+        TransferLog.i(TAG, "Received bundle of " + incoming.entries.size() + " resource(s), " + total
+                + " bytes (" + (System.nanoTime() - start) / 1_000_000 + " ms)");
+        return true;
+    }
+
+    /**
+     * Waits for the encoding announced with the file message, which might arrive
+     * after the stream. The stream is read meanwhile (up to {@link #MAX_UNASSIGNED_BYTES}),
+     * the transport might deliver the file message only after it could pass on the stream.
+     *
+     * @return the decoded stream or null if the payload wasn't assigned in time
+     */
+    private static InputStream decode(InputStream stream, IncomingFile incoming)
+            throws IOException, InterruptedException {
+
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        while (incoming.assigned.getCount() > 0 && head.size() < MAX_UNASSIGNED_BYTES) {
+            int read = stream.read(buffer);
+            if (read == -1) break;
+            head.write(buffer, 0, read);
+        }
+
+        if (!incoming.assigned.await(ASSIGNMENT_TIMEOUT_SECONDS, TimeUnit.SECONDS) || incoming.encoding < 0) {
+            return null;
+        }
+
+        InputStream in = head.size() == 0 ? stream
+                : new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), stream);
+        return incoming.encoding == Protocol.ENCODING_DEFLATE ? Compression.inflate(in) : in;
+    }
+
+    private static void closeQuietly(InputStream stream) {
+
+        try {
+            stream.close();
+        } catch (IOException ex) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Moves a file payload out of the transport's storage. Called on the finish thread.
+     *
+     * @return the file in the cache directory or null on failure
+     */
+    private File moveToCacheDir(IncomingFile incoming) {
+
+        ReceivedFile receivedFile = incoming.file;
+        try {
+
+            String filename = UUID.randomUUID().toString();
+            File file = new File(_cacheDir, filename);
+
+            long start = System.nanoTime();
+            incoming.moveMethod = _mover.move(receivedFile, file);
+
+            TransferLog.i(TAG, "Moved file from " + receivedFile.getUri() + " to " + file.getAbsolutePath()
+                    + " (" + incoming.moveMethod + ", " + (System.nanoTime() - start) / 1_000_000 + " ms)");
+
+            return file;
+
+        } catch (IOException ex) {
+
+            TransferLog.e(TAG, "Failed moving file payload of resource " + incoming.index, ex);
+            return null;
+
+        } finally {
+
+            receivedFile.delete();
+        }
+    }
+
+    @Override
+    public void onTransferUpdate(String endpointId, TransferUpdate update) {
+
+        heard();
+
+        // Bytes payloads are sent as a single chunk, so you'll receive a SUCCESS update immediately
+        // after the call to onBytesReceived().
+
+        IncomingFile incoming = _incoming.get(update.getPayloadId());
+        if (incoming == null) {
+            return;
+        }
+
+        switch(update.getStatus()) {
+            case IN_PROGRESS:
+
+                _stats.payloadProgress(update.getPayloadId(), update.getBytesTransferred());
+
+                if (incoming.index >= 0 && incoming.bundle == null) {
+
+                    // the bytes of compressed streams are counted once decompressed
+                    long bytes = incoming.streamTarget != null ? incoming.written : update.getBytesTransferred();
+                    _batchProgress.update(incoming.index, bytes);
+                    updateProgress(_batchProgress.getTitle(), _batchProgress.getPercent(), null);
+                }
+
+                break;
+
+            case SUCCESS:
+
+                _stats.payloadDone(update.getPayloadId(), update.getBytesTransferred());
+                incoming.transferred = true;
+                completeFileIfDone(update.getPayloadId(), incoming);
+
+                break;
+
+            case FAILURE:
+            case CANCELED:
+
+                if (_state == ReceiverState.RECEIVING) {
+                    payloadFailed(update.getPayloadId(), incoming);
+                }
+
+                break;
+        }
+    }
+
+    /**
+     * Asks the sender again for the resources of a failed payload, other payloads may
+     * still be on their way. A sender of protocol version 1 can't be asked, the
+     * transfer fails then and what arrived is kept for the next attempt.
+     */
+    private void payloadFailed(long payloadId, IncomingFile incoming) {
+
+        TransferLog.w(TAG, "Payload " + payloadId + " of resource " + incoming.index + " failed");
+
+        incoming.failed = true;
+        incoming.assigned.countDown(); // release the reader of an unassigned stream
+        if (incoming.streamTarget == null || incoming.streamFinished) {
+            discard(incoming);
+        }
+
+        if (_legacy) {
+            _incoming.remove(payloadId);
+            fail("transferInterrupted");
+        } else if (incoming.index >= 0) {
+            requestPayloadAgain(payloadId, incoming);
+        }
+        // else requested again once the sender announces its resources
+    }
+
+    /** Asks the sender again for the resources of a failed payload. */
+    private void requestPayloadAgain(long payloadId, IncomingFile incoming) {
+
+        _incoming.remove(payloadId);
+
+        int[] indexes = incoming.bundle != null ? incoming.bundle : new int[] { incoming.index };
+        for (int index : indexes) {
+            if (_state != ReceiverState.RECEIVING) return;
+            requestAgain(index);
+        }
+    }
+
+    /** Deletes what arrived of a failed payload. The stream thread must be done with it. */
+    private static void discard(IncomingFile incoming) {
+
+        if (incoming.file != null) {
+            incoming.file.delete();
+        }
+        if (incoming.streamTarget != null) {
+            incoming.streamTarget.delete();
+        }
+        for (BundleEntry entry : incoming.entries) {
+            entry.file.delete();
+        }
+    }
+
+    /** Hands the payload to the finish thread once it's complete. */
+    private void completeFileIfDone(long payloadId, IncomingFile incoming) {
+
+        if (!incoming.isComplete()) return;
+
+        _incoming.remove(payloadId);
+
+        finishInBackground(() -> {
+            finishFile(incoming);
+            _transport.runOnListenerThread(() -> completeFinishedFile(incoming));
+        });
+    }
+
+    /** Runs the task on the finish thread, the sender isn't expected to send anything until it's done. */
+    private void finishInBackground(Runnable task) {
+
+        _finishing++;
+        _finishExecutor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                _transport.runOnListenerThread(() -> _finishing--);
+            }
+        });
+    }
+
+    /**
+     * Moves the received resource to the cache directory, verifies it and syncs it
+     * to the storage, so it survives a crash once the sender is told it arrived.
+     * Called on the finish thread.
+     */
+    private void finishFile(IncomingFile incoming) {
+
+        if (incoming.bundle != null) {
+
+            for (BundleEntry entry : incoming.entries) {
+                if (entry.written && !sync(entry.file)) {
+                    entry.file.delete();
+                    entry.written = false;
+                }
+            }
+            return;
+        }
+
+        File file = moveAndAppend(incoming);
+        if (file == null || !sync(file)) return;
+
+        if (incoming.hash == null) {
+            incoming.valid = true;
+        } else if (incoming.digest != null) {
+            // hashed while the stream was written
+            incoming.valid = MessageDigest.isEqual(incoming.hash, incoming.digest);
+        } else {
+            try {
+                incoming.valid = MessageDigest.isEqual(incoming.hash, ContentHash.of(file));
+            } catch (IOException ex) {
+                TransferLog.w(TAG, "Failed hashing resource " + incoming.index + ": " + ex.getMessage());
+            }
+        }
+        incoming.finished = file;
+    }
+
+    /**
+     * Moves a file payload to the cache directory and appends it to the bytes
+     * received before of a resumed resource. Called on the finish thread.
+     *
+     * @return the resource or null on failure
+     */
+    private File moveAndAppend(IncomingFile incoming) {
+
+        File file = null;
+        if (incoming.file == null) {
+
+            // the stream was written to the cache directory already
+            file = incoming.streamTarget;
+
+        } else if (incoming.file.getUri() != null) {
+
+            file = moveToCacheDir(incoming);
+        }
+
+        if (file != null && incoming.offset > 0) {
+            file = appendToPartialFile(incoming.partialFile, incoming.index, incoming.offset, file);
+        }
+        return file;
+    }
+
+    private static boolean sync(File file) {
+
+        try {
+            ReceivedFileMover.sync(file);
+            return true;
+        } catch (IOException ex) {
+            TransferLog.e(TAG, "Failed syncing " + file.getAbsolutePath(), ex);
+            return false;
+        }
+    }
+
+    /** Completes a resource the finish thread is done with. */
+    private void completeFinishedFile(IncomingFile incoming) {
+
+        countMove(incoming);
+        if (incoming.finished != null && incoming.partialFile != null) {
+            _partialFiles[incoming.index] = null;
+        }
+
+        if (_state != ReceiverState.RECEIVING) {
+            // disconnected meanwhile, valid resources aren't sent again on resume
+            keepFinished(incoming);
+            return;
+        }
+
+        if (incoming.bundle != null) {
+            completeBundle(incoming);
+        } else if (incoming.finished != null && incoming.hash != null) {
+            completeVerifiedFile(incoming.index, incoming.finished, incoming.valid);
+        } else if (incoming.finished != null) {
+            completeResource(incoming.index, incoming.finished);
+        } else if (_legacy) {
+            fail("transferInterrupted");
+        } else {
+            requestAgain(incoming.index);
+        }
+    }
+
+    private void countMove(IncomingFile incoming) {
+
+        if (incoming.moveMethod != null) {
+            _stats.fileMoved(incoming.moveMethod.name());
+        }
+    }
+
+    /** Records a resource finished after the sender disconnected in the journal. */
+    private void keepFinished(IncomingFile incoming) {
+
+        if (incoming.bundle != null) {
+            keepBundled(incoming);
+            return;
+        }
+
+        File file = incoming.finished;
+        if (file == null) return;
+
+        if (!incoming.valid || _journal == null) {
+            file.delete();
+            return;
+        }
+
+        _journal.recordDone(incoming.index, file);
+        if (incoming.hash != null) {
+            _index.put(incoming.hash, file);
+            _index.save();
+        }
+    }
+
+    /** Completes the resources unpacked from a bundle, missing ones are requested again. */
+    private void completeBundle(IncomingFile incoming) {
+
+        if (incoming.file != null) {
+            TransferLog.w(TAG, "Ignoring bundle sent as file payload");
+            incoming.file.delete();
+        }
+
+        Map<Integer, BundleEntry> entries = new HashMap<>();
+        for (BundleEntry entry : incoming.entries) {
+            entries.put(entry.index, entry);
+        }
+
+        for (int index : incoming.bundle) {
+
+            BundleEntry entry = entries.get(index);
+            if (_state != ReceiverState.RECEIVING) {
+                // the transfer failed with an earlier resource
+                if (entry != null && entry.file != null) {
+                    entry.file.delete();
+                }
+            } else if (entry == null || !entry.written) {
+                TransferLog.w(TAG, "Resource " + index + " is missing in its bundle");
+                requestAgain(index);
+            } else if (entry.hash != null) {
+                completeVerifiedFile(index, entry.file, MessageDigest.isEqual(entry.hash, entry.digest));
+            } else {
+                completeResource(index, entry.file);
+            }
+        }
+    }
+
+    private void completeResource(int index, File file) {
+
+        if (_journal != null) {
+            _journal.recordDone(index, file);
+        }
+        _stats.resourceCompleted(index, file.length());
+        _batchProgress.complete(index);
+        updateProgress(_batchProgress.getTitle(), _batchProgress.getPercent(), null);
+
+        receivedResource(index, file);
+        finishIfComplete();
+    }
+
+    /**
+     * Reports a resource in the cache directory, if there is a destination once
+     * it's moved there on the finish thread. A resource that can't be placed
+     * stays in the cache directory and is reported there.
+     */
+    private void receivedResource(int index, File file) {
+
+        long size = file.length();
+        ResourceDescriptor cached = new ResourceDescriptor(_currentIds[index], "file://" + file.getAbsolutePath());
+
+        Destination destination = _options.getDestination();
+        if (destination == null) {
+            reportResource(index, cached, size);
+            return;
+        }
+
+        _placements++;
+        finishInBackground(() -> {
+
+            ResourceDescriptor resource;
+            try {
+                resource = new ResourceDescriptor(cached.getId(), destination.place(cached.getId(), file));
+            } catch (IOException ex) {
+                TransferLog.e(TAG, "Failed placing resource " + index + " at its destination, keeping "
+                        + file.getAbsolutePath(), ex);
+                resource = cached;
+            }
+
+            ResourceDescriptor placed = resource;
+            _transport.runOnListenerThread(() -> {
+
+                _placements--;
+                reportResource(index, placed, size);
+                if (_state == ReceiverState.RECEIVING) {
+                    finishIfComplete();
+                } else if (_completeAfterPlacing && _placements == 0) {
+                    TransferLog.w(TAG, "Disconnected while the resources were placed");
+                    finishCall();
+                }
+            });
+        });
+    }
+
+    private void reportResource(int index, ResourceDescriptor resource, long size) {
+
+        _receivedResources[index] = resource;
+        _completedFiles++;
+
+        TransferStats.Resource stats = _stats.getResource(index);
+        _listener.onResourceReceived(_currentTransferId, resource, size,
+                stats != null ? _stats.getDurationMillis(stats) : 0);
+    }
+
+    private void finishIfComplete() {
+
+        if (_completedFiles < _numberOfResourcesToReceive) return;
+
+        sendAllDone();
+        finishCall();
+    }
+
+    private void sendAllDone() {
+
+        TransferLog.i(TAG, "Sending success message to sender");
+        // Inform the sender about success of the transfer
+        if (_legacy) {
+            sendMessage("all.done");
+        } else {
+            sendFrame(ControlMessage.encode(_version, ControlMessage.ALL_DONE));
+        }
+    }
+
+    /**
+     * Appends the rest of a resumed resource to the bytes received before.
+     * Called on the finish thread.
+     *
+     * @return the complete file or null on failure
+     */
+    private static File appendToPartialFile(File partialFile, int index, long offset, File rest) {
+
+        try {
+            ReceivedFileMover.append(rest, partialFile, offset);
+        } catch (IOException ex) {
+            TransferLog.e(TAG, "Failed appending to partial file of resource " + index, ex);
+            return null;
+        } finally {
+            rest.delete();
+        }
+        return partialFile;
+    }
+
+    /** Keeps the bytes received of an interrupted payload, so the transfer can be resumed. */
+    private void keepPartial(IncomingFile incoming) {
+
+        if (incoming.bundle != null) {
+            keepBundled(incoming);
+            return;
+        }
+
+        if (incoming.index < 0 || _journal == null) {
+            if (incoming.file != null) {
+                incoming.file.delete();
+            } else {
+                incoming.streamTarget.delete();
+            }
+            return;
+        }
+
+        // the session is over, the journal and files of this transfer are kept
+        Journal journal = _journal;
+        File[] partialFiles = _partialFiles;
+        finishInBackground(() -> {
+
+            File file = moveAndAppend(incoming);
+            _transport.runOnListenerThread(() -> {
+
+                countMove(incoming);
+                if (file == null) return;
+                if (incoming.partialFile != null) {
+                    partialFiles[incoming.index] = null;
+                }
+
+                if (file.length() == 0) {
+                    file.delete();
+                    return;
+                }
+
+                TransferLog.i(TAG, "Keeping " + file.length() + " bytes of resource " + incoming.index);
+                journal.recordPartial(incoming.index, file);
+            });
+        });
+    }
+
+    /** Keeps the resources unpacked completely from an interrupted bundle, the others are sent again. */
+    private void keepBundled(IncomingFile incoming) {
+
+        for (BundleEntry entry : incoming.entries) {
+
+            boolean valid = entry.written && (entry.hash == null || MessageDigest.isEqual(entry.hash, entry.digest));
+            if (!valid || _journal == null) {
+                entry.file.delete();
+                continue;
+            }
+
+            TransferLog.i(TAG, "Keeping bundled resource " + entry.index);
+            _journal.recordDone(entry.index, entry.file);
+            if (entry.hash != null) {
+                _index.put(entry.hash, entry.file);
+            }
+        }
+    }
+
+    @Override
+    public void onBandwidthChanged(String endpointId, Transport.Bandwidth bandwidth) {
+        // the sender decides when to send large resources
+    }
+
+    @Override
+    public void onDisconnected(String endpointId) {
+
+        TransferLog.i(TAG, "disconnected from endpoint '" + endpointId + "' in state '" + _state + "'");
+        _stats.finish();
+
+        if (_state == ReceiverState.NONE) return;
+
+        close("transferInterrupted");
+    }
+
+    /** Closes the connection to a sender that stopped sending, the streams in flight are cancelled. */
+    private void fail(String error) {
+
+        TransferLog.w(TAG, "Transfer failed: " + error);
+
+        // file payloads keep what arrived, it's journaled for the next attempt
+        for (Map.Entry<Long, IncomingFile> entry : _incoming.entrySet()) {
+            if (entry.getValue().streamTarget != null && !entry.getValue().streamFinished) {
+                _transport.cancel(entry.getKey());
+            }
+        }
+        _transport.disconnect(_endpointId);
+
+        close(error);
+    }
+
+    /** Ends the session before the transfer is complete. */
+    private void close(String error) {
+
+        if (_state == ReceiverState.RECEIVING) {
+
+            // streams still read are kept when the reader finished
+            List<Long> payloadIds = new ArrayList<>(_incoming.keySet());
+            for (long payloadId : payloadIds) {
+
+                IncomingFile incoming = _incoming.get(payloadId);
+                if (incoming.file != null || incoming.streamFinished) {
+                    _incoming.remove(payloadId);
+                    keepPartial(incoming);
+                } else if (incoming.streamTarget == null) {
+                    _incoming.remove(payloadId); // the payload never arrived
+                }
+                incoming.assigned.countDown(); // release readers of unassigned streams
+            }
+
+            if (_index != null) {
+                _index.save();
+            }
+        }
+
+        // the sender isn't told, but the resources are complete once they are placed
+        _completeAfterPlacing = _placements > 0
+                && _completedFiles + _placements == _numberOfResourcesToReceive;
+
+        setState(ReceiverState.NONE);
+        updateProgress(null, -1, null);
+
+        if (!_completeAfterPlacing) {
+            _listener.onTransferFailed(_currentTransferId, error);
+        }
+    }
+
+    private void finishCall() {
+
+        TransferLog.i(TAG, "Transfer finished");
+
+        setState(ReceiverState.NONE);
+        updateProgress(null, -1, null);
+
+        if (_journal != null) {
+            _journal.finish();
+            _index.save();
+        }
+
+        // in the order of the ids
+        List<ResourceDescriptor> resources = new ArrayList<>(_receivedResources.length);
+        for (ResourceDescriptor resource : _receivedResources) {
+            if (resource != null) {
+                resources.add(resource);
+            }
+        }
+
+        _listener.onTransferComplete(_currentTransferId, resources);
+    }
+}
@@ -0,0 +1,95 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import energy.py.p2pconnect.ResourceDescriptor;
+
+/**
+ * The content hashes of the resources of one send call.
+ *
+ * They are computed once on a background thread, even if the resources are
+ * sent to several receivers. Must be used on the listener thread of the transport.
+ */
+public final class ResourceHashes {
+
+    private static final String TAG = "P2PConnect/ResourceHashes";
+
+    /** Computes the content hashes, the resources are read completely. */
+    private static final ExecutorService _hashExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "P2PConnect-hash");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface Callback {
+
+        /** @param hashes the hashes by resource index, null for resources that can't be read */
+        void onHashes(byte[][] hashes);
+    }
+
+    private final Transport _transport;
+    private final List<ResourceDescriptor> _resources;
+
+    private byte[][] _hashes;
+    /** Waiting for the hashes, null until they are computed. */
+    private List<Callback> _callbacks;
+
+    public ResourceHashes(Transport transport, List<ResourceDescriptor> resources) {
+
+        _transport = transport;
+        _resources = resources;
+    }
+
+    /** Calls back once the hashes are known, right away if they were computed before. */
+    void get(Callback callback) {
+
+        if (_hashes != null) {
+            callback.onHashes(_hashes);
+            return;
+        }
+
+        if (_callbacks != null) {
+            _callbacks.add(callback);
+            return;
+        }
+
+        _callbacks = new ArrayList<>();
+        _callbacks.add(callback);
+
+        _hashExecutor.execute(() -> {
+
+            byte[][] hashes = hashResources();
+            _transport.runOnListenerThread(() -> {
+
+                _hashes = hashes;
+                for (Callback waiting : _callbacks) {
+                    waiting.onHashes(hashes);
+                }
+                _callbacks = null;
+            });
+        });
+    }
+
+    /** Called on a hash thread. */
+    private byte[][] hashResources() {
+
+        long start = System.nanoTime();
+        byte[][] hashes = new byte[_resources.size()][];
+
+        for (int i = 0; i < hashes.length; i++) {
+            try {
+                hashes[i] = ContentHash.of(_transport.openInputStream(_resources.get(i).getUri()));
+            } catch (IOException ex) {
+                TransferLog.w(TAG, "Failed hashing resource " + i + ": " + ex.getMessage());
+            }
+        }
+
+        TransferLog.i(TAG, "Hashed " + hashes.length + " resource(s) in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return hashes;
+    }
+}
@@ -0,0 +1,69 @@
+package energy.py.p2pconnect.transfer;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Decides which resource of a batch a {@link SenderSession} starts next, whenever
+ * the window of concurrent payloads has a free slot. Only the order on the link
+ * changes, the receiver reports the resources in the order of their ids.
+ */
+public interface ResourceOrder {
+
+    /**
+     * @param pending the indexes of the resources not started yet, ascending and never empty
+     * @param inFlight the indexes of the resources sent at the moment
+     * @param sizes the bytes left to send of each resource, {@link Long#MAX_VALUE} if unknown
+     * @param priorities the priority of each resource, higher ones first
+     * @return the index to start, one of <code>pending</code>
+     */
+    int next(List<Integer> pending, Collection<Integer> inFlight, long[] sizes, int[] priorities);
+
+    /** The order of the resources as passed by the caller. */
+    ResourceOrder IN_ORDER = (pending, inFlight, sizes, priorities) -> pending.get(0);
+
+    /** The smallest resource first, the receiver has as many resources as possible early. */
+    ResourceOrder SMALLEST_FIRST = (pending, inFlight, sizes, priorities) -> {
+
+        int next = pending.get(0);
+        for (int index : pending) {
+            if (sizes[index] < sizes[next]) {
+                next = index;
+            }
+        }
+        return next;
+    };
+
+    /**
+     * The largest resource first, the other slots are filled with the smallest ones.
+     * A large resource is started once no larger one is in flight anymore, so the
+     * link isn't idle at the end waiting for a large resource started late.
+     */
+    ResourceOrder LARGEST_FIRST = (pending, inFlight, sizes, priorities) -> {
+
+        int largest = pending.get(0);
+        for (int index : pending) {
+            if (sizes[index] > sizes[largest]) {
+                largest = index;
+            }
+        }
+        for (int index : inFlight) {
+            if (sizes[index] >= sizes[largest]) {
+                return SMALLEST_FIRST.next(pending, inFlight, sizes, priorities);
+            }
+        }
+        return largest;
+    };
+
+    /** The resource with the highest priority first, see <code>ResourceDescriptor.getPriority()</code>. */
+    ResourceOrder PRIORITY = (pending, inFlight, sizes, priorities) -> {
+
+        int next = pending.get(0);
+        for (int index : pending) {
+            if (priorities[index] > priorities[next]) {
+                next = index;
+            }
+        }
+        return next;
+    };
+}
@@ -0,0 +1,10 @@
+package energy.py.p2pconnect.transfer;
+
+/**
+ * Runs a task later on the listener thread of the transport,
+ * like <code>Handler.postDelayed()</code> on the main thread.
+ */
+public interface Scheduler {
+
+    void schedule(Runnable task, long delayMillis);
+}
@@ -0,0 +1,239 @@
+package energy.py.p2pconnect.transfer;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import energy.py.p2pconnect.SenderState;
+
+/**
+ * Tuning options of a {@link SenderSession}, set by the <code>send</code> call.
+ */
+public class SendOptions {
+
+    public static final int DEFAULT_MAX_CONCURRENT_FILES = 4;
+    public static final long DEFAULT_BULK_SIZE = 1024 * 1024;
+    public static final long DEFAULT_BANDWIDTH_WAIT_MILLIS = 10_000;
+    public static final long DEFAULT_BUNDLE_SIZE = 64 * 1024;
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 2000;
+
+    private int _maxConcurrentFiles = DEFAULT_MAX_CONCURRENT_FILES;
+    private boolean _alwaysStream;
+    private boolean _verify = true;
+    private boolean _deduplicate;
+    private boolean _compress;
+    private long _keepAliveMillis;
+    private long _bulkSize = DEFAULT_BULK_SIZE;
+    private long _bandwidthWaitMillis = DEFAULT_BANDWIDTH_WAIT_MILLIS;
+    private ResourceOrder _order = ResourceOrder.IN_ORDER;
+    private long _bundleSize = DEFAULT_BUNDLE_SIZE;
+    private long _heartbeatMillis = DEFAULT_HEARTBEAT_MILLIS;
+    private final Map<SenderState, Long> _timeouts = new EnumMap<>(SenderState.class);
+
+    public SendOptions() {
+
+        _timeouts.put(SenderState.CONNECTING, 30_000L);
+        // the receiver asks the user, since protocol version 2 before answering the manifest
+        _timeouts.put(SenderState.WAITING_FOR_VERSION, 120_000L);
+        _timeouts.put(SenderState.WAITING_FOR_TRANSFER_ID, 120_000L);
+        _timeouts.put(SenderState.WAITING_FOR_COUNT, 30_000L);
+        _timeouts.put(SenderState.WAITING_FOR_ID, 30_000L);
+        _timeouts.put(SenderState.TRANSFERRING_RESOURCES, 15_000L);
+        // receivers without heartbeats are silent while they finish the last resources
+        _timeouts.put(SenderState.WAITING_FOR_RECEIVER, 30_000L);
+    }
+
+    public int getMaxConcurrentFiles() {
+        return _maxConcurrentFiles;
+    }
+
+    /**
+     * Sets the number of file payloads sent at the same time. With more than one
+     * file in flight the link isn't idle while the receiver finishes a file.
+     * Protocol version 1 always sends one file after the other.
+     */
+    public void setMaxConcurrentFiles(int maxConcurrentFiles) {
+
+        if (maxConcurrentFiles < 1) {
+            throw new IllegalArgumentException("maxConcurrentFiles must be positive");
+        }
+        _maxConcurrentFiles = maxConcurrentFiles;
+    }
+
+    public boolean isAlwaysStream() {
+        return _alwaysStream;
+    }
+
+    /**
+     * Sends every resource as stream payload. By default only resources that
+     * can't be opened as file are streamed. Ignored for protocol version 1,
+     * which doesn't know stream payloads.
+     */
+    public void setAlwaysStream(boolean alwaysStream) {
+        _alwaysStream = alwaysStream;
+    }
+
+    public boolean isVerify() {
+        return _verify;
+    }
+
+    /**
+     * Sends the content hash of every resource with the manifest. The receiver verifies
+     * every resource with it and asks for a corrupt one again, and it skips resources it
+     * got with an earlier transfer. Enabled by default. The sender reads every resource
+     * once more to compute the hashes before it sends the manifest, which delays the start
+     * of the transfer. Ignored for protocol version 1.
+     */
+    public void setVerify(boolean verify) {
+        _verify = verify;
+    }
+
+    public boolean isDeduplicate() {
+        return _deduplicate;
+    }
+
+    /**
+     * Sends the content hashes even if verification is disabled (see {@link #setVerify(boolean)}),
+     * so the receiver still skips resources it got with an earlier transfer.
+     * Disabled by default. Ignored for protocol version 1.
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        _deduplicate = deduplicate;
+    }
+
+    public boolean isCompress() {
+        return _compress;
+    }
+
+    /**
+     * Compresses resources whose beginning compresses well, like JSON or CSV
+     * exports, and sends them as stream payload. Media files are sent unchanged.
+     * Ignored for protocol version 1.
+     */
+    public void setCompress(boolean compress) {
+        _compress = compress;
+    }
+
+    public long getKeepAliveMillis() {
+        return _keepAliveMillis;
+    }
+
+    /**
+     * Keeps the connection open for this long after a successful transfer, the next
+     * transfer to the same receiver starts with the manifest. 0 (the default)
+     * disconnects at once. Needs protocol version 3 on both sides.
+     */
+    public void setKeepAliveMillis(long keepAliveMillis) {
+
+        if (keepAliveMillis < 0) {
+            throw new IllegalArgumentException("keepAliveMillis must not be negative");
+        }
+        _keepAliveMillis = keepAliveMillis;
+    }
+
+    public long getBulkSize() {
+        return _bulkSize;
+    }
+
+    /**
+     * Sets the size from which a resource waits for a high bandwidth connection,
+     * see {@link #setBandwidthWaitMillis(long)}. Resources of unknown size always wait.
+     */
+    public void setBulkSize(long bulkSize) {
+
+        if (bulkSize < 0) {
+            throw new IllegalArgumentException("bulkSize must not be negative");
+        }
+        _bulkSize = bulkSize;
+    }
+
+    public long getBandwidthWaitMillis() {
+        return _bandwidthWaitMillis;
+    }
+
+    /**
+     * Nearby connects over Bluetooth and moves to Wi-Fi later. Until then, only resources
+     * smaller than the bulk size are sent, the others wait for the upgrade at most this long.
+     * 0 sends all resources at once. Ignored for protocol version 1, which maps the files
+     * by their order.
+     */
+    public void setBandwidthWaitMillis(long bandwidthWaitMillis) {
+
+        if (bandwidthWaitMillis < 0) {
+            throw new IllegalArgumentException("bandwidthWaitMillis must not be negative");
+        }
+        _bandwidthWaitMillis = bandwidthWaitMillis;
+    }
+
+    public ResourceOrder getOrder() {
+        return _order;
+    }
+
+    /**
+     * Sets the order the resources are started in, by default the order they were passed.
+     * Ignored for protocol version 1, which maps the files by their order.
+     */
+    public void setOrder(ResourceOrder order) {
+
+        if (order == null) {
+            throw new IllegalArgumentException("order must not be null");
+        }
+        _order = order;
+    }
+
+    public long getBundleSize() {
+        return _bundleSize;
+    }
+
+    /**
+     * Packs resources smaller than this into one stream payload, see {@link Bundle}.
+     * Saves a payload and a round trip per resource, which dominate batches of many
+     * small files. 0 sends every resource on its own. Only receivers with this
+     * implementation accept bundles.
+     */
+    public void setBundleSize(long bundleSize) {
+
+        if (bundleSize < 0) {
+            throw new IllegalArgumentException("bundleSize must not be negative");
+        }
+        _bundleSize = bundleSize;
+    }
+
+    public long getHeartbeatMillis() {
+        return _heartbeatMillis;
+    }
+
+    /**
+     * Sends a heartbeat this often while the resources are transferred, the receiver
+     * answers it. Then a silent receiver is noticed even while no payload is in flight,
+     * e.g. while it finishes the last resources. 0 sends none, only receivers with this
+     * implementation answer heartbeats.
+     */
+    public void setHeartbeatMillis(long heartbeatMillis) {
+
+        if (heartbeatMillis < 0) {
+            throw new IllegalArgumentException("heartbeatMillis must not be negative");
+        }
+        _heartbeatMillis = heartbeatMillis;
+    }
+
+    /** @return the time the session waits for the receiver in the state, 0 if it waits forever */
+    public long getTimeout(SenderState state) {
+
+        Long timeout = _timeouts.get(state);
+        return timeout != null ? timeout : 0;
+    }
+
+    /**
+     * Sets how long the session waits for the receiver in the state. Every message and
+     * payload update from the receiver starts the time again. Once it's over the
+     * connection is closed and the transfer fails with <code>timeout</code>.
+     * 0 waits forever, like in the states before the connection.
+     */
+    public void setTimeout(SenderState state, long timeoutMillis) {
+
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        }
+        _timeouts.put(state, timeoutMillis);
+    }
+}
@@ -0,0 +1,1140 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import energy.py.p2pconnect.ProgressCallback;
+import energy.py.p2pconnect.ResourceDescriptor;
+import energy.py.p2pconnect.SenderState;
+
+/**
+ * The sending side of the transfer protocol for one connected endpoint.
+ *
+ * The session starts with the version handshake ({@link #start()}), or with the
+ * manifest on a kept connection ({@link #startNext()}), and ends when the receiver
+ * committed all resources or an error occurred.
+ *
+ * Until the connection reports a high bandwidth, resources of the bulk size or
+ * larger are held back and the small ones are sent first, see
+ * {@link SendOptions#setBandwidthWaitMillis(long)}. Otherwise the {@link ResourceOrder}
+ * of the options decides which resource is started next.
+ *
+ * A {@link Watchdog} closes the connection once the receiver is silent for longer than
+ * the timeout of the current state, see {@link SendOptions#setTimeout(SenderState, long)}.
+ * While the resources are transferred, receivers accepting it exchange heartbeats.
+ */
+public class SenderSession implements TransferSession {
+
+    private static final String TAG = "P2PConnect/SenderSession";
+
+    /**
+     * Looks up the sizes of the resources and opens those read before they are sent:
+     * content providers may read or query them for it, skipping reads what the receiver
+     * has and the compression samples the first bytes.
+     */
+    private static final ExecutorService _ioExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "P2PConnect-send-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface ResultCallback {
+
+        /**
+         * @param success true if the receiver committed the transfer
+         * @param error the error code (see <code>SendError</code>) or null on success
+         */
+        void onResult(boolean success, String error);
+    }
+
+    /** Opens a resource on the I/O thread. */
+    private interface Opener {
+
+        /** @return the stream to send or null to send the resource as is */
+        InputStream open() throws IOException;
+    }
+
+    /** Continues on the listener thread with an opened resource. */
+    private interface OpenCallback {
+
+        void onOpened(InputStream stream) throws IOException;
+    }
+
+    private final Transport _transport;
+    private final String _endpointId;
+    private final String _transferId;
+    private final List<ResourceDescriptor> _resources;
+    private final ProgressCallback _progressCallback;
+    private final ResultCallback _resultCallback;
+
+    private String _transferInfo;
+
+    private final ControlMessage _message = new ControlMessage();
+    private int _version = Protocol.VERSION;
+
+    private SendOptions _options = new SendOptions();
+    private ResourceHashes _hashes;
+    private Executor _executor = _ioExecutor;
+    private Scheduler _scheduler;
+    /** Null without a scheduler, then the session never times out. */
+    private Watchdog _watchdog;
+    /** Heartbeats are enabled and the receiver answers them. */
+    private boolean _heartbeat;
+
+    private SenderState _state = SenderState.CONNECTING;
+    /** Sizes of the resources, -1 if unknown. */
+    private long[] _sizes;
+    /** Resources the receiver kept from an interrupted transfer with the same id. */
+    private boolean[] _skipped;
+    /** Number of bytes the receiver kept of each resource, they aren't sent again. */
+    private long[] _offsets;
+    /** Indexes of the resources not started yet, ascending. */
+    private final List<Integer> _pending = new ArrayList<>();
+    /** The bytes left to send of each resource, for the {@link ResourceOrder}. */
+    private long[] _remaining;
+    private int[] _priorities;
+    /** Resources the receiver asked for again, they are sent before the next ones. */
+    private final Deque<Integer> _resends = new ArrayDeque<>();
+    /** Large resources are held back until the connection has a high bandwidth or the wait timed out. */
+    private boolean _waitingForBandwidth;
+    /** Large resources held back, they are sent before the next ones once the wait ended. */
+    private final Deque<Integer> _deferred = new ArrayDeque<>();
+    /** Resources whose payload was sent completely. */
+    private boolean[] _sent;
+    private int _completedResources;
+    /** Resource index by payload id of the file payloads in flight. */
+    private final Map<Long, Integer> _inFlight = new HashMap<>();
+    /** Payloads opened on the I/O thread, they take a place in the window meanwhile. */
+    private int _opening;
+    /** The compressed payloads in flight by payload id. */
+    private final Map<Long, Compression.DeflatingStream> _compressed = new HashMap<>();
+    /** The resources of the bundles in flight by payload id, the first one is in <code>_inFlight</code>. */
+    private final Map<Long, int[]> _bundles = new HashMap<>();
+    /** Compression is enabled and the receiver accepted it. */
+    private boolean _compress;
+    /** Bundling is enabled and the receiver accepted it. */
+    private boolean _bundling;
+    /** The progress of all resources, once they are sent. */
+    private BatchProgress _batchProgress;
+    /** The receiver committed and the connection stays open for the next transfer. */
+    private boolean _connectionKept;
+
+    private final TransferStats _stats;
+
+    public SenderSession(Transport transport, String endpointId, String transferId,
+                         List<ResourceDescriptor> resources,
+                         ProgressCallback progressCallback, ResultCallback resultCallback) {
+
+        _transport = transport;
+        _endpointId = endpointId;
+        _transferId = transferId;
+        _resources = resources;
+        _progressCallback = progressCallback;
+        _resultCallback = resultCallback;
+
+        _stats = new TransferStats("send", endpointId, transferId);
+        _stats.enterPhase(_state.name());
+    }
+
+    /** Sets the (localized) info text shown while resources are transferred. */
+    public void setTransferInfo(String transferInfo) {
+        _transferInfo = transferInfo;
+    }
+
+    public SenderState getState() {
+        return _state;
+    }
+
+    private void setState(SenderState state) {
+
+        _state = state;
+        if (state == SenderState.NONE) {
+            _stats.finish();
+        } else {
+            _stats.enterPhase(state.name());
+        }
+
+        if (_watchdog == null) return;
+        if (state == SenderState.NONE) {
+            _watchdog.stop();
+        } else {
+            _watchdog.expect(_options.getTimeout(state));
+        }
+    }
+
+    /** @return the metrics of this session, kept after it ended */
+    public TransferStats getStats() {
+        return _stats;
+    }
+
+    @Override
+    public String getEndpointId() {
+        return _endpointId;
+    }
+
+    @Override
+    public String getTransferId() {
+        return _transferId;
+    }
+
+    /** Must be called before {@link #start()}. */
+    public void setOptions(SendOptions options) {
+        _options = options;
+    }
+
+    /**
+     * Shares the content hashes with other sessions sending the same resources.
+     * Must be called before {@link #start()}, by default the session computes them itself.
+     */
+    public void setHashes(ResourceHashes hashes) {
+        _hashes = hashes;
+    }
+
+    /**
+     * Runs the blocking I/O of the session, by default on threads shared by all sessions.
+     * Must be called before {@link #start()}.
+     */
+    public void setExecutor(Executor executor) {
+        _executor = executor;
+    }
+
+    /**
+     * Schedules the timeouts, the heartbeats and the end of the wait for a high bandwidth
+     * connection. Must be called before {@link #start()}, without a scheduler the session
+     * never times out and all resources are sent at once.
+     */
+    public void setScheduler(Scheduler scheduler) {
+        _scheduler = scheduler;
+    }
+
+    /**
+     * Limits the protocol version offered to the receiver.
+     * Must be called before {@link #start()} or {@link #startNext()}.
+     */
+    public void setProtocolVersion(int version) {
+        _version = version;
+    }
+
+    /** @return the offered or, after the version check, the negotiated protocol version. */
+    public int getProtocolVersion() {
+        return _version;
+    }
+
+    private boolean isLegacy() {
+        return _version == Protocol.LEGACY_VERSION;
+    }
+
+    /**
+     * Starts the handshake. Must be called once the connection is established.
+     *
+     * The version check is always sent as string, so receivers knowing
+     * version 1 only are able to deny it. Since version 2 the manifest
+     * follows, as soon as the content hashes are computed.
+     */
+    public void start() {
+
+        prepare(() -> {
+
+            sendMessage("ver." + _version);
+
+            if (isLegacy()) {
+                return;
+            }
+            startManifest();
+        });
+    }
+
+    /**
+     * Starts with the manifest on a connection kept open after an earlier session
+     * (see {@link KeptConnections}), the version isn't checked again.
+     * The protocol version negotiated then must be set with {@link #setProtocolVersion(int)}.
+     */
+    public void startNext() {
+
+        if (_version < Protocol.KEEP_ALIVE_VERSION) {
+            throw new IllegalStateException("Protocol version " + _version + " can't reuse a connection");
+        }
+
+        prepare(this::startManifest);
+    }
+
+    /** Starts the watchdog and looks up the sizes of the resources, then starts the handshake. */
+    private void prepare(Runnable handshake) {
+
+        _skipped = new boolean[_resources.size()];
+        _offsets = new long[_resources.size()];
+        _sent = new boolean[_resources.size()];
+
+        if (_scheduler != null) {
+            long heartbeatMillis = _options.getHeartbeatMillis();
+            _watchdog = new Watchdog(_scheduler, heartbeatMillis > 0 ? heartbeatMillis : Watchdog.DEFAULT_PERIOD_MILLIS,
+                    new Watchdog.Listener() {
+                        @Override
+                        public void onTick() {
+                            sendHeartbeat();
+                        }
+
+                        @Override
+                        public void onTimeout(long silentMillis) {
+                            TransferLog.w(TAG, "No answer from '" + _endpointId + "' for " + silentMillis
+                                    + " ms in state '" + _state + "'");
+                            failCall("timeout");
+                        }
+                    });
+            _watchdog.start();
+        }
+
+        setState(SenderState.WAITING_FOR_VERSION);
+
+        _executor.execute(() -> {
+
+            long[] sizes = new long[_resources.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = _transport.getSize(_resources.get(i).getUri());
+            }
+
+            _transport.runOnListenerThread(() -> {
+
+                if (_state != SenderState.WAITING_FOR_VERSION) return; // failed meanwhile
+
+                _sizes = sizes;
+                handshake.run();
+            });
+        });
+    }
+
+    private void sendHeartbeat() {
+
+        if (_heartbeat && (_state == SenderState.TRANSFERRING_RESOURCES || _state == SenderState.WAITING_FOR_RECEIVER)) {
+            sendFrame(ControlMessage.encode(_version, ControlMessage.HEARTBEAT));
+        }
+    }
+
+    private void startManifest() {
+
+        if (_options.isVerify() || _options.isDeduplicate()) {
+            if (_hashes == null) {
+                _hashes = new ResourceHashes(_transport, _resources);
+            }
+            _hashes.get(this::sendManifest);
+        } else {
+            sendManifest(new byte[_resources.size()][]);
+        }
+    }
+
+    private void sendManifest(byte[][] hashes) {
+
+        if (_state != SenderState.WAITING_FOR_VERSION || isLegacy()) {
+            return; // already answered by a version 1 receiver
+        }
+
+        List<byte[]> manifest;
+        try {
+            manifest = ControlMessage.encodeManifest(_version, createManifest(hashes), Protocol.MAX_FRAME_SIZE);
+        } catch (ProtocolException ex) {
+            TransferLog.e(TAG, "Failed to encode manifest", ex);
+            failCall("internalError");
+            return;
+        }
+
+        for (byte[] frame : manifest) {
+            if (_state != SenderState.WAITING_FOR_VERSION || isLegacy()) {
+                break; // already answered by a version 1 receiver
+            }
+            sendFrame(frame);
+        }
+    }
+
+    private Manifest createManifest(byte[][] hashes) {
+
+        Manifest manifest = new Manifest(_transferId, _resources.size());
+        for (int i = 0; i < _resources.size(); i++) {
+            ResourceDescriptor resource = _resources.get(i);
+            manifest.ids[i] = resource.getId();
+            manifest.sizes[i] = _sizes[i];
+            manifest.hashes[i] = hashes[i];
+        }
+        return manifest;
+    }
+
+    private void updateProgress(String title, int progress, String info) {
+        _progressCallback.updateProgress(title, progress, info);
+    }
+
+    private void sendMessage(String message) {
+
+        TransferLog.i(TAG, "Sending message to endpoint '" + _endpointId + "'");
+        TransferLog.d(TAG, "Message content = '" + message + "'");
+
+        _transport.sendBytes(_endpointId, message.getBytes(StandardCharsets.UTF_8));
+        _stats.controlMessage();
+    }
+
+    private void sendFrame(byte[] frame) {
+
+        _transport.sendBytes(_endpointId, frame);
+        _stats.controlMessage();
+    }
+
+    private void failCall(String error) {
+
+        TransferLog.w(TAG, "Call failed: " + error);
+        close();
+
+        _transport.disconnect(_endpointId);
+
+        _resultCallback.onResult(false, error);
+    }
+
+    /** Ends the session, the payloads in flight are cancelled and the transport closes their files. */
+    private void close() {
+
+        setState(SenderState.NONE);
+
+        updateProgress(null, -1, null);
+
+        for (long payloadId : _inFlight.keySet()) {
+            _transport.cancel(payloadId);
+        }
+        _inFlight.clear();
+        _compressed.clear();
+        _bundles.clear();
+    }
+
+    private void finish() {
+
+        // Finish
+        setState(SenderState.NONE);
+
+        TransferLog.i(TAG, "Process completed");
+        updateProgress(null, -1, null);
+
+        _connectionKept = _options.getKeepAliveMillis() > 0 && _version >= Protocol.KEEP_ALIVE_VERSION;
+        if (!_connectionKept) {
+            _transport.disconnect(_endpointId);
+        }
+
+        _resultCallback.onResult(true, null);
+    }
+
+    /**
+     * @return true if the transfer succeeded and the connection was left open
+     *         for the next one, see {@link SendOptions#setKeepAliveMillis(long)}
+     */
+    public boolean isConnectionKept() {
+        return _connectionKept;
+    }
+
+    @Override
+    public void onBytesReceived(String endpointId, byte[] bytes) {
+
+        _stats.controlMessage();
+        if (_watchdog != null) {
+            _watchdog.heard();
+        }
+        try {
+            _message.decode(bytes, false);
+        } catch (ProtocolException ex) {
+            TransferLog.e(TAG, "Received malformed message", ex);
+            failCall("internalError");
+            return;
+        }
+
+        if (_message.type == ControlMessage.HEARTBEAT) {
+            return; // the answer to a heartbeat, only the time counts
+        }
+
+        switch(_state) {
+
+            case WAITING_FOR_VERSION:
+
+                if (!_message.isLegacy() && _message.version <= _version
+                        && (_message.type == ControlMessage.ACCEPT || _message.type == ControlMessage.DENY)) {
+
+                    // the receiver answered the manifest
+                    _version = _message.version;
+                    TransferLog.i(TAG, "Using protocol version " + _version);
+
+                    if (_message.type == ControlMessage.DENY) {
+                        failCall("transferDenied");
+                        break;
+                    }
+
+                    if (!resume(_message)) {
+                        TransferLog.e(TAG, "Received invalid resume information");
+                        failCall("internalError");
+                        break;
+                    }
+                    _compress = _options.isCompress()
+                            && (_message.encodings & (1 << Protocol.ENCODING_DEFLATE)) != 0;
+                    _bundling = _options.getBundleSize() > 0
+                            && (_message.encodings & (1 << Protocol.ENCODING_BUNDLE)) != 0;
+                    _heartbeat = _options.getHeartbeatMillis() > 0
+                            && (_message.encodings & (1 << Protocol.ENCODING_HEARTBEAT)) != 0;
+
+                    updateProgress(null, 100, null);
+                    try {
+                        sendResources();
+                    } catch(IOException ex) {
+                        TransferLog.e(TAG, "Failed sending next resource", ex);
+                        failCall("internalError");
+                    }
+                    break;
+
+                } else if (_message.type == ControlMessage.ACCEPT && isLegacy()) {
+
+                    TransferLog.i(TAG, "Using protocol version " + _version);
+
+                } else if (_message.type == ControlMessage.DENY && _message.isLegacy() && !isLegacy()) {
+
+                    // The receiver only knows version 1. It still waits for the transfer id.
+                    TransferLog.i(TAG, "Falling back to protocol version " + Protocol.LEGACY_VERSION);
+                    _version = Protocol.LEGACY_VERSION;
+
+                } else {
+
+                    failCall("versionMismatch");
+                    break;
+                }
+
+                setState(SenderState.WAITING_FOR_TRANSFER_ID);
+                updateProgress(null, 50, null);
+                sendMessage("tid." + _transferId);
+
+                break;
+
+            case WAITING_FOR_TRANSFER_ID:
+
+                if (_message.type == ControlMessage.ACCEPT) {
+
+                    setState(SenderState.WAITING_FOR_COUNT);
+                    updateProgress(null, 75, null);
+                    sendMessage("cnt." + _resources.size());
+
+                } else { // tid.deny
+
+                    failCall("transferDenied");
+                }
+
+                break;
+
+            case WAITING_FOR_COUNT:
+
+                if (_message.type == ControlMessage.ACCEPT) {
+
+                    updateProgress(null, 90, null);
+
+                    for (int i = 0; i < _resources.size(); i++) {
+                        sendMessage("id." + i + "." + _resources.get(i).getId());
+                    }
+
+                    setState(SenderState.WAITING_FOR_ID);
+                    sendMessage("id.done");
+
+                } else { // cnt.deny (?) not really possible atm
+
+                    failCall("internalError");
+                }
+
+                break;
+
+            case WAITING_FOR_ID:
+
+                if (_message.type == ControlMessage.ACCEPT) {
+
+                    updateProgress(null, 100, null);
+                    try {
+                        sendResources();
+                    } catch(IOException ex) {
+                        TransferLog.e(TAG, "Failed sending next resource", ex);
+                        failCall("internalError");
+                        return;
+                    }
+
+                } else { // cnt.deny (?) not really possible atm
+
+                    failCall("internalError");
+                }
+
+                break;
+
+            case TRANSFERRING_RESOURCES:
+
+                if (_message.type == ControlMessage.RESEND) {
+                    resend((int) _message.value);
+                } else {
+                    failCall("internalError");
+                }
+
+                break;
+
+            case WAITING_FOR_RECEIVER:
+
+                if (_message.type == ControlMessage.RESEND) {
+
+                    setState(SenderState.TRANSFERRING_RESOURCES);
+                    resend((int) _message.value);
+
+                } else if (_message.type == ControlMessage.ALL_DONE) {
+
+                    TransferLog.i(TAG, "Received commit from receiver");
+                    finish();
+
+                } else {
+
+                    failCall("internalError");
+                }
+
+                break;
+
+            default:
+
+                // Invalid internal state
+                failCall("internalError");
+
+                break;
+        }
+    }
+
+    /**
+     * Takes the resources and bytes into account that the receiver kept
+     * from an interrupted transfer with the same id.
+     *
+     * @return false if the answer doesn't match the resources
+     */
+    private boolean resume(ControlMessage answer) {
+
+        for (int index : answer.completed) {
+
+            if (index >= _resources.size()) return false;
+            _skipped[index] = true;
+            _stats.skippedResource();
+        }
+
+        long resumedBytes = 0;
+        for (int i = 0; i < answer.partial.length; i++) {
+
+            int index = answer.partial[i];
+            long offset = answer.partialOffsets[i];
+            if (index >= _resources.size() || (_sizes[index] >= 0 && offset >= _sizes[index])) return false;
+
+            _offsets[index] = offset;
+            resumedBytes += offset;
+        }
+        _stats.resumedBytes(resumedBytes);
+
+        if (answer.completed.length > 0 || answer.partial.length > 0) {
+            TransferLog.i(TAG, "Resuming transfer, receiver has " + answer.completed.length
+                    + " resource(s) and " + resumedBytes + " bytes of " + answer.partial.length + " other(s)");
+        }
+        return true;
+    }
+
+    /**
+     * Sends a resource again from the start, the receiver found it corrupt
+     * or couldn't copy the file it had.
+     */
+    private void resend(int index) {
+
+        if (index >= _resources.size() || _resends.contains(index)) {
+            TransferLog.e(TAG, "Received invalid resend request for resource " + index);
+            failCall("internalError");
+            return;
+        }
+
+        TransferLog.w(TAG, "Receiver asks for resource " + index + " again");
+        _stats.resend();
+        if (_skipped[index]) {
+            _skipped[index] = false;
+            _completedResources--;
+        } else if (_sent[index]) {
+            _sent[index] = false;
+            _completedResources--;
+        }
+        _offsets[index] = 0;
+        _batchProgress.reset(index);
+        _resends.add(index);
+
+        try {
+            sendNextResources();
+        } catch(IOException ex) {
+            TransferLog.e(TAG, "Failed sending next resource", ex);
+            failCall("internalError");
+        }
+    }
+
+    @Override
+    public void onFileReceived(String endpointId, long payloadId, ReceivedFile file) {
+
+        TransferLog.e(TAG, "Received file payload");
+        failCall("internalError");
+    }
+
+    @Override
+    public void onStreamReceived(String endpointId, long payloadId, InputStream stream) {
+
+        TransferLog.e(TAG, "Received stream payload");
+        failCall("internalError");
+    }
+
+    @Override
+    public void onTransferUpdate(String endpointId, TransferUpdate update) {
+
+        if (_watchdog != null) {
+            _watchdog.heard(); // the receiver takes the bytes
+        }
+
+        Integer index = _inFlight.get(update.getPayloadId());
+        if (index == null) {
+            // we are not interested in other payload updates here
+            return;
+        }
+
+        switch(update.getStatus()) {
+
+            case SUCCESS:
+
+                TransferLog.i(TAG, "Transfer complete for payload " + update.getPayloadId());
+
+                _inFlight.remove(update.getPayloadId());
+                Compression.DeflatingStream deflated = _compressed.remove(update.getPayloadId());
+                int[] bundle = _bundles.remove(update.getPayloadId());
+                _stats.payloadDone(update.getPayloadId(), update.getBytesTransferred());
+                if (bundle != null) {
+                    for (int bundled : bundle) {
+                        _stats.resourceCompleted(bundled, _sizes[bundled]);
+                        completeSent(bundled);
+                    }
+                } else {
+                    _stats.resourceCompleted(index, _offsets[index]
+                            + (deflated != null ? deflated.getBytesRead() : update.getBytesTransferred()));
+                    completeSent(index);
+                }
+                updateProgress(_batchProgress.getTitle(), _batchProgress.getPercent(), null);
+                try {
+                    sendNextResources();
+                } catch(IOException ex) {
+                    TransferLog.e(TAG, "Failed sending next resource", ex);
+                    failCall("internalError");
+                    return;
+                }
+
+                break;
+
+            case IN_PROGRESS:
+
+                _stats.payloadProgress(update.getPayloadId(), update.getBytesTransferred());
+                if (_bundles.containsKey(update.getPayloadId())) {
+                    // the resources of a bundle are small, they count once complete
+                    break;
+                }
+
+                // the progress of compressed payloads is measured in bytes of the resource
+                Compression.DeflatingStream compressed = _compressed.get(update.getPayloadId());
+                long bytesTransferred = compressed != null ? compressed.getBytesRead() : update.getBytesTransferred();
+
+                _batchProgress.update(index, bytesTransferred);
+                updateProgress(_batchProgress.getTitle(), _batchProgress.getPercent(), null);
+
+                break;
+
+            default:
+
+                TransferLog.e(TAG, "Invalid PayloadUpdateStatus (" + update.getStatus() + ")");
+                failCall("internalError");
+                break;
+        }
+    }
+
+    private void completeSent(int index) {
+
+        if (!_sent[index]) {
+            _sent[index] = true;
+            _completedResources++;
+        }
+        _batchProgress.complete(index);
+    }
+
+    @Override
+    public void onBandwidthChanged(String endpointId, Transport.Bandwidth bandwidth) {
+
+        TransferLog.i(TAG, "Bandwidth changed to " + bandwidth + " in state '" + _state + "'");
+        _stats.bandwidth(bandwidth);
+
+        if (bandwidth == Transport.Bandwidth.HIGH) {
+            endBandwidthWait("UPGRADED");
+        }
+    }
+
+    @Override
+    public void onDisconnected(String endpointId) {
+
+        TransferLog.i(TAG, "disconnected from endpoint '" + endpointId + "' in state '" + _state + "'");
+        _stats.finish();
+
+        if (_state == SenderState.NONE) return;
+
+        // the receiver committed nothing yet, it keeps what it got for the next attempt
+        TransferLog.w(TAG, "Call failed: transferInterrupted");
+        close();
+        _resultCallback.onResult(false, "transferInterrupted");
+    }
+
+    /** Fills the window of concurrent file payloads. */
+    private void sendNextResources() throws IOException {
+
+        int window = isLegacy() ? 1 : _options.getMaxConcurrentFiles();
+
+        while (_inFlight.size() + _opening < window && !_resends.isEmpty()) {
+            sendResource(_resends.poll());
+        }
+
+        while (_inFlight.size() + _opening < window && !_waitingForBandwidth && !_deferred.isEmpty()) {
+            sendResource(_deferred.poll());
+        }
+
+        // the receiver of version 1 maps the files by their order
+        ResourceOrder order = isLegacy() ? ResourceOrder.IN_ORDER : _options.getOrder();
+
+        while (_inFlight.size() + _opening < window && !_pending.isEmpty()) {
+
+            int index = order.next(_pending, _inFlight.values(), _remaining, _priorities);
+            _pending.remove(Integer.valueOf(index));
+            if (_waitingForBandwidth && isBulk(index)) {
+                TransferLog.d(TAG, "Resource " + index + " waits for a high bandwidth connection");
+                _deferred.add(index);
+                _stats.deferredResource();
+                continue;
+            }
+            if (isBundled(index)) {
+                sendBundle(index, order);
+            } else {
+                sendResource(index);
+            }
+        }
+
+        if (_completedResources >= _resources.size() && _inFlight.isEmpty() && _opening == 0) {
+
+            TransferLog.i(TAG, "All " + _completedResources + " resource(s) sent");
+            TransferLog.d(TAG, "Waiting for the receiver to commit");
+
+            updateProgress("⏳", 100, null);
+            setState(SenderState.WAITING_FOR_RECEIVER);
+        }
+    }
+
+    private void sendResource(int index) throws IOException {
+
+        // 📂 x/y
+        updateProgress(_batchProgress.getTitle(), _batchProgress.getPercent(), _transferInfo);
+
+        ResourceDescriptor resource = _resources.get(index);
+        _stats.resourceStarted(index);
+
+        long offset = _offsets[index];
+        boolean compress = _compress && (_sizes[index] < 0 || _sizes[index] - offset >= Compression.MIN_SIZE);
+        if (!compress && offset == 0) {
+            startResource(index, null);
+            return;
+        }
+
+        openInBackground(() -> {
+
+            InputStream stream = compress
+                    ? Compression.deflateIfWorthwhile(openInputStream(resource.getUri(), offset)) : null;
+            if (stream == null && offset > 0) {
+                stream = openInputStream(resource.getUri(), offset);
+            }
+            return stream;
+
+        }, stream -> startResource(index, stream));
+    }
+
+    /**
+     * Starts the payload of a resource.
+     *
+     * @param stream the compressed resource or the resource from its offset, null to send it as is
+     */
+    private void startResource(int index, InputStream stream) throws IOException {
+
+        ResourceDescriptor resource = _resources.get(index);
+        long offset = _offsets[index];
+        Compression.DeflatingStream compressed = stream instanceof Compression.DeflatingStream
+                ? (Compression.DeflatingStream) stream : null;
+
+        long payloadId;
+        if (compressed != null) {
+            TransferLog.i(TAG, "Compressing resource " + index);
+            payloadId = _transport.sendStream(_endpointId, compressed);
+            _compressed.put(payloadId, compressed);
+            _stats.streamPayload();
+            _stats.compressedPayload();
+        } else if (stream != null) {
+            TransferLog.i(TAG, "Streaming resource " + index + " from offset " + offset);
+            payloadId = _transport.sendStream(_endpointId, stream);
+            _stats.streamPayload();
+        } else if (_options.isAlwaysStream() && !isLegacy()) {
+            payloadId = _transport.sendStream(_endpointId, _transport.openInputStream(resource.getUri()));
+            _stats.streamPayload();
+        } else {
+            try {
+                payloadId = _transport.sendFile(_endpointId, resource.getUri());
+                _stats.filePayload();
+            } catch (FileNotFoundException ex) {
+
+                if (isLegacy()) {
+                    throw ex; // receivers of version 1 ignore stream payloads
+                }
+
+                TransferLog.i(TAG, "Streaming resource " + index + ", it can't be sent as file: " + ex.getMessage());
+                payloadId = _transport.sendStream(_endpointId, _transport.openInputStream(resource.getUri()));
+                _stats.streamPayload();
+            }
+        }
+        _inFlight.put(payloadId, index);
+        if (!isLegacy()) {
+            sendFrame(ControlMessage.encodeFile(_version, payloadId, index, offset,
+                    compressed != null ? Protocol.ENCODING_DEFLATE : Protocol.ENCODING_IDENTITY));
+        }
+
+        TransferLog.i(TAG, "Starting transfer of resource " + index + " with payload " + payloadId);
+    }
+
+    /** @return true if the resource is small enough to be sent in a {@link Bundle} */
+    private boolean isBundled(int index) {
+        return _bundling && _sizes[index] >= 0 && _offsets[index] == 0 && _sizes[index] < _options.getBundleSize();
+    }
+
+    /**
+     * Sends the resource in a bundle, together with the next small resources
+     * in the {@link ResourceOrder}. A single small resource is sent on its own.
+     */
+    private void sendBundle(int first, ResourceOrder order) throws IOException {
+
+        List<Integer> candidates = new ArrayList<>();
+        for (int index : _pending) {
+            if (isBundled(index) && !(_waitingForBandwidth && isBulk(index))) {
+                candidates.add(index);
+            }
+        }
+
+        List<Integer> indexes = new ArrayList<>();
+        indexes.add(first);
+        long bytes = _sizes[first];
+        while (!candidates.isEmpty() && indexes.size() < Bundle.MAX_ENTRIES) {
+
+            int index = order.next(candidates, _inFlight.values(), _remaining, _priorities);
+            if (bytes + _sizes[index] > Bundle.MAX_BYTES) break;
+
+            candidates.remove(Integer.valueOf(index));
+            _pending.remove(Integer.valueOf(index));
+            indexes.add(index);
+            bytes += _sizes[index];
+        }
+
+        if (indexes.size() == 1) {
+            sendResource(first);
+            return;
+        }
+
+        // 📂 x/y
+        updateProgress(_batchProgress.getTitle(), _batchProgress.getPercent(), _transferInfo);
+
+        int[] bundle = new int[indexes.size()];
+        String[] uris = new String[bundle.length];
+        for (int i = 0; i < bundle.length; i++) {
+            bundle[i] = indexes.get(i);
+            uris[i] = _resources.get(bundle[i]).getUri();
+            _stats.resourceStarted(bundle[i]);
+        }
+
+        long size = bytes;
+        if (_compress && size >= Compression.MIN_SIZE) {
+            openInBackground(() -> Compression.deflateIfWorthwhile(new Bundle.Packer(_transport, uris, bundle)),
+                    stream -> startBundle(bundle, uris, size, stream));
+            return;
+        }
+        startBundle(bundle, uris, size, null);
+    }
+
+    /** @param compressed the compressed bundle, null to send it as is */
+    private void startBundle(int[] bundle, String[] uris, long bytes, InputStream compressed) {
+
+        int encoding = compressed != null ? Protocol.ENCODING_DEFLATE : Protocol.ENCODING_IDENTITY;
+        InputStream stream = compressed != null ? compressed : new Bundle.Packer(_transport, uris, bundle);
+
+        long payloadId = _transport.sendStream(_endpointId, stream);
+        _stats.streamPayload();
+        if (encoding == Protocol.ENCODING_DEFLATE) {
+            _stats.compressedPayload();
+        }
+        _stats.bundledResources(bundle.length);
+
+        _inFlight.put(payloadId, bundle[0]);
+        _bundles.put(payloadId, bundle);
+        sendFrame(ControlMessage.encodeBundle(_version, payloadId, encoding, bundle));
+
+        TransferLog.i(TAG, "Starting transfer of " + bundle.length + " resources (" + bytes
+                + " bytes) bundled in payload " + payloadId);
+    }
+
+    /**
+     * Opens a resource on the I/O thread, reading from it would block the listener thread.
+     * The session continues on the listener thread, unless it ended meanwhile.
+     */
+    private void openInBackground(Opener opener, OpenCallback callback) {
+
+        _opening++;
+        _executor.execute(() -> {
+
+            InputStream opened = null;
+            IOException error = null;
+            try {
+                opened = opener.open();
+            } catch (IOException ex) {
+                error = ex;
+            }
+
+            InputStream stream = opened;
+            IOException failure = error;
+            _transport.runOnListenerThread(() -> {
+
+                _opening--;
+                if (_state != SenderState.TRANSFERRING_RESOURCES) {
+                    closeQuietly(stream);
+                    return;
+                }
+
+                try {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    callback.onOpened(stream);
+                } catch (IOException ex) {
+                    TransferLog.e(TAG, "Failed sending resource", ex);
+                    closeQuietly(stream);
+                    failCall("internalError");
+                }
+            });
+        });
+    }
+
+    private static void closeQuietly(InputStream stream) {
+
+        if (stream == null) return;
+        try {
+            stream.close();
+        } catch (IOException ex) {
+            // nothing to do
+        }
+    }
+
+    /** Opens the resource and skips the bytes the receiver already has. Called on the I/O thread. */
+    private InputStream openInputStream(String uri, long offset) throws IOException {
+
+        InputStream stream = _transport.openInputStream(uri);
+        try {
+            long remaining = offset;
+            while (remaining > 0) {
+
+                long skipped = stream.skip(remaining);
+                if (skipped <= 0) {
+                    // skip() may return 0 before the end, read() tells for sure
+                    if (stream.read() < 0) {
+                        throw new IOException("Resource ends before offset " + offset);
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        } catch (IOException ex) {
+            stream.close();
+            throw ex;
+        }
+        return stream;
+    }
+
+    /** @return true if the resource is large enough to wait for a high bandwidth connection */
+    private boolean isBulk(int index) {
+        return _sizes[index] < 0 || _sizes[index] - _offsets[index] >= _options.getBulkSize();
+    }
+
+    /**
+     * Holds large resources back while the connection has a low bandwidth, e.g. Bluetooth
+     * before Nearby moved to Wi-Fi. Receivers of version 1 map the files by their order.
+     */
+    private void startBandwidthWait() {
+
+        Transport.Bandwidth bandwidth = _transport.getBandwidth(_endpointId);
+        _stats.bandwidth(bandwidth);
+
+        long waitMillis = _options.getBandwidthWaitMillis();
+        if (bandwidth == Transport.Bandwidth.HIGH || waitMillis <= 0 || _scheduler == null || isLegacy()) {
+            return;
+        }
+
+        boolean hasBulk = false;
+        for (int i = 0; i < _resources.size() && !hasBulk; i++) {
+            hasBulk = !_skipped[i] && isBulk(i);
+        }
+        if (!hasBulk) return;
+
+        TransferLog.i(TAG, "Bandwidth is " + bandwidth + ", large resources wait up to " + waitMillis + " ms");
+        _waitingForBandwidth = true;
+        _stats.bandwidthWaitStarted();
+        _scheduler.schedule(() -> endBandwidthWait("TIMEOUT"), waitMillis);
+    }
+
+    /** Sends the large resources held back, if they still wait. */
+    private void endBandwidthWait(String result) {
+
+        if (!_waitingForBandwidth || _state != SenderState.TRANSFERRING_RESOURCES) return;
+
+        TransferLog.i(TAG, "Sending " + _deferred.size() + " large resource(s) held back: " + result);
+        _waitingForBandwidth = false;
+        _stats.bandwidthWaitEnded(result);
+        try {
+            sendNextResources();
+        } catch(IOException ex) {
+            TransferLog.e(TAG, "Failed sending next resource", ex);
+            failCall("internalError");
+        }
+    }
+
+    private void sendResources() throws IOException {
+
+        setState(SenderState.TRANSFERRING_RESOURCES);
+        _pending.clear();
+        _remaining = new long[_resources.size()];
+        _priorities = new int[_resources.size()];
+        _completedResources = 0;
+        _batchProgress = new BatchProgress(_sizes);
+        for (int i = 0; i < _skipped.length; i++) {
+            if (_skipped[i]) {
+                _completedResources++;
+                _batchProgress.complete(i);
+            } else {
+                _batchProgress.setOffset(i, _offsets[i]);
+                _pending.add(i);
+            }
+            _remaining[i] = _sizes[i] >= 0 ? _sizes[i] - _offsets[i] : Long.MAX_VALUE;
+            _priorities[i] = _resources.get(i).getPriority();
+        }
+        _stats.setTotalBytes(_batchProgress.getTotalBytes() >= 0
+                ? _batchProgress.getTotalBytes() - _batchProgress.getDoneBytes() : -1);
+        startBandwidthWait();
+        sendNextResources();
+    }
+}
@@ -0,0 +1,77 @@
+package energy.py.p2pconnect.transfer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The running sessions by endpoint id.
+ *
+ * Like the sessions the registry is confined to one thread, the listener thread
+ * of the transports (the main thread on Android). It's bound to the thread it's
+ * used on first, other threads get an {@link IllegalStateException} instead of
+ * a lost update.
+ */
+public final class SessionRegistry<S extends TransferSession> {
+
+    private final Map<String, S> _sessions = new LinkedHashMap<>();
+    private Thread _thread;
+
+    private void checkThread() {
+
+        Thread current = Thread.currentThread();
+        if (_thread == null) {
+            _thread = current;
+        } else if (_thread != current) {
+            throw new IllegalStateException("Sessions are confined to thread '" + _thread.getName()
+                    + "', called on '" + current.getName() + "'");
+        }
+    }
+
+    /** Adds the session, replacing a previous session with the same endpoint. */
+    public void put(S session) {
+
+        checkThread();
+        _sessions.put(session.getEndpointId(), session);
+    }
+
+    /** @return the session or null */
+    public S get(String endpointId) {
+
+        checkThread();
+        return _sessions.get(endpointId);
+    }
+
+    /** @return the first session of the transfer or null */
+    public S findByTransferId(String transferId) {
+
+        checkThread();
+        for (S session : _sessions.values()) {
+            if (transferId.equals(session.getTransferId())) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    /** @return the removed session or null */
+    public S remove(String endpointId) {
+
+        checkThread();
+        return _sessions.remove(endpointId);
+    }
+
+    public boolean isEmpty() {
+
+        checkThread();
+        return _sessions.isEmpty();
+    }
+
+    /** @return a copy of the sessions in the order they were added */
+    public List<S> getAll() {
+
+        checkThread();
+        return new ArrayList<>(_sessions.values());
+    }
+}
@@ -0,0 +1,71 @@
+package energy.py.p2pconnect.transfer;
+
+/**
+ * Logging facade for the transfer core.
+ *
+ * The classes in this package must not depend on the Android framework,
+ * so they can run on a plain JVM (tests, benchmarks). The plugin installs
+ * a sink forwarding to <code>android.util.Log</code> when it is loaded.
+ */
+public final class TransferLog {
+
+    /** Priorities, equal to the ones of <code>android.util.Log</code>. */
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    public interface Sink {
+
+        void log(int priority, String tag, String message, Throwable throwable);
+    }
+
+    /** Prints warnings and errors only, debug output would distort measurements on the JVM. */
+    private static final Sink DEFAULT_SINK = (priority, tag, message, throwable) -> {
+
+        if (priority < WARN) return;
+
+        System.err.println(tag + ": " + message);
+        if (throwable != null) {
+            throwable.printStackTrace();
+        }
+    };
+
+    private static volatile Sink _sink = DEFAULT_SINK;
+
+    private TransferLog() {
+    }
+
+    /**
+     * Replaces the log sink.
+     *
+     * @param sink the new sink. Null restores the default sink.
+     */
+    public static void setSink(Sink sink) {
+        _sink = sink != null ? sink : DEFAULT_SINK;
+    }
+
+    public static void d(String tag, String message) {
+        _sink.log(DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        _sink.log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        _sink.log(WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable throwable) {
+        _sink.log(WARN, tag, message, throwable);
+    }
+
+    public static void e(String tag, String message) {
+        _sink.log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable throwable) {
+        _sink.log(ERROR, tag, message, throwable);
+    }
+}
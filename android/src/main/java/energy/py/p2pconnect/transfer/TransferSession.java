@@ -0,0 +1,18 @@
+package energy.py.p2pconnect.transfer;
+
+/**
+ * The state of one transfer with one endpoint, see {@link SenderSession} and
+ * {@link ReceiverSession}.
+ *
+ * A session is confined to the listener thread of its transport: the transport
+ * calls the listener methods there, all other methods must be called there as well.
+ * Several sessions (e.g. receiving from one peer while sending to another) are
+ * kept in a {@link SessionRegistry}.
+ */
+public interface TransferSession extends Transport.Listener {
+
+    String getEndpointId();
+
+    /** @return the id of the transfer, null while it's unknown */
+    String getTransferId();
+}
@@ -0,0 +1,470 @@
+package energy.py.p2pconnect.transfer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Metrics of one transfer with one endpoint: when the session entered each phase
+ * (the states of the handshake, see <code>SenderState</code> and <code>ReceiverState</code>),
+ * how long each resource took, the payloads and bytes exchanged and the throughput.
+ *
+ * Recorded by the session on the listener thread of the transport, it must be read
+ * there as well. Times are offsets in milliseconds from the start of the first phase.
+ */
+public final class TransferStats {
+
+    /** The current throughput is averaged over this window. */
+    static final long THROUGHPUT_WINDOW_NANOS = 5_000_000_000L;
+
+    interface Clock {
+        long nanoTime();
+    }
+
+    public static final class Phase {
+
+        private final String _name;
+        private long _startNanos;
+
+        private Phase(String name, long startNanos) {
+            _name = name;
+            _startNanos = startNanos;
+        }
+
+        public String getName() {
+            return _name;
+        }
+    }
+
+    public static final class Resource {
+
+        private final int _index;
+        private final long _startNanos;
+        private long _endNanos = -1;
+        private long _bytes;
+
+        private Resource(int index, long startNanos) {
+            _index = index;
+            _startNanos = startNanos;
+        }
+
+        public int getIndex() {
+            return _index;
+        }
+
+        /** @return the size of the resource, 0 until it's complete */
+        public long getBytes() {
+            return _bytes;
+        }
+
+        public boolean isComplete() {
+            return _endNanos >= 0;
+        }
+    }
+
+    private final Clock _clock;
+    private final String _role;
+    private final String _endpointId;
+    private String _transferId;
+
+    private final List<Phase> _phases = new ArrayList<>();
+    /** The end of the last phase, -1 while it lasts. */
+    private long _endNanos = -1;
+    private final Map<Integer, Resource> _resources = new LinkedHashMap<>();
+
+    private long _totalBytes = -1;
+    private long _bytesTransferred;
+    /** The bytes transferred so far by payload id, to count the progress updates of each payload once. */
+    private final Map<Long, Long> _payloadBytes = new HashMap<>();
+    /** Samples of (time, bytes transferred) within the throughput window, oldest first. */
+    private final Deque<long[]> _samples = new ArrayDeque<>();
+
+    private int _filePayloads;
+    private int _streamPayloads;
+    private int _compressedPayloads;
+    private int _bundledResources;
+    private int _controlMessages;
+    private int _resends;
+    private int _skippedResources;
+    private long _resumedBytes;
+    private long _deduplicatedBytes;
+    private final Map<String, Integer> _moveCounts = new LinkedHashMap<>();
+
+    private Transport.Bandwidth _bandwidth = Transport.Bandwidth.UNKNOWN;
+    private int _deferredResources;
+    /** The start of the wait for bandwidth, -1 if there was none. */
+    private long _bandwidthWaitStartNanos = -1;
+    private long _bandwidthWaitEndNanos = -1;
+    private String _bandwidthWaitResult;
+
+    /** @param role "send" or "receive" */
+    public TransferStats(String role, String endpointId, String transferId) {
+        this(role, endpointId, transferId, System::nanoTime);
+    }
+
+    TransferStats(String role, String endpointId, String transferId, Clock clock) {
+
+        _role = role;
+        _endpointId = endpointId;
+        _transferId = transferId;
+        _clock = clock;
+    }
+
+    public String getRole() {
+        return _role;
+    }
+
+    public String getEndpointId() {
+        return _endpointId;
+    }
+
+    /** @return the transfer id, null until the receiver got the manifest */
+    public String getTransferId() {
+        return _transferId;
+    }
+
+    void setTransferId(String transferId) {
+        _transferId = transferId;
+    }
+
+    void setTotalBytes(long totalBytes) {
+        _totalBytes = totalBytes;
+    }
+
+    /** Starts a phase now, unless the session is in this phase already. */
+    void enterPhase(String name) {
+
+        Phase current = _phases.isEmpty() ? null : _phases.get(_phases.size() - 1);
+        if (current != null && current._name.equals(name) && _endNanos < 0) {
+            return;
+        }
+
+        _phases.add(new Phase(name, _clock.nanoTime()));
+        _endNanos = -1;
+    }
+
+    /**
+     * Adds a phase that started before the session, like browsing for peers.
+     * A phase of the same name that follows is merged into it.
+     *
+     * @param startNanos the start as returned by <code>System.nanoTime()</code>
+     */
+    public void recordPhase(String name, long startNanos) {
+
+        int position = 0;
+        while (position < _phases.size() && _phases.get(position)._startNanos <= startNanos) {
+            position++;
+        }
+
+        if (position < _phases.size() && _phases.get(position)._name.equals(name)) {
+            _phases.get(position)._startNanos = startNanos;
+        } else if (position == 0 || !_phases.get(position - 1)._name.equals(name)) {
+            _phases.add(position, new Phase(name, startNanos));
+        }
+    }
+
+    /** Ends the last phase, the session is done. */
+    void finish() {
+
+        if (_endNanos < 0) {
+            _endNanos = _clock.nanoTime();
+        }
+    }
+
+    public boolean isFinished() {
+        return _endNanos >= 0;
+    }
+
+    /** A resource is sent or received from now on, a resource sent again keeps its start. */
+    void resourceStarted(int index) {
+
+        Resource resource = _resources.get(index);
+        if (resource == null) {
+            _resources.put(index, new Resource(index, _clock.nanoTime()));
+        } else {
+            resource._endNanos = -1;
+        }
+    }
+
+    void resourceCompleted(int index, long bytes) {
+
+        Resource resource = _resources.get(index);
+        if (resource != null) {
+            resource._endNanos = _clock.nanoTime();
+            resource._bytes = bytes;
+        }
+    }
+
+    void filePayload() {
+        _filePayloads++;
+    }
+
+    void streamPayload() {
+        _streamPayloads++;
+    }
+
+    void compressedPayload() {
+        _compressedPayloads++;
+    }
+
+    void bundledResources(int count) {
+        _bundledResources += count;
+    }
+
+    void controlMessage() {
+        _controlMessages++;
+    }
+
+    void resend() {
+        _resends++;
+    }
+
+    void skippedResource() {
+        _skippedResources++;
+    }
+
+    void resumedBytes(long bytes) {
+        _resumedBytes += bytes;
+    }
+
+    void deduplicatedBytes(long bytes) {
+        _deduplicatedBytes += bytes;
+    }
+
+    void fileMoved(String method) {
+
+        Integer count = _moveCounts.get(method);
+        _moveCounts.put(method, count == null ? 1 : count + 1);
+    }
+
+    void bandwidth(Transport.Bandwidth bandwidth) {
+        _bandwidth = bandwidth;
+    }
+
+    void deferredResource() {
+        _deferredResources++;
+    }
+
+    /** Large resources wait for a high bandwidth connection from now on. */
+    void bandwidthWaitStarted() {
+        _bandwidthWaitStartNanos = _clock.nanoTime();
+    }
+
+    /** @param result why the large resources are sent now, "UPGRADED" or "TIMEOUT" */
+    void bandwidthWaitEnded(String result) {
+
+        _bandwidthWaitEndNanos = _clock.nanoTime();
+        _bandwidthWaitResult = result;
+    }
+
+    /** Counts the bytes a payload transferred since its last update. */
+    void payloadProgress(long payloadId, long bytesTransferred) {
+
+        Long last = _payloadBytes.get(payloadId);
+        long delta = bytesTransferred - (last != null ? last : 0);
+        if (delta <= 0) return;
+
+        _payloadBytes.put(payloadId, bytesTransferred);
+        _bytesTransferred += delta;
+
+        long now = _clock.nanoTime();
+        _samples.addLast(new long[] { now, _bytesTransferred });
+        trimSamples(now);
+    }
+
+    void payloadDone(long payloadId, long bytesTransferred) {
+
+        payloadProgress(payloadId, bytesTransferred);
+        _payloadBytes.remove(payloadId);
+    }
+
+    /** Keeps one sample at or before the start of the window as base. */
+    private void trimSamples(long now) {
+
+        while (_samples.size() > 1) {
+            long[] first = _samples.pollFirst();
+            if (_samples.peekFirst()[0] > now - THROUGHPUT_WINDOW_NANOS) {
+                _samples.addFirst(first);
+                break;
+            }
+        }
+    }
+
+    private long nowOrEnd() {
+        return _endNanos >= 0 ? _endNanos : _clock.nanoTime();
+    }
+
+    private long startNanos() {
+        return _phases.isEmpty() ? nowOrEnd() : _phases.get(0)._startNanos;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    public long getDurationMillis() {
+        return millis(nowOrEnd() - startNanos());
+    }
+
+    public List<Phase> getPhases() {
+        return Collections.unmodifiableList(_phases);
+    }
+
+    public long getStartMillis(Phase phase) {
+        return millis(phase._startNanos - startNanos());
+    }
+
+    /** @return the duration of the phase, up to now if it still lasts */
+    public long getDurationMillis(Phase phase) {
+
+        int index = _phases.indexOf(phase);
+        long end = index + 1 < _phases.size() ? _phases.get(index + 1)._startNanos : nowOrEnd();
+        return millis(end - phase._startNanos);
+    }
+
+    /** @return the timings of the resources sent or received, in the order they started */
+    public List<Resource> getResources() {
+        return new ArrayList<>(_resources.values());
+    }
+
+    /** @return the metrics of the resource, null if it wasn't started */
+    public Resource getResource(int index) {
+        return _resources.get(index);
+    }
+
+    public long getStartMillis(Resource resource) {
+        return millis(resource._startNanos - startNanos());
+    }
+
+    /** @return the duration of the resource, up to now if it's still transferred */
+    public long getDurationMillis(Resource resource) {
+        return millis((resource._endNanos >= 0 ? resource._endNanos : nowOrEnd()) - resource._startNanos);
+    }
+
+    /** @return the bytes of all file and stream payloads, as they crossed the link */
+    public long getBytesTransferred() {
+        return _bytesTransferred;
+    }
+
+    /**
+     * @return the bytes to transfer, without the ones the receiver had already,
+     *         -1 if the size of a resource is unknown
+     */
+    public long getTotalBytes() {
+        return _totalBytes;
+    }
+
+    /**
+     * @return the time to transfer the remaining bytes at the current throughput, -1 if unknown.
+     *         Compressed resources take less.
+     */
+    public long getEtaMillis() {
+
+        double throughput = getThroughput();
+        if (_totalBytes < 0 || throughput <= 0) return -1;
+
+        return Math.round(Math.max(0, _totalBytes - _bytesTransferred) * 1000 / throughput);
+    }
+
+    /** @return bytes per second over the last {@link #THROUGHPUT_WINDOW_NANOS}, 0 once finished */
+    public double getThroughput() {
+
+        if (isFinished() || _samples.isEmpty()) return 0;
+
+        long now = _clock.nanoTime();
+        trimSamples(now);
+
+        long[] base = _samples.peekFirst();
+        long elapsed = now - base[0];
+        if (_samples.size() == 1 || elapsed <= 0) {
+            // a single update, its bytes can't be attributed to a duration
+            return 0;
+        }
+        return (_bytesTransferred - base[1]) * 1e9 / elapsed;
+    }
+
+    /** @return bytes per second over the whole transfer */
+    public double getAverageThroughput() {
+
+        long elapsed = nowOrEnd() - startNanos();
+        return elapsed > 0 ? _bytesTransferred * 1e9 / elapsed : 0;
+    }
+
+    public int getFilePayloads() {
+        return _filePayloads;
+    }
+
+    /** @return the number of stream payloads, including compressed ones */
+    public int getStreamPayloads() {
+        return _streamPayloads;
+    }
+
+    public int getCompressedPayloads() {
+        return _compressedPayloads;
+    }
+
+    /** @return the number of resources sent in a bundle with others, see {@link Bundle} */
+    public int getBundledResources() {
+        return _bundledResources;
+    }
+
+    /** @return the number of control messages sent and received */
+    public int getControlMessages() {
+        return _controlMessages;
+    }
+
+    /** @return how often a corrupt resource was requested again */
+    public int getResends() {
+        return _resends;
+    }
+
+    /** @return the number of resources the receiver had already, they didn't cross the link */
+    public int getSkippedResources() {
+        return _skippedResources;
+    }
+
+    /** @return the bytes kept from an interrupted transfer with the same id */
+    public long getResumedBytes() {
+        return _resumedBytes;
+    }
+
+    /** @return the bytes of resources found by their content hash (receiver only) */
+    public long getDeduplicatedBytes() {
+        return _deduplicatedBytes;
+    }
+
+    /** @return how many received files were moved with each method (receiver only) */
+    public Map<String, Integer> getMoveCounts() {
+        return Collections.unmodifiableMap(_moveCounts);
+    }
+
+    /** @return the last reported quality of the connection (sender only) */
+    public Transport.Bandwidth getBandwidth() {
+        return _bandwidth;
+    }
+
+    /** @return the resources held back while waiting for a high bandwidth connection (sender only) */
+    public int getDeferredResources() {
+        return _deferredResources;
+    }
+
+    /** @return how long large resources waited for a high bandwidth connection, up to now if they still wait */
+    public long getBandwidthWaitMillis() {
+
+        if (_bandwidthWaitStartNanos < 0) return 0;
+        return millis((_bandwidthWaitEndNanos >= 0 ? _bandwidthWaitEndNanos : nowOrEnd()) - _bandwidthWaitStartNanos);
+    }
+
+    /**
+     * @return "UPGRADED" or "TIMEOUT" once the wait for a high bandwidth connection ended,
+     *         null if there was no wait or it still lasts
+     */
+    public String getBandwidthWaitResult() {
+        return _bandwidthWaitResult;
+    }
+}
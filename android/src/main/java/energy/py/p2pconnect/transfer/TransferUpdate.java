@@ -0,0 +1,44 @@
+package energy.py.p2pconnect.transfer;
+
+/**
+ * Transport independent counterpart of Nearby's <code>PayloadTransferUpdate</code>.
+ */
+public final class TransferUpdate {
+
+    public enum Status {
+        IN_PROGRESS,
+        SUCCESS,
+        FAILURE,
+        CANCELED
+    }
+
+    private final long _payloadId;
+    private final Status _status;
+    private final long _bytesTransferred;
+    private final long _totalBytes;
+
+    public TransferUpdate(long payloadId, Status status, long bytesTransferred, long totalBytes) {
+
+        _payloadId = payloadId;
+        _status = status;
+        _bytesTransferred = bytesTransferred;
+        _totalBytes = totalBytes;
+    }
+
+    public long getPayloadId() {
+        return _payloadId;
+    }
+
+    public Status getStatus() {
+        return _status;
+    }
+
+    public long getBytesTransferred() {
+        return _bytesTransferred;
+    }
+
+    /** @return the total size of the payload or -1 if unknown. */
+    public long getTotalBytes() {
+        return _totalBytes;
+    }
+}
@@ -0,0 +1,89 @@
+package energy.py.p2pconnect.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The channel between two connected peers.
+ *
+ * The transfer protocol ({@link SenderSession}, {@link ReceiverSession}) only talks
+ * to this interface. {@link LoopbackTransport} connects two sessions inside one process,
+ * the plugin uses an adapter for Google Nearby.
+ *
+ * All listener methods of a transport are called on the same thread.
+ */
+public interface Transport {
+
+    /**
+     * The quality of the medium the connection currently uses. Nearby starts on
+     * Bluetooth (LOW) and upgrades to Wi-Fi (HIGH) later, if both peers support it.
+     */
+    enum Bandwidth {
+        UNKNOWN, LOW, MEDIUM, HIGH
+    }
+
+    interface Listener {
+
+        /** A control message (BYTES payload) arrived. */
+        void onBytesReceived(String endpointId, byte[] bytes);
+
+        /** A file payload started to arrive. */
+        void onFileReceived(String endpointId, long payloadId, ReceivedFile file);
+
+        /**
+         * A stream payload started to arrive. The data must be read from
+         * the stream as it arrives, it's not stored by the transport.
+         */
+        void onStreamReceived(String endpointId, long payloadId, InputStream stream);
+
+        /** Progress of an incoming or outgoing file or stream payload. */
+        void onTransferUpdate(String endpointId, TransferUpdate update);
+
+        /** The remote side disconnected. No more data can be sent or received. */
+        void onDisconnected(String endpointId);
+
+        /** The connection moved to another medium, see {@link #getBandwidth(String)}. */
+        void onBandwidthChanged(String endpointId, Bandwidth bandwidth);
+    }
+
+    void setListener(Listener listener);
+
+    /** @return the quality of the connection to the endpoint, UNKNOWN until it's reported */
+    Bandwidth getBandwidth(String endpointId);
+
+    /**
+     * May block, it's called on a background thread.
+     *
+     * @return the size of the resource behind the given uri in bytes, -1 if unknown
+     */
+    long getSize(String uri);
+
+    /** Opens the resource behind the given uri for {@link #sendStream(String, InputStream)}. */
+    InputStream openInputStream(String uri) throws IOException;
+
+    /** Runs the task on the thread the listener methods are called on. */
+    void runOnListenerThread(Runnable task);
+
+    void sendBytes(String endpointId, byte[] bytes);
+
+    /**
+     * Sends the resource behind the given uri as a file payload.
+     *
+     * @return the payload id used in the {@link TransferUpdate}s
+     * @throws java.io.FileNotFoundException if the resource is missing or can't be opened as file
+     *         (e.g. a virtual document or generated content), it may be sent as stream
+     */
+    long sendFile(String endpointId, String uri) throws IOException;
+
+    /**
+     * Sends the content of the stream. The transport closes the stream when done.
+     * The stream is read chunk by chunk while the data is sent, its length doesn't need to be known.
+     *
+     * @return the payload id used in the {@link TransferUpdate}s
+     */
+    long sendStream(String endpointId, InputStream stream);
+
+    void cancel(long payloadId);
+
+    void disconnect(String endpointId);
+}
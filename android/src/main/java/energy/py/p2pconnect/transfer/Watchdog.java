@@ -0,0 +1,109 @@
+package energy.py.p2pconnect.transfer;
+
+/**
+ * Notices a peer that went silent. Nearby reports a lost connection only after
+ * its own timeouts, which take minutes on Bluetooth, and not at all if the app
+ * of the peer hangs while the connection stays up.
+ *
+ * A session tells the watchdog how long it may wait for the peer in its current
+ * state ({@link #expect(long)}) and whenever it hears from the peer ({@link #heard()}).
+ * The watchdog checks every period, the session may send a heartbeat then.
+ * Must be used on the listener thread of the transport.
+ */
+final class Watchdog {
+
+    /** The period of the checks if the session doesn't send heartbeats more often. */
+    static final long DEFAULT_PERIOD_MILLIS = 1000;
+
+    interface Listener {
+
+        /**
+         * Called every period before the check, e.g. to send a heartbeat or to
+         * call {@link #heard()} while the session is busy itself.
+         */
+        void onTick();
+
+        /** The peer was silent for longer than expected, the watchdog is stopped. */
+        void onTimeout(long silentMillis);
+    }
+
+    private final Scheduler _scheduler;
+    private final long _periodMillis;
+    private final Listener _listener;
+    private final TransferStats.Clock _clock;
+
+    private boolean _running;
+    /** The checks scheduled before the last {@link #stop()} are ignored, they can't be cancelled. */
+    private int _generation;
+    private long _timeoutNanos;
+    private long _lastHeard;
+
+    Watchdog(Scheduler scheduler, long periodMillis, Listener listener) {
+        this(scheduler, periodMillis, listener, System::nanoTime);
+    }
+
+    Watchdog(Scheduler scheduler, long periodMillis, Listener listener, TransferStats.Clock clock) {
+
+        _scheduler = scheduler;
+        _periodMillis = periodMillis;
+        _listener = listener;
+        _clock = clock;
+    }
+
+    /** Starts the checks, the silence counts from now. */
+    void start() {
+
+        if (_running) return;
+
+        _running = true;
+        _lastHeard = _clock.nanoTime();
+        schedule();
+    }
+
+    void stop() {
+
+        _running = false;
+        _generation++;
+    }
+
+    boolean isRunning() {
+        return _running;
+    }
+
+    /**
+     * Waits for the peer for up to the given time from now on, e.g. when
+     * the session entered another state. 0 waits forever.
+     */
+    void expect(long timeoutMillis) {
+
+        _timeoutNanos = timeoutMillis * 1_000_000;
+        _lastHeard = _clock.nanoTime();
+    }
+
+    /** The peer sent something, it's alive. */
+    void heard() {
+        _lastHeard = _clock.nanoTime();
+    }
+
+    private void schedule() {
+
+        int generation = _generation;
+        _scheduler.schedule(() -> check(generation), _periodMillis);
+    }
+
+    private void check(int generation) {
+
+        if (!_running || generation != _generation) return;
+
+        _listener.onTick();
+        if (!_running || generation != _generation) return;
+
+        long silentNanos = _clock.nanoTime() - _lastHeard;
+        if (_timeoutNanos > 0 && silentNanos >= _timeoutNanos) {
+            stop();
+            _listener.onTimeout(silentNanos / 1_000_000);
+            return;
+        }
+        schedule();
+    }
+}
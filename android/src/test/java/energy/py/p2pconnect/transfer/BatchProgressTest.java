@@ -0,0 +1,65 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BatchProgressTest {
+
+    @Test
+    public void weightsResourcesBySize() {
+
+        // a large video and two thumbnails, sent at the same time
+        BatchProgress progress = new BatchProgress(new long[] { 1_000_000, 1000, 1000 });
+        assertEquals(1_002_000, progress.getTotalBytes());
+
+        progress.update(1, 500);
+        progress.update(2, 1000);
+        progress.complete(2);
+        progress.complete(1);
+        assertEquals(0, progress.getPercent());
+        assertEquals("📂 2/3", progress.getTitle());
+
+        progress.update(0, 500_000);
+        assertEquals(50, progress.getPercent());
+        progress.update(0, 750_000);
+        assertEquals(75, progress.getPercent());
+
+        // sent again from the start
+        progress.reset(1);
+        assertEquals(1, progress.getCompleted());
+        assertEquals(751_000, progress.getDoneBytes());
+
+        progress.complete(0);
+        progress.complete(1);
+        assertEquals(100, progress.getPercent());
+    }
+
+    @Test
+    public void countsResumedBytes() {
+
+        BatchProgress progress = new BatchProgress(new long[] { 1000, 1000 });
+        progress.complete(0);
+        progress.setOffset(1, 400);
+        assertEquals(70, progress.getPercent());
+
+        progress.update(1, 300);
+        assertEquals(85, progress.getPercent());
+
+        // more bytes than announced don't count
+        progress.update(1, 2000);
+        assertEquals(100, progress.getPercent());
+    }
+
+    @Test
+    public void countsResourcesOfUnknownSize() {
+
+        BatchProgress progress = new BatchProgress(new long[] { 1000, -1, 1000, 1000 });
+        assertEquals(-1, progress.getTotalBytes());
+
+        progress.update(1, 2048);
+        progress.complete(0);
+        assertEquals(25, progress.getPercent());
+        assertEquals("📂 1/4 " + ByteCount.format(3048), progress.getTitle());
+    }
+}
@@ -0,0 +1,211 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class ControlMessageTest {
+
+    private final ControlMessage _message = new ControlMessage();
+
+    private void decode(String message, boolean fromSender) throws ProtocolException {
+        _message.decode(message.getBytes(StandardCharsets.UTF_8), fromSender);
+    }
+
+    private void assertMalformed(byte[] bytes, boolean fromSender) {
+
+        try {
+            _message.decode(bytes, fromSender);
+            fail("Expected ProtocolException for " + _message);
+        } catch (ProtocolException expected) {
+            // ok
+        }
+    }
+
+    private Manifest createManifest(int count) {
+
+        Manifest manifest = new Manifest("transfer-€", count);
+        for (int i = 0; i < count; i++) {
+            manifest.ids[i] = "résumé-" + i + "-📂";
+            manifest.sizes[i] = i == 0 ? -1 : (long) i << 32;
+            manifest.hashes[i] = i % 2 == 0 ? null : new byte[] { (byte) i, 0, (byte) 0xFF };
+        }
+        return manifest;
+    }
+
+    @Test
+    public void decodesEncodedManifest() throws Exception {
+
+        Manifest expected = createManifest(1000);
+        List<byte[]> frames = ControlMessage.encodeManifest(2, expected, 1024);
+        assertTrue(frames.size() > 1);
+
+        Manifest actual = null;
+        for (byte[] frame : frames) {
+
+            assertTrue(frame.length <= 1024);
+            _message.decode(frame, true);
+            assertEquals(ControlMessage.MANIFEST, _message.type);
+            assertEquals(2, _message.version);
+
+            if (actual == null) {
+                actual = new Manifest(_message.text, (int) _message.value);
+            }
+            assertFalse(actual.isComplete());
+            actual.addPart(_message);
+        }
+
+        assertTrue(actual.isComplete());
+        assertEquals(expected.transferId, actual.transferId);
+        assertArrayEquals(expected.ids, actual.ids);
+        assertArrayEquals(expected.sizes, actual.sizes);
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.hashes[i], actual.hashes[i]);
+        }
+    }
+
+    @Test
+    public void encodesEmptyManifest() throws Exception {
+
+        List<byte[]> frames = ControlMessage.encodeManifest(2, createManifest(0), Protocol.MAX_FRAME_SIZE);
+        assertEquals(1, frames.size());
+
+        _message.decode(frames.get(0), true);
+        Manifest manifest = new Manifest(_message.text, (int) _message.value);
+        manifest.addPart(_message);
+        assertTrue(manifest.isComplete());
+    }
+
+    @Test
+    public void rejectsManifestPartsOutOfOrder() throws Exception {
+
+        List<byte[]> frames = ControlMessage.encodeManifest(2, createManifest(100), 512);
+
+        _message.decode(frames.get(1), true);
+        Manifest manifest = new Manifest(_message.text, (int) _message.value);
+        try {
+            manifest.addPart(_message);
+            fail("Expected ProtocolException");
+        } catch (ProtocolException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void decodesResumeAnswer() throws Exception {
+
+        _message.decode(ControlMessage.encodeAccept(2, new int[] { 0, 300 },
+                new int[] { 7 }, new long[] { 5_000_000_000L }, 1 << Protocol.ENCODING_DEFLATE), false);
+
+        assertEquals(ControlMessage.ACCEPT, _message.type);
+        assertArrayEquals(new int[] { 0, 300 }, _message.completed);
+        assertArrayEquals(new int[] { 7 }, _message.partial);
+        assertArrayEquals(new long[] { 5_000_000_000L }, _message.partialOffsets);
+        assertEquals(1 << Protocol.ENCODING_DEFLATE, _message.encodings);
+
+        _message.decode(ControlMessage.encodeFile(2, -1L, 7, 5_000_000_000L, Protocol.ENCODING_DEFLATE), true);
+        assertEquals(ControlMessage.FILE, _message.type);
+        assertEquals(-1L, _message.payloadId);
+        assertEquals(7, _message.value);
+        assertEquals(5_000_000_000L, _message.fileOffset);
+        assertEquals(Protocol.ENCODING_DEFLATE, _message.encoding);
+    }
+
+    @Test
+    public void decodesBundle() throws Exception {
+
+        _message.decode(ControlMessage.encodeBundle(3, 42L, Protocol.ENCODING_IDENTITY, new int[] { 5, 0, 300 }), true);
+
+        assertEquals(ControlMessage.BUNDLE, _message.type);
+        assertEquals(42L, _message.payloadId);
+        assertEquals(Protocol.ENCODING_IDENTITY, _message.encoding);
+        assertArrayEquals(new int[] { 5, 0, 300 }, _message.bundle);
+
+        _message.decode(ControlMessage.encodeResend(3, 1), false);
+        assertArrayEquals(new int[0], _message.bundle);
+    }
+
+    @Test
+    public void decodesResendRequest() throws Exception {
+
+        _message.decode(ControlMessage.encodeResend(2, 300), false);
+
+        assertEquals(ControlMessage.RESEND, _message.type);
+        assertEquals(300, _message.value);
+    }
+
+    @Test
+    public void recognizesHeartbeat() throws Exception {
+
+        byte[] heartbeat = ControlMessage.encode(3, ControlMessage.HEARTBEAT);
+        _message.decode(heartbeat, false);
+
+        assertEquals(ControlMessage.HEARTBEAT, _message.type);
+        assertTrue(ControlMessage.isHeartbeat(heartbeat));
+        assertFalse(ControlMessage.isHeartbeat(ControlMessage.encode(3, ControlMessage.ALL_DONE)));
+        assertFalse(ControlMessage.isHeartbeat("all.done".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void computesUtf8Length() {
+
+        String text = "aä€😀\uD800x";
+        assertEquals(text.getBytes(StandardCharsets.UTF_8).length, ControlMessage.utf8Length(text));
+    }
+
+    @Test
+    public void decodesLegacyMessages() throws Exception {
+
+        decode("ver.1", true);
+        assertEquals(ControlMessage.VERSION, _message.type);
+        assertTrue(_message.isLegacy());
+        assertEquals(1, _message.value);
+
+        decode("id.12.some.id", true);
+        assertEquals(ControlMessage.RESOURCE_ID, _message.type);
+        assertEquals(12, _message.value);
+        assertEquals("some.id", _message.text);
+
+        decode("id.done", true);
+        assertEquals(ControlMessage.IDS_DONE, _message.type);
+
+        decode("tid.accept", false);
+        assertEquals(ControlMessage.ACCEPT, _message.type);
+
+        decode("tid.accept", true);
+        assertEquals(ControlMessage.TRANSFER_ID, _message.type);
+        assertEquals("accept", _message.text);
+    }
+
+    @Test
+    public void rejectsMalformedMessages() throws Exception {
+
+        assertMalformed("ver.x".getBytes(StandardCharsets.UTF_8), true);
+        assertMalformed("cnt.-1".getBytes(StandardCharsets.UTF_8), true);
+        assertMalformed("cnt.99999999999".getBytes(StandardCharsets.UTF_8), true);
+        assertMalformed("id.7".getBytes(StandardCharsets.UTF_8), true);
+        assertMalformed("hello".getBytes(StandardCharsets.UTF_8), false);
+
+        byte[] frame = ControlMessage.encodeManifest(2, createManifest(3), Protocol.MAX_FRAME_SIZE).get(0);
+        byte[] truncated = new byte[frame.length - 1];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        assertMalformed(truncated, true);
+
+        byte[] trailing = new byte[frame.length + 1];
+        System.arraycopy(frame, 0, trailing, 0, frame.length);
+        assertMalformed(trailing, true);
+
+        assertMalformed(new byte[] { ControlMessage.MAGIC, 2, 99 }, true);
+        assertMalformed(new byte[] { ControlMessage.MAGIC, 1, ControlMessage.ACCEPT }, false);
+        assertMalformed(new byte[] { ControlMessage.MAGIC, 2, ControlMessage.MANIFEST, 0,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01 }, true);
+        // more resources than allowed
+        assertMalformed(new byte[] { ControlMessage.MAGIC, 2, ControlMessage.MANIFEST, 0,
+                (byte) 0x80, (byte) 0x80, 0x08, 0, 0 }, true);
+    }
+}
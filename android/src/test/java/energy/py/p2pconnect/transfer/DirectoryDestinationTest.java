@@ -0,0 +1,65 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class DirectoryDestinationTest {
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private File received(String content) throws IOException {
+
+        File file = _folder.newFile();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String uri(File file) {
+        return "file://" + file.getAbsolutePath();
+    }
+
+    private static String content(String uri) throws IOException {
+        return new String(Files.readAllBytes(new File(uri.substring("file://".length())).toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void resolvesCollisions() throws Exception {
+
+        File directory = new File(_folder.getRoot(), "destination");
+
+        Destination rename = new DirectoryDestination(directory, Destination.Collision.RENAME);
+        String first = rename.place("report.csv", received("first"));
+        String second = rename.place("report.csv", received("second"));
+        assertEquals(uri(new File(directory, "report.csv")), first);
+        assertEquals(uri(new File(directory, "report (1).csv")), second);
+        assertEquals("second", content(second));
+
+        File third = received("third");
+        assertEquals(first, new DirectoryDestination(directory, Destination.Collision.KEEP).place("report.csv", third));
+        assertEquals("first", content(first));
+        assertFalse(third.exists());
+
+        assertEquals(first, new DirectoryDestination(directory, Destination.Collision.REPLACE)
+                .place("report.csv", received("fourth")));
+        assertEquals("fourth", content(first));
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void replacesReservedCharacters() {
+
+        assertEquals("a_b_c.txt", DirectoryDestination.fileName("a/b\\c.txt"));
+        assertEquals("résumé 📂", DirectoryDestination.fileName(" résumé 📂 "));
+        assertEquals("resource", DirectoryDestination.fileName(".."));
+        assertEquals("resource", DirectoryDestination.fileName(""));
+    }
+}
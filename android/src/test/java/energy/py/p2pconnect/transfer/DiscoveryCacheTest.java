@@ -0,0 +1,71 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class DiscoveryCacheTest {
+
+    private static final long MILLIS = 1_000_000;
+
+    private long _now = 1000 * MILLIS;
+    private final DiscoveryCache _cache = new DiscoveryCache(60_000, () -> _now);
+
+    @Test
+    public void marksEntriesStaleUntilFoundAgain() {
+
+        assertTrue(_cache.startDiscovery().isEmpty());
+        _cache.found("a", "Alice");
+        _cache.found("b", "Bob");
+        assertFalse(_cache.get("a").isStale());
+
+        List<DiscoveryCache.Entry> entries = _cache.startDiscovery();
+        assertEquals(2, entries.size());
+        assertEquals("a", entries.get(0).getEndpointId());
+        assertTrue(entries.get(0).isStale());
+        assertTrue(entries.get(1).isStale());
+
+        assertNull(_cache.found("b", "Bob"));
+        assertFalse(_cache.get("b").isStale());
+        assertTrue(_cache.get("a").isStale());
+    }
+
+    @Test
+    public void replacesStaleEntryWithSameName() {
+
+        _cache.found("a", "Alice");
+        _cache.startDiscovery();
+
+        // advertising again after a restart
+        DiscoveryCache.Entry replaced = _cache.found("c", "Alice");
+        assertEquals("a", replaced.getEndpointId());
+        assertNull(_cache.get("a"));
+        assertEquals(1, _cache.size());
+
+        // a second device with the same name while the first one is confirmed
+        assertNull(_cache.found("d", "Alice"));
+        assertEquals(2, _cache.size());
+    }
+
+    @Test
+    public void evictsLostAndExpiredEntries() {
+
+        _cache.found("a", "Alice");
+        _cache.found("c", "Carol");
+        _now += 30_000 * MILLIS;
+        _cache.found("b", "Bob");
+
+        assertEquals("c", _cache.lost("c").getEndpointId());
+        assertNull(_cache.lost("c"));
+
+        _now += 40_000 * MILLIS;
+        List<DiscoveryCache.Entry> entries = _cache.startDiscovery();
+        assertEquals(1, entries.size());
+        assertEquals("b", entries.get(0).getEndpointId());
+
+        _now += 20_000 * MILLIS;
+        assertTrue(_cache.startDiscovery().isEmpty());
+    }
+}
@@ -0,0 +1,1399 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
+
+import energy.py.p2pconnect.ProgressCallback;
+import energy.py.p2pconnect.ReceiverState;
+import energy.py.p2pconnect.ResourceDescriptor;
+import energy.py.p2pconnect.SenderState;
+
+/**
+ * Runs complete transfers between a sender and a receiver session over the loopback transport.
+ */
+public class LoopbackTransferTest {
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private LoopbackTransport[] _transports;
+    private File _cacheDir;
+    private SendOptions _sendOptions = new SendOptions();
+    private ReceiveOptions _receiveOptions = new ReceiveOptions();
+    private ProgressCallback _receiverProgress = (title, progress, info) -> {};
+    private ReceiverSession _receiver;
+    /** Runs the background tasks of all sessions of the test, they are waited for in {@link #tearDown()}. */
+    private final BackgroundTasks _background = new BackgroundTasks();
+    private SenderSession _sender;
+    /** Replaces the sender's loopback transport if set. */
+    private Transport _senderTransport;
+    /** Replaces the file payloads the receiver gets if set. */
+    private UnaryOperator<ReceivedFile> _receivedFiles;
+    /** Replaces the streams of the stream payloads the receiver gets if set. */
+    private UnaryOperator<InputStream> _receivedStreams;
+    /** The sizes of the resources the receiver reported one by one, by id. */
+    private final Map<String, Long> _receivedSizes = new ConcurrentHashMap<>();
+    /** The bandwidth waits the sender scheduled, they run when the test says so. */
+    private final List<Runnable> _senderTimers = new CopyOnWriteArrayList<>();
+    /** Runs the other scheduled tasks of both sessions, e.g. the checks of their watchdogs. */
+    private final ScheduledExecutorService _timers = Executors.newSingleThreadScheduledExecutor();
+    /** The error of the last transfer the receiver reported as failed. */
+    private final CompletableFuture<String> _receiverFailure = new CompletableFuture<>();
+
+    @Before
+    public void setUp() throws IOException {
+
+        _transports = LoopbackTransport.createPair(0, 1, _folder.newFolder("spool"));
+        _cacheDir = _folder.newFolder("cache");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+
+        // stale tasks would post to stopped listener threads or run into the next test
+        assertTrue("background tasks still running", _background.awaitIdle(10_000, _transports));
+
+        _transports[0].shutdown();
+        _transports[1].shutdown();
+    }
+
+    @After
+    public void stopTimers() {
+        _timers.shutdownNow();
+        _background.shutdown();
+    }
+
+    /** Runs the task on the listener thread of the transport after the delay. */
+    private Scheduler realTimeScheduler(Transport transport) {
+        return (task, delayMillis) -> _timers.schedule(() -> transport.runOnListenerThread(task),
+                delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private ResourceDescriptor createResource(String id, int size) throws IOException {
+
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+
+        File file = _folder.newFile(id);
+        Files.write(file.toPath(), content);
+
+        return new ResourceDescriptor(id, file.toURI().toString());
+    }
+
+    private void assertSameContent(ResourceDescriptor expected, ResourceDescriptor actual) throws IOException {
+
+        assertEquals(expected.getId(), actual.getId());
+        assertArrayEquals(
+                Files.readAllBytes(new File(URI.create(expected.getUri())).toPath()),
+                Files.readAllBytes(new File(URI.create(actual.getUri())).toPath()));
+    }
+
+    /** Starts both sessions, the receiver answers the transfer request with <code>accept</code>. */
+    private CompletableFuture<String> transfer(List<ResourceDescriptor> resources, boolean accept,
+                                               CompletableFuture<List<ResourceDescriptor>> received) {
+
+        return transfer(resources, accept, received, Protocol.VERSION, Protocol.VERSION);
+    }
+
+    private CompletableFuture<String> transfer(List<ResourceDescriptor> resources, boolean accept,
+                                               CompletableFuture<List<ResourceDescriptor>> received,
+                                               int senderVersion, int receiverVersion) {
+
+        LoopbackTransport senderTransport = _transports[0];
+        LoopbackTransport receiverTransport = _transports[1];
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+
+        ReceiverSession[] receiver = new ReceiverSession[1];
+        receiver[0] = new ReceiverSession(receiverTransport, receiverTransport.getPeerEndpointId(), _cacheDir,
+                _receiverProgress,
+                new ReceiverSession.Listener() {
+                    @Override
+                    public void onTransferRequested(String transferId) {
+                        receiver[0].acceptTransfer(transferId, accept);
+                    }
+
+                    @Override
+                    public void onResourceReceived(String transferId, ResourceDescriptor resource,
+                                                   long size, long durationMillis) {
+                        _receivedSizes.put(resource.getId(), size);
+                    }
+
+                    @Override
+                    public void onTransferComplete(String transferId, List<ResourceDescriptor> resources) {
+                        received.complete(resources);
+                    }
+
+                    @Override
+                    public void onTransferFailed(String transferId, String error) {
+                        _receiverFailure.complete(error);
+                    }
+                });
+        receiver[0].setProtocolVersion(receiverVersion);
+        receiver[0].setOptions(_receiveOptions);
+        receiver[0].setExecutors(_background.io, _background.finish);
+        receiver[0].setScheduler(realTimeScheduler(receiverTransport));
+        receiverTransport.setListener(_receivedFiles != null || _receivedStreams != null
+                ? new PayloadReplacingListener(receiver[0]) : receiver[0]);
+        receiver[0].start();
+        _receiver = receiver[0];
+
+        Transport transport = _senderTransport != null ? _senderTransport : senderTransport;
+        SenderSession sender = new SenderSession(transport, senderTransport.getPeerEndpointId(),
+                "transfer", resources, (title, progress, info) -> {},
+                (success, error) -> result.complete(success ? null : error));
+        sender.setOptions(_sendOptions);
+        sender.setExecutor(_background.io);
+        Scheduler scheduler = realTimeScheduler(transport);
+        sender.setScheduler((task, delayMillis) -> {
+            if (delayMillis == _sendOptions.getBandwidthWaitMillis()) {
+                _senderTimers.add(task);
+            } else {
+                scheduler.schedule(task, delayMillis);
+            }
+        });
+        sender.setProtocolVersion(senderVersion);
+        transport.setListener(sender);
+        sender.start();
+        _sender = sender;
+
+        return result;
+    }
+
+    @Test
+    public void transfersAllResources() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("empty", 0));
+        resources.add(createResource("small", 1000));
+        resources.add(createResource("large", 1_000_000));
+
+        _sendOptions.setBundleSize(0); // one file payload each
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        String error = transfer(resources, true, received).get(10, TimeUnit.SECONDS);
+
+        assertNull(error);
+
+        List<ResourceDescriptor> result = received.get(1, TimeUnit.SECONDS);
+        assertEquals(resources.size(), result.size());
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), result.get(i));
+        }
+
+        for (TransferStats stats : new TransferStats[] { _sender.getStats(), _receiver.getStats() }) {
+
+            assertTrue(stats.isFinished());
+            assertEquals("transfer", stats.getTransferId());
+            assertEquals(1_001_000, stats.getBytesTransferred());
+            assertEquals(3, stats.getFilePayloads());
+            assertEquals(3, stats.getResources().size());
+            for (TransferStats.Resource resource : stats.getResources()) {
+                assertTrue(resource.isComplete());
+            }
+        }
+
+        List<String> phases = new ArrayList<>();
+        for (TransferStats.Phase phase : _sender.getStats().getPhases()) {
+            phases.add(phase.getName());
+        }
+        assertEquals(Arrays.asList("CONNECTING", "WAITING_FOR_VERSION", "TRANSFERRING_RESOURCES",
+                "WAITING_FOR_RECEIVER"), phases);
+    }
+
+    @Test
+    public void keepsOrderOfConcurrentFiles() throws Exception {
+
+        // larger files first, so they complete out of order
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            resources.add(createResource("file" + i, (20 - i) * 50_000));
+        }
+        _sendOptions.setMaxConcurrentFiles(8);
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        String error = transfer(resources, true, received).get(10, TimeUnit.SECONDS);
+
+        assertNull(error);
+
+        List<ResourceDescriptor> result = received.get(1, TimeUnit.SECONDS);
+        assertEquals(resources.size(), result.size());
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), result.get(i));
+        }
+    }
+
+    @Test
+    public void transfersStreams() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("empty", 0));
+        resources.add(createResource("small", 1000));
+        resources.add(createResource("large", 1_000_000));
+        _sendOptions.setAlwaysStream(true);
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        String error = transfer(resources, true, received).get(10, TimeUnit.SECONDS);
+
+        assertNull(error);
+
+        List<ResourceDescriptor> result = received.get(1, TimeUnit.SECONDS);
+        assertEquals(resources.size(), result.size());
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), result.get(i));
+        }
+    }
+
+    @Test
+    public void compressesTextResources() throws Exception {
+
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            csv.append(i).append(";sensor-").append(i % 7).append(";").append(i * 0.25).append('\n');
+        }
+        File text = _folder.newFile("text");
+        Files.write(text.toPath(), csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(new ResourceDescriptor("text", text.toURI().toString()));
+        resources.add(createResource("random", 200_000)); // doesn't compress
+        resources.add(createResource("small", 1000));
+        _sendOptions.setCompress(true);
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        String error = transfer(resources, true, received).get(10, TimeUnit.SECONDS);
+
+        assertNull(error);
+
+        List<ResourceDescriptor> result = received.get(1, TimeUnit.SECONDS);
+        assertEquals(resources.size(), result.size());
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), result.get(i));
+        }
+    }
+
+    @Test
+    public void resendsCorruptResource() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("intact", 100_000));
+        resources.add(createResource("corrupt", 300_000));
+        _sendOptions.setAlwaysStream(true);
+
+        // the first read computes the hash, the second sends the resource with a flipped byte
+        AtomicInteger reads = new AtomicInteger();
+        _senderTransport = new ForwardingTransport(_transports[0]) {
+            @Override
+            public InputStream openInputStream(String uri) throws IOException {
+
+                InputStream stream = super.openInputStream(uri);
+                if (!uri.endsWith("corrupt") || reads.incrementAndGet() != 2) {
+                    return stream;
+                }
+                return flipFirstByte(stream);
+            }
+        };
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        String error = transfer(resources, true, received).get(10, TimeUnit.SECONDS);
+
+        assertNull(error);
+        assertEquals(3, reads.get());
+
+        List<ResourceDescriptor> result = received.get(1, TimeUnit.SECONDS);
+        assertEquals(resources.size(), result.size());
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), result.get(i));
+        }
+    }
+
+    @Test
+    public void readsResourcesOnceWithoutVerification() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("first", 100_000));
+        resources.add(createResource("second", 300_000));
+        _sendOptions.setAlwaysStream(true);
+        _sendOptions.setVerify(false);
+
+        AtomicInteger reads = new AtomicInteger();
+        _senderTransport = new ForwardingTransport(_transports[0]) {
+            @Override
+            public InputStream openInputStream(String uri) throws IOException {
+                reads.incrementAndGet();
+                return super.openInputStream(uri);
+            }
+        };
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(resources, true, received).get(10, TimeUnit.SECONDS));
+
+        assertEquals(2, reads.get());
+        List<ResourceDescriptor> result = received.get(1, TimeUnit.SECONDS);
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), result.get(i));
+        }
+    }
+
+    @Test
+    public void failsWhenResourceStaysCorrupt() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("intact", 100_000));
+        resources.add(createResource("corrupt", 300_000));
+        _sendOptions.setAlwaysStream(true);
+
+        // every read but the one computing the hash flips a byte
+        AtomicInteger reads = new AtomicInteger();
+        _senderTransport = new ForwardingTransport(_transports[0]) {
+            @Override
+            public InputStream openInputStream(String uri) throws IOException {
+
+                InputStream stream = super.openInputStream(uri);
+                if (!uri.endsWith("corrupt") || reads.incrementAndGet() == 1) {
+                    return stream;
+                }
+                return flipFirstByte(stream);
+            }
+        };
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        String error = transfer(resources, true, received).get(10, TimeUnit.SECONDS);
+
+        assertEquals("transferInterrupted", error);
+        assertEquals("transferInterrupted", _receiverFailure.get(1, TimeUnit.SECONDS));
+        assertFalse(received.isDone());
+        assertEquals(1 + 1 + ReceiverSession.MAX_RESENDS, reads.get());
+    }
+
+    private static InputStream flipFirstByte(InputStream stream) {
+
+        return new FilterInputStream(stream) {
+            private boolean _flipped;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0 && !_flipped) {
+                    b[off] ^= 1;
+                    _flipped = true;
+                }
+                return read;
+            }
+        };
+    }
+
+    @Test
+    public void hashesResourcesOnceForAllReceivers() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("first", 1000));
+        resources.add(createResource("second", 2000));
+
+        AtomicInteger reads = new AtomicInteger();
+        Transport transport = new ForwardingTransport(_transports[0]) {
+            @Override
+            public InputStream openInputStream(String uri) throws IOException {
+                reads.incrementAndGet();
+                return super.openInputStream(uri);
+            }
+        };
+        ResourceHashes hashes = new ResourceHashes(transport, resources);
+
+        // the second session asks while the hashes are computed, the third afterwards
+        CompletableFuture<byte[][]> first = new CompletableFuture<>();
+        CompletableFuture<byte[][]> second = new CompletableFuture<>();
+        transport.runOnListenerThread(() -> {
+            hashes.get(first::complete);
+            hashes.get(second::complete);
+        });
+        assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+
+        CompletableFuture<byte[][]> third = new CompletableFuture<>();
+        transport.runOnListenerThread(() -> hashes.get(third::complete));
+        assertSame(first.get(), third.get(10, TimeUnit.SECONDS));
+
+        assertEquals(resources.size(), reads.get());
+    }
+
+    @Test
+    public void transfersEmptyList() throws Exception {
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        String error = transfer(new ArrayList<>(), true, received).get(10, TimeUnit.SECONDS);
+
+        assertNull(error);
+        assertTrue(received.get(1, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    public void reportsDeniedTransfer() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("denied", 10));
+
+        String error = transfer(resources, false, new CompletableFuture<>()).get(10, TimeUnit.SECONDS);
+
+        assertEquals("transferDenied", error);
+    }
+
+    private void assertLegacyTransfer(int senderVersion, int receiverVersion) throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("legacy", 1000));
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        String error = transfer(resources, true, received, senderVersion, receiverVersion)
+                .get(10, TimeUnit.SECONDS);
+
+        assertNull(error);
+        assertSameContent(resources.get(0), received.get(1, TimeUnit.SECONDS).get(0));
+    }
+
+    @Test
+    public void fallsBackToLegacyReceiver() throws Exception {
+        assertLegacyTransfer(Protocol.VERSION, Protocol.LEGACY_VERSION);
+    }
+
+    @Test
+    public void acceptsLegacySender() throws Exception {
+        assertLegacyTransfer(Protocol.LEGACY_VERSION, Protocol.VERSION);
+    }
+
+    @Test
+    public void resumesInterruptedTransfer() throws Exception {
+
+        tearDown();
+        _transports = LoopbackTransport.createPair(2_000_000, 1, _folder.newFolder("throttled"));
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("first", 100_000));
+        resources.add(createResource("second", 300_000));
+        resources.add(createResource("third", 300_000));
+        _sendOptions.setMaxConcurrentFiles(2);
+
+        // the connection breaks when the first resource arrived, the second one is on its way
+        AtomicBoolean disconnected = new AtomicBoolean();
+        _receiverProgress = (title, progress, info) -> {
+            if ("\uD83D\uDCC2 1/3".equals(title) && !disconnected.getAndSet(true)) {
+                _transports[0].disconnect(_transports[0].getPeerEndpointId());
+            }
+        };
+        transfer(resources, true, new CompletableFuture<>());
+
+        long timeout = System.currentTimeMillis() + 5000;
+        while (!disconnected.get() || _receiver.getState() == ReceiverState.RECEIVING) {
+            assertTrue("transfer wasn't interrupted", System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+        assertEquals("transferInterrupted", _receiverFailure.get(1, TimeUnit.SECONDS));
+
+        // the sender connects again with the same transfer id
+        tearDown();
+        _transports = LoopbackTransport.createPair(0, 1, _folder.newFolder("resumed"));
+        _receiverProgress = (title, progress, info) -> {};
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        String error = transfer(resources, true, received).get(10, TimeUnit.SECONDS);
+
+        assertNull(error);
+        assertTrue(_receiver.getStats().getResumedBytes() > 100_000);
+
+        List<ResourceDescriptor> result = received.get(1, TimeUnit.SECONDS);
+        assertEquals(resources.size(), result.size());
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), result.get(i));
+        }
+
+        String[] journals = new File(_cacheDir, ReceiverSession.JOURNAL_DIR).list();
+        assertEquals(0, journals.length);
+    }
+
+    @Test
+    public void requestsFailedStreamAgain() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("first", 100_000));
+        resources.add(createResource("second", 200_000));
+        _sendOptions.setAlwaysStream(true);
+        _sendOptions.setBundleSize(0);
+
+        // the first stream breaks at its end, e.g. the storage is full for a moment
+        AtomicBoolean broken = new AtomicBoolean();
+        _receivedStreams = stream -> broken.getAndSet(true) ? stream : new FilterInputStream(stream) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+
+                int read = super.read(b, off, len);
+                if (read == -1) {
+                    throw new IOException("broken");
+                }
+                return read;
+            }
+        };
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(resources, true, received).get(10, TimeUnit.SECONDS));
+
+        List<ResourceDescriptor> result = received.get(1, TimeUnit.SECONDS);
+        assertEquals(resources.size(), result.size());
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), result.get(i));
+        }
+        assertEquals(1, _receiver.getStats().getResends());
+    }
+
+    @Test
+    public void skipsResourcesReceivedBefore() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("photo", 200_000));
+        resources.add(createResource("report", 50_000));
+        _sendOptions.setDeduplicate(true);
+
+        String error = transfer(resources, true, new CompletableFuture<>()).get(10, TimeUnit.SECONDS);
+        assertNull(error);
+
+        // the received files are verified and indexed in the background
+        File index = new File(_cacheDir, ContentIndex.FILE_NAME);
+        long timeout = System.currentTimeMillis() + 5000;
+        while (!index.exists() || Files.readAllLines(index.toPath()).size() < resources.size()) {
+            assertTrue("files weren't indexed", System.currentTimeMillis() < timeout);
+            Thread.sleep(10);
+        }
+
+        tearDown();
+        _transports = LoopbackTransport.createPair(0, 1, _folder.newFolder("again"));
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        error = transfer(resources, true, received).get(10, TimeUnit.SECONDS);
+
+        assertNull(error);
+        assertEquals(250_000, _receiver.getStats().getDeduplicatedBytes());
+
+        List<ResourceDescriptor> result = received.get(1, TimeUnit.SECONDS);
+        assertEquals(resources.size(), result.size());
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), result.get(i));
+        }
+    }
+
+    /** Runs the task on the listener thread of the transport and waits for it. */
+    private static void runOnListenerThread(Transport transport, Runnable task) throws Exception {
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        transport.runOnListenerThread(() -> {
+            task.run();
+            done.complete(null);
+        });
+        done.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void transfersAgainOverKeptConnection() throws Exception {
+
+        List<ResourceDescriptor> first = new ArrayList<>();
+        first.add(createResource("first", 1000));
+        List<ResourceDescriptor> next = new ArrayList<>();
+        next.add(createResource("second", 2000));
+        next.add(createResource("third", 300_000));
+        _sendOptions.setKeepAliveMillis(60_000);
+
+        LoopbackTransport senderTransport = _transports[0];
+        LoopbackTransport receiverTransport = _transports[1];
+
+        // the idle timers of the sender run when the test says so
+        List<Runnable> idleTimers = new ArrayList<>();
+        KeptConnections senderKept = new KeptConnections((task, delayMillis) -> idleTimers.add(task));
+        KeptConnections receiverKept = new KeptConnections((task, delayMillis) -> fail("receiver waits for the sender"));
+
+        CompletableFuture<List<ResourceDescriptor>> nextReceived = new CompletableFuture<>();
+        CompletableFuture<Void> receiverClosed = new CompletableFuture<>();
+        receiverKept.setListener(new KeptConnections.Listener() {
+            @Override
+            public void onNextTransfer(KeptConnections.Connection connection, byte[] bytes) {
+
+                ReceiverSession[] receiver = new ReceiverSession[1];
+                receiver[0] = new ReceiverSession(connection.getTransport(), connection.getEndpointId(), _cacheDir,
+                        _receiverProgress, new ReceiverSession.Listener() {
+                            @Override
+                            public void onTransferRequested(String transferId) {
+                                receiver[0].acceptTransfer(transferId, true);
+                            }
+
+                            @Override
+                            public void onResourceReceived(String transferId, ResourceDescriptor resource,
+                                                           long size, long durationMillis) {
+                            }
+
+                            @Override
+                            public void onTransferComplete(String transferId, List<ResourceDescriptor> resources) {
+                                receiverKept.keep(connection.getTransport(), connection.getEndpointId(), null,
+                                        receiver[0].getProtocolVersion(), 0);
+                                nextReceived.complete(resources);
+                            }
+
+                            @Override
+                            public void onTransferFailed(String transferId, String error) {
+                                _receiverFailure.complete(error);
+                            }
+                        });
+                receiver[0].setExecutors(_background.io, _background.finish);
+                receiver[0].startNext(connection.getProtocolVersion());
+                connection.getTransport().setListener(receiver[0]);
+                receiver[0].onBytesReceived(connection.getEndpointId(), bytes);
+                _receiver = receiver[0];
+            }
+
+            @Override
+            public void onClosed(KeptConnections.Connection connection) {
+                receiverClosed.complete(null);
+            }
+        });
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(first, true, received).get(10, TimeUnit.SECONDS));
+        received.get(1, TimeUnit.SECONDS);
+        assertTrue(_sender.isConnectionKept());
+        assertEquals(Protocol.KEEP_ALIVE_VERSION, _receiver.getProtocolVersion());
+
+        ReceiverSession firstReceiver = _receiver;
+        SenderSession firstSender = _sender;
+        runOnListenerThread(receiverTransport, () -> receiverKept.keep(receiverTransport,
+                receiverTransport.getPeerEndpointId(), null, firstReceiver.getProtocolVersion(), 0));
+        runOnListenerThread(senderTransport, () -> senderKept.keep(senderTransport,
+                senderTransport.getPeerEndpointId(), "receiver", firstSender.getProtocolVersion(), 60_000));
+
+        // the next transfer starts with the manifest
+        CompletableFuture<String> result = new CompletableFuture<>();
+        runOnListenerThread(senderTransport, () -> {
+
+            KeptConnections.Connection connection = senderKept.take(senderTransport.getPeerEndpointId());
+            assertEquals("receiver", connection.getName());
+
+            SenderSession sender = new SenderSession(connection.getTransport(), connection.getEndpointId(),
+                    "next", next, (title, progress, info) -> {},
+                    (success, error) -> result.complete(success ? null : error));
+            sender.setOptions(_sendOptions);
+            sender.setExecutor(_background.io);
+            sender.setProtocolVersion(connection.getProtocolVersion());
+            connection.getTransport().setListener(sender);
+            sender.startNext();
+            _sender = sender;
+        });
+
+        assertNull(result.get(10, TimeUnit.SECONDS));
+        List<ResourceDescriptor> result2 = nextReceived.get(1, TimeUnit.SECONDS);
+        assertEquals(next.size(), result2.size());
+        for (int i = 0; i < next.size(); i++) {
+            assertSameContent(next.get(i), result2.get(i));
+        }
+        for (TransferStats.Phase phase : _receiver.getStats().getPhases()) {
+            assertNotEquals("version isn't checked again", "WAITING_FOR_VERSION", phase.getName());
+        }
+        assertEquals(302_000, _sender.getStats().getBytesTransferred());
+
+        // the timer of the first idle period doesn't close the connection used again
+        SenderSession nextSender = _sender;
+        runOnListenerThread(senderTransport, () -> {
+            senderKept.keep(senderTransport, senderTransport.getPeerEndpointId(), "receiver",
+                    nextSender.getProtocolVersion(), 60_000);
+            idleTimers.get(0).run();
+        });
+        assertNotNull(senderKept.get(senderTransport.getPeerEndpointId()));
+        assertFalse(receiverClosed.isDone());
+
+        runOnListenerThread(senderTransport, () -> idleTimers.get(1).run());
+        assertNull(senderKept.get(senderTransport.getPeerEndpointId()));
+        receiverClosed.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void disconnectsVersion2Receiver() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("once", 1000));
+        _sendOptions.setKeepAliveMillis(60_000);
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(resources, true, received, Protocol.VERSION, 2).get(10, TimeUnit.SECONDS));
+
+        assertSameContent(resources.get(0), received.get(1, TimeUnit.SECONDS).get(0));
+        assertEquals(2, _sender.getProtocolVersion());
+        assertFalse(_sender.isConnectionKept());
+    }
+
+    /** Starts a transfer over Bluetooth, the large first resource waits for the bandwidth. */
+    private CompletableFuture<String> transferOnLowBandwidth(List<ResourceDescriptor> resources,
+                                                             CompletableFuture<List<ResourceDescriptor>> received)
+            throws Exception {
+
+        resources.add(createResource("large", 1_200_000));
+        resources.add(createResource("small", 1000));
+        resources.add(createResource("medium", 200_000));
+        _transports[0].setBandwidth(Transport.Bandwidth.LOW, 2_000_000);
+
+        CompletableFuture<String> result = transfer(resources, true, received);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (_senderTimers.isEmpty()) {
+            assertTrue("sender waits for bandwidth", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return result;
+    }
+
+    private static void assertSentFirst(TransferStats stats, int... indexes) {
+
+        List<TransferStats.Resource> started = stats.getResources();
+        for (int i = 0; i < indexes.length; i++) {
+            assertEquals(indexes[i], started.get(i).getIndex());
+        }
+    }
+
+    @Test
+    public void sendsLargeResourcesOnceBandwidthIsHigh() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        CompletableFuture<String> result = transferOnLowBandwidth(resources, received);
+
+        // Nearby moved to Wi-Fi
+        _transports[0].setBandwidth(Transport.Bandwidth.HIGH, 0);
+        assertNull(result.get(10, TimeUnit.SECONDS));
+
+        List<ResourceDescriptor> actual = received.get(1, TimeUnit.SECONDS);
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), actual.get(i));
+        }
+
+        // the timeout after the upgrade changes nothing
+        runOnListenerThread(_transports[0], _senderTimers.get(0));
+
+        TransferStats stats = _sender.getStats();
+        assertSentFirst(stats, 1, 2, 0);
+        assertEquals(1, stats.getDeferredResources());
+        assertEquals("UPGRADED", stats.getBandwidthWaitResult());
+        assertEquals(Transport.Bandwidth.HIGH, stats.getBandwidth());
+    }
+
+    @Test
+    public void sendsLargeResourcesAfterBandwidthWait() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        CompletableFuture<String> result = transferOnLowBandwidth(resources, received);
+
+        runOnListenerThread(_transports[0], _senderTimers.get(0));
+        assertNull(result.get(10, TimeUnit.SECONDS));
+        assertEquals(resources.size(), received.get(1, TimeUnit.SECONDS).size());
+
+        TransferStats stats = _sender.getStats();
+        assertSentFirst(stats, 1, 2, 0);
+        assertEquals("TIMEOUT", stats.getBandwidthWaitResult());
+        assertEquals(Transport.Bandwidth.LOW, stats.getBandwidth());
+    }
+
+    @Test
+    public void sendsInOrderWithoutBandwidthWait() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("large", 1_200_000));
+        resources.add(createResource("small", 1000));
+        _transports[0].setBandwidth(Transport.Bandwidth.LOW, 0);
+        _sendOptions.setBandwidthWaitMillis(0);
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(resources, true, received).get(10, TimeUnit.SECONDS));
+
+        assertSentFirst(_sender.getStats(), 0, 1);
+        assertEquals(0, _sender.getStats().getDeferredResources());
+        assertNull(_sender.getStats().getBandwidthWaitResult());
+        assertTrue(_senderTimers.isEmpty());
+    }
+
+    @Test
+    public void sendsSmallestFirstAndReportsInIdOrder() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("large", 800_000));
+        resources.add(createResource("medium", 20_000));
+        resources.add(createResource("small", 100));
+        _sendOptions.setMaxConcurrentFiles(1);
+        _sendOptions.setOrder(ResourceOrder.SMALLEST_FIRST);
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(resources, true, received).get(10, TimeUnit.SECONDS));
+
+        assertSentFirst(_sender.getStats(), 2, 1, 0);
+        List<ResourceDescriptor> actual = received.get(1, TimeUnit.SECONDS);
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void keepsOrderForVersion1Receiver() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("large", 50_000));
+        resources.add(createResource("small", 100));
+        resources.get(1).setPriority(1);
+        _sendOptions.setOrder(ResourceOrder.PRIORITY);
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(resources, true, received, Protocol.VERSION, Protocol.LEGACY_VERSION)
+                .get(10, TimeUnit.SECONDS));
+
+        assertSentFirst(_sender.getStats(), 0, 1);
+        assertEquals(2, received.get(1, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void bundlesSmallResources() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            resources.add(createResource("small" + i, 100 + i * 50));
+        }
+        resources.add(createResource("empty", 0));
+        resources.add(createResource("large", 200_000));
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(resources, true, received).get(10, TimeUnit.SECONDS));
+
+        List<ResourceDescriptor> result = received.get(1, TimeUnit.SECONDS);
+        assertEquals(resources.size(), result.size());
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), result.get(i));
+        }
+
+        for (TransferStats stats : new TransferStats[] { _sender.getStats(), _receiver.getStats() }) {
+            assertEquals(51, stats.getBundledResources());
+            assertEquals(1, stats.getStreamPayloads());
+            assertEquals(1, stats.getFilePayloads());
+        }
+    }
+
+    @Test
+    public void resendsCorruptBundledResource() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("intact", 1000));
+        resources.add(createResource("corrupt", 2000));
+
+        // the first read computes the hash, the second bundles the resource with a flipped byte
+        AtomicInteger reads = new AtomicInteger();
+        _senderTransport = new ForwardingTransport(_transports[0]) {
+            @Override
+            public InputStream openInputStream(String uri) throws IOException {
+
+                InputStream stream = super.openInputStream(uri);
+                if (!uri.endsWith("corrupt") || reads.incrementAndGet() != 2) {
+                    return stream;
+                }
+                return flipFirstByte(stream);
+            }
+        };
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(resources, true, received).get(10, TimeUnit.SECONDS));
+        assertEquals(2, reads.get()); // sent again on its own as file payload
+
+        List<ResourceDescriptor> result = received.get(1, TimeUnit.SECONDS);
+        assertEquals(resources.size(), result.size());
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), result.get(i));
+        }
+        assertEquals(1, _sender.getStats().getResends());
+        assertEquals(2, _sender.getStats().getBundledResources());
+    }
+
+    /** The second file payload the receiver gets is stuck while it's copied, until it's released. */
+    private void blockSecondCopy(CountDownLatch copying, CountDownLatch release) {
+
+        AtomicInteger copies = new AtomicInteger();
+        _receivedFiles = file -> new ReceivedFile() {
+            @Override
+            public String getUri() {
+                return file.getUri();
+            }
+
+            @Override
+            public InputStream openInputStream() throws IOException {
+                return file.openInputStream();
+            }
+
+            @Override
+            public File getFile() {
+                return null; // can't be renamed
+            }
+
+            @Override
+            public FileChannel openChannel() throws IOException {
+
+                if (copies.incrementAndGet() != 2) {
+                    return file.openChannel();
+                }
+                copying.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                return file.openChannel();
+            }
+
+            @Override
+            public void delete() {
+                file.delete();
+            }
+        };
+    }
+
+    @Test
+    public void sendsAllDoneOnceFilesAreFinished() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("first", 100_000));
+        resources.add(createResource("second", 300_000));
+
+        CountDownLatch copying = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blockSecondCopy(copying, release);
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        CompletableFuture<String> result = transfer(resources, true, received);
+
+        assertTrue(copying.await(10, TimeUnit.SECONDS));
+        runOnListenerThread(_transports[1], () -> {}); // not blocked by the copy
+        Thread.sleep(200);
+        assertFalse(result.isDone());
+        assertFalse(received.isDone());
+        assertEquals(Long.valueOf(100_000), _receivedSizes.get("first"));
+        assertNull(_receivedSizes.get("second"));
+
+        release.countDown();
+        assertNull(result.get(10, TimeUnit.SECONDS));
+
+        List<ResourceDescriptor> actual = received.get(1, TimeUnit.SECONDS);
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), actual.get(i));
+        }
+        assertEquals(2, (int) _receiver.getStats().getMoveCounts().get("TRANSFER"));
+        assertEquals(Long.valueOf(300_000), _receivedSizes.get("second"));
+    }
+
+    @Test
+    public void placesResourcesAtDestination() throws Exception {
+
+        File destination = _folder.newFolder("destination");
+        _receiveOptions.setDestination(new DirectoryDestination(destination, Destination.Collision.RENAME));
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("photo.jpg", 200_000));
+        resources.add(createResource("notes.txt", 1000));
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(resources, true, received).get(10, TimeUnit.SECONDS));
+
+        List<ResourceDescriptor> actual = received.get(1, TimeUnit.SECONDS);
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), actual.get(i));
+        }
+        assertEquals("file://" + new File(destination, "photo.jpg").getAbsolutePath(), actual.get(0).getUri());
+        assertEquals("file://" + new File(destination, "notes.txt").getAbsolutePath(), actual.get(1).getUri());
+        assertEquals(Long.valueOf(1000), _receivedSizes.get("notes.txt"));
+    }
+
+    @Test
+    public void reportsEachResourceOncePlaced() throws Exception {
+
+        Destination directory = new DirectoryDestination(_folder.newFolder("destination"), Destination.Collision.RENAME);
+        AtomicInteger placed = new AtomicInteger();
+        AtomicBoolean reportedBefore = new AtomicBoolean();
+        _receiveOptions.setDestination((id, file) -> {
+            if (placed.getAndIncrement() == 1) {
+                // the first resource is reported before the second one is placed
+                long end = System.currentTimeMillis() + 5000;
+                while (_receivedSizes.isEmpty() && System.currentTimeMillis() < end) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                }
+                reportedBefore.set(_receivedSizes.size() == 1);
+            }
+            return directory.place(id, file);
+        });
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("photo.jpg", 200_000));
+        resources.add(createResource("notes.txt", 1000));
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(resources, true, received).get(10, TimeUnit.SECONDS));
+
+        assertEquals(2, received.get(1, TimeUnit.SECONDS).size());
+        assertTrue(reportedBefore.get());
+        assertEquals(2, _receivedSizes.size());
+    }
+
+    @Test
+    public void keepsResourceInCacheIfPlacingFails() throws Exception {
+
+        _receiveOptions.setDestination((id, file) -> {
+            throw new IOException("No space left on device");
+        });
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("photo.jpg", 200_000));
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        assertNull(transfer(resources, true, received).get(10, TimeUnit.SECONDS));
+
+        List<ResourceDescriptor> actual = received.get(1, TimeUnit.SECONDS);
+        assertSameContent(resources.get(0), actual.get(0));
+        assertTrue(actual.get(0).getUri().startsWith("file://" + _cacheDir.getAbsolutePath()));
+    }
+
+    /** Fails fast: short timeouts and frequent heartbeats. */
+    private void setShortTimeouts() {
+
+        _sendOptions.setHeartbeatMillis(100);
+        _sendOptions.setTimeout(SenderState.TRANSFERRING_RESOURCES, 300);
+        _sendOptions.setTimeout(SenderState.WAITING_FOR_RECEIVER, 300);
+        _receiveOptions.setTimeout(ReceiverState.RECEIVING, 300);
+    }
+
+    /** Blocks the listener thread of the transport like a hanging app, until it's released. */
+    private static void hang(Transport transport, CountDownLatch release) {
+
+        transport.runOnListenerThread(() -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                // shutdown
+            }
+        });
+    }
+
+    @Test
+    public void timesOutWhenReceiverHangs() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("first", 100_000));
+        resources.add(createResource("second", 100_000));
+        _sendOptions.setBundleSize(0);
+        setShortTimeouts();
+
+        // blocks the listener thread with the first file, before the receiver has any resource
+        CountDownLatch release = new CountDownLatch(1);
+        _receivedFiles = file -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                // shutdown
+            }
+            return file;
+        };
+
+        try {
+            assertEquals("timeout", transfer(resources, true, new CompletableFuture<>()).get(5, TimeUnit.SECONDS));
+            assertEquals(SenderState.NONE, _sender.getState());
+        } finally {
+            release.countDown();
+        }
+
+        // the receiver learns about it once it's back
+        assertEquals("transferInterrupted", _receiverFailure.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void timesOutWhenSenderHangs() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("first", 100_000));
+        resources.add(createResource("second", 100_000));
+        resources.add(createResource("third", 100_000));
+        _sendOptions.setBundleSize(0);
+        _sendOptions.setMaxConcurrentFiles(1);
+        setShortTimeouts();
+
+        // the sender hangs once the first file payload is on its way
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean hanging = new AtomicBoolean();
+        _senderTransport = new ForwardingTransport(_transports[0]) {
+            @Override
+            public long sendFile(String endpointId, String uri) throws IOException {
+
+                if (!hanging.getAndSet(true)) {
+                    hang(_transports[0], release);
+                }
+                return super.sendFile(endpointId, uri);
+            }
+        };
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        try {
+            transfer(resources, true, received);
+            assertEquals("timeout", _receiverFailure.get(5, TimeUnit.SECONDS));
+            assertEquals(ReceiverState.NONE, _receiver.getState());
+            assertFalse(received.isDone());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void waitsForSlowReceiverWithHeartbeats() throws Exception {
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("first", 100_000));
+        resources.add(createResource("second", 300_000));
+        setShortTimeouts();
+
+        CountDownLatch copying = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        blockSecondCopy(copying, release);
+
+        CompletableFuture<List<ResourceDescriptor>> received = new CompletableFuture<>();
+        CompletableFuture<String> result = transfer(resources, true, received);
+
+        // the copy takes longer than both sides wait for each other
+        assertTrue(copying.await(10, TimeUnit.SECONDS));
+        Thread.sleep(1000);
+        assertFalse(result.isDone());
+        release.countDown();
+
+        assertNull(result.get(10, TimeUnit.SECONDS));
+        List<ResourceDescriptor> actual = received.get(1, TimeUnit.SECONDS);
+        for (int i = 0; i < resources.size(); i++) {
+            assertSameContent(resources.get(i), actual.get(i));
+        }
+        assertFalse(_receiverFailure.isDone());
+    }
+
+    @Test
+    public void reportsDisconnectByReceiver() throws Exception {
+
+        tearDown();
+        _transports = LoopbackTransport.createPair(2_000_000, 1, _folder.newFolder("throttled"));
+
+        List<ResourceDescriptor> resources = new ArrayList<>();
+        resources.add(createResource("first", 100_000));
+        resources.add(createResource("second", 300_000));
+        resources.add(createResource("third", 300_000));
+
+        AtomicBoolean disconnected = new AtomicBoolean();
+        _receiverProgress = (title, progress, info) -> {
+            if ("\uD83D\uDCC2 1/3".equals(title) && !disconnected.getAndSet(true)) {
+                _transports[1].disconnect(_transports[1].getPeerEndpointId());
+            }
+        };
+
+        assertEquals("transferInterrupted", transfer(resources, true, new CompletableFuture<>())
+                .get(10, TimeUnit.SECONDS));
+        assertEquals(SenderState.NONE, _sender.getState());
+    }
+
+    /**
+     * Passes the receiver's events on, with the file payloads replaced by {@link #_receivedFiles}
+     * and the streams by {@link #_receivedStreams}.
+     */
+    /**
+     * The executors of the sessions, counting the tasks that haven't finished yet.
+     * Shared executors would let the tasks of one test run into the next one.
+     */
+    private static class BackgroundTasks {
+
+        private final ExecutorService _io = Executors.newCachedThreadPool();
+        private final ExecutorService _finish = Executors.newSingleThreadExecutor();
+        /** Tasks not finished yet, guarded by this. */
+        private int _running;
+
+        final Executor io = task -> run(_io, task);
+        final Executor finish = task -> run(_finish, task);
+
+        private void run(ExecutorService executor, Runnable task) {
+
+            synchronized (this) {
+                _running++;
+            }
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    synchronized (this) {
+                        _running--;
+                        notifyAll();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Waits until all tasks are done, including those started by what they posted
+         * to the listener threads of the transports.
+         *
+         * @return false if tasks were still running after the timeout
+         */
+        boolean awaitIdle(long timeoutMillis, Transport... transports) throws Exception {
+
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (true) {
+
+                synchronized (this) {
+                    while (_running > 0) {
+                        long left = deadline - System.currentTimeMillis();
+                        if (left <= 0) return false;
+                        wait(left);
+                    }
+                }
+
+                for (Transport transport : transports) {
+                    runOnListenerThread(transport, () -> {});
+                }
+
+                synchronized (this) {
+                    if (_running == 0) return true;
+                }
+            }
+        }
+
+        void shutdown() {
+
+            _io.shutdownNow();
+            _finish.shutdownNow();
+        }
+    }
+
+    private class PayloadReplacingListener implements Transport.Listener {
+
+        private final Transport.Listener _listener;
+
+        PayloadReplacingListener(Transport.Listener listener) {
+            _listener = listener;
+        }
+
+        @Override
+        public void onBytesReceived(String endpointId, byte[] bytes) {
+            _listener.onBytesReceived(endpointId, bytes);
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long payloadId, ReceivedFile file) {
+            _listener.onFileReceived(endpointId, payloadId, _receivedFiles != null ? _receivedFiles.apply(file) : file);
+        }
+
+        @Override
+        public void onStreamReceived(String endpointId, long payloadId, InputStream stream) {
+            _listener.onStreamReceived(endpointId, payloadId,
+                    _receivedStreams != null ? _receivedStreams.apply(stream) : stream);
+        }
+
+        @Override
+        public void onTransferUpdate(String endpointId, TransferUpdate update) {
+            _listener.onTransferUpdate(endpointId, update);
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+            _listener.onDisconnected(endpointId);
+        }
+
+        @Override
+        public void onBandwidthChanged(String endpointId, Transport.Bandwidth bandwidth) {
+            _listener.onBandwidthChanged(endpointId, bandwidth);
+        }
+    }
+
+    /** Passes every call on to another transport. */
+    private static class ForwardingTransport implements Transport {
+
+        private final Transport _transport;
+
+        ForwardingTransport(Transport transport) {
+            _transport = transport;
+        }
+
+        @Override
+        public void setListener(Listener listener) {
+            _transport.setListener(listener);
+        }
+
+        @Override
+        public Bandwidth getBandwidth(String endpointId) {
+            return _transport.getBandwidth(endpointId);
+        }
+
+        @Override
+        public long getSize(String uri) {
+            return _transport.getSize(uri);
+        }
+
+        @Override
+        public InputStream openInputStream(String uri) throws IOException {
+            return _transport.openInputStream(uri);
+        }
+
+        @Override
+        public void runOnListenerThread(Runnable task) {
+            _transport.runOnListenerThread(task);
+        }
+
+        @Override
+        public void sendBytes(String endpointId, byte[] bytes) {
+            _transport.sendBytes(endpointId, bytes);
+        }
+
+        @Override
+        public long sendFile(String endpointId, String uri) throws IOException {
+            return _transport.sendFile(endpointId, uri);
+        }
+
+        @Override
+        public long sendStream(String endpointId, InputStream stream) {
+            return _transport.sendStream(endpointId, stream);
+        }
+
+        @Override
+        public void cancel(long payloadId) {
+            _transport.cancel(payloadId);
+        }
+
+        @Override
+        public void disconnect(String endpointId) {
+            _transport.disconnect(endpointId);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ProgressReporterTest {
+
+    private final List<Runnable> _scheduled = new ArrayList<>();
+    private final ProgressReporter _reporter = new ProgressReporter((task, delayMillis) -> _scheduled.add(task), 250);
+    private final List<Long> _reported = new ArrayList<>();
+
+    private void runScheduled() {
+
+        assertEquals(1, _scheduled.size());
+        _scheduled.remove(0).run();
+    }
+
+    @Test
+    public void reportsChangesUntilFinished() {
+
+        _reporter.setListener(stats -> _reported.add(stats.getBytesTransferred()));
+
+        TransferStats stats = new TransferStats("send", "endpoint", "transfer");
+        _reporter.add(stats);
+
+        stats.payloadProgress(1, 1000);
+        runScheduled();
+        runScheduled(); // no change
+        stats.payloadProgress(1, 2000);
+        stats.payloadProgress(1, 3000);
+        runScheduled();
+        stats.finish();
+        runScheduled();
+
+        assertEquals(3, _reported.size());
+        assertEquals(3000, (long) _reported.get(2));
+        assertTrue(_scheduled.isEmpty());
+    }
+}
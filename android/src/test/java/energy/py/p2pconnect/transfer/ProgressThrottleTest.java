@@ -0,0 +1,86 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ProgressThrottleTest {
+
+    private static final long MILLIS = 1_000_000;
+
+    private long _now = 1000 * MILLIS;
+    private final List<String> _shown = new ArrayList<>();
+    private final List<Runnable> _scheduled = new ArrayList<>();
+    private final ProgressThrottle _throttle = new ProgressThrottle(
+            (title, progress, info) -> _shown.add(title + " " + progress + " " + info),
+            16, (task, delayMillis) -> _scheduled.add(task), () -> _now);
+
+    private void runScheduled() {
+
+        List<Runnable> tasks = new ArrayList<>(_scheduled);
+        _scheduled.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void dropsUpdatesWithoutChange() {
+
+        _throttle.updateProgress("1/2", 0, "info");
+        for (int i = 0; i < 10; i++) {
+            _now += 20 * MILLIS;
+            _throttle.updateProgress(null, 0, null);
+            _throttle.updateProgress("1/2", 0, null);
+        }
+
+        assertEquals(1, _shown.size());
+        assertTrue(_scheduled.isEmpty());
+    }
+
+    @Test
+    public void coalescesUpdatesWithinInterval() {
+
+        _throttle.updateProgress("1/2", 0, "info");
+        for (int progress = 1; progress <= 50; progress++) {
+            _throttle.updateProgress(null, progress, null);
+        }
+        _throttle.updateProgress("2/2", 0, null);
+        _throttle.updateProgress(null, 10, null);
+
+        assertEquals(1, _shown.size());
+        assertEquals(1, _scheduled.size());
+
+        // the last update, with the last title
+        _now += 16 * MILLIS;
+        runScheduled();
+        assertEquals(2, _shown.size());
+        assertEquals("2/2 10 null", _shown.get(1));
+
+        // passed on at once after the interval
+        _now += 16 * MILLIS;
+        _throttle.updateProgress(null, 11, null);
+        assertEquals(3, _shown.size());
+    }
+
+    @Test
+    public void passesOnFinishAtOnce() {
+
+        _throttle.updateProgress("1/1", 0, "info");
+        _throttle.updateProgress(null, 50, null);
+        _throttle.updateProgress(null, -1, null);
+
+        assertEquals("null -1 null", _shown.get(1));
+
+        // the pending update is dropped
+        runScheduled();
+        assertEquals(2, _shown.size());
+
+        // the next transfer starts anew
+        _throttle.updateProgress("1/1", 0, "info");
+        assertEquals(3, _shown.size());
+    }
+}
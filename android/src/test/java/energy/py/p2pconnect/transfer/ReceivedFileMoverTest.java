@@ -0,0 +1,98 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class ReceivedFileMoverTest {
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private final ReceivedFileMover _mover = new ReceivedFileMover();
+
+    /** A received file offering the given ways to access it. */
+    private static class TestFile implements ReceivedFile {
+
+        private final File _file;
+        private final boolean _rename;
+        private final boolean _channel;
+
+        TestFile(File file, boolean rename, boolean channel) {
+            _file = file;
+            _rename = rename;
+            _channel = channel;
+        }
+
+        @Override
+        public String getUri() {
+            return _file.toURI().toString();
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            // not a FileInputStream, like a stream of a content provider
+            return new ByteArrayInputStream(Files.readAllBytes(_file.toPath()));
+        }
+
+        @Override
+        public File getFile() {
+            return _rename ? _file : null;
+        }
+
+        @Override
+        public FileChannel openChannel() throws IOException {
+            return _channel ? new FileInputStream(_file).getChannel() : null;
+        }
+
+        @Override
+        public void delete() {
+            _file.delete();
+        }
+    }
+
+    private byte[] createContent() {
+
+        // larger than the copy buffer
+        byte[] content = new byte[ReceivedFileMover.COPY_BUFFER_SIZE * 2 + 17];
+        new Random(1).nextBytes(content);
+        return content;
+    }
+
+    private void assertMoved(ReceivedFileMover.Method expected, boolean rename, boolean channel) throws IOException {
+
+        byte[] content = createContent();
+        File source = _folder.newFile();
+        Files.write(source.toPath(), content);
+        File target = new File(_folder.getRoot(), "target-" + expected);
+
+        assertEquals(expected, _mover.move(new TestFile(source, rename, channel), target));
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void renamesFile() throws IOException {
+        assertMoved(ReceivedFileMover.Method.RENAME, true, true);
+    }
+
+    @Test
+    public void transfersChannel() throws IOException {
+        assertMoved(ReceivedFileMover.Method.TRANSFER, false, true);
+    }
+
+    @Test
+    public void copiesStream() throws IOException {
+        assertMoved(ReceivedFileMover.Method.COPY, false, false);
+    }
+}
@@ -0,0 +1,63 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ResourceOrderTest {
+
+    private static final long UNKNOWN = Long.MAX_VALUE;
+
+    private final long[] _sizes = { 5000, 10, 1_000_000, UNKNOWN, 10, 300 };
+    private final int[] _priorities = { 0, 0, 1, 0, 5, 1 };
+
+    /** Starts all resources with the given window, a resource ends when the next one starts. */
+    private List<Integer> start(ResourceOrder order, int window) {
+
+        List<Integer> pending = new ArrayList<>(Arrays.asList(0, 1, 2, 3, 4, 5));
+        List<Integer> inFlight = new ArrayList<>();
+        List<Integer> started = new ArrayList<>();
+
+        while (!pending.isEmpty()) {
+
+            if (inFlight.size() == window) {
+                // the smallest one finishes first
+                Integer smallest = inFlight.get(0);
+                for (Integer index : inFlight) {
+                    if (_sizes[index] < _sizes[smallest]) smallest = index;
+                }
+                inFlight.remove(smallest);
+            }
+
+            int next = order.next(pending, inFlight, _sizes, _priorities);
+            assertTrue(pending.remove(Integer.valueOf(next)));
+            inFlight.add(next);
+            started.add(next);
+        }
+        return started;
+    }
+
+    @Test
+    public void keepsOrderOrSortsBySize() {
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), start(ResourceOrder.IN_ORDER, 2));
+        assertEquals(Arrays.asList(1, 4, 5, 0, 2, 3), start(ResourceOrder.SMALLEST_FIRST, 2));
+    }
+
+    @Test
+    public void fillsUpLargestWithSmallest() {
+
+        // the unknown size counts as largest, the next large one waits until it's done
+        assertEquals(Arrays.asList(3, 1, 4, 5, 0, 2), start(ResourceOrder.LARGEST_FIRST, 3));
+        assertEquals(Arrays.asList(3, 2, 0, 5, 1, 4), start(ResourceOrder.LARGEST_FIRST, 1));
+    }
+
+    @Test
+    public void sortsByPriorityThenOrder() {
+        assertEquals(Arrays.asList(4, 2, 5, 0, 1, 3), start(ResourceOrder.PRIORITY, 2));
+    }
+}
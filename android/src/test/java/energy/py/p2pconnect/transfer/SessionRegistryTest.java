@@ -0,0 +1,99 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SessionRegistryTest {
+
+    private final SessionRegistry<Session> _registry = new SessionRegistry<>();
+
+    private static class Session implements TransferSession {
+
+        private final String _endpointId;
+        private final String _transferId;
+
+        Session(String endpointId, String transferId) {
+            _endpointId = endpointId;
+            _transferId = transferId;
+        }
+
+        @Override
+        public String getEndpointId() {
+            return _endpointId;
+        }
+
+        @Override
+        public String getTransferId() {
+            return _transferId;
+        }
+
+        @Override
+        public void onBytesReceived(String endpointId, byte[] bytes) {
+        }
+
+        @Override
+        public void onFileReceived(String endpointId, long payloadId, ReceivedFile file) {
+        }
+
+        @Override
+        public void onStreamReceived(String endpointId, long payloadId, InputStream stream) {
+        }
+
+        @Override
+        public void onTransferUpdate(String endpointId, TransferUpdate update) {
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+        }
+
+        @Override
+        public void onBandwidthChanged(String endpointId, Transport.Bandwidth bandwidth) {
+        }
+    }
+
+    @Test
+    public void findsSessionsByEndpointAndTransfer() {
+
+        Session sending = new Session("a", "upload");
+        Session receiving = new Session("b", "download");
+        Session requesting = new Session("c", null); // the transfer id isn't known yet
+        _registry.put(sending);
+        _registry.put(receiving);
+        _registry.put(requesting);
+
+        assertSame(receiving, _registry.get("b"));
+        assertSame(sending, _registry.findByTransferId("upload"));
+        assertNull(_registry.findByTransferId("unknown"));
+        assertEquals(Arrays.asList(sending, receiving, requesting), _registry.getAll());
+
+        assertSame(sending, _registry.remove("a"));
+        assertNull(_registry.get("a"));
+        assertFalse(_registry.isEmpty());
+    }
+
+    @Test
+    public void isConfinedToOneThread() throws Exception {
+
+        _registry.put(new Session("a", "upload"));
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                _registry.get("a");
+            } catch (Throwable ex) {
+                error.set(ex);
+            }
+        });
+        other.start();
+        other.join();
+
+        assertTrue(error.get() instanceof IllegalStateException);
+        assertNotNull(_registry.get("a"));
+    }
+}
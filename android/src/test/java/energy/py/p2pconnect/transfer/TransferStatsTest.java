@@ -0,0 +1,100 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class TransferStatsTest {
+
+    private static final long MILLIS = 1_000_000;
+
+    private long _now = 1000 * MILLIS;
+    private final TransferStats _stats = new TransferStats("send", "endpoint", "transfer", () -> _now);
+
+    @Test
+    public void recordsPhasesInOrder() {
+
+        _stats.enterPhase("CONNECTING");
+        _now += 100 * MILLIS;
+        _stats.enterPhase("WAITING_FOR_VERSION");
+        _stats.enterPhase("WAITING_FOR_VERSION"); // no new phase
+        _now += 50 * MILLIS;
+        _stats.enterPhase("TRANSFERRING_RESOURCES");
+
+        // started before the session
+        _stats.recordPhase("BROWSING", 500 * MILLIS);
+        _stats.recordPhase("CONNECTING", 800 * MILLIS);
+
+        _now += 250 * MILLIS;
+        _stats.finish();
+        _now += 1000 * MILLIS; // not counted
+
+        List<TransferStats.Phase> phases = _stats.getPhases();
+        assertEquals(4, phases.size());
+        assertEquals("BROWSING", phases.get(0).getName());
+        assertEquals("CONNECTING", phases.get(1).getName());
+        assertEquals(300, _stats.getStartMillis(phases.get(1)));
+        assertEquals(300, _stats.getDurationMillis(phases.get(1)));
+        assertEquals(50, _stats.getDurationMillis(phases.get(2)));
+        assertEquals(250, _stats.getDurationMillis(phases.get(3)));
+
+        assertTrue(_stats.isFinished());
+        assertEquals(900, _stats.getDurationMillis());
+    }
+
+    @Test
+    public void measuresThroughputOverWindow() {
+
+        _stats.enterPhase("TRANSFERRING_RESOURCES");
+
+        // 1 MB per second for 10 seconds with two payloads, updates are cumulative per payload
+        for (int second = 1; second <= 10; second++) {
+            _now += 1000 * MILLIS;
+            _stats.payloadProgress(1, second * 500_000L);
+            _stats.payloadProgress(2, second * 500_000L);
+        }
+        assertEquals(10_000_000, _stats.getBytesTransferred());
+        assertEquals(1_000_000, _stats.getThroughput(), 1);
+
+        // 4 MB per second from now on, the window forgets the slower start
+        for (int second = 1; second <= 5; second++) {
+            _now += 1000 * MILLIS;
+            _stats.payloadProgress(1, 5_000_000L + second * 4_000_000L);
+        }
+        _stats.payloadDone(1, 25_000_000);
+        assertEquals(4_000_000, _stats.getThroughput(), 1);
+        assertEquals(2_000_000, _stats.getAverageThroughput(), 1);
+        assertEquals(-1, _stats.getEtaMillis());
+        _stats.setTotalBytes(50_000_000);
+        assertEquals(5000, _stats.getEtaMillis());
+
+        // idle links slow down
+        _now += 2500 * MILLIS;
+        assertTrue(_stats.getThroughput() < 4_000_000);
+        _now += 2500 * MILLIS;
+        assertEquals(0, _stats.getThroughput(), 0);
+    }
+
+    @Test
+    public void timesResources() {
+
+        _stats.enterPhase("TRANSFERRING_RESOURCES");
+        _stats.resourceStarted(1);
+        _now += 10 * MILLIS;
+        _stats.resourceStarted(0);
+        _now += 20 * MILLIS;
+        _stats.resourceCompleted(1, 1000);
+
+        List<TransferStats.Resource> resources = _stats.getResources();
+        assertEquals(1, resources.get(0).getIndex());
+        assertTrue(resources.get(0).isComplete());
+        assertEquals(30, _stats.getDurationMillis(resources.get(0)));
+        assertEquals(1000, resources.get(0).getBytes());
+
+        assertFalse(resources.get(1).isComplete());
+        assertEquals(10, _stats.getStartMillis(resources.get(1)));
+        assertEquals(20, _stats.getDurationMillis(resources.get(1)));
+    }
+}
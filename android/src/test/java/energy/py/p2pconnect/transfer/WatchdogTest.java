@@ -0,0 +1,138 @@
+package energy.py.p2pconnect.transfer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class WatchdogTest {
+
+    private static final long MILLIS = 1_000_000;
+
+    private long _now = 1000 * MILLIS;
+    private int _ticks;
+    /** The session calls {@link Watchdog#heard()} on every tick while it's busy. */
+    private boolean _busy;
+    private final List<Long> _timeouts = new ArrayList<>();
+    private final List<Runnable> _scheduled = new ArrayList<>();
+    private final Watchdog _watchdog = new Watchdog((task, delayMillis) -> _scheduled.add(task), 100,
+            new Watchdog.Listener() {
+                @Override
+                public void onTick() {
+                    _ticks++;
+                    if (_busy) {
+                        _watchdog.heard();
+                    }
+                }
+
+                @Override
+                public void onTimeout(long silentMillis) {
+                    _timeouts.add(silentMillis);
+                }
+            }, () -> _now);
+
+    /** Advances the clock by one period and runs the checks due. */
+    private void advance() {
+
+        _now += 100 * MILLIS;
+        List<Runnable> tasks = new ArrayList<>(_scheduled);
+        _scheduled.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void timesOutWhenPeerIsSilent() {
+
+        _watchdog.start();
+        _watchdog.expect(250);
+
+        advance();
+        advance();
+        assertEquals(2, _ticks);
+        assertTrue(_timeouts.isEmpty());
+
+        advance();
+        assertEquals(3, _ticks);
+        assertEquals(1, _timeouts.size());
+        assertEquals(300, (long) _timeouts.get(0));
+        assertFalse(_watchdog.isRunning());
+        assertTrue(_scheduled.isEmpty());
+    }
+
+    @Test
+    public void restartsSilenceWhenPeerIsHeard() {
+
+        _watchdog.start();
+        _watchdog.expect(250);
+
+        for (int i = 0; i < 10; i++) {
+            advance();
+            _watchdog.heard();
+        }
+        assertTrue(_timeouts.isEmpty());
+        assertEquals(10, _ticks);
+
+        // entering another state restarts it as well
+        advance();
+        _watchdog.expect(250);
+        advance();
+        advance();
+        assertTrue(_timeouts.isEmpty());
+    }
+
+    @Test
+    public void letsBusySessionWait() {
+
+        _watchdog.start();
+        _watchdog.expect(250);
+
+        // the session works on its own, the peer waits for it
+        _busy = true;
+        for (int i = 0; i < 10; i++) {
+            advance();
+        }
+        assertTrue(_timeouts.isEmpty());
+
+        _busy = false;
+        advance();
+        advance();
+        advance();
+        assertEquals(1, _timeouts.size());
+    }
+
+    @Test
+    public void waitsForeverWithoutTimeout() {
+
+        _watchdog.start();
+        _watchdog.expect(0);
+
+        for (int i = 0; i < 100; i++) {
+            advance();
+        }
+        assertTrue(_timeouts.isEmpty());
+        assertEquals(100, _ticks);
+    }
+
+    @Test
+    public void ignoresChecksOfStoppedWatchdog() {
+
+        _watchdog.start();
+        _watchdog.expect(150);
+        _watchdog.stop();
+
+        // started again before the old check ran
+        _watchdog.start();
+        assertEquals(2, _scheduled.size());
+
+        advance();
+        assertEquals(1, _ticks);
+        assertEquals(1, _scheduled.size());
+
+        advance();
+        assertEquals(1, _timeouts.size());
+    }
+}
@@ -17,6 +17,8 @@ export interface ResourceDescriptor {
    * The path (especially the last part) will vary between sender and receiver.
    */
   uri: string;
+  /** Resources with a higher priority are sent first, if the <code>order</code> is <code>priority</code> (default 0). */
+  priority?: number;
 }
 
 /**
@@ -28,7 +30,132 @@ export interface TransferResult {
   transferId: string;
   /** The list of the transferred resources. */
   resources: ResourceDescriptor[]
+  /** The metrics of the transfer. Android only. */
+  stats?: TransferStats;
+}
+
+/** A transfer the recipient gave up on. */
+export interface TransferFailure {
+
+  /** The ID of the transfer. */
+  transferId: string;
+  /**
+   * <code>timeout</code> if the sender was silent for too long, <code>transferInterrupted</code>
+   * if the connection was lost or a resource still failed after it was requested again.
+   */
+  error: 'transferInterrupted' | 'timeout';
+  /** The metrics of the transfer. */
+  stats?: TransferStats;
+}
+
+/** Metrics of a transfer with one peer. Times are milliseconds since the start of the first phase. */
+export interface TransferStats {
+
+  role: 'send' | 'receive';
+  /** The endpoint ID of the peer. */
+  endpointId: string;
+  /** The ID of the transfer, missing until the receiver got it. */
+  transferId?: string;
+  /** <code>false</code> while the transfer is running. */
+  finished: boolean;
+  durationMs: number;
+  /** The bytes of all file and stream payloads, compressed ones as sent. */
+  bytesTransferred: number;
+  /** The bytes to transfer without the ones the receiver had already, missing if a size is unknown. */
+  totalBytes?: number;
+  /** Bytes per second over the last 5 seconds. */
+  throughput: number;
+  /** Bytes per second over the whole transfer. */
+  averageThroughput: number;
+  filePayloads: number;
+  /** Stream payloads, including the compressed ones. */
+  streamPayloads: number;
+  compressedPayloads: number;
+  /** The resources sent together with others in one stream payload. */
+  bundledResources: number;
+  /** The control messages sent and received. */
+  controlMessages: number;
+  /** How often a corrupt resource was requested again. */
+  resends: number;
+  /** The resources the receiver had already, they were not transferred. */
+  skippedResources: number;
+  /** The bytes kept from an interrupted transfer with the same ID. */
+  resumedBytes: number;
+  /** The bytes of resources the receiver found by their content hash (receiver only). */
+  deduplicatedBytes: number;
+  /** How many received files were moved with each method, like RENAME or COPY (receiver only). */
+  moves: { [method: string]: number };
+  /** The last reported quality of the connection, Nearby starts on Bluetooth (LOW) and moves to Wi-Fi (HIGH). */
+  bandwidth: 'UNKNOWN' | 'LOW' | 'MEDIUM' | 'HIGH';
+  /** The large resources held back until the connection had a high bandwidth (sender only). */
+  deferredResources: number;
+  /** How long large resources waited for a high bandwidth connection (sender only). */
+  bandwidthWaitMs: number;
+  /** Why the large resources were sent, missing if they did not wait (sender only). */
+  bandwidthWaitResult?: 'UPGRADED' | 'TIMEOUT';
+  /**
+   * The phases of the transfer in the order they started: BROWSING (discovery, sender only),
+   * CONNECTING and the states of the handshake.
+   */
+  phases: TransferPhase[];
+  /** The resources sent or received, in the order they started. */
+  resources: ResourceStats[];
+}
+
+/** The progress of a running transfer with one peer. */
+export interface TransferProgress {
+
+  role: 'send' | 'receive';
+  /** The endpoint ID of the peer. */
+  endpointId: string;
+  /** The ID of the transfer, missing until the receiver got it. */
+  transferId?: string;
+  bytesTransferred: number;
+  /** The bytes to transfer, missing if a size is unknown. */
+  totalBytes?: number;
+  /** Bytes per second over the last 5 seconds. */
+  bytesPerSecond: number;
+  /** The estimated time remaining, missing if unknown. Compressed resources take less. */
+  etaMs?: number;
+  /** <code>true</code> for the last event of the transfer. */
+  finished: boolean;
+}
+
+/** A resource the recipient finished, before the transfer is complete. */
+export interface ReceivedResource {
+
+  /** The ID of the transfer. */
+  transferId: string;
+  /** The identifier of the resource given by the sender. */
+  id: string;
+  /** The resource URI on the recipient's side. */
+  uri: string;
+  /** The size of the resource in bytes. */
+  size: number;
+  /** The time from the start of the resource until it was finished. */
+  durationMs: number;
+}
+
+/** A phase of a transfer. */
+export interface TransferPhase {
 
+  name: string;
+  startMs: number;
+  /** The duration up to now, if the phase still lasts. */
+  durationMs: number;
+}
+
+/** The timing of one resource of a transfer. */
+export interface ResourceStats {
+
+  /** The index of the resource in the list sent. */
+  index: number;
+  startMs: number;
+  /** The duration up to now, if the resource is still transferred. */
+  durationMs: number;
+  /** The size of the resource, 0 until it is complete. */
+  bytes: number;
+  complete: boolean;
 }
 
 /** Defines the parameters of the sender to transfer files. */
@@ -47,10 +174,94 @@ export interface SendOptions {
    * </ul>
    */
   serviceId: string;
-  /** The ID for the transfer process. */
+  /**
+   * The ID for the transfer process.
+   * An interrupted transfer continues where it stopped, if the same resources are sent again with the same ID.
+   */
   transferId: string;
   /** The list of the resources to be transferred. */
   resources: ResourceDescriptor[];
+  /**
+   * The number of files sent at the same time (default 4).
+   * Receivers with an older version of this plugin get one file after the other.
+   */
+  maxConcurrentFiles?: number;
+  /**
+   * Verifies every resource with its content hash, corrupt ones are requested again (default true).
+   * The receiver also skips resources it got with an earlier transfer.
+   * Every resource is read once more to compute its hash before the manifest is sent,
+   * which delays the start of the transfer.
+   */
+  verify?: boolean;
+  /**
+   * Skips resources the receiver got with an earlier transfer, even if <code>verify</code> is disabled (default false).
+   * The content hashes are computed for it like for <code>verify</code>.
+   */
+  deduplicate?: boolean;
+  /**
+   * Compresses resources that shrink well, like JSON or CSV (default false).
+   * Worth it on slow connections; media files are always sent unchanged.
+   */
+  compress?: boolean;
+  /**
+   * Lets the user select several receivers, the resources are sent to all of them
+   * at the same time (default false). Android only.
+   * The receivers must call <code>startReceive</code> with <code>broadcast</code> as well.
+   */
+  broadcast?: boolean;
+  /**
+   * Keeps the connection open for this many milliseconds after a successful transfer (default 0).
+   * The next send to the same receiver skips discovery and connecting.
+   * Receivers with an older version of this plugin are disconnected as before. Android only.
+   */
+  keepAliveMs?: number;
+  /**
+   * How long resources of 1 MiB or more wait for the connection to move from Bluetooth to Wi-Fi,
+   * smaller ones are sent meanwhile (default 10000). 0 sends all resources at once. Android only.
+   */
+  bandwidthWaitMs?: number;
+  /**
+   * The order the resources are sent in (default <code>inOrder</code>). <code>smallestFirst</code> gives
+   * the receiver most resources early, <code>largestFirst</code> sends one large resource at a time and
+   * the smallest ones beside it, <code>priority</code> uses the priority of the resources.
+   * The result keeps the order of the resources. Receivers with version 1 of this plugin get them in order.
+   */
+  order?: 'inOrder' | 'smallestFirst' | 'largestFirst' | 'priority';
+  /**
+   * Resources smaller than this many bytes are packed into one stream payload (default 65536),
+   * which saves a round trip per resource. 0 sends every resource on its own.
+   * Receivers with an older version of this plugin get them one by one. Android only.
+   */
+  bundleSize?: number;
+  /**
+   * How often the sender checks that the receiver is alive while resources are sent, in milliseconds
+   * (default 2000). 0 turns the heartbeats off. Android only.
+   */
+  heartbeatMs?: number;
+  /**
+   * How long the sender waits for the receiver in a phase before it gives up with <code>timeout</code>,
+   * in milliseconds by the name of the phase as in <code>TransferPhase</code>, e.g.
+   * <code>{ TRANSFERRING_RESOURCES: 30000 }</code>. 0 waits forever. Android only.
+   */
+  timeoutsMs?: { [phase: string]: number };
+  /**
+   * Sends to the receiver of an earlier send over its kept connection, without browsing.
+   * The user selects a receiver as usual if the connection is closed already. Android only.
+   */
+  endpointId?: string;
+}
+
+/** The result of a send operation for one receiver. */
+export interface PeerResult {
+
+  /** The endpoint ID of the receiver. */
+  endpointId: string;
+  /** The name of the receiver, as shown in the list of peers. */
+  name: string;
+  success: boolean;
+  error?: SendError;
+  /** The metrics of the transfer, missing if the connection failed. */
+  stats?: TransferStats;
 }
 
 /** Accepts or rejects a transfer. */
@@ -77,6 +288,40 @@ export interface ReceiveOptions {
     * </ul>
     */
   serviceId: string;
+  /**
+   * Receives from senders using the <code>broadcast</code> option (default false). Android only.
+   * Senders without this option cannot find the receiver then.
+   */
+  broadcast?: boolean;
+  /**
+   * Where received resources are put, named after their IDs. By default they stay in the
+   * cache directory under a random name. Android only.
+   */
+  destination?: ReceiveDestination;
+  /**
+   * How long the recipient waits for the sender in a phase before it gives up, in milliseconds by
+   * the name of the phase as in <code>TransferPhase</code>, e.g. <code>{ RECEIVING: 30000 }</code>.
+   * 0 waits forever. Android only.
+   */
+  timeoutsMs?: { [phase: string]: number };
+}
+
+/**
+ * The location each received resource is moved to once it is verified, before the sender is told they all arrived.
+ * A resource that can't be moved there stays in the cache directory.
+ */
+export interface ReceiveDestination {
+  /** A directory the app may write to, as path or file URI. */
+  directory?: string;
+  /** A MediaStore collection, the resources show up in the gallery or the downloads. Android 10 and later. */
+  mediaStore?: 'images' | 'video' | 'audio' | 'downloads';
+  /** The directory within the MediaStore, like <code>Pictures/Survey</code> (default: the standard directory of the collection). */
+  relativePath?: string;
+  /**
+   * What happens if a file with the name of a resource exists (default <code>rename</code>).
+   * <code>keep</code> reports the existing file instead of the received one.
+   */
+  collision?: 'rename' | 'replace' | 'keep';
 }
 
 /**
@@ -97,7 +342,9 @@ export enum SendError {
   /** An internal error occured. Something went terribly wrong. */
   internalError = 'internalError',
   /** The connection between the peers could not be established. */
-  connectionFailed = 'connectionFailed'
+  connectionFailed = 'connectionFailed',
+  /** The receiver did not answer in time, see <code>timeoutsMs</code>. Android only. */
+  timeout = 'timeout'
 }
 
 /**
@@ -149,8 +396,40 @@ export interface P2pConnectPlugin {
     listenerFunc: (result: TransferResult) => void
   ): Promise<PluginListenerHandle>; 
 
-  /** Starts a transfer on the sender's side. */
-  send(options: SendOptions): Promise<{ success: boolean, error: SendError | null }>;
+  /**
+   * Notification is triggered on both sides while a transfer is running,
+   * four times per second at most. Android only.
+   */
+  addListener(
+    eventName: 'transferProgress',
+    listenerFunc: (progress: TransferProgress) => void
+  ): Promise<PluginListenerHandle>;
+
+  /**
+   * Notification is triggered on the recipient's side for each resource
+   * as soon as it is finished, before 'transferComplete'. With a destination
+   * as soon as the resource was put there. Android only.
+   */
+  addListener(
+    eventName: 'resourceReceived',
+    listenerFunc: (resource: ReceivedResource) => void
+  ): Promise<PluginListenerHandle>;
+
+  /**
+   * Notification is triggered on the recipient's side when a transfer
+   * breaks off, because the connection was lost or the sender went silent.
+   * Android only.
+   */
+  addListener(
+    eventName: 'transferFailed',
+    listenerFunc: (failure: TransferFailure) => void
+  ): Promise<PluginListenerHandle>;
+
+  /**
+   * Starts a transfer on the sender's side.
+   * It succeeds if all receivers got the resources, <code>peers</code> lists the result of each receiver.
+   */
+  send(options: SendOptions): Promise<{ success: boolean, error: SendError | null, peers?: PeerResult[] }>;
 
   /** Activates the reception of a transfer on the recipient's side. */
   startReceive(options: ReceiveOptions): Promise<{ success: boolean }>;
@@ -163,4 +442,10 @@ export interface P2pConnectPlugin {
    * transfer should be accepted or rejected.
    */
   acceptTransfer(options: AcceptTransferOptions): Promise<void>;
+
+  /**
+   * Returns the metrics of the running transfers and the last ones, sent or received,
+   * oldest first. Android only.
+   */
+  getTransferStats(): Promise<{ transfers: TransferStats[] }>;
 }